@@ -88,7 +88,7 @@ com.universeprojects.json.sharedist to JSON text. The result is a JSON array.
 			return "null";
 
 		boolean first = true;
-		StringBuffer sb = new StringBuffer();
+		StringBuilder sb = new StringBuilder();
 		Iterator iter=list.iterator();
 
 		sb.append('[');
@@ -85,7 +85,7 @@ public class JSONObject extends LinkedHashMap<Object,Object> implements Map<Obje
 		if(map == null)
 			return "null";
 
-		StringBuffer sb = new StringBuffer();
+		StringBuilder sb = new StringBuilder();
 		boolean first = true;
 		Iterator iter=map.entrySet().iterator();
 
@@ -127,7 +127,7 @@ public class JSONObject extends LinkedHashMap<Object,Object> implements Map<Obje
 		return json;
 	}
 
-	private static String toJSONString(String key,Object value, StringBuffer sb){
+	private static String toJSONString(String key,Object value, StringBuilder sb){
 		sb.append('\"');
 		if(key == null)
 			sb.append("null");
@@ -146,7 +146,7 @@ public class JSONObject extends LinkedHashMap<Object,Object> implements Map<Obje
 	}
 
 	public static String toString(String key,Object value){
-		StringBuffer sb = new StringBuffer();
+		StringBuilder sb = new StringBuilder();
 		toJSONString(key, value, sb);
 		return sb.toString();
 	}
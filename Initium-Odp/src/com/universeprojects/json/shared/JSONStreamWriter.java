@@ -0,0 +1,259 @@
+package com.universeprojects.json.shared;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes JSON text straight to another Writer (usually the servlet response) instead of building it up in
+ * memory with toJSONString() first. The output is the same compact JSON that JSONValue.toJSONString() produces.
+ * <p>
+ * Strings that don't need escaping are written as they are. Strings that do are escaped through a small buffer
+ * that is reused for the whole response, so large html payloads don't get copied into intermediate Strings.
+ * <p>
+ * Not thread safe, use one instance per response.
+ */
+@SuppressWarnings("rawtypes")
+public class JSONStreamWriter extends Writer {
+
+	private static final int BUFFER_SIZE = 1024;
+	// The longest escape sequence is \\uXXXX
+	private static final int MAX_ESCAPE_LENGTH = 6;
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	private final Writer out;
+	private final char[] buffer = new char[BUFFER_SIZE];
+	private int position = 0;
+
+	public JSONStreamWriter(Writer out) {
+		this.out = out;
+	}
+
+	/**
+	 * Writes the given value to out as JSON text.
+	 *
+	 * @see #writeValue(Object)
+	 */
+	public static void write(Object value, Writer out) throws IOException {
+		new JSONStreamWriter(out).writeValue(value);
+	}
+
+	/**
+	 * Encode an object into JSON text and write it. Handles the same values as JSONValue.writeJSONString().
+	 *
+	 * @param value
+	 */
+	public void writeValue(Object value) throws IOException {
+		if(value == null){
+			out.write("null");
+			return;
+		}
+
+		if(value instanceof String){
+			writeString((String)value);
+			return;
+		}
+
+		if(value instanceof Double){
+			if(((Double)value).isInfinite() || ((Double)value).isNaN())
+				out.write("null");
+			else
+				out.write(value.toString());
+			return;
+		}
+
+		if(value instanceof Float){
+			if(((Float)value).isInfinite() || ((Float)value).isNaN())
+				out.write("null");
+			else
+				out.write(value.toString());
+			return;
+		}
+
+		if(value instanceof Number || value instanceof Boolean){
+			out.write(value.toString());
+			return;
+		}
+
+		if(value instanceof JSONObject){
+			writeObject((Map)value);
+			return;
+		}
+
+		if(value instanceof JSONArray){
+			writeArray((List)value);
+			return;
+		}
+
+		if(value instanceof JSONStreamAware){
+			((JSONStreamAware)value).writeJSONString(this, null);
+			return;
+		}
+
+		if(value instanceof JSONAware){
+			out.write(((JSONAware)value).toJSONString());
+			return;
+		}
+
+		if(value instanceof Map){
+			writeObject((Map)value);
+			return;
+		}
+
+		if(value instanceof List){
+			writeArray((List)value);
+			return;
+		}
+
+		out.write(value.toString());
+	}
+
+	public void writeObject(Map map) throws IOException {
+		if(map == null){
+			out.write("null");
+			return;
+		}
+
+		boolean first = true;
+		out.write('{');
+		for(Iterator iter=map.entrySet().iterator();iter.hasNext();){
+			if(first)
+				first = false;
+			else
+				out.write(',');
+
+			Map.Entry entry=(Map.Entry)iter.next();
+			writeString(String.valueOf(entry.getKey()));
+			out.write(':');
+			writeValue(entry.getValue());
+		}
+		out.write('}');
+	}
+
+	public void writeArray(List list) throws IOException {
+		if(list == null){
+			out.write("null");
+			return;
+		}
+
+		boolean first = true;
+		out.write('[');
+		for(Object value:list){
+			if(first)
+				first = false;
+			else
+				out.write(',');
+
+			writeValue(value);
+		}
+		out.write(']');
+	}
+
+	/**
+	 * Writes the given string quoted and escaped, see JSONValue.escape().
+	 *
+	 * @param s Must not be null.
+	 */
+	public void writeString(String s) throws IOException {
+		out.write('\"');
+		int firstEscape = JSONValue.indexOfEscape(s);
+		if(firstEscape < 0){
+			out.write(s);
+		}
+		else{
+			out.write(s, 0, firstEscape);
+			writeEscaped(s, firstEscape);
+		}
+		out.write('\"');
+	}
+
+	private void writeEscaped(String s, int start) throws IOException {
+		for(int i=start;i<s.length();i++){
+			if(position > BUFFER_SIZE-MAX_ESCAPE_LENGTH)
+				flushBuffer();
+
+			char ch=s.charAt(i);
+			switch(ch){
+			case '"':
+				buffer[position++] = '\\';
+				buffer[position++] = '"';
+				break;
+			case '\\':
+				buffer[position++] = '\\';
+				buffer[position++] = '\\';
+				break;
+			case '\b':
+				buffer[position++] = '\\';
+				buffer[position++] = 'b';
+				break;
+			case '\f':
+				buffer[position++] = '\\';
+				buffer[position++] = 'f';
+				break;
+			case '\n':
+				buffer[position++] = '\\';
+				buffer[position++] = 'n';
+				break;
+			case '\r':
+				buffer[position++] = '\\';
+				buffer[position++] = 'r';
+				break;
+			case '\t':
+				buffer[position++] = '\\';
+				buffer[position++] = 't';
+				break;
+			case '/':
+				buffer[position++] = '\\';
+				buffer[position++] = '/';
+				break;
+			default:
+				if(JSONValue.isUnicodeEscaped(ch)){
+					buffer[position++] = '\\';
+					buffer[position++] = 'u';
+					buffer[position++] = HEX[(ch >> 12) & 0xF];
+					buffer[position++] = HEX[(ch >> 8) & 0xF];
+					buffer[position++] = HEX[(ch >> 4) & 0xF];
+					buffer[position++] = HEX[ch & 0xF];
+				}
+				else{
+					buffer[position++] = ch;
+				}
+			}
+		}
+		flushBuffer();
+	}
+
+	private void flushBuffer() throws IOException {
+		if(position > 0){
+			out.write(buffer, 0, position);
+			position = 0;
+		}
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		out.write(cbuf, off, len);
+	}
+
+	@Override
+	public void write(int c) throws IOException {
+		out.write(c);
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		out.write(str, off, len);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+}
@@ -103,6 +103,10 @@ com.universeprojects.json.sharedhe first parameter, use JSONObject.writeJSONStri
 		}
 
 		if(value instanceof String){
+			if(out instanceof JSONStreamWriter){
+				((JSONStreamWriter)out).writeString((String)value);
+				return;
+			}
 			out.write('\"');
 			out.write(escape((String)value));
 			out.write('\"');
@@ -226,8 +230,12 @@ com.universeprojects.json.sharedhe first parameter, use JSONObject.writeJSONStri
 	public static String escape(String s){
 		if(s==null)
 			return null;
-		StringBuffer sb = new StringBuffer();
-		escape(s, sb);
+		int firstEscape = indexOfEscape(s);
+		if(firstEscape < 0)
+			return s;
+		StringBuilder sb = new StringBuilder(s.length()+16);
+		sb.append(s, 0, firstEscape);
+		escape(s, firstEscape, sb);
 		return sb.toString();
 	}
 
@@ -235,8 +243,12 @@ com.universeprojects.json.sharedhe first parameter, use JSONObject.writeJSONStri
 	 * @param s - Must not be null.
 	 * @param sb
 	 */
-	static void escape(String s, StringBuffer sb) {
-		for(int i=0;i<s.length();i++){
+	static void escape(String s, StringBuilder sb) {
+		escape(s, 0, sb);
+	}
+
+	private static void escape(String s, int start, StringBuilder sb) {
+		for(int i=start;i<s.length();i++){
 			char ch=s.charAt(i);
 			switch(ch){
 			case '"':
@@ -264,8 +276,7 @@ com.universeprojects.json.sharedhe first parameter, use JSONObject.writeJSONStri
 				sb.append("\\/");
 				break;
 			default:
-				//Reference: http://www.unicode.org/versions/Unicode5.1.0/
-				if((ch>='\u0000' && ch<='\u001F') || (ch>='\u007F' && ch<='\u009F') || (ch>='\u2000' && ch<='\u20FF')){
+				if(isUnicodeEscaped(ch)){
 					String ss=Integer.toHexString(ch);
 					sb.append("\\u");
 					for(int k=0;k<4-ss.length();k++){
@@ -280,4 +291,32 @@ com.universeprojects.json.sharedhe first parameter, use JSONObject.writeJSONStri
 		}//for
 	}
 
+	/**
+	 * Control characters and the general punctuation block are written as \\uXXXX.
+	 */
+	static boolean isUnicodeEscaped(char ch) {
+		//Reference: http://www.unicode.org/versions/Unicode5.1.0/
+		return (ch>='\u0000' && ch<='\u001F') || (ch>='\u007F' && ch<='\u009F') || (ch>='\u2000' && ch<='\u20FF');
+	}
+
+	/**
+	 * @param s - Must not be null.
+	 * @return The index of the first character in s that has to be escaped, or -1 if s can be written as it is.
+	 */
+	static int indexOfEscape(String s) {
+		for(int i=0;i<s.length();i++){
+			char ch=s.charAt(i);
+			switch(ch){
+			case '"':
+			case '\\':
+			case '/':
+				return i;
+			default:
+				if(isUnicodeEscaped(ch))
+					return i;
+			}
+		}
+		return -1;
+	}
+
 }
@@ -0,0 +1,119 @@
+package com.universeprojects.json.shared.parser;
+
+/**
+ * A ContentHandler that picks the values of a few top level fields out of a JSON object, without building
+ * the object. Parsing stops as soon as all of the wanted fields have been seen, and fields that hold an object
+ * or an array are skipped (their value stays null).
+ *
+ * Usage:
+ * <pre>
+ * JSONFieldHandler fields = new JSONFieldHandler("accountId", "contents");
+ * JSONParserFactory.getServerParser().parse(request.getReader(), fields);
+ * String accountId = fields.getString("accountId");
+ * </pre>
+ */
+public class JSONFieldHandler implements ContentHandler {
+
+	private final String[] fieldNames;
+	private final Object[] values;
+	private int depth = 0;
+	private int currentField = -1;
+	private int found = 0;
+
+	/**
+	 * @param fieldNames The top level fields to read
+	 */
+	public JSONFieldHandler(String... fieldNames) {
+		this.fieldNames = fieldNames;
+		this.values = new Object[fieldNames.length];
+	}
+
+	private int indexOf(String fieldName) {
+		for(int i=0;i<fieldNames.length;i++)
+			if(fieldNames[i].equals(fieldName))
+				return i;
+		return -1;
+	}
+
+	/**
+	 * @param fieldName One of the field names given to the constructor
+	 * @return The value of the field, or null if it wasn't there (or wasn't a primitive)
+	 */
+	public Object get(String fieldName) {
+		int index = indexOf(fieldName);
+		if(index<0)
+			throw new IllegalArgumentException("Field was not requested: "+fieldName);
+		return values[index];
+	}
+
+	public String getString(String fieldName) {
+		Object value = get(fieldName);
+		if(value==null)
+			return null;
+		return value.toString();
+	}
+
+	@Override
+	public void startJSON() {
+		depth = 0;
+		currentField = -1;
+		found = 0;
+		for(int i=0;i<values.length;i++)
+			values[i] = null;
+	}
+
+	@Override
+	public void endJSON() {
+	}
+
+	@Override
+	public boolean startObject() {
+		depth++;
+		return true;
+	}
+
+	@Override
+	public boolean endObject() {
+		depth--;
+		return true;
+	}
+
+	@Override
+	public boolean startObjectEntry(String key) {
+		if(depth==1)
+			currentField = indexOf(key);
+		return true;
+	}
+
+	@Override
+	public boolean endObjectEntry() {
+		if(depth==1)
+			currentField = -1;
+		// Nothing else in the document is of interest
+		return found<fieldNames.length;
+	}
+
+	@Override
+	public boolean startArray() {
+		depth++;
+		return true;
+	}
+
+	@Override
+	public boolean endArray() {
+		depth--;
+		return true;
+	}
+
+	@Override
+	public boolean primitive(Object value) {
+		if(depth==1 && currentField>=0){
+			if(values[currentField]==null && value!=null)
+				found++;
+			else if(values[currentField]!=null && value==null)
+				found--;
+			values[currentField] = value;
+		}
+		return true;
+	}
+}
@@ -7,7 +7,7 @@ package com.universeprojects.json.shared.parser;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -33,16 +33,35 @@ public class JSONServerParser implements JSONParser {
 	public static final int S_END=6;
 	public static final int S_IN_ERROR=-1;
 	
-	private LinkedList handlerStatusStack;
+	/*
+	 * Parsers are reused by the thread that owns them (see JSONParserFactory), so the status stack is a plain
+	 * int array that only grows, instead of a list of boxed Integers allocated for every parse.
+	 */
+	private int[] statusStack = new int[16];
+	private int statusDepth = 0;
+	// True while a ContentHandler parse can be resumed
+	private boolean handlerParsing = false;
 	private Yylex lexer = new Yylex((Reader)null);
 	private Yytoken token = null;
 	private int status = S_INIT;
 	
-	private int peekStatus(LinkedList statusStack){
-		if(statusStack.size()==0)
+	private void pushStatus(int status){
+		if(statusDepth==statusStack.length){
+			int[] newStack=new int[statusStack.length*2];
+			System.arraycopy(statusStack, 0, newStack, 0, statusDepth);
+			statusStack=newStack;
+		}
+		statusStack[statusDepth++]=status;
+	}
+	
+	private void popStatus(){
+		statusDepth--;
+	}
+	
+	private int peekStatus(){
+		if(statusDepth==0)
 			return -1;
-		Integer status=(Integer)statusStack.getFirst();
-		return status.intValue();
+		return statusStack[statusDepth-1];
 	}
 	
     /**
@@ -52,7 +71,8 @@ public class JSONServerParser implements JSONParser {
     public void reset(){
         token = null;
         status = S_INIT;
-        handlerStatusStack = null;
+        statusDepth = 0;
+        handlerParsing = false;
     }
     
     /**
@@ -114,8 +134,8 @@ public class JSONServerParser implements JSONParser {
 	 */
 	public Object parse(Reader in, ContainerFactory containerFactory) throws IOException, ParseException{
 		reset(in);
-		LinkedList statusStack = new LinkedList();
-		LinkedList valueStack = new LinkedList();
+		// The top of the stack is the last element
+		List valueStack = new ArrayList();
 		
 		try{
 			do{
@@ -125,18 +145,18 @@ public class JSONServerParser implements JSONParser {
 					switch(token.type){
 					case Yytoken.TYPE_VALUE:
 						status=S_IN_FINISHED_VALUE;
-						statusStack.addFirst(new Integer(status));
-						valueStack.addFirst(token.value);
+						pushStatus(status);
+						valueStack.add(token.value);
 						break;
 					case Yytoken.TYPE_LEFT_BRACE:
 						status=S_IN_OBJECT;
-						statusStack.addFirst(new Integer(status));
-						valueStack.addFirst(createObjectContainer(containerFactory));
+						pushStatus(status);
+						valueStack.add(createObjectContainer(containerFactory));
 						break;
 					case Yytoken.TYPE_LEFT_SQUARE:
 						status=S_IN_ARRAY;
-						statusStack.addFirst(new Integer(status));
-						valueStack.addFirst(createArrayContainer(containerFactory));
+						pushStatus(status);
+						valueStack.add(createArrayContainer(containerFactory));
 						break;
 					default:
 						status=S_IN_ERROR;
@@ -145,7 +165,7 @@ public class JSONServerParser implements JSONParser {
 					
 				case S_IN_FINISHED_VALUE:
 					if(token.type==Yytoken.TYPE_EOF)
-						return valueStack.removeFirst();
+						return valueStack.remove(valueStack.size()-1);
 					else
 						throw new ParseException(getPosition(), ParseException.ERROR_UNEXPECTED_TOKEN, token);
 					
@@ -156,9 +176,9 @@ public class JSONServerParser implements JSONParser {
 					case Yytoken.TYPE_VALUE:
 						if(token.value instanceof String){
 							String key=(String)token.value;
-							valueStack.addFirst(key);
+							valueStack.add(key);
 							status=S_PASSED_PAIR_KEY;
-							statusStack.addFirst(new Integer(status));
+							pushStatus(status);
 						}
 						else{
 							status=S_IN_ERROR;
@@ -166,9 +186,9 @@ public class JSONServerParser implements JSONParser {
 						break;
 					case Yytoken.TYPE_RIGHT_BRACE:
 						if(valueStack.size()>1){
-							statusStack.removeFirst();
-							valueStack.removeFirst();
-							status=peekStatus(statusStack);
+							popStatus();
+							valueStack.remove(valueStack.size()-1);
+							status=peekStatus();
 						}
 						else{
 							status=S_IN_FINISHED_VALUE;
@@ -185,31 +205,31 @@ public class JSONServerParser implements JSONParser {
 					case Yytoken.TYPE_COLON:
 						break;
 					case Yytoken.TYPE_VALUE:
-						statusStack.removeFirst();
-						String key=(String)valueStack.removeFirst();
-						Map parent=(Map)valueStack.getFirst();
+						popStatus();
+						String key=(String)valueStack.remove(valueStack.size()-1);
+						Map parent=(Map)valueStack.get(valueStack.size()-1);
 						parent.put(key,token.value);
-						status=peekStatus(statusStack);
+						status=peekStatus();
 						break;
 					case Yytoken.TYPE_LEFT_SQUARE:
-						statusStack.removeFirst();
-						key=(String)valueStack.removeFirst();
-						parent=(Map)valueStack.getFirst();
+						popStatus();
+						key=(String)valueStack.remove(valueStack.size()-1);
+						parent=(Map)valueStack.get(valueStack.size()-1);
 						List newArray=createArrayContainer(containerFactory);
 						parent.put(key,newArray);
 						status=S_IN_ARRAY;
-						statusStack.addFirst(new Integer(status));
-						valueStack.addFirst(newArray);
+						pushStatus(status);
+						valueStack.add(newArray);
 						break;
 					case Yytoken.TYPE_LEFT_BRACE:
-						statusStack.removeFirst();
-						key=(String)valueStack.removeFirst();
-						parent=(Map)valueStack.getFirst();
+						popStatus();
+						key=(String)valueStack.remove(valueStack.size()-1);
+						parent=(Map)valueStack.get(valueStack.size()-1);
 						Map newObject=createObjectContainer(containerFactory);
 						parent.put(key,newObject);
 						status=S_IN_OBJECT;
-						statusStack.addFirst(new Integer(status));
-						valueStack.addFirst(newObject);
+						pushStatus(status);
+						valueStack.add(newObject);
 						break;
 					default:
 						status=S_IN_ERROR;
@@ -221,34 +241,34 @@ public class JSONServerParser implements JSONParser {
 					case Yytoken.TYPE_COMMA:
 						break;
 					case Yytoken.TYPE_VALUE:
-						List val=(List)valueStack.getFirst();
+						List val=(List)valueStack.get(valueStack.size()-1);
 						val.add(token.value);
 						break;
 					case Yytoken.TYPE_RIGHT_SQUARE:
 						if(valueStack.size()>1){
-							statusStack.removeFirst();
-							valueStack.removeFirst();
-							status=peekStatus(statusStack);
+							popStatus();
+							valueStack.remove(valueStack.size()-1);
+							status=peekStatus();
 						}
 						else{
 							status=S_IN_FINISHED_VALUE;
 						}
 						break;
 					case Yytoken.TYPE_LEFT_BRACE:
-						val=(List)valueStack.getFirst();
+						val=(List)valueStack.get(valueStack.size()-1);
 						Map newObject=createObjectContainer(containerFactory);
 						val.add(newObject);
 						status=S_IN_OBJECT;
-						statusStack.addFirst(new Integer(status));
-						valueStack.addFirst(newObject);
+						pushStatus(status);
+						valueStack.add(newObject);
 						break;
 					case Yytoken.TYPE_LEFT_SQUARE:
-						val=(List)valueStack.getFirst();
+						val=(List)valueStack.get(valueStack.size()-1);
 						List newArray=createArrayContainer(containerFactory);
 						val.add(newArray);
 						status=S_IN_ARRAY;
-						statusStack.addFirst(new Integer(status));
-						valueStack.addFirst(newArray);
+						pushStatus(status);
+						valueStack.add(newArray);
 						break;
 					default:
 						status=S_IN_ERROR;
@@ -331,19 +351,10 @@ public class JSONServerParser implements JSONParser {
 	 * @throws ParseException
 	 */
 	public void parse(Reader in, ContentHandler contentHandler, boolean isResume) throws IOException, ParseException{
-		if(!isResume){
+		if(!isResume || !handlerParsing){
 			reset(in);
-			handlerStatusStack = new LinkedList();
+			handlerParsing = true;
 		}
-		else{
-			if(handlerStatusStack == null){
-				isResume = false;
-				reset(in);
-				handlerStatusStack = new LinkedList();
-			}
-		}
-		
-		LinkedList statusStack = handlerStatusStack;	
 		
 		try{
 			do{
@@ -354,19 +365,19 @@ public class JSONServerParser implements JSONParser {
 					switch(token.type){
 					case Yytoken.TYPE_VALUE:
 						status=S_IN_FINISHED_VALUE;
-						statusStack.addFirst(new Integer(status));
+						pushStatus(status);
 						if(!contentHandler.primitive(token.value))
 							return;
 						break;
 					case Yytoken.TYPE_LEFT_BRACE:
 						status=S_IN_OBJECT;
-						statusStack.addFirst(new Integer(status));
+						pushStatus(status);
 						if(!contentHandler.startObject())
 							return;
 						break;
 					case Yytoken.TYPE_LEFT_SQUARE:
 						status=S_IN_ARRAY;
-						statusStack.addFirst(new Integer(status));
+						pushStatus(status);
 						if(!contentHandler.startArray())
 							return;
 						break;
@@ -396,7 +407,7 @@ public class JSONServerParser implements JSONParser {
 						if(token.value instanceof String){
 							String key=(String)token.value;
 							status=S_PASSED_PAIR_KEY;
-							statusStack.addFirst(new Integer(status));
+							pushStatus(status);
 							if(!contentHandler.startObjectEntry(key))
 								return;
 						}
@@ -405,9 +416,9 @@ public class JSONServerParser implements JSONParser {
 						}
 						break;
 					case Yytoken.TYPE_RIGHT_BRACE:
-						if(statusStack.size()>1){
-							statusStack.removeFirst();
-							status=peekStatus(statusStack);
+						if(statusDepth>1){
+							popStatus();
+							status=peekStatus();
 						}
 						else{
 							status=S_IN_FINISHED_VALUE;
@@ -427,26 +438,26 @@ public class JSONServerParser implements JSONParser {
 					case Yytoken.TYPE_COLON:
 						break;
 					case Yytoken.TYPE_VALUE:
-						statusStack.removeFirst();
-						status=peekStatus(statusStack);
+						popStatus();
+						status=peekStatus();
 						if(!contentHandler.primitive(token.value))
 							return;
 						if(!contentHandler.endObjectEntry())
 							return;
 						break;
 					case Yytoken.TYPE_LEFT_SQUARE:
-						statusStack.removeFirst();
-						statusStack.addFirst(new Integer(S_IN_PAIR_VALUE));
+						popStatus();
+						pushStatus(S_IN_PAIR_VALUE);
 						status=S_IN_ARRAY;
-						statusStack.addFirst(new Integer(status));
+						pushStatus(status);
 						if(!contentHandler.startArray())
 							return;
 						break;
 					case Yytoken.TYPE_LEFT_BRACE:
-						statusStack.removeFirst();
-						statusStack.addFirst(new Integer(S_IN_PAIR_VALUE));
+						popStatus();
+						pushStatus(S_IN_PAIR_VALUE);
 						status=S_IN_OBJECT;
-						statusStack.addFirst(new Integer(status));
+						pushStatus(status);
 						if(!contentHandler.startObject())
 							return;
 						break;
@@ -460,8 +471,8 @@ public class JSONServerParser implements JSONParser {
 					 * S_IN_PAIR_VALUE is just a marker to indicate the end of an object entry, it doesn't proccess any token,
 					 * therefore delay consuming token until next round.
 					 */
-					statusStack.removeFirst();
-					status = peekStatus(statusStack);
+					popStatus();
+					status = peekStatus();
 					if(!contentHandler.endObjectEntry())
 						return;
 					break;
@@ -476,9 +487,9 @@ public class JSONServerParser implements JSONParser {
 							return;
 						break;
 					case Yytoken.TYPE_RIGHT_SQUARE:
-						if(statusStack.size()>1){
-							statusStack.removeFirst();
-							status=peekStatus(statusStack);
+						if(statusDepth>1){
+							popStatus();
+							status=peekStatus();
 						}
 						else{
 							status=S_IN_FINISHED_VALUE;
@@ -488,13 +499,13 @@ public class JSONServerParser implements JSONParser {
 						break;
 					case Yytoken.TYPE_LEFT_BRACE:
 						status=S_IN_OBJECT;
-						statusStack.addFirst(new Integer(status));
+						pushStatus(status);
 						if(!contentHandler.startObject())
 							return;
 						break;
 					case Yytoken.TYPE_LEFT_SQUARE:
 						status=S_IN_ARRAY;
-						statusStack.addFirst(new Integer(status));
+						pushStatus(status);
 						if(!contentHandler.startArray())
 							return;
 						break;
@@ -268,7 +268,7 @@ class Yylex {
 	private boolean zzAtEOF;
 
 	/* user code: */
-	private StringBuffer sb=new StringBuffer();
+	private StringBuilder sb=new StringBuilder();
 
 	int getPosition(){
 		return yychar;
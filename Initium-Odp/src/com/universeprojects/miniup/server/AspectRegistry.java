@@ -0,0 +1,147 @@
+package com.universeprojects.miniup.server;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.universeprojects.miniup.server.aspects.AspectBuilding;
+import com.universeprojects.miniup.server.aspects.AspectCardDeck;
+import com.universeprojects.miniup.server.aspects.AspectFelledTree;
+import com.universeprojects.miniup.server.aspects.AspectFireplace;
+import com.universeprojects.miniup.server.aspects.AspectFirestarter;
+import com.universeprojects.miniup.server.aspects.AspectFlammable;
+import com.universeprojects.miniup.server.aspects.AspectTransport;
+
+/**
+ * Maps aspect ids (the class name without the "Aspect" prefix, as stored in an entity's _aspects field) to
+ * the factory that creates the aspect. The constructors of the known aspects are looked up once when this
+ * class is loaded, so wrapping an entity in an InitiumObject doesn't need any Class.forName or constructor
+ * search.
+ *
+ * New aspects should be added to the static block below. Aspects that aren't listed still work, they are
+ * looked up the first time they're used.
+ *
+ * Registering an aspect also initializes its class, since aspects register their commands (see
+ * InitiumAspect.addCommand()) in static blocks and those have to run before any aspect is created.
+ */
+public class AspectRegistry
+{
+	private static final String ASPECT_CLASS_PREFIX = "com.universeprojects.miniup.server.aspects.Aspect";
+
+	public interface AspectFactory
+	{
+		InitiumAspect create(InitiumObject object);
+	}
+
+	private static final ConcurrentMap<String, AspectFactory> factories = new ConcurrentHashMap<String, AspectFactory>();
+	static
+	{
+		register(AspectBuilding.class);
+		register(AspectCardDeck.class);
+		register(AspectFelledTree.class);
+		register(AspectFireplace.class);
+		register(AspectFirestarter.class);
+		register(AspectFlammable.class);
+		register(AspectTransport.class);
+	}
+
+	private AspectRegistry()
+	{
+	}
+
+	/**
+	 * Registers an aspect class using its InitiumObject constructor.
+	 *
+	 * @param aspectClass
+	 */
+	public static void register(Class<? extends InitiumAspect> aspectClass)
+	{
+		// A class literal doesn't run the static block that registers the aspect's commands
+		try
+		{
+			Class.forName(aspectClass.getName(), true, aspectClass.getClassLoader());
+		}
+		catch (ClassNotFoundException e)
+		{
+			throw new RuntimeException("Class not found: "+aspectClass.getName(), e);
+		}
+		register(aspectClass.getSimpleName().substring(6), constructorFactory(aspectClass));
+	}
+
+	/**
+	 * Makes sure the known aspects are registered, along with their commands.
+	 */
+	static void load()
+	{
+		// Nothing to do, calling this runs the static block
+	}
+
+	public static void register(String aspectId, AspectFactory factory)
+	{
+		factories.put(aspectId, factory);
+	}
+
+	/**
+	 * @param aspectId
+	 * @return The factory for the given aspect id, never null
+	 * @throws RuntimeException If there is no such aspect
+	 */
+	public static AspectFactory getFactory(String aspectId)
+	{
+		AspectFactory factory = factories.get(aspectId);
+		if (factory!=null)
+			return factory;
+
+		Class<?> aspectClass;
+		try
+		{
+			aspectClass = Class.forName(ASPECT_CLASS_PREFIX+aspectId);
+		}
+		catch (ClassNotFoundException e)
+		{
+			throw new RuntimeException("Class not found: "+ASPECT_CLASS_PREFIX+aspectId, e);
+		}
+		if (InitiumAspect.class.isAssignableFrom(aspectClass)==false)
+			throw new RuntimeException(aspectClass.getName()+" is not an InitiumAspect.");
+
+		factory = constructorFactory(aspectClass.asSubclass(InitiumAspect.class));
+		AspectFactory existing = factories.putIfAbsent(aspectId, factory);
+		return existing!=null ? existing : factory;
+	}
+
+	public static InitiumAspect create(String aspectId, InitiumObject object)
+	{
+		return getFactory(aspectId).create(object);
+	}
+
+	private static AspectFactory constructorFactory(Class<? extends InitiumAspect> aspectClass)
+	{
+		final Constructor<? extends InitiumAspect> constructor;
+		try
+		{
+			constructor = aspectClass.getDeclaredConstructor(InitiumObject.class);
+			constructor.setAccessible(true);
+		}
+		catch (NoSuchMethodException e)
+		{
+			throw new RuntimeException("Unable to find a constructor that matches the given arguments. ", e);
+		}
+
+		return new AspectFactory()
+		{
+			@Override
+			public InitiumAspect create(InitiumObject object)
+			{
+				try
+				{
+					return constructor.newInstance(object);
+				}
+				catch (InstantiationException | IllegalAccessException | IllegalArgumentException | InvocationTargetException e)
+				{
+					throw new RuntimeException("Error in aspect constructor.", e);
+				}
+			}
+		};
+	}
+}
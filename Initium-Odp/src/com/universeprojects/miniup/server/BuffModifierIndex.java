@@ -0,0 +1,191 @@
+package com.universeprojects.miniup.server;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import com.universeprojects.cacheddatastore.CachedEntity;
+
+/**
+ * A precompiled view of all the buff effects that are currently applied to a single entity.
+ *
+ * The buff effect strings (like "+5" or "-10%") are parsed once when the index is built and
+ * are stored as primitive arrays keyed by the field name they modify. Looking up a buffable
+ * value is then just a map hit and a couple of additions/multiplications.
+ *
+ * An index is only valid for the exact buff list it was compiled from. If buffs are added to or
+ * removed from that list, or if one of the buffs expires, {@link #isValidFor(List, long)} will
+ * return false and the index needs to be recompiled.
+ */
+public class BuffModifierIndex
+{
+	private static final Pattern EFFECT_PATTERN = Pattern.compile("[-+][0-9.]+%?");
+	private static final String[] FIELD_NAME_PROPERTIES = new String[] {null, "field1Name", "field2Name", "field3Name"};
+	private static final String[] FIELD_EFFECT_PROPERTIES = new String[] {null, "field1Effect", "field2Effect", "field3Effect"};
+
+	private final static class FieldModifiers
+	{
+		double[] additive = new double[0];
+		double[] multiplicative = new double[0];
+	}
+
+	private final List<CachedEntity> source;
+	private final int sourceSize;
+	private final long earliestExpiry;
+	private final Map<String, FieldModifiers> modifiers;
+
+	private BuffModifierIndex(List<CachedEntity> source, long earliestExpiry, Map<String, FieldModifiers> modifiers)
+	{
+		this.source = source;
+		this.sourceSize = source.size();
+		this.earliestExpiry = earliestExpiry;
+		this.modifiers = modifiers;
+	}
+
+	/**
+	 * Parses all the field effects of the given buffs. The buffs list should already be cleaned
+	 * of expired buffs (see ODPDBAccess.getBuffsFor()).
+	 *
+	 * @param buffs
+	 * @return
+	 */
+	public static BuffModifierIndex compile(List<CachedEntity> buffs)
+	{
+		Map<String, List<Double>> additive = new HashMap<String, List<Double>>();
+		Map<String, List<Double>> multiplicative = new HashMap<String, List<Double>>();
+		long earliestExpiry = Long.MAX_VALUE;
+
+		for (CachedEntity buff : buffs)
+		{
+			if (buff == null) continue;
+
+			Date expiry = (Date) buff.getProperty("expiry");
+			if (expiry != null && expiry.getTime() < earliestExpiry)
+				earliestExpiry = expiry.getTime();
+
+			for (int i = 1; i <= 3; i++)
+			{
+				String fieldName = (String) buff.getProperty(FIELD_NAME_PROPERTIES[i]);
+				String effect = (String) buff.getProperty(FIELD_EFFECT_PROPERTIES[i]);
+				if (fieldName == null || effect == null) continue;
+
+				effect = effect.trim();
+				if (EFFECT_PATTERN.matcher(effect).matches() == false) continue;
+
+				effect = effect.replace("+", "");
+				try
+				{
+					if (effect.endsWith("%"))
+						addValue(multiplicative, fieldName, Double.parseDouble(effect.substring(0, effect.length() - 1)) / 100);
+					else
+						addValue(additive, fieldName, Double.parseDouble(effect));
+				}
+				catch (NumberFormatException e)
+				{
+					// Something like "+1.2.3" passes the pattern but isn't a number, just ignore it
+				}
+			}
+		}
+
+		Map<String, FieldModifiers> modifiers = new HashMap<String, FieldModifiers>();
+		for (String fieldName : additive.keySet())
+			getModifiers(modifiers, fieldName).additive = toArray(additive.get(fieldName));
+		for (String fieldName : multiplicative.keySet())
+			getModifiers(modifiers, fieldName).multiplicative = toArray(multiplicative.get(fieldName));
+
+		return new BuffModifierIndex(buffs, earliestExpiry, modifiers);
+	}
+
+	private static void addValue(Map<String, List<Double>> values, String fieldName, double value)
+	{
+		List<Double> list = values.get(fieldName);
+		if (list == null)
+		{
+			list = new ArrayList<Double>(2);
+			values.put(fieldName, list);
+		}
+		list.add(value);
+	}
+
+	private static FieldModifiers getModifiers(Map<String, FieldModifiers> modifiers, String fieldName)
+	{
+		FieldModifiers result = modifiers.get(fieldName);
+		if (result == null)
+		{
+			result = new FieldModifiers();
+			modifiers.put(fieldName, result);
+		}
+		return result;
+	}
+
+	private static double[] toArray(List<Double> values)
+	{
+		double[] result = new double[values.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = values.get(i);
+		return result;
+	}
+
+	/**
+	 * Checks if this index still reflects the given buff list. The index becomes stale when
+	 * a buff was added or removed from the list or when one of its buffs has expired.
+	 *
+	 * @param buffs
+	 * @param now The current time in milliseconds
+	 * @return
+	 */
+	public boolean isValidFor(List<CachedEntity> buffs, long now)
+	{
+		return buffs == source && buffs.size() == sourceSize && now <= earliestExpiry;
+	}
+
+	public boolean hasModifiers(String fieldName)
+	{
+		return modifiers.containsKey(fieldName);
+	}
+
+	/**
+	 * Applies all the flat modifiers first, then all the percentage modifiers.
+	 *
+	 * @param fieldName
+	 * @param startValue
+	 * @return
+	 */
+	public double applyDouble(String fieldName, double startValue)
+	{
+		FieldModifiers mods = modifiers.get(fieldName);
+		if (mods == null) return startValue;
+
+		for (double val : mods.additive)
+			startValue += val;
+		for (double val : mods.multiplicative)
+			startValue *= (1 + val);
+
+		return startValue;
+	}
+
+	/**
+	 * Applies all the flat modifiers first, then all the percentage modifiers. Like the
+	 * original buff code, the value is rounded after every step and percentage modifiers
+	 * are applied as a straight multiplier.
+	 *
+	 * @param fieldName
+	 * @param startValue
+	 * @return
+	 */
+	public long applyLong(String fieldName, long startValue)
+	{
+		FieldModifiers mods = modifiers.get(fieldName);
+		if (mods == null) return startValue;
+
+		for (double val : mods.additive)
+			startValue = Math.round(startValue + val);
+		for (double val : mods.multiplicative)
+			startValue = Math.round(startValue * val);
+
+		return startValue;
+	}
+}
@@ -0,0 +1,277 @@
+package com.universeprojects.miniup.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.universeprojects.cacheddatastore.CachedEntity;
+
+/**
+ * Turns the raw contents of a chat message into the html that is sent to the chat server: escaping,
+ * link markup, slash commands, embedded items and dice formulas.
+ *
+ * Every pattern is compiled once, slash commands are looked up in a map instead of being tested one after
+ * the other, and all of the items embedded in a message are fetched with a single batch get.
+ */
+class ChatMessagePipeline
+{
+	// Only this many Item(id) embeds are rendered per message
+	private static final int MAX_ITEM_EMBEDS = 6;
+
+	private static final Pattern KILL = Pattern.compile("kill", Pattern.LITERAL);
+	private static final Pattern PIPE_LINK = Pattern.compile("\\&lt;(http.*?)\\|(.*?)\\&gt;");
+	private static final Pattern ANGLE_LINK = Pattern.compile("\\&lt;(http.*?)\\&gt;");
+	private static final Pattern MARKDOWN_LINK = Pattern.compile("\\[(.*?)\\]\\((http.*?)\\)");
+	private static final Pattern URL = Pattern.compile("(((?<!')https?):((//)|(\\\\))+[\\w\\d:#@%/;$()~_?\\+-=\\\\\\.&]*)");
+	//&#106;&#97;&#118;&#97;&#115;&#99;&#114;&#105;&#112;
+	private static final Pattern JAVASCRIPT = Pattern.compile("[Jj(&#106;)][Aa(&#97;)][Vv(&#118;)][Aa(&#97;)][Ss(&#115;)][Cc(&#99;)][Rr(&#114;)][Ii(&#105;)][Pp(&#112;)][Tt]\\s*[:]");
+	private static final Pattern REDDIT = Pattern.compile("(^| )/([ru]/[A-Za-z0-9_-]+)");
+	private static final Pattern ITEM_EMBED = Pattern.compile("Item\\((\\d+)\\)");
+
+	private interface SlashCommand
+	{
+		/**
+		 * @param db
+		 * @param sender
+		 * @param message The whole message
+		 * @param rest The message after the command
+		 * @return The new message, or null if the message should not be sent at all
+		 */
+		String apply(ODPDBAccess db, ChatSender sender, String message, String rest);
+	}
+
+	private static class LinkCommand implements SlashCommand
+	{
+		private final String link;
+
+		LinkCommand(String link)
+		{
+			this.link = link;
+		}
+
+		@Override
+		public String apply(ODPDBAccess db, ChatSender sender, String message, String rest)
+		{
+			return link+rest;
+		}
+	}
+
+	private static final SlashCommand STORE_COMMAND = new SlashCommand()
+	{
+		@Override
+		public String apply(ODPDBAccess db, ChatSender sender, String message, String rest)
+		{
+			return "<a onclick='viewStore("+sender.characterKey.getId()+")'>[Visit Store]</a> "+rest;
+		}
+	};
+
+	private static final Map<String, SlashCommand> commands = new HashMap<String, SlashCommand>();
+	private static int longestCommand = 0;
+	static
+	{
+		addCommand("/competition", new LinkCommand("<a href='https://initiumcompetition.appspot.com' target='_blank'>[View the official competition page]</a> "));
+		addCommand("/guide", new LinkCommand("<a href='http://initium.wikia.com/wiki/Starter_Guide' target='_blank'>[View the player-made starter guide]</a> "));
+		addCommand("/faq", new LinkCommand("<a href='http://initium.wikia.com/wiki/Staub%27s_FAQ_Guide' target='_blank'>[View the player-made FAQ]</a> "));
+		addCommand("/changelog", new LinkCommand("<a onclick='viewChangelog()'>[View the change log]</a> "));
+		addCommand("/exchange", new LinkCommand("<a onclick='viewExchange()'>[Visit the Global Premium Membership Token Exchange page]</a> "));
+		addCommand("/profile", new LinkCommand("<a onclick='viewProfile()'>[Visit your Profile Page]</a> "));
+		addCommand("/merchant", STORE_COMMAND);
+		addCommand("/store", STORE_COMMAND);
+		addCommand("/groups", new LinkCommand("<a href='http://initium.wikia.com/wiki/Category:Player_Groups' target='_blank'>[Visit the player-made groups list]</a> "));
+		addCommand("/group", new SlashCommand()
+		{
+			@Override
+			public String apply(ODPDBAccess db, ChatSender sender, String message, String rest)
+			{
+				CachedEntity group = db.getEntity(sender.groupKey);
+				if (group==null)
+					return message;
+				return "<a onclick='viewGroup("+group.getKey().getId()+")'>[Visit the '"+group.getProperty("name")+"' group page]</a> "+rest;
+			}
+		});
+		addCommand("/customize", new LinkCommand("<a onclick='customizeItemOrderPage()'>[Visit the customize item order page]</a> "));
+		addCommand("/wiki", new LinkCommand("<a href='http://initium.wikia.com/wiki/Initium_Wiki' target='_blank'>[Visit the player-made wiki]</a> "));
+		addCommand("/app", new LinkCommand("<a href='https://play.google.com/store/apps/details?id=com.playinitium' target='_blank'>[Android App Download]</a> &#8226; <a href='http://initium-resources.appspot.com/windows.xap'>[Windows Phone App Download]</a> &#8226; [iOS App Coming Soon...] "));
+		addCommand("/about", new LinkCommand("<a href='about.jsp'>[Visit Initium About Page]</a> "));
+		addCommand("/quickstart", new LinkCommand("<a href='quickstart.jsp'>[Visit Quick Start Page]</a> "));
+		addCommand("/mechanics", new LinkCommand("<a href='odp/mechanics.jsp'>[Visit Game Mechanics Page]</a> "));
+		addCommand("/premium", new LinkCommand("For information on becoming a premium member <a onclick='viewProfile()'>[Visit Your Profile Page]</a> "));
+		addCommand("/map", new LinkCommand("<a href='http://i.imgur.com/OU61I5e.jpg' target='_blank'>[Visit the player-made world map]</a> "));
+		addCommand("/ignore ", new SlashCommand()
+		{
+			@Override
+			public String apply(ODPDBAccess db, ChatSender sender, String message, String rest)
+			{
+				// Now rest only contains the character name, lets try to find it
+				CachedEntity c = db.getCharacterByName(rest);
+				if (c==null)
+					return rest;
+				if ("NPC".equals(c.getProperty("type")))
+					return null;
+				return "<a onclick='ignoreAPlayer("+c.getId()+", \""+rest.replace("'", "\\'")+"\");'>[Click here to ignore '"+rest+"']</a>";
+			}
+		});
+	}
+
+	private static void addCommand(String command, SlashCommand handler)
+	{
+		commands.put(command, handler);
+		longestCommand = Math.max(longestCommand, command.length());
+	}
+
+	private ChatMessagePipeline()
+	{
+	}
+
+	/**
+	 * @param db
+	 * @param sender
+	 * @param message The message as the player typed it (after the drunk effects)
+	 * @return The html of the message, or null if the message should not be sent at all
+	 */
+	static String process(ODPDBAccess db, ChatSender sender, String message)
+	{
+		// Just for fun
+		message = KILL.matcher(message).replaceAll("krill");
+
+		// Clean the message so it doesn't contain any threatening characters
+		message = escapeAngleBrackets(message);
+
+		message = PIPE_LINK.matcher(message).replaceAll("<a href='$1' target='_blank'>$2</a>");
+		message = ANGLE_LINK.matcher(message).replaceAll("$1");
+		message = MARKDOWN_LINK.matcher(message).replaceAll("<a href='$2' target='_blank'>$1</a>");
+
+		message = applySlashCommand(db, sender, message);
+		if (message==null)
+			return null;
+
+		message = URL.matcher(message).replaceAll("<a href='$1' target='_blank'>$1</a>");
+		message = JAVASCRIPT.matcher(message).replaceAll("");	// Wreck any attempts to execute javascript in-line
+		message = REDDIT.matcher(message).replaceAll("$1<a href='http://reddit.com/$2' target='_blank'>/$2</a>");
+
+		message = embedItems(db, message);
+
+		if (message.regionMatches(true, 0, "/roll ", 0, 6))
+			message = "{{"+message.substring(6)+"}}";
+		if (message.contains("{{"))
+			message = GameUtils.resolveFormulas(message, false, false);
+
+		if (message.contains("dice1.png") && message.length()>3000)
+			message = "ERROR: Dice roll formula was too complex.";
+
+		return message;
+	}
+
+	/**
+	 * Replaces &gt; and &lt; in one pass.
+	 */
+	static String escapeAngleBrackets(String text)
+	{
+		StringBuilder sb = null;
+		int last = 0;
+		for(int i = 0; i<text.length(); i++)
+		{
+			char c = text.charAt(i);
+			if (c!='<' && c!='>') continue;
+
+			if (sb==null) sb = new StringBuilder(text.length()+16);
+			sb.append(text, last, i).append(c=='<' ? "&lt;" : "&gt;");
+			last = i+1;
+		}
+		if (sb==null) return text;
+		return sb.append(text, last, text.length()).toString();
+	}
+
+	/**
+	 * Runs the longest slash command the message starts with, if any.
+	 */
+	static String applySlashCommand(ODPDBAccess db, ChatSender sender, String message)
+	{
+		if (message.startsWith("/")==false)
+			return message;
+
+		for(int length = Math.min(longestCommand, message.length()); length>1; length--)
+		{
+			String command = message.substring(0, length);
+			SlashCommand handler = commands.get(command);
+			if (handler!=null)
+				return handler.apply(db, sender, message, message.substring(length));
+		}
+		return message;
+	}
+
+	/**
+	 * Replaces Item(id) with the rendered item. All of the items are fetched in one batch.
+	 */
+	private static String embedItems(ODPDBAccess db, String text)
+	{
+		Matcher m = ITEM_EMBED.matcher(text);
+		if (m.find()==false)
+			return text;
+
+		// Every occurrence of the first few embedded ids gets rendered, the same id can show up more than once
+		List<String> itemIds = new ArrayList<String>();
+		int matchCount = 0;
+		do
+		{
+			if (itemIds.contains(m.group(1))==false)
+				itemIds.add(m.group(1));
+			matchCount++;
+		}
+		while(matchCount<MAX_ITEM_EMBEDS && m.find());
+
+		Map<String, String> rendered = new HashMap<String, String>();
+		List<String> fetchedIds = new ArrayList<String>();
+		List<Key> keys = new ArrayList<Key>();
+		for(String itemId:itemIds)
+		{
+			try
+			{
+				keys.add(KeyFactory.createKey("Item", Long.parseLong(itemId)));
+				fetchedIds.add(itemId);
+			}
+			catch(NumberFormatException e)
+			{
+				rendered.put(itemId, "[Item "+itemId+" not found]");
+			}
+		}
+		if (keys.isEmpty()==false)
+		{
+			List<CachedEntity> items = db.getEntities(keys);
+			for(int i = 0; i<fetchedIds.size(); i++)
+			{
+				String itemId = fetchedIds.get(i);
+				String itemText = null;
+				try
+				{
+					if (items.get(i)!=null)
+						itemText = "<div class='chat-embedded-item'>"+GameUtils.renderItem(items.get(i))+"</div>";
+				}
+				catch(Exception e)
+				{
+					// Rendered as not found
+				}
+				if (itemText==null)
+					itemText = "[Item "+itemId+" not found]";
+				rendered.put(itemId, itemText);
+			}
+		}
+
+		StringBuilder sb = new StringBuilder(text.length()+rendered.size()*512);
+		int last = 0;
+		m.reset();
+		while(m.find())
+		{
+			String itemText = rendered.get(m.group(1));
+			if (itemText==null) continue;
+			sb.append(text, last, m.start()).append(itemText);
+			last = m.end();
+		}
+		return sb.append(text, last, text.length()).toString();
+	}
+}
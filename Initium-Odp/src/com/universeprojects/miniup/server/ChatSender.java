@@ -0,0 +1,203 @@
+package com.universeprojects.miniup.server;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.universeprojects.cacheddatastore.CachedEntity;
+import com.universeprojects.miniup.CommonChecks;
+
+/**
+ * Everything the chat server needs to know about whoever is sending a message: the character, the
+ * chat channels it belongs to, its styled nicknames and how drunk it is.
+ *
+ * Senders are cached on the instance per account key for a short while, so a chat message doesn't have to
+ * fetch the account, the character, the user and the buffs every time. An entry is dropped as soon as its
+ * character, user, group or one of the character's buffs is written, or a buff is deleted (the generations
+ * are bumped in ODPDBAccess), or when one of the character's Drunk buffs expires.
+ */
+class ChatSender
+{
+	private static final int CACHE_SIZE = 5000;
+	private static final long MAX_AGE_MS = 60*1000;
+
+	private static final Map<Key, ChatSender> cache = new LinkedHashMap<Key, ChatSender>(CACHE_SIZE, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, ChatSender> eldest)
+		{
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	private final long expiresAt;
+	private final Map<String, Long> generations;
+
+	final Key characterKey;
+	final String characterName;
+	/**
+	 * The groupKey of the character, even if it isn't a member (yet)
+	 */
+	final Key groupKey;
+	/**
+	 * The chat channel ids, groupId and partyId are empty strings if the character isn't in one
+	 */
+	final String groupId;
+	final String partyId;
+	final String locationId;
+	final String nicknameStyled;
+	final String nicknameMeStyled;
+	final int drunkLevel;
+
+	private ChatSender(long expiresAt, Map<String, Long> generations, CachedEntity user, CachedEntity character, int drunkLevel)
+	{
+		this.expiresAt = expiresAt;
+		this.generations = generations;
+		this.characterKey = character.getKey();
+		this.characterName = (String)character.getProperty("name");
+		this.groupKey = (Key)character.getProperty("groupKey");
+
+		if (CommonChecks.checkCharacterIsMemberOfHisGroup(character))
+			this.groupId = "G"+groupKey.getId();
+		else
+			this.groupId = "";
+
+		String partyCode = (String)character.getProperty("partyCode");
+		this.partyId = partyCode==null ? "" : "P"+partyCode;
+		this.locationId = "L"+((Key)character.getProperty("locationKey")).getId();
+		this.nicknameStyled = GameUtils.renderCharacter(user, character);
+		this.nicknameMeStyled = GameUtils.renderCharacter(user, character, true, true);
+		this.drunkLevel = drunkLevel;
+	}
+
+	/**
+	 * Returns the sender behind the given account, using the cached one unless anything it was built
+	 * from changed.
+	 *
+	 * @param db
+	 * @param accountKey A User or a Character key
+	 * @return Null if the account doesn't lead to a character
+	 */
+	static ChatSender get(ODPDBAccess db, Key accountKey)
+	{
+		MemcacheService mc = db.getMC();
+
+		ChatSender sender;
+		synchronized(cache)
+		{
+			sender = cache.get(accountKey);
+		}
+		if (sender!=null && sender.isValid(mc))
+			return sender;
+
+		sender = build(db, mc, accountKey);
+		synchronized(cache)
+		{
+			if (sender==null)
+				cache.remove(accountKey);
+			else
+				cache.put(accountKey, sender);
+		}
+		return sender;
+	}
+
+	private boolean isValid(MemcacheService mc)
+	{
+		if (System.currentTimeMillis()>expiresAt)
+			return false;
+
+		Map<String, Object> current = mc.getAll(generations.keySet());
+		for(Map.Entry<String, Long> generation:generations.entrySet())
+			if (toGeneration(current.get(generation.getKey()))!=generation.getValue())
+				return false;
+
+		return true;
+	}
+
+	private static ChatSender build(ODPDBAccess db, MemcacheService mc, Key accountKey)
+	{
+		// Each generation is read before the entity it belongs to is fetched, that way a write that happens
+		// while we're building invalidates what we build instead of getting lost
+		Map<String, Long> generations = new HashMap<String, Long>();
+
+		Key characterKey;
+		if (accountKey.getKind().equals("User"))
+		{
+			readGeneration(mc, generations, accountKey);
+			CachedEntity user = db.getEntity(accountKey);
+			if (user==null) return null;
+			characterKey = (Key)user.getProperty("characterKey");
+		}
+		else
+			characterKey = accountKey;
+
+		if (characterKey==null || characterKey.getKind().equals("Character")==false)
+			return null;
+
+		// The character generation also covers its buffs
+		readGeneration(mc, generations, characterKey);
+		CachedEntity character = db.getEntity(characterKey);
+		if (character==null)
+			return null;
+
+		Key userKey = (Key)character.getProperty("userKey");
+		CachedEntity user = null;
+		if (userKey!=null)
+		{
+			readGeneration(mc, generations, userKey);
+			user = db.getEntity(userKey);
+		}
+		if (character.getProperty("groupKey")!=null)
+			readGeneration(mc, generations, (Key)character.getProperty("groupKey"));
+
+		long expiresAt = System.currentTimeMillis()+MAX_AGE_MS;
+		int drunkLevel = 0;
+		for(CachedEntity buff:db.getBuffsFor(characterKey))
+		{
+			if ("Drunk".equals(buff.getProperty("name"))==false)
+				continue;
+			drunkLevel++;
+			// Expiring buffs are deleted rather than written, so the entry has to expire along with them
+			Date expiry = (Date)buff.getProperty("expiry");
+			if (expiry!=null)
+				expiresAt = Math.min(expiresAt, expiry.getTime());
+		}
+
+		return new ChatSender(expiresAt, generations, user, character, drunkLevel);
+	}
+
+	private static void readGeneration(MemcacheService mc, Map<String, Long> generations, Key key)
+	{
+		String generationKey = generationKey(key);
+		generations.put(generationKey, toGeneration(mc.get(generationKey)));
+	}
+
+	/**
+	 * Drops the cached senders that were built from the given entity, on all instances. Called whenever a
+	 * Character, User or Group is written, and with the parentKey whenever a Buff is written or deleted.
+	 *
+	 * @param mc
+	 * @param key
+	 */
+	static void invalidate(MemcacheService mc, Key key)
+	{
+		if (key==null || key.isComplete()==false) return;
+		mc.increment(generationKey(key), 1L, 0L);
+	}
+
+	private static long toGeneration(Object generation)
+	{
+		if (generation==null) return 0L;
+		return (Long)generation;
+	}
+
+	private static String generationKey(Key key)
+	{
+		return "ChatSenderGen-"+key;
+	}
+}
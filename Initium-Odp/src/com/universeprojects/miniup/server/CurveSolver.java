@@ -0,0 +1,242 @@
+package com.universeprojects.miniup.server;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.cheffo.jeplite.CompiledExpression;
+import org.cheffo.jeplite.ParseException;
+import org.cheffo.jeplite.function.PostfixMathCommand;
+import org.cheffo.jeplite.util.DoubleStack;
+
+/**
+ * Solves curve formulas like "5", "2d6+3", "3d20dl1", "1to20*2" or the older "DD2D6" format.
+ *
+ * Each formula is only parsed once. The dice and range parts are turned into native function
+ * nodes (dice(), dicedl(), dicedh() and range()) and the resulting CompiledExpression is kept
+ * in a bounded LRU cache keyed by the formula text. Solving a cached curve is then just a walk
+ * down the tree using the random number generator given by the caller, and it can be done from
+ * any number of threads at once.
+ */
+public class CurveSolver
+{
+	private static final int CACHE_SIZE = 2000;
+	private static final int MAX_DICE = 1000;
+
+	private static final Pattern LEGACY_DICE_CURVE = Pattern.compile("^dd(\\d+)d(\\d+)$");
+	private static final Pattern DROP_DICE = Pattern.compile("(\\d+)d(\\d+)d(l|h)(\\d+)");
+	private static final Pattern DICE = Pattern.compile("(\\d+)d(\\d+)");
+	private static final Pattern RANGE = Pattern.compile("(\\d+)to(\\d+)");
+
+	private static final HashMap<String, PostfixMathCommand> functions = new HashMap<String, PostfixMathCommand>();
+	static
+	{
+		functions.put("dice", new Dice());
+		functions.put("dicedl", new DropDice(false));
+		functions.put("dicedh", new DropDice(true));
+		functions.put("range", new Range());
+	}
+
+	private static final Map<String, CompiledExpression> compiledCurves = new LinkedHashMap<String, CompiledExpression>(CACHE_SIZE, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CompiledExpression> eldest)
+		{
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	/**
+	 * Solves the given curve formula.
+	 *
+	 * @param curve
+	 * @param rnd The random number generator to use for dice rolls and ranges
+	 * @return
+	 * @throws ContentDeveloperException If the curve formula is invalid
+	 */
+	public static double solve(String curve, Random rnd)
+	{
+		CompiledExpression expression = compile(curve);
+		try
+		{
+			return expression.evaluate(null, rnd);
+		}
+		catch (ParseException e)
+		{
+			throw new ContentDeveloperException("Unable to solve curve '" + curve + "': " + e.getErrorInfo());
+		}
+	}
+
+	/**
+	 * Returns the compiled expression for the given curve formula. The expression is cached
+	 * so subsequent calls with the same formula do not parse again.
+	 *
+	 * @param curve
+	 * @return
+	 * @throws ContentDeveloperException If the curve formula is invalid
+	 */
+	public static CompiledExpression compile(String curve)
+	{
+		if (curve == null) throw new ContentDeveloperException("A curve formula was not specified.");
+
+		CompiledExpression expression;
+		synchronized (compiledCurves)
+		{
+			expression = compiledCurves.get(curve);
+		}
+		if (expression != null) return expression;
+
+		try
+		{
+			expression = CompiledExpression.compile(toExpression(curve), null, functions);
+		}
+		catch (ParseException e)
+		{
+			throw new ContentDeveloperException("Invalid curve formula '" + curve + "': " + e.getMessage().replaceAll("\n", " ").trim());
+		}
+
+		synchronized (compiledCurves)
+		{
+			compiledCurves.put(curve, expression);
+		}
+		return expression;
+	}
+
+	/**
+	 * Rewrites the dice and range shorthand in a curve formula into function calls that the
+	 * expression parser understands. For example "3d20dl1+1to4" becomes "dicedl(3,20,1)+range(1,4)".
+	 *
+	 * @param curve
+	 * @return
+	 */
+	static String toExpression(String curve)
+	{
+		String expression = curve.trim().toLowerCase();
+
+		expression = LEGACY_DICE_CURVE.matcher(expression).replaceAll("dice($1,$2)");
+		expression = DROP_DICE.matcher(expression).replaceAll("diced$3($1,$2,$4)");
+		expression = DICE.matcher(expression).replaceAll("dice($1,$2)");
+		expression = RANGE.matcher(expression).replaceAll("range($1,$2)");
+
+		return expression;
+	}
+
+	private static int nextRoll(DoubleStack stack, int sides)
+	{
+		Random rnd = stack.getRandom();
+		if (rnd == null) return (int) (Math.random() * sides) + 1;
+		return rnd.nextInt(sides) + 1;
+	}
+
+	private static int toDiceCount(double value) throws ParseException
+	{
+		if (value > MAX_DICE) throw new ParseException("Too many dice, the maximum is " + MAX_DICE + ".");
+		return (int) value;
+	}
+
+	/**
+	 * dice(count, sides) - Rolls the given number of dice and adds them up.
+	 */
+	static class Dice extends PostfixMathCommand
+	{
+		public Dice()
+		{
+			numberOfParameters = 2;
+		}
+
+		public boolean isDeterministic()
+		{
+			return false;
+		}
+
+		public void run(DoubleStack stack) throws ParseException
+		{
+			int sides = (int) stack.pop();
+			int count = toDiceCount(stack.pop());
+			if (sides < 1) throw new ParseException("Dice must have at least 1 side.");
+
+			long total = 0;
+			for (int i = 0; i < count; i++)
+				total += nextRoll(stack, sides);
+			stack.push(total);
+		}
+	}
+
+	/**
+	 * dicedl(count, sides, drop) and dicedh(count, sides, drop) - Rolls the given number of dice
+	 * and adds them up after dropping the lowest (or highest) rolls.
+	 */
+	static class DropDice extends PostfixMathCommand
+	{
+		private final boolean dropHighest;
+
+		public DropDice(boolean dropHighest)
+		{
+			this.dropHighest = dropHighest;
+			numberOfParameters = 3;
+		}
+
+		public boolean isDeterministic()
+		{
+			return false;
+		}
+
+		public void run(DoubleStack stack) throws ParseException
+		{
+			int drop = (int) stack.pop();
+			int sides = (int) stack.pop();
+			int count = toDiceCount(stack.pop());
+			if (sides < 1) throw new ParseException("Dice must have at least 1 side.");
+			if (drop >= count)
+			{
+				// Rolling and dropping everything leaves nothing
+				for (int i = 0; i < count; i++)
+					nextRoll(stack, sides);
+				stack.push(0);
+				return;
+			}
+
+			int[] rolls = new int[count];
+			for (int i = 0; i < count; i++)
+				rolls[i] = nextRoll(stack, sides);
+			Arrays.sort(rolls);
+
+			long total = 0;
+			int start = dropHighest ? 0 : Math.max(drop, 0);
+			int end = dropHighest ? count - Math.max(drop, 0) : count;
+			for (int i = start; i < end; i++)
+				total += rolls[i];
+			stack.push(total);
+		}
+	}
+
+	/**
+	 * range(min, max) - A random whole number between min and max (inclusive).
+	 */
+	static class Range extends PostfixMathCommand
+	{
+		public Range()
+		{
+			numberOfParameters = 2;
+		}
+
+		public boolean isDeterministic()
+		{
+			return false;
+		}
+
+		public void run(DoubleStack stack) throws ParseException
+		{
+			int max = (int) stack.pop();
+			int min = (int) stack.pop();
+			if (max < min) throw new ParseException("The range " + min + "to" + max + " is invalid.");
+
+			stack.push(min + nextRoll(stack, max - min + 1) - 1);
+		}
+	}
+}
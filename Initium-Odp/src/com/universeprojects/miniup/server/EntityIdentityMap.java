@@ -0,0 +1,126 @@
+package com.universeprojects.miniup.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.appengine.api.datastore.Key;
+import com.universeprojects.cacheddatastore.CachedEntity;
+
+/**
+ * Every entity that was fetched or written during a request, by key. ODPDBAccess hands back the instance
+ * from here whenever the same key is fetched again, so all the services working on a request see the same
+ * object (including any changes that were made to it but not saved yet) and the entity is only fetched once.
+ *
+ * One map is kept per request, see ODPDBAccess.getIdentityMap(). It isn't thread safe.
+ *
+ * Entities deleted through ODPDBAccess.getDB() are dropped from the map. Use forget() when a deleted entity
+ * could be fetched again in the same request and it was deleted some other way.
+ *
+ * The map is not used while a transaction is active: reads inside a transaction go to the datastore so
+ * conflicts are detected, and an entity written inside one only goes into the map once it commits.
+ *
+ * The map counts hits and misses. EntityIdentityMapListener logs them when the request ends.
+ */
+public class EntityIdentityMap
+{
+	private final Map<Key, CachedEntity> entities = new HashMap<Key, CachedEntity>();
+	private int hits = 0;
+	private int misses = 0;
+
+	/**
+	 * @param key
+	 * @return The entity with the given key if it was already fetched during this request, null otherwise
+	 */
+	public CachedEntity get(Key key)
+	{
+		CachedEntity entity = entities.get(key);
+		if (entity==null)
+			misses++;
+		else
+			hits++;
+		return entity;
+	}
+
+	/**
+	 * Adds a freshly fetched entity to the map.
+	 *
+	 * @param entity Can be null
+	 * @return The instance already in the map if there is one, otherwise the given entity
+	 */
+	public CachedEntity register(CachedEntity entity)
+	{
+		if (entity==null) return null;
+		Key key = entity.getKey();
+		if (key.isComplete()==false) return entity;
+
+		CachedEntity existing = entities.get(key);
+		if (existing!=null)
+			return existing;
+
+		entities.put(key, entity);
+		return entity;
+	}
+
+	/**
+	 * Registers every entity of a query result.
+	 *
+	 * @param list Can be null
+	 * @return A new list holding the instances from the map
+	 */
+	public List<CachedEntity> registerAll(List<CachedEntity> list)
+	{
+		if (list==null) return null;
+		List<CachedEntity> result = new ArrayList<CachedEntity>(list.size());
+		for(CachedEntity entity:list)
+			result.add(register(entity));
+		return result;
+	}
+
+	/**
+	 * Called for every entity that is written, the written instance replaces whatever was in the map.
+	 *
+	 * @param entity
+	 */
+	public void put(CachedEntity entity)
+	{
+		if (entity==null || entity.getKey().isComplete()==false) return;
+		entities.put(entity.getKey(), entity);
+	}
+
+	/**
+	 * Drops the entity with the given key, usually because it was deleted.
+	 *
+	 * @param key
+	 */
+	public void forget(Key key)
+	{
+		entities.remove(key);
+	}
+
+	public int getHits()
+	{
+		return hits;
+	}
+
+	public int getMisses()
+	{
+		return misses;
+	}
+
+	/**
+	 * @return The fraction of lookups that were answered from the map, 0 if there were none
+	 */
+	public double getHitRatio()
+	{
+		if (hits+misses==0) return 0d;
+		return hits/(double)(hits+misses);
+	}
+
+	@Override
+	public String toString()
+	{
+		return "EntityIdentityMap: "+entities.size()+" entities, "+hits+" hits, "+misses+" misses ("+Math.round(getHitRatio()*100)+"% hit ratio)";
+	}
+}
@@ -0,0 +1,30 @@
+package com.universeprojects.miniup.server;
+
+import java.util.logging.Logger;
+
+import javax.servlet.ServletRequestEvent;
+import javax.servlet.ServletRequestListener;
+
+/**
+ * Logs how well the EntityIdentityMap of a request did once the request is done, so the hit ratio can be
+ * followed in the request logs. Registered in web.xml.
+ */
+public class EntityIdentityMapListener implements ServletRequestListener
+{
+	private final static Logger log = Logger.getLogger(EntityIdentityMapListener.class.getName());
+
+	@Override
+	public void requestInitialized(ServletRequestEvent event)
+	{
+	}
+
+	@Override
+	public void requestDestroyed(ServletRequestEvent event)
+	{
+		EntityIdentityMap identityMap = (EntityIdentityMap)event.getServletRequest().getAttribute(ODPDBAccess.IDENTITY_MAP_ATTRIBUTE);
+		// Requests that never looked anything up have nothing worth logging
+		if (identityMap==null || identityMap.getHits()+identityMap.getMisses()==0) return;
+
+		log.info(identityMap.toString());
+	}
+}
@@ -0,0 +1,138 @@
+package com.universeprojects.miniup.server;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The random numbers used for game rolls (combat, loot, encounters, GameUtils.roll() and so on).
+ *
+ * Every thread has its own stream, so concurrent requests don't fight over one shared seed the way they did
+ * over the static Random in GameUtils. The streams are SplitMix64 generators wrapped in a java.util.Random
+ * (so they can be handed to CurveSolver and Collections.shuffle) and are not thread safe, so don't hand the
+ * result of get() to another thread.
+ *
+ * When the initium.random.deterministic system property is true, every command and long operation reseeds its
+ * thread's stream with a new seed and logs it along with the operation, the character and the thread. Running
+ * the same operation after calling replay() with the logged seed gives exactly the same rolls, which is how a
+ * disputed combat or loot outcome can be reproduced. Benchmarks can call replay() directly.
+ */
+public class GameRandom
+{
+	private final static Logger log = Logger.getLogger(GameRandom.class.getName());
+
+	public static final String DETERMINISTIC_PROPERTY = "initium.random.deterministic";
+
+	private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+	private static final boolean deterministic = Boolean.parseBoolean(System.getProperty(DETERMINISTIC_PROPERTY));
+	private static final AtomicLong seeds = new AtomicLong(System.currentTimeMillis() ^ System.nanoTime());
+
+	private static final ThreadLocal<Stream> streams = new ThreadLocal<Stream>()
+	{
+		@Override
+		protected Stream initialValue()
+		{
+			return new Stream(newSeed());
+		}
+	};
+
+	private GameRandom()
+	{
+	}
+
+	/**
+	 * @return The current thread's random stream
+	 */
+	public static Random get()
+	{
+		return streams.get();
+	}
+
+	public static boolean isDeterministic()
+	{
+		return deterministic;
+	}
+
+	/**
+	 * Called when a command or long operation starts. In deterministic mode, this reseeds the thread's stream
+	 * and logs the seed, otherwise it does nothing.
+	 *
+	 * @param operationName
+	 * @param db
+	 * @return The seed that was used, or null if not in deterministic mode
+	 */
+	public static Long beginOperation(String operationName, ODPDBAccess db)
+	{
+		if (deterministic==false)
+			return null;
+
+		long seed = newSeed();
+		streams.get().setSeed(seed);
+		log.log(Level.INFO, "Random seed "+seed+" for "+operationName+" (character "+db.getCurrentCharacterKey()+", thread "+Thread.currentThread().getName()+")");
+		return seed;
+	}
+
+	/**
+	 * Reseeds the current thread's stream so the rolls that follow are the same as they were after the
+	 * operation that logged the given seed.
+	 *
+	 * @param seed
+	 */
+	public static void replay(long seed)
+	{
+		streams.get().setSeed(seed);
+	}
+
+	private static long newSeed()
+	{
+		return mix(seeds.addAndGet(GOLDEN_GAMMA) ^ System.nanoTime());
+	}
+
+	private static long mix(long z)
+	{
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * SplitMix64. Only next() and nextLong() are overridden, the rest of Random builds on them. The seed that
+	 * Random itself keeps is never touched, so there is no CAS on the hot path.
+	 */
+	static final class Stream extends Random
+	{
+		private static final long serialVersionUID = 1L;
+
+		private long state;
+
+		Stream(long seed)
+		{
+			super(0L);
+			this.state = seed;
+		}
+
+		@Override
+		public void setSeed(long seed)
+		{
+			// Also called by Random's constructor, before our own fields are set. Random's own setSeed()
+			// clears its cached nextGaussian() value, which a replay needs too.
+			super.setSeed(seed);
+			this.state = seed;
+		}
+
+		@Override
+		public long nextLong()
+		{
+			state += GOLDEN_GAMMA;
+			return mix(state);
+		}
+
+		@Override
+		protected int next(int bits)
+		{
+			return (int)(nextLong() >>> (64 - bits));
+		}
+	}
+}
@@ -26,6 +26,7 @@ import java.util.regex.Pattern;
 import javax.servlet.http.HttpServletRequest;
 
 import org.cheffo.jeplite.JEP;
+import org.cheffo.jeplite.util.DoubleStack;
 
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
@@ -47,7 +48,6 @@ public class GameUtils
 	final static DecimalFormat doubleDigitFormat = new DecimalFormat("#,##0.00");
 	final static DecimalFormat noDigitFormat = new DecimalFormat("#,###");
 	final static DateFormat longDateFormat = new SimpleDateFormat("MMM, dd, yyyy HH:mm:ss");
-	final static Random rnd = new Random();
 
 	public GameUtils() 
 	{
@@ -108,7 +108,7 @@ public class GameUtils
 	{
 		if (chance<=0) return false;
 		if (chance>=100) return true;
-		double roll = rnd.nextDouble()*100;
+		double roll = GameRandom.get().nextDouble()*100;
 		if (roll<chance)
 			return true;
 		
@@ -860,7 +860,10 @@ public class GameUtils
 //    	
 //    }
     
-    private static String getItemMiniTip(ODPDBAccess db, CachedEntity item) 
+    /**
+     * @return The minitip attribute, an empty string if the item doesn't get one, or null if building it failed
+     */
+    static String getItemMiniTip(ODPDBAccess db, CachedEntity item) 
     {
     	try
     	{
@@ -941,7 +944,7 @@ public class GameUtils
     	{
     		// Can't afford to have these exceptions stop the show, so I'm just gonna swallow em for now
     		log.log(Level.SEVERE, "Item Minitip Failure", e);
-    		return "";
+    		return null;
     	}
     }
     
@@ -992,18 +995,7 @@ public class GameUtils
 		if (durabilityNotNull && currentDura < maxDura * .1)
 			lowDurabilityClass = "very-low-durability ";
 		
-		String qualityClass = determineQuality(item.getProperties());
-		String label = (String)item.getProperty("label"); 
-		if (label==null || label.trim().equals("") || (label=WebUtils.htmlSafe(label).trim()).equals(""))
-			label = (String)item.getProperty("name");
-
-		String iconUrl = (String)item.getProperty("icon");
-		if (iconUrl!=null && iconUrl.startsWith("http://"))
-			iconUrl = "https://"+iconUrl.substring(7);
-		else if (iconUrl!=null && iconUrl.startsWith("http")==false)
-			iconUrl = "https://initium-resources.appspot.com/"+iconUrl;
-		
-		
+		ItemRenderCache.Entry rendered = ItemRenderCache.get(db, item);
 		
 		Long quantity = (Long)item.getProperty("quantity");
 		String quantityDiv = "";
@@ -1018,15 +1010,20 @@ public class GameUtils
 				
 		}
 		
-		String result = null;
+		StringBuilder result = new StringBuilder(512);
+		result.append("<span class='").append(notEnoughStrengthClass).append("'>");
 		if (popupEmbedded)
-			result = "<span class='"+notEnoughStrengthClass+"'><a class='"+qualityClass+"' " + getItemMiniTip(db, item) + " onclick='reloadPopup(this, \""+WebUtils.getFullURL(request)+"\", event)' rel='/odp/viewitemmini?itemId="+item.getKey().getId()+"'><div class='main-item-image-backing'>"+quantityDiv+"<img src='"+iconUrl+"' border=0/></div><div class='"+lowDurabilityClass+"main-item-name'>"+label+"</div></a></span>";
+		{
+			String popupUrl = WebUtils.getFullURL(request);
+			if (popupUrl.toLowerCase().contains("<script") || popupUrl.toLowerCase().contains("javascript:")) throw new RuntimeException("CODENK1 Item("+item.getId()+")");
+			result.append("<a class='").append(rendered.qualityClass).append("' ").append(rendered.miniTip);
+			result.append(" onclick='reloadPopup(this, \"").append(popupUrl).append("\", event)'").append(rendered.link);
+		}
 		else
-			result = "<span class='"+notEnoughStrengthClass+"'><a class='clue "+qualityClass+"' " + getItemMiniTip(db, item) + " rel='/odp/viewitemmini?itemId="+item.getKey().getId()+"'><div class='main-item-image-backing'>"+quantityDiv+"<img src='"+iconUrl+"' border=0/></div><div class='"+lowDurabilityClass+"main-item-name'>"+label+"</div></a></span>";
+			result.append("<a class='clue ").append(rendered.qualityClass).append("' ").append(rendered.miniTip).append(rendered.link);
+		result.append(quantityDiv).append(rendered.image).append(lowDurabilityClass).append(rendered.name);
 		
-		if (result.toLowerCase().contains("<script") || result.toLowerCase().contains("javascript:")) throw new RuntimeException("CODENK1 Item("+item.getId()+")");
-		
-		return result;
+		return result.toString();
     }
 
 	public static String renderItemMini(ODPDBAccess db, CachedEntity currentChar, 
@@ -1996,7 +1993,7 @@ public class GameUtils
     
     public static String resolveFormulas(String text, boolean simpleMode, boolean editMode)
     {
-    	Random rnd = new Random();
+    	Random rnd = GameRandom.get();
 
         Matcher msg = Pattern.compile("\\{\\{.*\\}\\}").matcher(text);
 
@@ -2008,142 +2005,153 @@ public class GameUtils
             String originalFormula = formula.toString();
             try
             {
-
-
-                // Now within this formula, look for things like 1d6 or 3d20dl1..etc and calculate their random values and
-                // drop the lowest rolls based on the number after dl (dl stands for drop lowest)
-                Matcher formulaMatcher = Pattern.compile("(?i)\\d+d\\d+d(l|h)\\d+").matcher(formula);
-                int count = 0;
-                while(formulaMatcher.find()==true)
+                if (simpleMode)
                 {
-                	count++;
-                	if (count>100) throw new UserErrorMessage("Dice formula has too many parts.");
-                    String dice = formulaMatcher.group();
-                    String[] diceParts = splitString(dice, "d");
-                    Integer part1 = Convert.StrToInteger(diceParts[0]);
-                    Integer part2 = Convert.StrToInteger(diceParts[1]);
-                    Integer part3 = Convert.StrToInteger(diceParts[2].substring(1));
-                    boolean dropHighest = true;
-                    if (diceParts[2].toLowerCase().startsWith("l"))
-                        dropHighest=false;
-                    String result = "";
-
-                    // Perform rolls and remember what the lowest/highest values were...
-                    ArrayList<Integer> rolls = new ArrayList<Integer>();
-                    Integer lowest = 2000000000;
-                    Integer highest = -1;
-                    for(int i=0;i<part1; i++)
+                    // We don't need to show the individual rolls so we can use the compiled curve directly
+                    try
                     {
-                        Integer value = (rnd.nextInt(part2)+1);
-                        rolls.add(value);
-                        if (value<lowest)
-                            lowest = value;
-                        if (value>highest)
-                            highest = value;
+                        formula = new Double(CurveSolver.solve(formula, rnd)).intValue()+"";
                     }
-
-                    // Drop the highest rolls...
-                    for(int dropCount = 0; dropCount<part3; dropCount++)
+                    catch(ContentDeveloperException e)
+                    {
+                        throw new UserErrorMessage(e.getMessage());
+                    }
+                }
+                else
+                {
+                    // Now within this formula, look for things like 1d6 or 3d20dl1..etc and calculate their random values and
+                    // drop the lowest rolls based on the number after dl (dl stands for drop lowest)
+                    Matcher formulaMatcher = Pattern.compile("(?i)\\d+d\\d+d(l|h)\\d+").matcher(formula);
+                    int count = 0;
+                    while(formulaMatcher.find()==true)
                     {
-                        for(int i=0;i<rolls.size(); i++)
+                    	count++;
+                    	if (count>100) throw new UserErrorMessage("Dice formula has too many parts.");
+                        String dice = formulaMatcher.group();
+                        String[] diceParts = splitString(dice, "d");
+                        Integer part1 = Convert.StrToInteger(diceParts[0]);
+                        Integer part2 = Convert.StrToInteger(diceParts[1]);
+                        Integer part3 = Convert.StrToInteger(diceParts[2].substring(1));
+                        boolean dropHighest = true;
+                        if (diceParts[2].toLowerCase().startsWith("l"))
+                            dropHighest=false;
+                        String result = "";
+
+                        // Perform rolls and remember what the lowest/highest values were...
+                        ArrayList<Integer> rolls = new ArrayList<Integer>();
+                        Integer lowest = 2000000000;
+                        Integer highest = -1;
+                        for(int i=0;i<part1; i++)
                         {
-                            lowest = 2000000000;
-                            highest = -1;
-                            Integer value = rolls.get(i);
+                            Integer value = (rnd.nextInt(part2)+1);
+                            rolls.add(value);
                             if (value<lowest)
                                 lowest = value;
                             if (value>highest)
                                 highest = value;
                         }
-                        for(int i = 0; i<rolls.size(); i++)
+
+                        // Drop the highest rolls...
+                        for(int dropCount = 0; dropCount<part3; dropCount++)
                         {
-                            if (dropHighest==true && rolls.get(i)>=highest)
+                            for(int i=0;i<rolls.size(); i++)
                             {
-                                highest = rolls.get(i);
-                                rolls.remove(i);
-                                break;
+                                lowest = 2000000000;
+                                highest = -1;
+                                Integer value = rolls.get(i);
+                                if (value<lowest)
+                                    lowest = value;
+                                if (value>highest)
+                                    highest = value;
                             }
-                            else if (dropHighest==false && rolls.get(i)<=lowest)
+                            for(int i = 0; i<rolls.size(); i++)
                             {
-                                lowest = rolls.get(i);
-                                rolls.remove(i);
-                                break;
+                                if (dropHighest==true && rolls.get(i)>=highest)
+                                {
+                                    highest = rolls.get(i);
+                                    rolls.remove(i);
+                                    break;
+                                }
+                                else if (dropHighest==false && rolls.get(i)<=lowest)
+                                {
+                                    lowest = rolls.get(i);
+                                    rolls.remove(i);
+                                    break;
+                                }
                             }
                         }
-                    }
 
-                    // Put the formula together...
-                    if (rolls.size()<12)
-	                    for(int i=0;i<rolls.size(); i++)
-	                    {
-	                        if (!result.equals(""))
-	                            result+="+";
-	                        result += ""+rolls.get(i);
-	                    }
+                        // Put the formula together...
+                        if (rolls.size()<12)
+    	                    for(int i=0;i<rolls.size(); i++)
+    	                    {
+    	                        if (!result.equals(""))
+    	                            result+="+";
+    	                        result += ""+rolls.get(i);
+    	                    }
 
-                    formula = formula.replaceFirst("(?i)\\d+d\\d+d(l|h)\\d+", "("+result.toString()+")");
+                        formula = formula.replaceFirst("(?i)\\d+d\\d+d(l|h)\\d+", "("+result.toString()+")");
 
 
-                }
-                // Now within this formula, look for things like 1d6 or 3d20..etc and calculate their random values...
-                formulaMatcher = Pattern.compile("(?i)\\d+d\\d+").matcher(formula);
-                while(formulaMatcher.find()==true)
-                {
-                    String dice = formulaMatcher.group();
-                    String[] diceParts = splitString(dice, "d");
-                    Integer part1 = Convert.StrToInteger(diceParts[0]);
-                    Integer part2 = Convert.StrToInteger(diceParts[1]);
-                    String result = "";
-                    for(int i=0;i<part1; i++)
-                    {
-                        if (!result.equals(""))
-                            result+="+";
-                        result += ""+(rnd.nextInt(part2)+1);
                     }
+                    // Now within this formula, look for things like 1d6 or 3d20..etc and calculate their random values...
+                    formulaMatcher = Pattern.compile("(?i)\\d+d\\d+").matcher(formula);
+                    while(formulaMatcher.find()==true)
+                    {
+                        String dice = formulaMatcher.group();
+                        String[] diceParts = splitString(dice, "d");
+                        Integer part1 = Convert.StrToInteger(diceParts[0]);
+                        Integer part2 = Convert.StrToInteger(diceParts[1]);
+                        String result = "";
+                        for(int i=0;i<part1; i++)
+                        {
+                            if (!result.equals(""))
+                                result+="+";
+                            result += ""+(rnd.nextInt(part2)+1);
+                        }
 
-                    formula = formula.replaceFirst("(?i)\\d+d\\d+", "("+result.toString()+")");
+                        formula = formula.replaceFirst("(?i)\\d+d\\d+", "("+result.toString()+")");
 
 
-                }
-                // Now within this formula, look for things like 1_20 and 0_6..etc and calculate their random values...
-                formulaMatcher = Pattern.compile("(?i)\\d+to\\d+").matcher(formula);
-                while(formulaMatcher.find()==true)
-                {
-                    String dice = formulaMatcher.group();
-                    String[] diceParts = splitString(dice, "to");
-                    Integer part1 = Convert.StrToInteger(diceParts[0]);
-                    Integer part2 = Convert.StrToInteger(diceParts[1]);
-                    String result = ""+(rnd.nextInt((part2-part1)+1)+part1);
+                    }
+                    // Now within this formula, look for things like 1_20 and 0_6..etc and calculate their random values...
+                    formulaMatcher = Pattern.compile("(?i)\\d+to\\d+").matcher(formula);
+                    while(formulaMatcher.find()==true)
+                    {
+                        String dice = formulaMatcher.group();
+                        String[] diceParts = splitString(dice, "to");
+                        Integer part1 = Convert.StrToInteger(diceParts[0]);
+                        Integer part2 = Convert.StrToInteger(diceParts[1]);
+                        String result = ""+(rnd.nextInt((part2-part1)+1)+part1);
 
-                    formula = formula.replaceFirst("(?i)\\d+to\\d+", "("+result.toString()+")");
+                        formula = formula.replaceFirst("(?i)\\d+to\\d+", "("+result.toString()+")");
 
-                }
+                    }
 
-                try
-                {
-                    // Now solve the resulting math formula...
-                    JEP jep = new JEP();
-
-                    jep.addStandardFunctions();
-                    jep.parseExpression(formula);
-                    if (jep.hasError())
-                        throw new UserErrorMessage(jep.getErrorInfo().replaceAll("\n", ""));
-                    else
+                    try
                     {
-                        if (simpleMode)
-                            formula = new Double(jep.getValue()).intValue()+"";
+                        // Now solve the resulting math formula...
+                        JEP jep = new JEP();
+
+                        jep.addStandardFunctions();
+                        jep.parseExpression(formula);
+                        if (jep.hasError())
+                            throw new UserErrorMessage(jep.getErrorInfo().replaceAll("\n", ""));
                         else
                         {
+                        	// rand() has to come from the same generator as the dice, JEP falls back on Math.random() otherwise
+                        	DoubleStack stack = new DoubleStack();
+                        	stack.setRandom(rnd);
+                        	double value = jep.getValue(stack);
                         	if (formula.length()>50)
-                        		formula = "<img src='https://initium-resources.appspot.com/images/dice1.png' border=0/> "+originalFormula+" = "+jep.getValue()+"";
+                        		formula = "<img src='https://initium-resources.appspot.com/images/dice1.png' border=0/> "+originalFormula+" = "+value+"";
                         	else
-                        		formula = "<img src='https://initium-resources.appspot.com/images/dice1.png' border=0/> "+originalFormula+" = "+formula+" = "+jep.getValue()+"";
+                        		formula = "<img src='https://initium-resources.appspot.com/images/dice1.png' border=0/> "+originalFormula+" = "+formula+" = "+value+"";
                         }
                     }
+                    catch (org.cheffo.jeplite.ParseException e) {
+    				}
                 }
-                catch (org.cheffo.jeplite.ParseException e) {
-				}
-
             }
             catch(UserErrorMessage use)
             {
@@ -55,6 +55,8 @@ public abstract class InitiumAspect
 	
 	public static Class<? extends Command> getAspectCommand(String commandName)
 	{
+		// The known aspects add their commands when they're registered
+		AspectRegistry.load();
 		return aspectCommands.get(commandName);
 	}
 	
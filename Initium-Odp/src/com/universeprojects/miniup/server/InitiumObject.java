@@ -2,7 +2,8 @@ package com.universeprojects.miniup.server;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -14,6 +15,8 @@ public class InitiumObject
 {
 	final protected ODPDBAccess db;
 	final protected CachedEntity entity;
+	protected Set<String> aspectIds;
+	// Aspects are only created the first time they're asked for
 	protected Map<String, InitiumAspect> aspects;
 	
 	@SuppressWarnings("unchecked")
@@ -23,23 +26,14 @@ public class InitiumObject
 		this.entity = entity;
 		
 		Object aspectsObj = entity.getProperty("_aspects");
-		Set<String> aspectIds = null;
 		if (aspectsObj instanceof Set)
-			aspectIds = (Set<String>)aspectsObj;
+			this.aspectIds = (Set<String>)aspectsObj;
 		else if (aspectsObj instanceof List)
-			aspectIds = new LinkedHashSet<String>((List<String>)aspectsObj);
-		
-		if (aspectIds!=null)
-		{
-			this.aspects = new HashMap<String, InitiumAspect>();
-			
-			for(String aspectId:aspectIds)
-				aspects.put(aspectId, (InitiumAspect)GameUtils.createObject("com.universeprojects.miniup.server.aspects.Aspect"+aspectId, this));
-		}
+			this.aspectIds = new LinkedHashSet<String>((List<String>)aspectsObj);
 		else
-		{
-			this.aspects = null;
-		}
+			this.aspectIds = null;
+		
+		this.aspects = null;
 	}
 	
 	public static List<InitiumObject> wrap(ODPDBAccess db, List<CachedEntity> entities)
@@ -70,23 +64,23 @@ public class InitiumObject
 	public void addAspect(Class<? extends InitiumAspect> aspectClass)
 	{
 		String aspectId = aspectClassToString(aspectClass);
-		aspects.put(aspectId, (InitiumAspect)GameUtils.createObject("com.universeprojects.miniup.server.aspects.Aspect"+aspectId));
-		@SuppressWarnings("unchecked")
-		Set<String> aspectIds = (Set<String>)entity.getProperty("_aspects");
+		if (aspectIds==null)
+			aspectIds = new LinkedHashSet<String>();
 		aspectIds.add(aspectId);
+		getLoadedAspects().put(aspectId, AspectRegistry.create(aspectId, this));
 		entity.setPropertyManually("_aspects", aspectIds);
 	}
 	
 	public boolean isAspectPresent(Class<? extends InitiumAspect> aspectClass)
 	{
-		if (aspects==null) return false;
+		if (aspectIds==null) return false;
 		
-		return aspects.containsKey(aspectClassToString(aspectClass));
+		return aspectIds.contains(aspectClassToString(aspectClass));
 	}
 	
 	public boolean hasAspects()
 	{
-		if (aspects==null || aspects.isEmpty())
+		if (aspectIds==null || aspectIds.isEmpty())
 			return false;
 		
 		return true;
@@ -94,13 +88,33 @@ public class InitiumObject
 	
 	public Collection<InitiumAspect> getAspects()
 	{
-		return aspects.values();
+		if (aspectIds==null) return Collections.emptyList();
+		
+		List<InitiumAspect> result = new ArrayList<InitiumAspect>(aspectIds.size());
+		for(String aspectId:aspectIds)
+			result.add(getInitiumAspect(aspectId));
+		return result;
 	}
 
 	public InitiumAspect getInitiumAspect(String aspectId)
 	{
-		if (aspects==null) return null;
-		return aspects.get(aspectId);
+		if (aspectIds==null || aspectIds.contains(aspectId)==false) return null;
+		
+		Map<String, InitiumAspect> loadedAspects = getLoadedAspects();
+		InitiumAspect aspect = loadedAspects.get(aspectId);
+		if (aspect==null)
+		{
+			aspect = AspectRegistry.create(aspectId, this);
+			loadedAspects.put(aspectId, aspect);
+		}
+		return aspect;
+	}
+	
+	private Map<String, InitiumAspect> getLoadedAspects()
+	{
+		if (aspects==null)
+			aspects = new LinkedHashMap<String, InitiumAspect>();
+		return aspects;
 	}
 
 }
@@ -0,0 +1,300 @@
+package com.universeprojects.miniup.server;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.universeprojects.cacheddatastore.CachedEntity;
+
+/**
+ * Running totals of the weight and space of the items in each container, kept in memcache so checking
+ * whether something fits doesn't have to fetch everything that is already in the container.
+ *
+ * The totals are updated as items are written: ODPDBAccess remembers where every item fetched during the
+ * request was (and how heavy it was) and when the item is put, the difference is moved from the old
+ * container's totals to the new one's. That covers moves, trades, stack merges and splits without any of
+ * them having to know about the totals. Deleted items have to go through ODPDBAccess.deleteItem(). Inside a
+ * transaction the totals only move once it commits, see ODPDBAccess.runAfterCommit().
+ *
+ * Items that were written without being fetched through ODPDBAccess just invalidate the totals of their
+ * container. Totals are counted with a query, which may not see items that were moved in the last few
+ * seconds, so a count is only cached when its container hasn't been written to recently.
+ *
+ * Since the totals can still drift (an item deleted some other way), they expire after a while and are then
+ * counted again.
+ *
+ * One instance is kept per request, see ODPDBAccess.getInventoryAggregates(). It isn't thread safe.
+ */
+public class InventoryAggregates
+{
+	private static final int EXPIRY_SECONDS = 15*60;
+	// How long after a write to a container a query may still miss it
+	private static final long CONSISTENCY_WINDOW_MS = 10*1000;
+
+	/**
+	 * What an item adds to the totals of its container.
+	 */
+	private static class Contribution
+	{
+		final Key containerKey;
+		final long weight;
+		final long space;
+		// The instance this was taken from
+		final CachedEntity item;
+
+		Contribution(CachedEntity item)
+		{
+			this.item = item;
+			this.containerKey = (Key)item.getProperty("containerKey");
+
+			Long quantity = (Long)item.getProperty("quantity");
+			if (quantity==null) quantity = 1L;
+			Long weight = (Long)item.getProperty("weight");
+			this.weight = weight==null ? 0L : weight*quantity;
+
+			// Same as getItemCarryingSpace(), the space of a stack doesn't depend on its quantity
+			Long space = (Long)item.getProperty("space");
+			this.space = space==null ? 0L : space;
+		}
+
+		boolean sameAs(Contribution other)
+		{
+			return GameUtils.equals(containerKey, other.containerKey) && weight==other.weight && space==other.space;
+		}
+	}
+
+	// By key, so an item that is put as a different instance than the one that was fetched is still found
+	private final Map<Key, Contribution> tracked = new HashMap<Key, Contribution>();
+	// New items don't have a complete key until they're put
+	private final Map<CachedEntity, Contribution> trackedNew = new IdentityHashMap<CachedEntity, Contribution>();
+
+	/**
+	 * Remembers the state of an item as it was fetched. An item that is fetched again as a new instance (like
+	 * ds.refetch() inside a transaction) replaces what was remembered, since it is the more recent state. Fetching
+	 * the same instance again doesn't, it may have been changed since without being put yet.
+	 * Entities that aren't items are ignored.
+	 *
+	 * @param entity Can be null
+	 */
+	void track(CachedEntity entity)
+	{
+		if (entity==null || entity.getKind().equals("Item")==false) return;
+		Contribution known = getTracked(entity);
+		if (known!=null && known.item==entity) return;
+		setTracked(entity, new Contribution(entity));
+	}
+
+	private Contribution getTracked(CachedEntity item)
+	{
+		Contribution contribution = null;
+		if (item.getKey().isComplete())
+			contribution = tracked.get(item.getKey());
+		if (contribution==null)
+			contribution = trackedNew.get(item);
+		return contribution;
+	}
+
+	private void setTracked(CachedEntity item, Contribution contribution)
+	{
+		if (item.getKey().isComplete())
+		{
+			trackedNew.remove(item);
+			tracked.put(item.getKey(), contribution);
+		}
+		else
+			trackedNew.put(item, contribution);
+	}
+
+	private Contribution removeTracked(CachedEntity item)
+	{
+		Contribution contribution = trackedNew.remove(item);
+		if (item.getKey().isComplete() && tracked.containsKey(item.getKey()))
+			contribution = tracked.remove(item.getKey());
+		return contribution;
+	}
+
+	void trackAll(List<CachedEntity> entities)
+	{
+		if (entities==null) return;
+		for(CachedEntity entity:entities)
+			track(entity);
+	}
+
+	/**
+	 * Called whenever an item is put.
+	 *
+	 * @param db
+	 * @param item
+	 */
+	void written(ODPDBAccess db, final CachedEntity item)
+	{
+		final MemcacheService mc = db.getMC();
+		final Contribution after = new Contribution(item);
+		final boolean brandNew = item.getKey().isComplete()==false;
+		db.runAfterCommit(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				// Where the item was is only looked up now, in case it was written more than once in the transaction
+				Contribution before = getTracked(item);
+				setTracked(item, after);
+
+				if (before==null)
+				{
+					if (brandNew)
+						add(mc, after, 1);
+					else
+						// We don't know where this item was, so the totals of the container it's in now can't be trusted
+						invalidate(mc, after.containerKey);
+				}
+				else if (before.sameAs(after)==false)
+				{
+					add(mc, before, -1);
+					add(mc, after, 1);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Called whenever an item is deleted.
+	 *
+	 * @param db
+	 * @param item
+	 */
+	void deleted(ODPDBAccess db, final CachedEntity item)
+	{
+		final MemcacheService mc = db.getMC();
+		db.runAfterCommit(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				Contribution before = removeTracked(item);
+				if (before==null)
+					before = new Contribution(item);
+				add(mc, before, -1);
+			}
+		});
+	}
+
+	/**
+	 * @param db
+	 * @param containerKey
+	 * @return The total weight of the items in the container, the same as getItemCarryingWeight() used to count them
+	 */
+	public long getWeight(ODPDBAccess db, Key containerKey)
+	{
+		return get(db, containerKey)[0];
+	}
+
+	/**
+	 * @param db
+	 * @param containerKey
+	 * @return The total space of the items in the container, the same as getItemCarryingSpace() used to count them
+	 */
+	public long getSpace(ODPDBAccess db, Key containerKey)
+	{
+		return get(db, containerKey)[1];
+	}
+
+	/**
+	 * @return {weight, space}
+	 */
+	private long[] get(ODPDBAccess db, Key containerKey)
+	{
+		MemcacheService mc = db.getMC();
+		String weightKey = weightKey(containerKey);
+		String spaceKey = spaceKey(containerKey);
+		String writtenKey = writtenKey(containerKey);
+
+		Map<String, Object> values = mc.getAll(Arrays.asList(weightKey, spaceKey, writtenKey));
+		Long weight = (Long)values.get(weightKey);
+		Long space = (Long)values.get(spaceKey);
+		if (weight!=null && space!=null)
+			return new long[]{weight, space};
+
+		long[] totals = compute(db, containerKey);
+		// If an item was moved while we were counting, its update wins
+		store(mc, containerKey, totals, (Long)values.get(writtenKey));
+		return totals;
+	}
+
+	/**
+	 * Caches totals that were just counted. Nothing is cached if the container was written to recently, since
+	 * the count may have missed that write, and if it is written to while we're storing, what we stored is
+	 * dropped again.
+	 *
+	 * @param writtenAt When the container was last written to, as read before counting
+	 */
+	private static void store(MemcacheService mc, Key containerKey, long[] totals, Long writtenAt)
+	{
+		if (writtenAt!=null && System.currentTimeMillis()-writtenAt<CONSISTENCY_WINDOW_MS)
+			return;
+
+		Map<String, Object> newValues = new HashMap<String, Object>();
+		newValues.put(weightKey(containerKey), totals[0]);
+		newValues.put(spaceKey(containerKey), totals[1]);
+		mc.putAll(newValues, Expiration.byDeltaSeconds(EXPIRY_SECONDS), SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+
+		if (GameUtils.equals(writtenAt, mc.get(writtenKey(containerKey)))==false)
+			invalidate(mc, containerKey);
+	}
+
+	private static long[] compute(ODPDBAccess db, Key containerKey)
+	{
+		long[] totals = new long[2];
+		for(CachedEntity item:db.getFilteredList("Item", "containerKey", containerKey))
+		{
+			Contribution contribution = new Contribution(item);
+			totals[0]+=contribution.weight;
+			totals[1]+=contribution.space;
+		}
+		return totals;
+	}
+
+	private static void add(MemcacheService mc, Contribution contribution, int sign)
+	{
+		if (contribution.containerKey==null) return;
+		markWritten(mc, contribution.containerKey);
+		// Totals that aren't in memcache are left alone, they're counted from scratch on the next read
+		if (contribution.weight!=0)
+			mc.increment(weightKey(contribution.containerKey), sign*contribution.weight);
+		if (contribution.space!=0)
+			mc.increment(spaceKey(contribution.containerKey), sign*contribution.space);
+	}
+
+	private static void invalidate(MemcacheService mc, Key containerKey)
+	{
+		if (containerKey==null) return;
+		markWritten(mc, containerKey);
+		mc.deleteAll(Arrays.asList(weightKey(containerKey), spaceKey(containerKey)));
+	}
+
+	private static void markWritten(MemcacheService mc, Key containerKey)
+	{
+		mc.put(writtenKey(containerKey), System.currentTimeMillis(), Expiration.byDeltaSeconds(EXPIRY_SECONDS));
+	}
+
+	private static String weightKey(Key containerKey)
+	{
+		return "InventoryWeight-"+containerKey;
+	}
+
+	private static String spaceKey(Key containerKey)
+	{
+		return "InventorySpace-"+containerKey;
+	}
+
+	private static String writtenKey(Key containerKey)
+	{
+		return "InventoryWritten-"+containerKey;
+	}
+}
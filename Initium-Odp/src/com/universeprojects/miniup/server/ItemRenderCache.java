@@ -0,0 +1,142 @@
+package com.universeprojects.miniup.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.appengine.api.datastore.Key;
+import com.universeprojects.cacheddatastore.CachedEntity;
+
+/**
+ * Caches the parts of GameUtils.renderItem() that only depend on the item itself: the quality class, the
+ * minitip, the icon url and the label, already assembled into the html around the per-request bits.
+ *
+ * Entries are kept per item key along with a copy of the item's properties, so any change to the item
+ * (including one made by another instance) simply renders it again. Only the strength/durability classes, the
+ * quantity and the popup url are filled in on every render. Items whose minitip failed to build aren't cached,
+ * so they get another try on the next render.
+ */
+class ItemRenderCache
+{
+	private static final int CACHE_SIZE = 5000;
+
+	private static final Map<Key, Entry> cache = new LinkedHashMap<Key, Entry>(CACHE_SIZE, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest)
+		{
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	static class Entry
+	{
+		private final Map<String, Object> properties;
+		private final boolean cacheable;
+		final String qualityClass;
+		/**
+		 * The minitip attribute, or an empty string.
+		 */
+		final String miniTip;
+		/**
+		 * The rel attribute and the start of the image backing div.
+		 */
+		final String link;
+		/**
+		 * The icon and the start of the class attribute of the name div.
+		 */
+		final String image;
+		/**
+		 * The end of the class attribute of the name div, the name and the closing tags.
+		 */
+		final String name;
+
+		private Entry(Map<String, Object> properties, boolean cacheable, String qualityClass, String miniTip, String link, String image, String name)
+		{
+			this.properties = properties;
+			this.cacheable = cacheable;
+			this.qualityClass = qualityClass;
+			this.miniTip = miniTip;
+			this.link = link;
+			this.image = image;
+			this.name = name;
+		}
+	}
+
+	/**
+	 * Returns the cached render parts of the given item, building them if the item isn't cached or if it
+	 * changed since.
+	 *
+	 * @param db Needed for the minitip
+	 * @param item
+	 * @return
+	 */
+	static Entry get(ODPDBAccess db, CachedEntity item)
+	{
+		Key key = item.getKey();
+		// Unsaved items don't have a unique key to cache them by, and without a db the minitip comes out differently
+		if (key.isComplete()==false || db==null)
+			return build(db, item);
+
+		Entry entry;
+		synchronized(cache)
+		{
+			entry = cache.get(key);
+		}
+		if (entry!=null && entry.properties.equals(item.getProperties()))
+			return entry;
+
+		entry = build(db, item);
+		if (entry.cacheable)
+		{
+			synchronized(cache)
+			{
+				cache.put(key, entry);
+			}
+		}
+		return entry;
+	}
+
+	private static Entry build(ODPDBAccess db, CachedEntity item)
+	{
+		String qualityClass = GameUtils.determineQuality(item.getProperties());
+		String label = (String)item.getProperty("label");
+		if (label==null || label.trim().equals("") || (label=WebUtils.htmlSafe(label).trim()).equals(""))
+			label = (String)item.getProperty("name");
+
+		String iconUrl = (String)item.getProperty("icon");
+		if (iconUrl!=null && iconUrl.startsWith("http://"))
+			iconUrl = "https://"+iconUrl.substring(7);
+		else if (iconUrl!=null && iconUrl.startsWith("http")==false)
+			iconUrl = "https://initium-resources.appspot.com/"+iconUrl;
+
+		String miniTip = GameUtils.getItemMiniTip(db, item);
+		boolean cacheable = miniTip!=null;
+		if (miniTip==null) miniTip = "";
+		String link = " rel='/odp/viewitemmini?itemId="+item.getKey().getId()+"'><div class='main-item-image-backing'>";
+		String image = "<img src='"+iconUrl+"' border=0/></div><div class='";
+		String name = "main-item-name'>"+label+"</div></a></span>";
+
+		String html = (qualityClass+miniTip+link+image+name).toLowerCase();
+		if (html.contains("<script") || html.contains("javascript:")) throw new RuntimeException("CODENK1 Item("+item.getId()+")");
+
+		// The minitip can normalize some properties of the item, so the properties are copied afterwards
+		return new Entry(copyOf(item.getProperties()), cacheable, qualityClass, miniTip, link, image, name);
+	}
+
+	/**
+	 * Lists are copied too, so changing a list property of the item in place still counts as a change.
+	 */
+	private static Map<String, Object> copyOf(Map<String, Object> properties)
+	{
+		Map<String, Object> copy = new HashMap<String, Object>(properties);
+		for(Map.Entry<String, Object> property:copy.entrySet())
+			if (property.getValue() instanceof List)
+				property.setValue(new ArrayList<Object>((List<?>)property.getValue()));
+		return copy;
+	}
+}
@@ -46,9 +46,16 @@ import com.universeprojects.miniup.server.commands.framework.UserErrorMessage;
 import com.universeprojects.miniup.server.longoperations.AbortedActionException;
 import com.universeprojects.miniup.server.services.BlockadeService;
 import com.universeprojects.miniup.server.services.ContainerService;
+import com.universeprojects.miniup.server.services.CombatScriptPlan;
+import com.universeprojects.miniup.server.services.ExchangeOrderBook;
+import com.universeprojects.miniup.server.services.ExploreSnapshot;
+import com.universeprojects.miniup.server.services.LocationPathCache;
+import com.universeprojects.miniup.server.services.MainPageFragmentCache;
 import com.universeprojects.miniup.server.services.MovementService;
 import com.universeprojects.miniup.server.services.ODPInventionService;
 import com.universeprojects.miniup.server.services.ODPKnowledgeService;
+import com.universeprojects.miniup.server.services.TerritoryGraph;
+import com.universeprojects.miniup.server.services.WorldGraph;
 
 public class ODPDBAccess
 {
@@ -119,8 +126,16 @@ public class ODPDBAccess
 			"Helmet", "Chest", "Shirt", "Gloves", "Legs", "Boots", "RightHand", "LeftHand", "RightRing", "LeftRing", "Neck"
 	};
 	private CachedDatastoreService ds = null;
+	private InventoryAggregates inventoryAggregates = null;
+	private Map<Key, WorldGraph.Node> worldGraphNodes = new HashMap<Key, WorldGraph.Node>();
+	private boolean transactionActive = false;
+	private List<Runnable> afterCommitActions = new ArrayList<Runnable>();
 
 	public Map<Key, List<CachedEntity>> buffsCache = new HashMap<Key, List<CachedEntity>>();
+	private Map<Key, BuffModifierIndex> buffModifierIndexes = new HashMap<Key, BuffModifierIndex>();
+	
+	static final String IDENTITY_MAP_ATTRIBUTE = "entityIdentityMap";
+	private static final String INVENTORY_AGGREGATES_ATTRIBUTE = "inventoryAggregates";
 
 	protected ODPDBAccess(HttpServletRequest request)
 	{
@@ -154,24 +169,296 @@ public class ODPDBAccess
 		return request;
 	}
 	
+	/**
+	 * The entities fetched and written during the current request. It is kept in the request so every
+	 * ODPDBAccess instance created for the request shares it.
+	 * 
+	 * @return Null if there is no request (for example in tests or background jobs), in which case nothing is kept
+	 */
+	public EntityIdentityMap getIdentityMap()
+	{
+		if (request==null) return null;
+		
+		EntityIdentityMap identityMap = (EntityIdentityMap)request.getAttribute(IDENTITY_MAP_ATTRIBUTE);
+		if (identityMap==null)
+		{
+			identityMap = new EntityIdentityMap();
+			request.setAttribute(IDENTITY_MAP_ATTRIBUTE, identityMap);
+		}
+		return identityMap;
+	}
+	
+	/**
+	 * The inventory weight and space totals, along with where the items fetched during the current request
+	 * were. Like the identity map it is kept in the request.
+	 * 
+	 * @return
+	 */
+	public InventoryAggregates getInventoryAggregates()
+	{
+		if (request==null)
+		{
+			if (inventoryAggregates==null)
+				inventoryAggregates = new InventoryAggregates();
+			return inventoryAggregates;
+		}
+		
+		InventoryAggregates aggregates = (InventoryAggregates)request.getAttribute(INVENTORY_AGGREGATES_ATTRIBUTE);
+		if (aggregates==null)
+		{
+			aggregates = new InventoryAggregates();
+			request.setAttribute(INVENTORY_AGGREGATES_ATTRIBUTE, aggregates);
+		}
+		return aggregates;
+	}
+	
+	/**
+	 * The identity map for reads, which is null while a transaction is active. Reads inside a transaction
+	 * have to go to the datastore so conflicts are detected, and what they return is about to be changed
+	 * in a transaction that may still be rolled back.
+	 */
+	private EntityIdentityMap getReadIdentityMap()
+	{
+		if (transactionActive) return null;
+		return getIdentityMap();
+	}
+	
+	/**
+	 * @return True while a transaction that was started on getDB() hasn't been committed or rolled back
+	 */
+	public boolean isTransactionActive()
+	{
+		return transactionActive;
+	}
+	
+	/**
+	 * Runs the given action once the current transaction commits, or right away if there is no transaction.
+	 * If the transaction is rolled back (or retried) the action is dropped. Use this for cache updates that
+	 * should only happen for writes that really went through.
+	 * 
+	 * @param action
+	 */
+	public void runAfterCommit(Runnable action)
+	{
+		if (transactionActive)
+			afterCommitActions.add(action);
+		else
+			action.run();
+	}
+	
+	private void transactionStarted()
+	{
+		// Anything left over is from an attempt that never committed
+		afterCommitActions.clear();
+		transactionActive = true;
+	}
+	
+	private void transactionCommitted()
+	{
+		transactionActive = false;
+		List<Runnable> actions = new ArrayList<Runnable>(afterCommitActions);
+		afterCommitActions.clear();
+		for(Runnable action:actions)
+		{
+			try
+			{
+				action.run();
+			}
+			catch (RuntimeException e)
+			{
+				// The transaction went through, a cache that missed an update must not turn that into an error
+				log.log(Level.WARNING, "Failed to run an action after a commit.", e);
+			}
+		}
+	}
+	
+	private void transactionRolledBack()
+	{
+		if (transactionActive==false) return;
+		transactionActive = false;
+		afterCommitActions.clear();
+	}
+	
+	List<CachedEntity> registerAll(List<CachedEntity> list)
+	{
+		EntityIdentityMap identityMap = getReadIdentityMap();
+		if (identityMap!=null)
+			list = identityMap.registerAll(list);
+		getInventoryAggregates().trackAll(list);
+		return list;
+	}
+	
+	private CachedEntity register(CachedEntity entity)
+	{
+		EntityIdentityMap identityMap = getReadIdentityMap();
+		if (identityMap!=null)
+			entity = identityMap.register(entity);
+		getInventoryAggregates().track(entity);
+		return entity;
+	}
+	
 	public CachedDatastoreService getDB()
 	{
 		if (ds != null) return ds;
 
 		ds = new CachedDatastoreService()
 		{
+			@Override
+			public void beginTransaction()
+			{
+				super.beginTransaction();
+				transactionStarted();
+			}
+			
+			@Override
+			public void commit()
+			{
+				super.commit();
+				transactionCommitted();
+			}
+			
+			@Override
+			public void rollbackIfActive()
+			{
+				super.rollbackIfActive();
+				transactionRolledBack();
+			}
+			
+			// Deletes don't go through the put hook, this keeps deleted entities from being handed out again
+			@Override
+			public void delete(CachedEntity entity)
+			{
+				super.delete(entity);
+				if (entity==null) return;
+				forget(entity.getKey());
+				// Buffs are the only deleted kind the chat sender depends on, and only the entity tells whose they were
+				if (entity.getKind().equals("Buff"))
+					ChatSender.invalidate(getMC(), (Key)entity.getProperty("parentKey"));
+			}
+			
+			@Override
+			public void delete(Key... keys)
+			{
+				super.delete(keys);
+				if (keys!=null)
+					for(Key key:keys)
+						forget(key);
+			}
+			
+			@Override
+			public void delete(List<Key> keys)
+			{
+				super.delete(keys);
+				if (keys!=null)
+					for(Key key:keys)
+						forget(key);
+			}
+			
+			private void forget(Key key)
+			{
+				EntityIdentityMap identityMap = getIdentityMap();
+				if (identityMap!=null && key!=null)
+					identityMap.forget(key);
+			}
+			
+			// Refetched items are the latest state, so that's where the inventory totals have to move them from
+			@Override
+			public CachedEntity refetch(Key key)
+			{
+				CachedEntity entity = super.refetch(key);
+				getInventoryAggregates().track(entity);
+				return entity;
+			}
+			
+			@Override
+			public CachedEntity refetch(CachedEntity entity)
+			{
+				CachedEntity refetched = super.refetch(entity);
+				getInventoryAggregates().track(refetched);
+				return refetched;
+			}
+			
 			@Override
 			protected boolean isPutEventHandlerEnabled()
 			{
 				return true;
 			}
 			
-			protected boolean putEventHandler(CachedEntity entity) 
+			protected boolean putEventHandler(final CachedEntity entity) 
 			{
-				if (entity.getKind().equals("Character"))
+				final EntityIdentityMap identityMap = getIdentityMap();
+				if (identityMap!=null)
+				{
+					// Inside a transaction the written instance only goes into the map once it commits, until
+					// then the key is dropped so nothing that may be rolled back is handed out
+					identityMap.forget(entity.getKey());
+					runAfterCommit(new Runnable()
+					{
+						@Override
+						public void run()
+						{
+							identityMap.put(entity);
+						}
+					});
+				}
+				
+				if (entity.getKind().equals("Item"))
+				{
+					getInventoryAggregates().written(ODPDBAccess.this, entity);
+				}
+				else if (entity.getKind().equals("Character"))
 				{
 					// Always update the locationEntryDatetime timestamp
 					entity.setProperty("locationEntryDatetime", new Date());
+					ChatSender.invalidate(getMC(), entity.getKey());
+				}
+				else if (entity.getKind().equals("User") || entity.getKind().equals("Group"))
+				{
+					ChatSender.invalidate(getMC(), entity.getKey());
+				}
+				else if (entity.getKind().equals("Buff"))
+				{
+					ChatSender.invalidate(getMC(), (Key)entity.getProperty("parentKey"));
+				}
+				else if (entity.getKind().equals("Location"))
+				{
+					MainPageFragmentCache.invalidateLocation(getMC(), entity.getKey());
+					LocationPathCache.invalidateLocation(getMC(), entity.getKey());
+					worldGraphNodes.remove(entity.getKey());
+					TerritoryGraph.invalidateTerritory(getMC(), (Key)entity.getProperty("territoryKey"));
+				}
+				else if (entity.getKind().equals("Territory"))
+				{
+					TerritoryGraph.invalidateTerritory(getMC(), entity.getKey());
+				}
+				else if (entity.getKind().equals("Path"))
+				{
+					invalidatePathCaches(entity);
+				}
+				else if (entity.getKind().equals("Collectable"))
+				{
+					MainPageFragmentCache.invalidateLocation(getMC(), (Key)entity.getProperty("locationKey"));
+				}
+				else if (entity.getKind().equals("Discovery"))
+				{
+					ExploreSnapshot.invalidateDiscoveries(getMC(), (Key)entity.getProperty("characterKey"));
+				}
+				else if (entity.getKind().equals("SaleItem") || entity.getKind().equals("BuyItem"))
+				{
+					// The book is shared by the whole instance, it mustn't see listings that may still be rolled back
+					runAfterCommit(new Runnable()
+					{
+						@Override
+						public void run()
+						{
+							ExchangeOrderBook.written(getMC(), entity);
+						}
+					});
+				}
+				else if (entity.getKind().equals("Script"))
+				{
+					MainPageFragmentCache.invalidateScripts(getMC());
+					CombatScriptPlan.invalidateScripts(getMC());
 				}
 				
 				return true;
@@ -434,15 +721,7 @@ public class ODPDBAccess
 	 */
 	public CachedEntity getEntity(String kind, Long id)
 	{
-		Key key = createKey(kind, id);
-		try
-		{
-			return ds.get(key);
-		}
-		catch (EntityNotFoundException e)
-		{
-			return null;
-		}
+		return getEntity(createKey(kind, id));
 	}
 
 	/**
@@ -457,15 +736,7 @@ public class ODPDBAccess
 	 */
 	public CachedEntity getEntity(String kind, String entityName)
 	{
-		Key key = createKey(kind, entityName);
-		try
-		{
-			return ds.get(key);
-		}
-		catch (EntityNotFoundException e)
-		{
-			return null;
-		}
+		return getEntity(createKey(kind, entityName));
 	}
 	
 	/**
@@ -513,7 +784,30 @@ public class ODPDBAccess
 	 */
 	public List<CachedEntity> getEntities(List<Key> keyList)
 	{
-		return ds.fetchEntitiesFromKeys(keyList);
+		EntityIdentityMap identityMap = getReadIdentityMap();
+		if (keyList==null) return ds.fetchEntitiesFromKeys(keyList);
+		if (identityMap==null) return registerAll(ds.fetchEntitiesFromKeys(keyList));
+		
+		// Only the entities that weren't fetched yet during this request go to the datastore
+		List<CachedEntity> result = new ArrayList<CachedEntity>(keyList.size());
+		List<Key> missingKeys = new ArrayList<Key>();
+		for(Key key:keyList)
+		{
+			CachedEntity entity = key==null ? null : identityMap.get(key);
+			if (entity==null && key!=null)
+				missingKeys.add(key);
+			result.add(entity);
+		}
+		if (missingKeys.isEmpty()) return result;
+		
+		List<CachedEntity> fetched = ds.fetchEntitiesFromKeys(missingKeys);
+		int fetchedIndex = 0;
+		for(int i = 0; i<result.size(); i++)
+		{
+			if (result.get(i)!=null || keyList.get(i)==null) continue;
+			result.set(i, register(fetched.get(fetchedIndex++)));
+		}
+		return result;
 	}
 
 	/**
@@ -527,7 +821,8 @@ public class ODPDBAccess
 	 */
 	public List<CachedEntity> getEntities(Key... keyList)
 	{
-		return ds.fetchEntitiesFromKeys(keyList);
+		if (keyList==null) return ds.fetchEntitiesFromKeys(keyList);
+		return getEntities(Arrays.asList(keyList));
 	}
 
 	public InitiumObject getInitiumObject(Key key)
@@ -549,9 +844,15 @@ public class ODPDBAccess
 	public CachedEntity getEntity(Key key)
 	{
 		if (key == null) return null;
+		EntityIdentityMap identityMap = getReadIdentityMap();
+		if (identityMap!=null)
+		{
+			CachedEntity entity = identityMap.get(key);
+			if (entity!=null) return entity;
+		}
 		try
 		{
-			return getDB().get(key);
+			return register(getDB().get(key));
 		}
 		catch (EntityNotFoundException e)
 		{
@@ -572,7 +873,7 @@ public class ODPDBAccess
 	public List<CachedEntity> getEntity(Key...keys)
 	{
 		if (keys == null) return null;
-		return getDB().get(keys);
+		return getEntities(Arrays.asList(keys));
 	}
 
 	/**
@@ -599,19 +900,19 @@ public class ODPDBAccess
 	public List<CachedEntity> getFilteredList(String kind, int limit, Cursor cursor, String fieldName, FilterOperator operator, Object equalToValue)
 	{
 		FilterPredicate f1 = new FilterPredicate(fieldName, operator, equalToValue);
-		return getDB().fetchAsList(kind, f1, limit, cursor);
+		return registerAll(getDB().fetchAsList(kind, f1, limit, cursor));
 	}
 
 	public List<CachedEntity> getFilteredList(String kind, int limit, String fieldName, FilterOperator operator, Object equalToValue)
 	{
 		FilterPredicate f1 = new FilterPredicate(fieldName, operator, equalToValue);
-		return getDB().fetchAsList(kind, f1, limit);
+		return registerAll(getDB().fetchAsList(kind, f1, limit));
 	}
 
 	public List<CachedEntity> getFilteredList(String kind, String fieldName, FilterOperator operator, Object equalToValue)
 	{
 		FilterPredicate f1 = new FilterPredicate(fieldName, operator, equalToValue);
-		return getDB().fetchAsList(kind, f1, 1000);
+		return registerAll(getDB().fetchAsList(kind, f1, 1000));
 	}
 
 	public Integer getFilteredList_Count(String kind, String fieldName, FilterOperator operator, Object equalToValue, String fieldName2, FilterOperator operator2, Object equalToValue2)
@@ -631,15 +932,26 @@ public class ODPDBAccess
 		return getDB().fetchAsList_Keys(kind, f, 5000).size();
 	}
 
+	/**
+	 * Starts a set of filtered queries that are sent to the datastore at the same time.
+	 * 
+	 * @see QueryBatch
+	 * @return
+	 */
+	public QueryBatch newQueryBatch()
+	{
+		return new QueryBatch(this);
+	}
+
 	public List<CachedEntity> getFilteredList(String kind)
 	{
-		return getDB().fetchAsList(kind, null, 1000);
+		return registerAll(getDB().fetchAsList(kind, null, 1000));
 	}
 
 	public List<CachedEntity> getFilteredList(String kind, String fieldName, Object equalToValue)
 	{
 		FilterPredicate f1 = new FilterPredicate(fieldName, FilterOperator.EQUAL, equalToValue);
-		return getDB().fetchAsList(kind, f1, 1000);
+		return registerAll(getDB().fetchAsList(kind, f1, 1000));
 	}
 
 	public List<CachedEntity> getFilteredList(String kind, String fieldName, Object equalToValue, String fieldName2, Object equalToValue2)
@@ -647,20 +959,12 @@ public class ODPDBAccess
 		FilterPredicate f1 = new FilterPredicate(fieldName, FilterOperator.EQUAL, equalToValue);
 		FilterPredicate f2 = new FilterPredicate(fieldName2, FilterOperator.EQUAL, equalToValue2);
 		Filter filter = CompositeFilterOperator.and(f1, f2);
-		return getDB().fetchAsList(kind, filter, 1000);
+		return registerAll(getDB().fetchAsList(kind, filter, 1000));
 	}
 
 	public CachedEntity getUserById(long id)
 	{
-		try
-		{
-			return getDB().get(createKey("User", id));
-		}
-		catch (EntityNotFoundException e)
-		{
-			// ignore
-		}
-		return null;
+		return getEntity(createKey("User", id));
 	}
 
 	public CachedEntity getUserByEmail(String email)
@@ -930,50 +1234,122 @@ public class ODPDBAccess
 		return null;
 	}
 
-	public List<CachedEntity> getPathsByLocation_PermanentOnly(Key locationKey)
+	/**
+	 * The paths of the given location from the world graph, see WorldGraph. The node is only validated
+	 * once per ODPDBAccess instance, after that it is a memory read.
+	 * 
+	 * @param locationKey
+	 * @return
+	 */
+	public WorldGraph.Node getWorldGraphNode(Key locationKey)
 	{
-		FilterPredicate permanent = new FilterPredicate("type", FilterOperator.EQUAL, "Permanent");
-		FilterPredicate camp = new FilterPredicate("type", FilterOperator.EQUAL, "CampSite");
-		FilterPredicate location1 = new FilterPredicate("location1Key", FilterOperator.EQUAL, locationKey);
-		FilterPredicate location2 = new FilterPredicate("location2Key", FilterOperator.EQUAL, locationKey);
-		Filter f = CompositeFilterOperator.and(permanent, location1);
-		// Filter f = CompositeFilterOperator.or(
-		// CompositeFilterOperator.and(permanent, location1),
-		// CompositeFilterOperator.and(permanent, location2),
-		// CompositeFilterOperator.and(camp, location1),
-		// CompositeFilterOperator.and(camp, location2)
-		// );
-		Query q = new Query("Path").setFilter(f);
-		List<CachedEntity> location1List = getDB().fetchAsList(q, 1000);
+		WorldGraph.Node node = worldGraphNodes.get(locationKey);
+		if (node==null)
+		{
+			node = WorldGraph.getNode(this, locationKey);
+			worldGraphNodes.put(locationKey, node);
+		}
+		return node;
+	}
 
-		f = CompositeFilterOperator.and(permanent, location2);
-		q = new Query("Path").setFilter(f);
-		List<CachedEntity> location2List = getDB().fetchAsList(q, 1000);
+	/**
+	 * Same as getWorldGraphNode() for several locations. The nodes that weren't validated yet are all
+	 * validated with one memcache call.
+	 *
+	 * @param locationKeys
+	 * @return The node of each location
+	 */
+	public Map<Key, WorldGraph.Node> getWorldGraphNodes(Collection<Key> locationKeys)
+	{
+		Map<Key, WorldGraph.Node> result = new HashMap<Key, WorldGraph.Node>();
+		List<Key> missing = new ArrayList<Key>();
+		for(Key locationKey:locationKeys)
+		{
+			WorldGraph.Node node = worldGraphNodes.get(locationKey);
+			if (node==null)
+				missing.add(locationKey);
+			else
+				result.put(locationKey, node);
+		}
 
-		location1List.addAll(location2List);
+		if (missing.isEmpty()==false)
+		{
+			Map<Key, WorldGraph.Node> nodes = WorldGraph.getNodes(this, missing);
+			worldGraphNodes.putAll(nodes);
+			result.putAll(nodes);
+		}
+		return result;
+	}
 
-		return location1List;
+	/**
+	 * Deletes the given path. Deletes don't go through the put hook, so this is also what invalidates
+	 * the cached paths (LocationPathCache, WorldGraph) of both of its locations.
+	 *
+	 * @param ds
+	 * @param path
+	 */
+	public void deletePath(CachedDatastoreService ds, CachedEntity path)
+	{
+		if (ds==null)
+			ds = getDB();
 
+		ds.delete(path.getKey());
+		EntityIdentityMap identityMap = getIdentityMap();
+		if (identityMap!=null)
+			identityMap.forget(path.getKey());
+		invalidatePathCaches(path);
 	}
 
-	public List<CachedEntity> getPathsByLocationAndType(Key locationKey, String type)
+	/**
+	 * Same as deletePath() for paths we only have the keys of.
+	 *
+	 * @param ds
+	 * @param pathKeys
+	 */
+	public void deletePaths(CachedDatastoreService ds, List<Key> pathKeys)
 	{
-		FilterPredicate camp = new FilterPredicate("type", FilterOperator.EQUAL, type);
-		FilterPredicate location1 = new FilterPredicate("location1Key", FilterOperator.EQUAL, locationKey);
-		FilterPredicate location2 = new FilterPredicate("location2Key", FilterOperator.EQUAL, locationKey);
+		if (ds==null)
+			ds = getDB();
 
-		Filter f = CompositeFilterOperator.and(camp, location1);
-		Query q = new Query("Path").setFilter(f);
-		List<CachedEntity> location1List = getDB().fetchAsList(q, 1000);
+		List<CachedEntity> paths = getEntities(pathKeys);
+		for(int i = 0; i<pathKeys.size(); i++)
+		{
+			if (paths.get(i)!=null)
+				deletePath(ds, paths.get(i));
+			else
+				ds.delete(pathKeys.get(i));
+		}
+	}
 
-		f = CompositeFilterOperator.and(camp, location2);
-		q = new Query("Path").setFilter(f);
-		List<CachedEntity> location2List = getDB().fetchAsList(q, 1000);
+	private void invalidatePathCaches(CachedEntity path)
+	{
+		LocationPathCache.invalidatePath(getMC(), path);
+		worldGraphNodes.remove(path.getProperty("location1Key"));
+		worldGraphNodes.remove(path.getProperty("location2Key"));
+	}
 
-		location1List.addAll(location2List);
+	/**
+	 * Fetches the given paths by key, leaving out any that don't exist anymore.
+	 */
+	private List<CachedEntity> getPathEntities(List<Key> pathKeys)
+	{
+		List<CachedEntity> paths = new ArrayList<CachedEntity>(pathKeys.size());
+		if (pathKeys.isEmpty()) return paths;
+		
+		for(CachedEntity path:getEntities(pathKeys))
+			if (path!=null)
+				paths.add(path);
+		return paths;
+	}
 
-		return location1List;
+	public List<CachedEntity> getPathsByLocation_PermanentOnly(Key locationKey)
+	{
+		return getPathEntities(getWorldGraphNode(locationKey).getPathKeysOfType("Permanent"));
+	}
 
+	public List<CachedEntity> getPathsByLocationAndType(Key locationKey, String type)
+	{
+		return getPathEntities(getWorldGraphNode(locationKey).getPathKeysOfType(type));
 	}
 
 	public List<CachedEntity> getAllPathsExcludingCombatSites()
@@ -998,10 +1374,7 @@ public class ODPDBAccess
 //		Filter f = CompositeFilterOperator.or(f1, f2);
 //		Query q = new Query("Path").setFilter(f);
 //		return getDB().fetchAsList(q, 1000);
-		QueryHelper query = new QueryHelper(ds);
-		List<CachedEntity> list = query.getFilteredList("Path", "location1Key", locationKey);
-		list.addAll(query.getFilteredList("Path", "location2Key", locationKey));
-		return list;
+		return getPathEntities(getWorldGraphNode(locationKey).getPathKeys());
 	}
 
 	public List<Key> getPathsByLocation_KeysOnly(Key locationKey)
@@ -1011,20 +1384,12 @@ public class ODPDBAccess
 //		Filter f = CompositeFilterOperator.or(f1, f2);
 //		Query q = new Query("Path").setFilter(f).setKeysOnly();
 //		return getDB().fetchAsList(q, 1000);
-		QueryHelper query = new QueryHelper(ds);
-		List<Key> list = query.getFilteredList_Keys("Path", "location1Key", locationKey);
-		list.addAll(query.getFilteredList_Keys("Path", "location2Key", locationKey));
-		return list;
-		
-		
+		return getWorldGraphNode(locationKey).getPathKeys();
 	}
 	
 	public List<CachedEntity> getPathsBetweenLocations(Key location1Key, Key location2Key)
 	{
-		QueryHelper qh = new QueryHelper(getDB());
-		List<CachedEntity> foundPaths = qh.getFilteredList("Path", "location1Key", location1Key, "location2Key", location2Key);
-		foundPaths.addAll(qh.getFilteredList("Path", "location1Key", location2Key, "location2Key", location1Key));
-		return foundPaths;
+		return getPathEntities(getWorldGraphNode(location1Key).getPathKeysTo(location2Key));
 	}
 
 	public List<CachedEntity> getMonsterSpawnersForLocation(Key locationKey)
@@ -1048,11 +1413,35 @@ public class ODPDBAccess
 		return getDB().fetchAsList(q, 1000);
 	}
 
+	/**
+	 * Deletes the given collectable. Deletes don't go through the put hook, so this is also what invalidates
+	 * the cached collectables panel (see MainPageFragmentCache) of its location, once the delete is committed.
+	 *
+	 * @param ds
+	 * @param collectable
+	 */
+	public void deleteCollectable(CachedDatastoreService ds, CachedEntity collectable)
+	{
+		if (ds==null)
+			ds = getDB();
+
+		ds.delete(collectable.getKey());
+		final Key locationKey = (Key)collectable.getProperty("locationKey");
+		runAfterCommit(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				MainPageFragmentCache.invalidateLocation(getMC(), locationKey);
+			}
+		});
+	}
+
 	public CachedEntity newSaleItem(CachedDatastoreService db, CachedEntity character, CachedEntity item, long dogecoins)
 	{
 		if (db == null) db = getDB();
 
-		CachedEntity result = new CachedEntity("SaleItem");
+		final CachedEntity result = new CachedEntity("SaleItem");
 		result.setProperty("characterKey", character.getKey());
 		result.setProperty("itemKey", item.getKey());
 		result.setProperty("dogecoins", dogecoins);
@@ -1063,11 +1452,21 @@ public class ODPDBAccess
 		// This is a special case for premium tokens to set the specialId
 		if (CommonChecks.checkItemIsPremiumToken(item) || CommonChecks.checkItemIsChippedToken(item))
 		{
-			result.setProperty("specialId", "Initium Premium Membership");
+			result.setProperty("specialId", ExchangeOrderBook.SALE_SPECIAL_ID);
+			result.setProperty("createdDate", new Date());
 		}
 		
 		
 		db.put(result);
+		// The put hook only sees the new listing before it has a key
+		runAfterCommit(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				ExchangeOrderBook.written(getMC(), result);
+			}
+		});
 
 		return result;
 	}
@@ -1204,11 +1603,12 @@ public class ODPDBAccess
 //		
 //		Query q = new Query("Discovery").setFilter(filters);
 
-		QueryHelper query = new QueryHelper(ds);
-		List<CachedEntity> location1List = query.getFilteredList("Discovery", "characterKey", characterKey, "location1Key", location);
-		List<CachedEntity> location2List = query.getFilteredList("Discovery", "characterKey", characterKey, "location2Key", location);
-		List<CachedEntity> fetchAsList = location1List;
-		fetchAsList.addAll(location2List);
+		QueryBatch batch = newQueryBatch();
+		batch.add("Discovery", "characterKey", characterKey, "location1Key", location);
+		batch.add("Discovery", "characterKey", characterKey, "location2Key", location);
+		List<List<CachedEntity>> results = batch.run();
+		List<CachedEntity> fetchAsList = results.get(0);
+		fetchAsList.addAll(results.get(1));
 		
 		log.log(Level.WARNING, fetchAsList.size() + " discoveries found.");
 		
@@ -1843,6 +2243,7 @@ public class ODPDBAccess
 		}
 
 		buffs.add(buff);
+		invalidateBuffModifierIndex(parentKey);
 	}
 
 	public void awardBuff_Pumped(CachedDatastoreService ds, CachedEntity attackingCharacter)
@@ -1913,7 +2314,7 @@ public class ODPDBAccess
 	
 	public void awardBuff_Candy(CachedDatastoreService ds, CachedEntity character)
 	{
-		Double buffDouble = Math.random();
+		Double buffDouble = GameRandom.get().nextDouble();
 		
 		if(buffDouble <= 0.16){
 			CachedEntity buff = awardBuff(ds, character.getKey(), "images/small2/Pixel_Art-Misc-Buff_Treat.png","Treat!",
@@ -2047,26 +2448,10 @@ public class ODPDBAccess
 	public Double getDoubleBuffableValue(CachedEntity entity, String fieldName, Double startValue)
 	{
 		if (startValue == null) return null;
-		List<String> buffEffects = getBuffEffectsFor(entity.getKey(), fieldName);
+		BuffModifierIndex index = getBuffModifierIndex(entity.getKey());
+		if (index.hasModifiers(fieldName) == false) return startValue;
 
-		for (String effect : buffEffects)
-		{
-			effect = effect.replace("+", "");
-			if (effect.endsWith("%"))
-			{
-				effect = effect.substring(0, effect.length() - 1);
-				double val = new Double(effect);
-				val /= 100;
-				startValue *= (1 + val);
-			}
-			else
-			{
-				double val = new Double(effect);
-				startValue += val;
-			}
-		}
-
-		return startValue;
+		return index.applyDouble(fieldName, startValue);
 	}
 
 	public Double getDoubleBuffableProperty(CachedEntity entity, String fieldName)
@@ -2077,27 +2462,10 @@ public class ODPDBAccess
 	public Long getLongBuffableValue(CachedEntity entity, String fieldName, Long startValue)
 	{
 		if (startValue == null) return null;
-		List<String> buffEffects = getBuffEffectsFor(entity.getKey(), fieldName);
-
-		for (String effect : buffEffects)
-		{
-			effect = effect.replace("+", "");
-			if (effect.endsWith("%"))
-			{
-
-				effect = effect.substring(0, effect.length() - 1);
-				double val = new Double(effect);
-				val /= 100;
-				startValue = Math.round(startValue.doubleValue() * val);
-			}
-			else
-			{
-				double val = new Double(effect);
-				startValue = Math.round(startValue.doubleValue() + val);
-			}
-		}
+		BuffModifierIndex index = getBuffModifierIndex(entity.getKey());
+		if (index.hasModifiers(fieldName) == false) return startValue;
 
-		return startValue;
+		return index.applyLong(fieldName, startValue);
 	}
 
 	public Long getLongBuffableProperty(CachedEntity entity, String fieldName)
@@ -2140,10 +2508,45 @@ public class ODPDBAccess
 		return result;
 	}
 
+	/**
+	 * Returns the compiled buff modifiers for the given entity. The index is kept for the
+	 * rest of the request and is only rebuilt when the entity's buff list changes or when
+	 * one of its buffs expires.
+	 * 
+	 * @param entityKey
+	 * @return
+	 */
+	public BuffModifierIndex getBuffModifierIndex(Key entityKey)
+	{
+		BuffModifierIndex index = buffModifierIndexes.get(entityKey);
+		if (index != null)
+		{
+			List<CachedEntity> buffs = buffsCache.get(entityKey);
+			if (buffs != null && index.isValidFor(buffs, System.currentTimeMillis()))
+				return index;
+		}
+
+		index = BuffModifierIndex.compile(getBuffsFor(entityKey));
+		buffModifierIndexes.put(entityKey, index);
+		return index;
+	}
+
+	/**
+	 * Call this if a buff on the given entity was changed or removed outside of the
+	 * awardBuff methods.
+	 * 
+	 * @param entityKey
+	 */
+	public void invalidateBuffModifierIndex(Key entityKey)
+	{
+		buffModifierIndexes.remove(entityKey);
+	}
+
 	private void cleanUpBuffs(List<CachedEntity> buffs)
 	{
 		if (buffs == null) return;
 		CachedDatastoreService ds = getDB();
+		long now = System.currentTimeMillis();
 
 		for (int i = buffs.size() - 1; i >= 0; i--)
 		{
@@ -2154,7 +2557,7 @@ public class ODPDBAccess
 				continue;
 			}
 			Date expiry = (Date) buff.getProperty("expiry");
-			if (expiry != null && expiry.before(new Date()))
+			if (expiry != null && expiry.getTime() < now)
 			{
 				ds.delete(buff);
 				buffs.remove(i);
@@ -2181,7 +2584,7 @@ public class ODPDBAccess
 
 	public void shuffleCharactersByAttackOrder(List<CachedEntity> characters)
 	{
-		Collections.shuffle(characters); // We first shuffle so that characters
+		Collections.shuffle(characters, GameRandom.get()); // We first shuffle so that characters
 											// with the same status will be
 											// randomized
 		Collections.sort(characters, new Comparator<CachedEntity>()
@@ -2329,10 +2732,8 @@ public class ODPDBAccess
 				Long itemWeight = (requestQuantity != null) ? requestQuantity*itemSingleWeight : getItemWeight(item);
 				Long itemSpace = (requestQuantity != null) ? requestQuantity*itemSingleSpace : getItemSpace(item);
 				
-				List<CachedEntity> containerInventory = getItemContentsFor(newContainer.getKey());
-				
-				Long containerAvailableWeight = maxWeight - getItemCarryingWeight(newContainer, containerInventory);
-				Long containerAvailableSpace = maxSpace - getItemCarryingSpace(newContainer, containerInventory);
+				Long containerAvailableWeight = maxWeight - getItemCarryingWeight(newContainer);
+				Long containerAvailableSpace = maxSpace - getItemCarryingSpace(newContainer);
 
 				// Skip checks below if encumbered and item has weight or space at all
 				if (containerAvailableWeight < 0L && itemSingleWeight > 0L)
@@ -2618,6 +3019,7 @@ public class ODPDBAccess
 			throw new IllegalArgumentException("The SellItem this user is trying to delete does not belong to his character.");
 		
 		db.delete(sellItem.getKey());
+		ExchangeOrderBook.removed(getMC(), sellItem);
 	}
 	
 	public void doStoreDeleteAllItems(Key characterKey) throws UserErrorMessage 
@@ -2634,6 +3036,7 @@ public class ODPDBAccess
 					throw new IllegalArgumentException("The SellItem this user is trying to delete does not belong to his character.");
 				
 				db.delete(item);
+				ExchangeOrderBook.removed(getMC(), item);
 			}
 		}
 	}
@@ -3474,46 +3877,51 @@ public class ODPDBAccess
 
 	
 	/**
-	 * Method stub placeholder for ODP.
+	 * This method will accept a curve formula and output a number.
 	 * 
-	 *  This method will accept a curve formula and output a number.
+	 * Curve formulas are parsed once and cached, see CurveSolver for the supported syntax.
+	 * If the result is a whole number, a Long is returned, otherwise a Double.
 	 * 
 	 * @param curve
 	 * @return
 	 */
 	public Object solveCurve(String curve)
 	{
-		return 0L;
+		if (curve == null) return null;
+		double result = CurveSolver.solve(curve, GameRandom.get());
+		if (result == Math.rint(result) && Math.abs(result) < Long.MAX_VALUE)
+			return (long)result;
+		
+		return result;
 	}
 	
 	/**
-	 * Method stub placeholder for ODP. 
-	 * 
-	 *  This method will accept a curve formula and output a number.
-	 *  This variant specifically will try to parse the resulting number 
-	 *  as a long so you have to make sure the curve formula will result in a whole number.
+	 * This method will accept a curve formula and output a number.
+	 * This variant specifically will try to parse the resulting number 
+	 * as a long so you have to make sure the curve formula will result in a whole number.
+	 * Any fractional part is rounded off.
 	 *  
 	 * @param curve
 	 * @return
 	 */
 	public Long solveCurve_Long(String curve)
 	{
-		return 0L;
+		if (curve == null) return null;
+		return Math.round(CurveSolver.solve(curve, GameRandom.get()));
 	}
 	
 	/**
-	 * Method stub placeholder for ODP. 
-	 *
-	 *  This method will accept a curve formula and output a number.
-	 *  This variant specifically will try to parse the resulting number 
-	 *  as a double.
+	 * This method will accept a curve formula and output a number.
+	 * This variant specifically will try to parse the resulting number 
+	 * as a double.
 	 * 
 	 * @param curve
 	 * @return
 	 */
 	public Double solveCurve_Double(String curve)
 	{
-		return 0D;
+		if (curve == null) return null;
+		return CurveSolver.solve(curve, GameRandom.get());
 	}
 	
 	/**
@@ -3801,7 +4209,7 @@ public class ODPDBAccess
 		for(int i = characters.size()-1; i>=0; i--)
 			if (characters.get(i)==null) characters.remove(i);
 		
-		Collections.shuffle(characters);	// We first shuffle so that characters with the same status will be randomized
+		Collections.shuffle(characters, GameRandom.get());	// We first shuffle so that characters with the same status will be randomized
 		Collections.sort(characters, new Comparator<CachedEntity>(){
 
 			@Override
@@ -3864,7 +4272,7 @@ public class ODPDBAccess
 			foundSpawners.add(spawn);
 		}
 		
-		Collections.shuffle(foundSpawners);	// We first shuffle so that characters with the same status will be randomized
+		Collections.shuffle(foundSpawners, GameRandom.get());	// We first shuffle so that characters with the same status will be randomized
 		Collections.sort(foundSpawners, new Comparator<CachedEntity>(){
 
 			@Override
@@ -3908,8 +4316,13 @@ public class ODPDBAccess
 		while(iter.hasNext())
 		{
 			CachedEntity currentScript = iter.next();
+			if(currentScript == null)
+			{
+				iter.remove();
+				continue;
+			}
 			String scriptType = (String)currentScript.getProperty("type");
-			if(scriptType == null || scriptType == "")
+			if(scriptType == null || scriptType.equals(""))
 				iter.remove();
 			else
 			{
@@ -3969,7 +4382,7 @@ public class ODPDBAccess
         
         Double charDex = getCharacterDexterity(sourceCharacter);
         Double monsterDex = getCharacterDexterity(targetCharacter);
-        Random rnd = new Random();
+        Random rnd = GameRandom.get();
         if (rnd.nextDouble()*charDex>=rnd.nextDouble()*monsterDex)
         {
         	
@@ -4156,7 +4569,7 @@ public class ODPDBAccess
 		if (weapon!=null && "2Hands".equals(weapon.getProperty("equipSlot")))
 		    str*=1.5;
 		str*=2d;
-		strengthDamageBonus = new Double(GameUtils.rnd.nextDouble()*str).intValue();
+		strengthDamageBonus = new Double(GameRandom.get().nextDouble()*str).intValue();
 		if (strengthDamageBonus<0) strengthDamageBonus=0;
 		
 		
@@ -4278,15 +4691,30 @@ public class ODPDBAccess
 		return attackResult;
 	}
 
-	/**Placeholder
+	/**
+	 * Solves the curve formula (like a weapon's "DD2D6" weaponDamage) stored in the given 
+	 * field. If the field already holds a plain number, the number is returned as is.
 	 * 
-	 * @param string
+	 * @param string A description of what is being solved, for error messages
 	 * @param weapon
 	 * @return
 	 */
 	public Object solveProperty(String string, CachedEntity weapon, String fieldName)
 	{
-		return null;
+		Object value = weapon.getProperty(fieldName);
+		if (value instanceof String)
+		{
+			try
+			{
+				return solveCurve((String)value);
+			}
+			catch(ContentDeveloperException e)
+			{
+				throw new ContentDeveloperException(string+": "+e.getMessage());
+			}
+		}
+		
+		return value;
 	}
 
 
@@ -4430,7 +4858,7 @@ public class ODPDBAccess
 		
 		// Next, randomly determine where the attack is likely to land on the body (which piece of equipment will be hit)
 		// Body/Arms = 50%, Legs = 30%, Head = 10%, Hands = 5%, Feet = 5%
-		Random rnd = new Random();
+		Random rnd = GameRandom.get();
 		int hitPlacement = rnd.nextInt(100);
 		if (GameUtils.between(hitPlacement, 0, 50))
 		{
@@ -4732,7 +5160,7 @@ public class ODPDBAccess
 			// If the item is a "naturalEquipment", simply delete it instead of moving to the ground
 			if ("TRUE".equals(item.getProperty("naturalEquipment")))
 			{
-				db.delete(item.getKey());
+				deleteItem(db, item);
 			}
 			else
 			{
@@ -4901,7 +5329,7 @@ public class ODPDBAccess
 			doCharacterUnequipEntity(db, character, equipment.getKey());
 		}
 		
-		db.delete(equipment.getKey());
+		deleteItem(db, equipment);
 	}
 
 	public void doRequestLeaveParty(CachedDatastoreService ds, CachedEntity character)
@@ -5237,22 +5665,53 @@ public class ODPDBAccess
 	
 	public Long getItemCarryingSpace(CachedEntity item)
 	{
-		List<CachedEntity> inventory = getFilteredList("Item", "containerKey", item.getKey());
-		return getItemCarryingSpace(item, inventory);
+		return getInventoryAggregates().getSpace(this, item.getKey());
 	}
 
 	public Long getItemCarryingWeight(CachedEntity item)
 	{
-		List<CachedEntity> inventory = getFilteredList("Item", "containerKey", item.getKey());
-		return getItemCarryingWeight(item, inventory);
+		return getInventoryAggregates().getWeight(this, item.getKey());
 	}
 	
 	
+	/**
+	 * Uses the inventory weight total of the character, so only the equipped items and the characters being
+	 * carried are fetched.
+	 * 
+	 * @param character
+	 * @return
+	 */
 	public Long getCharacterCarryingWeight(CachedEntity character)
 	{
-		List<CachedEntity> inventory = getFilteredList("Item", "containerKey", character.getKey());
-		List<CachedEntity> inventoryCharacters = getFilteredList("Character", "locationKey", character.getKey());
-		return getCharacterCarryingWeight(character, inventory, inventoryCharacters);
+		long carrying = getInventoryAggregates().getWeight(this, character.getKey());
+		
+		// Equipped items (that aren't in the left/right hand) don't count against us
+		List<Key> equipmentKeys = new ArrayList<Key>();
+		for(String slot:EQUIPMENT_SLOTS)
+		{
+			Key equipmentKey = (Key)character.getProperty("equipment"+slot);
+			if (equipmentKey!=null && equipmentKeys.contains(equipmentKey)==false)
+				equipmentKeys.add(equipmentKey);
+		}
+		if (equipmentKeys.isEmpty()==false)
+		{
+			for(CachedEntity item:getEntities(equipmentKeys))
+			{
+				if (item==null || GameUtils.equals(item.getProperty("containerKey"), character.getKey())==false)
+					continue;
+				if ("LeftHand".equals(item.getProperty("equipSlot")) || 
+						"RightHand".equals(item.getProperty("equipSlot")) || 
+						"2Hands".equals(item.getProperty("equipSlot")))
+					continue;
+				
+				carrying-=getItemWeight(item);
+			}
+		}
+		
+		for(CachedEntity c:getFilteredList("Character", "locationKey", character.getKey()))
+			carrying+=getCharacterWeight(c);
+		
+		return carrying;
 	}
 	
 	
@@ -5354,6 +5813,22 @@ public class ODPDBAccess
 		return space;
 	}
 
+	/**
+	 * Deletes an item and takes it out of the inventory totals of its container. Items should always be
+	 * deleted this way.
+	 * 
+	 * @param ds
+	 * @param item
+	 */
+	public void deleteItem(CachedDatastoreService ds, CachedEntity item)
+	{
+		if (ds==null)
+			ds = getDB();
+		
+		ds.delete(item);
+		getInventoryAggregates().deleted(this, item);
+	}
+
 	public Long getItemWeight(CachedEntity item)
 	{
 		Long itemQuantity = (Long)item.getProperty("quantity");
@@ -5831,11 +6306,10 @@ public class ODPDBAccess
 			
 			// Delete all items on the ground
 			for(CachedEntity item:items)
-				ds.delete(item.getKey());
+				deleteItem(ds, item);
 			
 			// Delete all paths to this location
-			for(Key path:paths)
-				ds.delete(path);
+			deletePaths(ds, paths);
 			
 			// Delete the discoveries of the paths to this location
 			for(CachedEntity discovery:discoveries)
@@ -5854,6 +6328,7 @@ public class ODPDBAccess
 			
 			// Finally delete the location itself
 			ds.delete(locationKey);
+			LocationPathCache.invalidateLocation(getMC(), locationKey);
 			
 			
 		}
@@ -5941,8 +6416,7 @@ public class ODPDBAccess
 			}
 			
 			// Delete all paths to this location
-			for(Key path:paths)
-				ds.delete(path);
+			deletePaths(ds, paths);
 			
 			// Delete the discoveries of the paths to this location
 			for(CachedEntity discovery:discoveries)
@@ -5961,6 +6435,7 @@ public class ODPDBAccess
 			
 			// Finally delete the location itself
 			ds.delete(locationKey);
+			LocationPathCache.invalidateLocation(getMC(), locationKey);
 			
 			
 		}
@@ -6068,7 +6543,7 @@ public class ODPDBAccess
 			Double monsterDex = getCharacterDexterity(monster);
 			
 			
-			Random rnd = new Random();
+			Random rnd = GameRandom.get();
 			if (rnd.nextDouble()*characterDex>rnd.nextDouble()*monsterDex)
 			{
 				boolean defenceStructureAttack = "DefenceStructureAttack".equals(character.getProperty("combatType"));
@@ -6144,7 +6619,7 @@ public class ODPDBAccess
 						}
 	
 						// Now shuffle the paths, looks like the parent location wasn't set right or at all
-						Collections.shuffle(paths);
+						Collections.shuffle(paths, GameRandom.get());
 						
 						// Otherwise, escape down the first permanent location we find
 						for(CachedEntity path:paths)
@@ -6221,7 +6696,7 @@ public class ODPDBAccess
 						}
 						else
 						{
-							if (new Random().nextBoolean())
+							if (GameRandom.get().nextBoolean())
 								weaponToUse = leftHand;
 							else
 								weaponToUse = rightHand;
@@ -6574,7 +7049,7 @@ public class ODPDBAccess
 				quantity+=(Long)stackedItem.getProperty("quantity");
 				item.setProperty("quantity", quantity);
 				if (stackedItem.getKey().isComplete())
-					ds.delete(stackedItem);
+					deleteItem(ds, stackedItem);
 				ds.put(item);
 				return item;
 			}
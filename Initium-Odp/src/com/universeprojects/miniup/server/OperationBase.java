@@ -95,6 +95,7 @@ public abstract class OperationBase
 		htmlData.put("id", elementId);
 		htmlData.put("js", newJavascript);
 		
+		removeSupersededUpdate("4", "id", elementId);
 		htmlUpdates.add(htmlData);
 	}
 	
@@ -145,9 +146,33 @@ public abstract class OperationBase
 		htmlData.put("selector", jquerySelector);
 		htmlData.put("html", htmlContents);
 		
+		// Replacing the contents of an element makes any earlier contents update to the same element pointless
+		if ("0".equals(updateType))
+			removeSupersededUpdate(updateType, "selector", jquerySelector);
+		
 		htmlUpdates.add(htmlData);
 	}
 	
+	/**
+	 * Removes an earlier update of the given type that targets the same element, since
+	 * it would just be overwritten on the client. This keeps the response small when the
+	 * same panel gets refreshed more than once during a single operation.
+	 */
+	private void removeSupersededUpdate(String updateType, String targetField, String target)
+	{
+		if (target==null) return;
+		
+		for(int i = htmlUpdates.size()-1; i>=0; i--)
+		{
+			Map<String,String> update = htmlUpdates.get(i);
+			if (updateType.equals(update.get("type")) && target.equals(update.get(targetField)))
+			{
+				htmlUpdates.remove(i);
+				return;
+			}
+		}
+	}
+	
 	public List<Map<String,String>> getHtmlUpdates()
 	{
 		return htmlUpdates;
@@ -0,0 +1,107 @@
+package com.universeprojects.miniup.server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.universeprojects.cacheddatastore.CachedDatastoreService;
+import com.universeprojects.cacheddatastore.CachedEntity;
+
+/**
+ * A handful of independent filtered queries that are sent to the datastore at the same time instead of
+ * one after the other, so they only cost one round trip between them.
+ *
+ * Usage:
+ * <pre>
+ * QueryBatch batch = db.newQueryBatch();
+ * int items = batch.add("Item", "containerKey", characterKey);
+ * int characters = batch.add("Character", "locationKey", characterKey);
+ * List&lt;List&lt;CachedEntity&gt;&gt; results = batch.run();
+ * </pre>
+ *
+ * All of the queries go through the request's own datastore service. Starting a query's iterator sends it
+ * off and its first batch of results is prefetched in the background, so every query is started before
+ * any of them is read. Only reading past the first batch waits for the datastore again.
+ */
+public class QueryBatch
+{
+	// Same as ODPDBAccess.getFilteredList()
+	private static final int DEFAULT_LIMIT = 1000;
+
+	private final ODPDBAccess db;
+	private final List<String> kinds = new ArrayList<String>();
+	private final List<Filter> filters = new ArrayList<Filter>();
+	private final List<Integer> limits = new ArrayList<Integer>();
+
+	QueryBatch(ODPDBAccess db)
+	{
+		this.db = db;
+	}
+
+	/**
+	 * @param kind
+	 * @param filter Can be null to fetch everything of the kind
+	 * @param limit
+	 * @return The index of this query's results in the list returned by run()
+	 */
+	public int add(String kind, Filter filter, int limit)
+	{
+		kinds.add(kind);
+		filters.add(filter);
+		limits.add(limit);
+		return kinds.size()-1;
+	}
+
+	/**
+	 * Same query as ODPDBAccess.getFilteredList(kind, fieldName, equalToValue).
+	 */
+	public int add(String kind, String fieldName, Object equalToValue)
+	{
+		return add(kind, new FilterPredicate(fieldName, FilterOperator.EQUAL, equalToValue), DEFAULT_LIMIT);
+	}
+
+	/**
+	 * Same query as ODPDBAccess.getFilteredList(kind, fieldName, equalToValue, fieldName2, equalToValue2).
+	 */
+	public int add(String kind, String fieldName, Object equalToValue, String fieldName2, Object equalToValue2)
+	{
+		Filter filter = CompositeFilterOperator.and(new FilterPredicate(fieldName, FilterOperator.EQUAL, equalToValue),
+				new FilterPredicate(fieldName2, FilterOperator.EQUAL, equalToValue2));
+		return add(kind, filter, DEFAULT_LIMIT);
+	}
+
+	/**
+	 * Runs all of the queries and waits for them to finish.
+	 *
+	 * @return The results of each query, in the order they were added
+	 */
+	public List<List<CachedEntity>> run()
+	{
+		CachedDatastoreService ds = db.getDB();
+
+		List<Iterator<CachedEntity>> started = new ArrayList<Iterator<CachedEntity>>(kinds.size());
+		for(int i = 0; i<kinds.size(); i++)
+		{
+			Query q = new Query(kinds.get(i));
+			if (filters.get(i)!=null)
+				q.setFilter(filters.get(i));
+			started.add(ds.fetchAsIterable(q).iterator());
+		}
+
+		List<List<CachedEntity>> results = new ArrayList<List<CachedEntity>>(kinds.size());
+		for(int i = 0; i<started.size(); i++)
+		{
+			Iterator<CachedEntity> iterator = started.get(i);
+			List<CachedEntity> result = new ArrayList<CachedEntity>();
+			while(result.size()<limits.get(i) && iterator.hasNext())
+				result.add(iterator.next());
+			results.add(db.registerAll(result));
+		}
+		return results;
+	}
+}
@@ -3,27 +3,19 @@ package com.universeprojects.miniup.server;
 
 import java.io.IOException;
 import java.util.Date;
-import java.util.List;
 import java.util.Random;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.commons.io.IOUtils;
-
 import com.google.appengine.api.datastore.Key;
-import com.google.appengine.api.datastore.KeyFactory;
-import com.universeprojects.cacheddatastore.CachedDatastoreService;
 import com.universeprojects.cacheddatastore.CachedEntity;
 import com.universeprojects.json.shared.JSONObject;
-import com.universeprojects.json.shared.parser.JSONParser;
+import com.universeprojects.json.shared.parser.JSONFieldHandler;
 import com.universeprojects.json.shared.parser.JSONParserFactory;
 import com.universeprojects.json.shared.parser.ParseException;
-import com.universeprojects.miniup.CommonChecks;
 
 
 
@@ -31,6 +23,9 @@ public class ServletEventServer extends HttpServlet
 {
 	Random rnd = new Random();
 	private static final long serialVersionUID = 1L;
+	
+	private static final String[] AUTH_FIELDS = {"Auth-Token"};
+	private static final String[] MESSAGE_FIELDS = {"accountId", "contents", "channel", "target"};
        
     /**
      * @see HttpServlet#HttpServlet()
@@ -47,57 +42,30 @@ public class ServletEventServer extends HttpServlet
 
 		ODPDBAccess db = ODPDBAccess.getInstance(request);
 		
-		JSONParser parser = JSONParserFactory.getServerParser();
-		
-		String rawBody = IOUtils.toString(request.getReader());
+		String type = request.getParameter("type");
 		try {
-			JSONObject body = (JSONObject) parser.parse(rawBody);
+			// We only need a few fields of the body, so they're picked straight off the request reader
+			// instead of reading the body into a String and building a JSONObject from it
+			JSONFieldHandler body = new JSONFieldHandler("auth".equals(type) ? AUTH_FIELDS : MESSAGE_FIELDS);
+			JSONParserFactory.getServerParser().parse(request.getReader(), body);
 			JSONObject respBody = new JSONObject();
 			respBody.put("success", false);
-			switch (request.getParameter("type")) {
+			switch (type) {
 			case "auth":
-				String token = (String) body.get("Auth-Token");
+				String token = body.getString("Auth-Token");
 				try
 				{
-					Key characterKey = null;
-					CachedEntity character = null;
 					Key userOrCharacter = db.decodeAndCheckChatAuthToken(token);
 					
-					if (userOrCharacter.getKind().equals("User"))
-					{
-						CachedEntity user = db.getEntity(userOrCharacter);
-						characterKey = (Key)user.getProperty("characterKey");
-					}
-					else
-						characterKey = userOrCharacter;
-					
-					if (characterKey==null || characterKey.getKind().equals("Character")==false)
+					ChatSender sender = ChatSender.get(db, userOrCharacter);
+					if (sender==null)
 						throw new SecurityException();
 					
-					character = db.getEntity(characterKey);
-					
-					if (character==null)
-						throw new SecurityException();
-					
-					String groupId = "";
-					if (CommonChecks.checkCharacterIsMemberOfHisGroup(character)) {
-						Long gId = ((Key)character.getProperty("groupKey")).getId();
-						groupId = "G" + gId.toString();
-					}
-						
-					Long locationId = ((Key)character.getProperty("locationKey")).getId();
-					String partyCode = ((String)character.getProperty("partyCode"));
-					
-					String partyId = "";
-					if (partyCode != null) {
-						partyId = "P" + partyCode;
-					}
-					
 					respBody.put("success", true);
 					respBody.put("accountId", userOrCharacter.toString());
-					respBody.put("groupId", groupId);
-					respBody.put("locationId", "L" + locationId);
-					respBody.put("partyId", partyId);
+					respBody.put("groupId", sender.groupId);
+					respBody.put("locationId", sender.locationId);
+					respBody.put("partyId", sender.partyId);
 					
 				}
 				catch (SecurityException e)
@@ -107,190 +75,43 @@ public class ServletEventServer extends HttpServlet
 				
 				break;
 			case "message":
-				String accountId = (String) body.get("accountId");
-				String contents = (String) body.get("contents");
-				String channel = (String) body.get("channel");
-				String target = (String) body.get("target");
+				String accountId = body.getString("accountId");
+				String contents = body.getString("contents");
+				String channel = body.getString("channel");
+				String target = body.getString("target");
 
 				Key accountKey = GameUtils.parseKey(accountId);
-				CachedEntity character = null;
-				if (accountKey.getKind().equals("Character"))
-					character = db.getEntity(accountKey);
-				else if (accountKey.getKind().equals("User"))
+				if (accountKey.getKind().equals("Character")==false && accountKey.getKind().equals("User")==false)
 				{
-					CachedEntity user = db.getEntity(accountKey);
-					character = db.getEntity((Key)user.getProperty("characterKey"));
-				} else {
 					// accountId was invalid
 					break;
 				}
-				String characterName = (String)character.getProperty("name");
+				// Usually cached, in which case none of this needs the datastore
+				ChatSender sender = ChatSender.get(db, accountKey);
+				if (sender==null)
+					break;
 				
 				if (contents==null || contents.equals("") || contents.trim().equals(""))
 					return;
 				if (contents.length()>2000)
 					return;
 				
-
-				List<CachedEntity> buffs = db.getBuffsFor(character.getKey());
-				int drunkLevel = 0;
-				for(CachedEntity buff:buffs)
-					if ("Drunk".equals(buff.getProperty("name")))
-						drunkLevel++;
-
 				String message = contents;
-				for(int i = 0; i<drunkLevel; i++)
+				for(int i = 0; i<sender.drunkLevel; i++)
 					message = doDrunkText(message);
 				
-				
-				// Just for fun
-				message = message.replace("kill", "krill");
-				
-				// Clean the message so it doesn't contain any threatening characters
-				message = message.replace(">", "&gt;");
-				message = message.replace("<", "&lt;");
-
-				message = message.replaceAll("\\&lt;(http.*?)\\|(.*?)\\&gt;", "<a href='$1' target='_blank'>$2</a>");
-				message = message.replaceAll("\\&lt;(http.*?)\\&gt;", "$1");
-				message = message.replaceAll("\\[(.*?)\\]\\((http.*?)\\)", "<a href='$2' target='_blank'>$1</a>");
-				
-				
-				
-				
-				if (message.startsWith("/competition"))
-				{
-					message = "<a href='https://initiumcompetition.appspot.com' target='_blank'>[View the official competition page]</a> "+message.substring(12);
-				}
-				
-				if (message.startsWith("/guide"))
-				{
-					message = "<a href='http://initium.wikia.com/wiki/Starter_Guide' target='_blank'>[View the player-made starter guide]</a> "+message.substring(6);
-				}
-				
-				if (message.startsWith("/faq"))
-				{
-					message = "<a href='http://initium.wikia.com/wiki/Staub%27s_FAQ_Guide' target='_blank'>[View the player-made FAQ]</a> "+message.substring(4);
-				}
-				
-					
-				if (message.startsWith("/changelog"))
-				{
-					message = "<a onclick='viewChangelog()'>[View the change log]</a> "+message.substring(10);
-				}
-				
-				if (message.startsWith("/exchange"))
-				{
-					message = "<a onclick='viewExchange()'>[Visit the Global Premium Membership Token Exchange page]</a> "+message.substring(9);
-				}
-				
-				if (message.startsWith("/profile"))
-				{
-					message = "<a onclick='viewProfile()'>[Visit your Profile Page]</a> "+message.substring(8);
-				}
-				
-				if (message.startsWith("/merchant"))
-				{
-					message = "<a onclick='viewStore("+character.getKey().getId()+")'>[Visit Store]</a> "+message.substring(9);
-				}
-				
-				if (message.startsWith("/store"))
-				{
-					message = "<a onclick='viewStore("+character.getKey().getId()+")'>[Visit Store]</a> "+message.substring(6);
-				}
-				
-				if (message.startsWith("/groups"))
-				{
-					message = "<a href='http://initium.wikia.com/wiki/Category:Player_Groups' target='_blank'>[Visit the player-made groups list]</a> "+message.substring(7);
-				}
-					
-				if (message.startsWith("/group"))
-				{
-					Key groupKey = (Key)character.getProperty("groupKey");
-					CachedEntity group = db.getEntity(groupKey);
-					if (group!=null)
-					{
-						message = "<a onclick='viewGroup("+group.getKey().getId()+")'>[Visit the '"+group.getProperty("name")+"' group page]</a> "+message.substring(6);
-					}
-				}
-				
-				
-				
-				
-				
-				if (message.startsWith("/customize"))
-				{
-					message = "<a onclick='customizeItemOrderPage()'>[Visit the customize item order page]</a> "+message.substring(10);
-				}
-					
-				if (message.startsWith("/wiki"))
-				{
-					message = "<a href='http://initium.wikia.com/wiki/Initium_Wiki' target='_blank'>[Visit the player-made wiki]</a> "+message.substring(5);
-				}
-					
-				if (message.startsWith("/app"))
-				{
-					message = "<a href='https://play.google.com/store/apps/details?id=com.playinitium' target='_blank'>[Android App Download]</a> &#8226; <a href='http://initium-resources.appspot.com/windows.xap'>[Windows Phone App Download]</a> &#8226; [iOS App Coming Soon...] "+message.substring(4);
-				}
-				
-				if (message.startsWith("/about"))
-				{
-					message = "<a href='about.jsp'>[Visit Initium About Page]</a> "+message.substring(6);
-				}
-				
-				if (message.startsWith("/quickstart"))
-				{
-					message = "<a href='quickstart.jsp'>[Visit Quick Start Page]</a> "+message.substring(11);
-				}
-				
-				if (message.startsWith("/mechanics"))
-				{
-					message = "<a href='odp/mechanics.jsp'>[Visit Game Mechanics Page]</a> "+message.substring(10);
-				}
-				
-				if (message.startsWith("/premium"))
-				{
-					message = "For information on becoming a premium member <a onclick='viewProfile()'>[Visit Your Profile Page]</a> "+message.substring(8);
-				}
-
-				if (message.startsWith("/map"))
-				{
-					message = "<a href='http://i.imgur.com/OU61I5e.jpg' target='_blank'>[Visit the player-made world map]</a> "+message.substring(4);
-				}
-				
-				CachedDatastoreService ds = db.getDB();
-				if (message.startsWith("/ignore "))
-				{
-					message = message.substring(8);
-					
-					// Now message only contains the character name, lets try to find it
-					CachedEntity c = db.getCharacterByName(message);
-					if (c==null)
-					{
-						//throw new UserErrorMessage("Unable to find a character by the name of '"+message+"' in the database.");
-					}
-					else
-					{
-						if ("NPC".equals(c.getProperty("type")))
-							return;
-						else
-							message = "<a onclick='ignoreAPlayer("+c.getId()+", \""+message.replace("'", "\\'")+"\");'>[Click here to ignore '"+message+"']</a>";
-					}
-					
-					
-				}
-				
-				message = textReplace(ds, message);
+				message = ChatMessagePipeline.process(db, sender, message);
+				if (message==null)
+					return;
 				
 				JSONObject payload = new JSONObject();
 				Date d = new Date();
 
-				String nicknameStyled = GameUtils.renderCharacter(db.getEntity((Key)character.getProperty("userKey")), character);
-				String nicknameMeStyled = GameUtils.renderCharacter(db.getEntity((Key)character.getProperty("userKey")), character, true, true);
 				payload.put("createdDate", d.getTime());
-				payload.put("characterId", character.getKey().getId());
-				payload.put("nickname", characterName);
-				payload.put("nicknameStyled", nicknameStyled);
-				payload.put("nicknameMeStyled", nicknameMeStyled);
+				payload.put("characterId", sender.characterKey.getId());
+				payload.put("nickname", sender.characterName);
+				payload.put("nicknameStyled", sender.nicknameStyled);
+				payload.put("nicknameMeStyled", sender.nicknameMeStyled);
 				switch(channel) {
 				case "public":
 					respBody.put("id", "public");
@@ -299,29 +120,22 @@ public class ServletEventServer extends HttpServlet
 					respBody.put("success", true);
 					break;
 				case "location":
-					Long locationId = ((Key)character.getProperty("locationKey")).getId();
-					respBody.put("id", "L"+locationId);
+					respBody.put("id", sender.locationId);
 					payload.put("message", message);
 					payload.put("code", "LocationChat");
 					respBody.put("success", true);
 					break;
 				case "group":
-					String groupId = "";
-					if (CommonChecks.checkCharacterIsMemberOfHisGroup(character)) {
-						Long gId = ((Key)character.getProperty("groupKey")).getId();
-						groupId = "G" + gId.toString();
-						respBody.put("id", groupId);
+					if (sender.groupId.equals("")==false) {
+						respBody.put("id", sender.groupId);
 						payload.put("message", message);
 						payload.put("code", "GroupChat");
 						respBody.put("success", true);
 					}
 					break;
 				case "party":
-					String partyCode = ((String)character.getProperty("partyCode"));
-					String partyId = "";
-					if (partyCode != null) {
-						partyId = "P" + partyCode;
-						respBody.put("id", partyId);
+					if (sender.partyId.equals("")==false) {
+						respBody.put("id", sender.partyId);
 						payload.put("message", message);
 						payload.put("code", "PartyChat");
 						respBody.put("success", true);
@@ -472,47 +286,5 @@ public class ServletEventServer extends HttpServlet
 		return originalText;
 	}
 	
-	private String textReplace(CachedDatastoreService ds, String text)
-	{
-		text = text.replaceAll("(((?<!')https?):((//)|(\\\\))+[\\w\\d:#@%/;$()~_?\\+-=\\\\\\.&]*)", "<a href='$1' target='_blank'>$1</a>");
-		//&#106;&#97;&#118;&#97;&#115;&#99;&#114;&#105;&#112;
-		text = text.replaceAll("[Jj(&#106;)][Aa(&#97;)][Vv(&#118;)][Aa(&#97;)][Ss(&#115;)][Cc(&#99;)][Rr(&#114;)][Ii(&#105;)][Pp(&#112;)][Tt]\\s*[:]", "");	// Wreck any attempts to execute javascript in-line
-
-		text = text.replaceAll("(^| )/(r/[A-Za-z0-9_-]+)", "$1<a href='http://reddit.com/$2' target='_blank'>/$2</a>");
-		text = text.replaceAll("(^| )/(u/[A-Za-z0-9_-]+)", "$1<a href='http://reddit.com/$2' target='_blank'>/$2</a>");
-		
-		Pattern p = Pattern.compile("Item\\((\\d+)\\)");
-		Matcher m = p.matcher(text);
-		int matchCount = 0;
-		while (m.find()) {
-			
-			String itemIdStr = m.group(1);
-			CachedEntity item;
-			try 
-			{
-				Long itemId = Long.parseLong(itemIdStr);
-				item = ds.get(KeyFactory.createKey("Item", itemId));
-				String itemText = "<div class='chat-embedded-item'>"+GameUtils.renderItem(item)+"</div>";
-				text = text.replace("Item("+itemIdStr+")", itemText);
-			} catch (Exception e) 
-			{
-				String itemText = "[Item "+itemIdStr+" not found]";
-				text = text.replace("Item("+itemIdStr+")", itemText);
-			}
-			
-			matchCount++;
-			if (matchCount>5)
-				break;
-		}
-		
-		if (text.toLowerCase().startsWith("/roll "))
-			text = "{{"+text.substring(6)+"}}";
-		text = GameUtils.resolveFormulas(text, false, false);
-		
-		if (text.contains("dice1.png") && text.length()>3000)
-			text = "ERROR: Dice roll formula was too complex.";
-		
-		return text;
-	}
 //	public static
 }
@@ -13,6 +13,7 @@ import com.google.appengine.api.datastore.KeyFactory;
 import com.universeprojects.cacheddatastore.CachedEntity;
 import com.universeprojects.cacheddatastore.QueryHelper;
 import com.universeprojects.miniup.CommonChecks;
+import com.universeprojects.miniup.server.GameRandom;
 import com.universeprojects.miniup.server.InitiumAspect;
 import com.universeprojects.miniup.server.InitiumObject;
 import com.universeprojects.miniup.server.ODPDBAccess;
@@ -92,7 +93,7 @@ public class AspectCardDeck extends InitiumAspect
 	public Key removeRandomCard()
 	{
 		List<Key> cards = getCards();
-		Collections.shuffle(cards);
+		Collections.shuffle(cards, GameRandom.get());
 		
 		Key card = cards.remove(0);
 		
@@ -52,7 +52,7 @@ public class CommandCombineChippedTokens extends TransactionCommand
 		// Now do the combination...
 		if (quantity==100L)
 		{
-			db.getDB().delete(chippedTokens);
+			db.deleteItem(db.getDB(), chippedTokens);
 		}
 		else if (quantity>100L)
 		{
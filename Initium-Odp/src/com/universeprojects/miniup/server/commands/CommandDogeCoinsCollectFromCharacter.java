@@ -80,7 +80,8 @@ public class CommandDogeCoinsCollectFromCharacter extends TransactionCommand {
 		ds.put(character);
 		
 		MainPageUpdateService service = new MainPageUpdateService(db, db.getCurrentUser(), character, null, this);
-		service.updateMoney();
+		service.markChanged("Character", "dogecoins");
+		service.updateChangedPanels();
 		
 	}
 
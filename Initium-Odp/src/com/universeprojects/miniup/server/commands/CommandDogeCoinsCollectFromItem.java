@@ -71,7 +71,8 @@ public class CommandDogeCoinsCollectFromItem extends TransactionCommand {
 		ds.put(character);
 		
 		MainPageUpdateService service = new MainPageUpdateService(db,db.getCurrentUser(), character, null, this);
-		service.updateMoney();
+		service.markChanged("Character", "dogecoins");
+		service.updateChangedPanels();
 	}
 
 	@Override
@@ -75,7 +75,8 @@ public class CommandDogeCoinsDepositToItem extends TransactionCommand {
 		ds.put(item);
 		
 		MainPageUpdateService service = new MainPageUpdateService(db, db.getCurrentUser(), character, null, this);
-		service.updateMoney();		
+		service.markChanged("Character", "dogecoins");
+		service.updateChangedPanels();
 	}
 
 	@Override
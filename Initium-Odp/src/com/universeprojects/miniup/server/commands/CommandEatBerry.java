@@ -53,18 +53,18 @@ public class CommandEatBerry extends Command {
 					db.awardBuff_Sick(ds, character);
 				}
 			db.awardBuff_Candy(ds, character);
-			ds.delete(item);
+			db.deleteItem(ds, item);
 		}
 		else if("Strange Elixir".equals(item.getProperty("name"))==true){
 			if(db.awardBuff_Elixir(ds, character)==false)
 				throw new UserErrorMessage("Only one elixir buff can be active at a time");
-			ds.delete(item);
+			db.deleteItem(ds, item);
 			return;
 		}
 		else if ("Mysterious Berry".equals(item.getProperty("name"))==true){
 			if(db.awardBuff_Berry(ds,character)==false)
 				throw new UserErrorMessage("Only one berry buff can be active at a time.");
-			ds.delete(item);
+			db.deleteItem(ds, item);
 			return;
 		}
 		else throw new UserErrorMessage("Why would you even try to eat that?");
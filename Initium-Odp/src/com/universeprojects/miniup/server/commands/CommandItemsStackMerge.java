@@ -95,7 +95,7 @@ public class CommandItemsStackMerge extends CommandItemsBase {
 				ds.put(updateEntity);
 			}
 			for (CachedEntity deleteEntity : needsDelete) {
-				ds.delete(deleteEntity);
+				db.deleteItem(ds, deleteEntity);
 			}
 			
 			ds.commit();
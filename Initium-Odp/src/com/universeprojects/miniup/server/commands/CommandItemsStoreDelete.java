@@ -15,6 +15,7 @@ import com.universeprojects.miniup.server.GameUtils;
 import com.universeprojects.miniup.server.HtmlComponents;
 import com.universeprojects.miniup.server.ODPDBAccess;
 import com.universeprojects.miniup.server.commands.framework.UserErrorMessage;
+import com.universeprojects.miniup.server.services.ExchangeOrderBook;
 
 /**
  * Extension of the CommandsItemBase abstract class.
@@ -64,6 +65,7 @@ public class CommandItemsStoreDelete extends CommandItemsBase {
 				continue;
 			
 			ds.delete(storeItem.getKey());
+			ExchangeOrderBook.removed(db.getMC(), storeItem);
 			if ("Sold".equals(storeItem.getProperty("status"))==false && storeToItemsMap.containsKey(storeItem))
 			{
 				CachedEntity item = storeToItemsMap.get(storeItem);
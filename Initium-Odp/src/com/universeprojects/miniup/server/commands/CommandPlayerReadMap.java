@@ -63,7 +63,7 @@ public class CommandPlayerReadMap extends Command {
 			}
 			else
 			{
-				ds.delete(item);
+				db.deleteItem(ds, item);
 			}
 			setJavascriptResponse(JavascriptResponse.ReloadPagePopup);
 		}
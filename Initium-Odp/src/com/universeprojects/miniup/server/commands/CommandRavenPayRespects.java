@@ -10,6 +10,7 @@ import javax.servlet.http.HttpServletResponse;
 import com.universeprojects.cacheddatastore.CachedDatastoreService;
 import com.universeprojects.cacheddatastore.CachedEntity;
 import com.google.appengine.api.datastore.Key;
+import com.universeprojects.miniup.server.GameRandom;
 import com.universeprojects.miniup.server.ODPDBAccess;
 import com.universeprojects.miniup.server.commands.framework.Command;
 import com.universeprojects.miniup.server.commands.framework.UserErrorMessage;
@@ -122,7 +123,7 @@ public class CommandRavenPayRespects extends Command {
 		}
 		
 		// all previous triggers failed, set buff effect
-		Random rnd = new Random();
+		Random rnd = GameRandom.get();
 		int stat = rnd.nextInt(3);
 		switch (stat) {
 		case 0:
@@ -160,7 +160,12 @@ public abstract class CommandScriptBase extends Command {
 					for(CachedEntity saveEntity:event.getSaveEntities())
 						ds.put(saveEntity);
 					for(CachedEntity delEntity:event.getDeleteEntities())
-						ds.delete(delEntity);
+					{
+						if (delEntity.getKind().equals("Item"))
+							db.deleteItem(ds, delEntity);
+						else
+							ds.delete(delEntity);
+					}
 					
 					ds.commitBulkWrite();
 					
@@ -58,7 +58,7 @@ public class CommandSplitPremiumToken extends TransactionCommand
 		chippedToken.setProperty("movedTimestamp", new Date());
 		chippedToken.setPropertyManually("premiumTokenType", "Chipped Token");
 		
-		db.getDB().delete(premiumMembershipToken);
+		db.deleteItem(db.getDB(), premiumMembershipToken);
 		db.getDB().put(chippedToken);
 		
 		setPopupMessage("A Premium Membership Token was split up into a single stack of 100 Chipped Tokens.");
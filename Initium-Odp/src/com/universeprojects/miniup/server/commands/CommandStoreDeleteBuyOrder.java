@@ -13,6 +13,7 @@ import com.universeprojects.miniup.server.GameUtils;
 import com.universeprojects.miniup.server.ODPDBAccess;
 import com.universeprojects.miniup.server.commands.framework.Command;
 import com.universeprojects.miniup.server.commands.framework.UserErrorMessage;
+import com.universeprojects.miniup.server.services.ExchangeOrderBook;
 /** 
  * 
  * Delete an item from store interface.
@@ -46,6 +47,7 @@ public class CommandStoreDeleteBuyOrder extends Command {
 			throw new UserErrorMessage("The buy order this user is trying to delete does not belong to his character.");
 		
 		ds.delete(buyOrder.getKey());
+		ExchangeOrderBook.removed(db.getMC(), buyOrder);
 
 		deleteHtml(".buyOrder[ref="+buyOrderId+"]");
 	}
@@ -14,6 +14,7 @@ import com.universeprojects.miniup.server.HtmlComponents;
 import com.universeprojects.miniup.server.ODPDBAccess;
 import com.universeprojects.miniup.server.commands.framework.Command;
 import com.universeprojects.miniup.server.commands.framework.UserErrorMessage;
+import com.universeprojects.miniup.server.services.ExchangeOrderBook;
 /** 
  * 
  * Delete an item from store interface.
@@ -50,6 +51,7 @@ public class CommandStoreDeleteItem extends Command {
 			throw new UserErrorMessage("The SaleItem this user is trying to delete does not belong to his character.");
 		
 		ds.delete(saleItem.getKey());
+		ExchangeOrderBook.removed(db.getMC(), saleItem);
 		
 		if ("Sold".equals(saleItem.getProperty("status"))==false)
 			addCallbackData("createInvItem", HtmlComponents.generateInvItemHtml(item));
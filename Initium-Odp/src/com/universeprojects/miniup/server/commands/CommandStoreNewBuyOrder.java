@@ -2,6 +2,7 @@ package com.universeprojects.miniup.server.commands;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 
@@ -15,6 +16,7 @@ import com.universeprojects.miniup.server.HtmlComponents;
 import com.universeprojects.miniup.server.ODPDBAccess;
 import com.universeprojects.miniup.server.commands.framework.Command;
 import com.universeprojects.miniup.server.commands.framework.UserErrorMessage;
+import com.universeprojects.miniup.server.services.ExchangeOrderBook;
 /** 
  * 
  * Sell an Item!
@@ -43,7 +45,7 @@ public class CommandStoreNewBuyOrder extends Command {
 		if (value<0)
 			throw new UserErrorMessage("You cannot buy items for less than 0 gold.");
 		
-		ODPDBAccess db = getDB();
+		final ODPDBAccess db = getDB();
 
 		List<CachedEntity> sample = query.getFilteredList("Item", 1, "name", FilterOperator.EQUAL, itemName);
 		if (sample==null || sample.isEmpty())
@@ -55,7 +57,7 @@ public class CommandStoreNewBuyOrder extends Command {
 		List<List<String>> fieldFilters = new ArrayList<>();
 		fieldFilters.add(Arrays.asList(new String[]{"name=="+itemName}));
 		
-		CachedEntity buyOrder = new CachedEntity("BuyItem");
+		final CachedEntity buyOrder = new CachedEntity("BuyItem");
 		buyOrder.setProperty("name", itemName);
 		buyOrder.setProperty("characterKey", db.getCurrentCharacterKey());
 		db.setValue_FieldTypeFieldFilter2DCollection(buyOrder, "fieldFilters", fieldFilters);
@@ -67,17 +69,28 @@ public class CommandStoreNewBuyOrder extends Command {
 		if ("Initium Premium Membership".equals(itemName))
 		{
 			setPopupMessage("This buy order has been listed on the global exchange for premium tokens.");
-			buyOrder.setProperty("specialId", "premiumToken");
+			buyOrder.setProperty("specialId", ExchangeOrderBook.BUY_PREMIUM_TOKEN);
+			buyOrder.setProperty("createdDate", new Date());
 		}
 		
 		// This is a special case
 		if ("Chipped Token".equals(itemName))
 		{
 			setPopupMessage("This buy order been listed on the global exchange for premium tokens.");
-			buyOrder.setProperty("specialId", "chippedToken");
+			buyOrder.setProperty("specialId", ExchangeOrderBook.BUY_CHIPPED_TOKEN);
+			buyOrder.setProperty("createdDate", new Date());
 		}
 		
 		ds.put(buyOrder);
+		// The put hook only sees the new buy order before it has a key
+		db.runAfterCommit(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				ExchangeOrderBook.written(db.getMC(), buyOrder);
+			}
+		});
 		
 		addCallbackData("createBuyOrder", HtmlComponents.generateManageStoreBuyOrderHtml(db, buyOrder, request));
 	}
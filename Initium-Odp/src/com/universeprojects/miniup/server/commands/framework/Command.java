@@ -11,6 +11,7 @@ import javax.servlet.http.HttpServletResponse;
 import com.universeprojects.cacheddatastore.CachedDatastoreService;
 import com.universeprojects.cacheddatastore.CachedEntity;
 import com.universeprojects.cacheddatastore.QueryHelper;
+import com.universeprojects.miniup.server.GameRandom;
 import com.universeprojects.miniup.server.ODPDBAccess;
 import com.universeprojects.miniup.server.OperationBase;
 import com.universeprojects.miniup.server.UserRequestIncompleteException;
@@ -41,6 +42,8 @@ public abstract class Command extends OperationBase
 		this.db = db;
 		this.ds = db.getDB();
 		this.query = new QueryHelper(ds);
+		
+		GameRandom.beginOperation(getClass().getSimpleName(), db);
 	}
 	
 	protected ODPDBAccess getDB()
@@ -2,25 +2,22 @@ package com.universeprojects.miniup.server.controllers;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.memcache.MemcacheService;
 import com.universeprojects.cacheddatastore.CachedDatastoreService;
 import com.universeprojects.cacheddatastore.CachedEntity;
 import com.universeprojects.cacheddatastore.EntityPool;
-import com.universeprojects.cacheddatastore.QueryHelper;
 import com.universeprojects.miniup.CommonChecks;
 import com.universeprojects.miniup.server.GameUtils;
 import com.universeprojects.miniup.server.HtmlComponents;
 import com.universeprojects.miniup.server.ODPDBAccess;
+import com.universeprojects.miniup.server.services.ExchangeOrderBook;
 import com.universeprojects.web.Controller;
 import com.universeprojects.web.PageController;
 
@@ -42,96 +39,67 @@ public class ExchangeController extends PageController {
 	    CachedEntity character = db.getCurrentCharacter(); 
 	    
 	    CachedDatastoreService ds = db.getDB();
-	    QueryHelper query = new QueryHelper(ds);
+	    MemcacheService mc = db.getMC();
 
-	    List<CachedEntity> buyOrdersPT = query.getFilteredList("BuyItem", 
-	    		"specialId", "premiumToken");	    
-	    
-	    List<CachedEntity> buyOrdersCT = query.getFilteredList("BuyItem", 
-	    		"specialId", "chippedToken");	    
-	    
-	    List<CachedEntity> saleItems = query.getFilteredList("SaleItem", 
-	    		"specialId", "Initium Premium Membership",
-	    		"status", "Selling");
+	    // The listings come from the order book already in price-time order, so there is nothing to query or sort here
+	    List<ExchangeOrderBook.Entry> asks = ExchangeOrderBook.getAsks(db);
+	    List<ExchangeOrderBook.Entry> buyOrdersPT = ExchangeOrderBook.getBids(db, ExchangeOrderBook.BUY_PREMIUM_TOKEN);
+	    List<ExchangeOrderBook.Entry> buyOrdersCT = ExchangeOrderBook.getBids(db, ExchangeOrderBook.BUY_CHIPPED_TOKEN);
 
-	    // First go through each sale item and extract the item keys for each
-	    List<Key> itemKeys = new ArrayList<Key>();
-	    List<Key> sellingCharacterKeys = new ArrayList<Key>();
-	    for(CachedEntity saleItem:saleItems)
-	    {
-	    	itemKeys.add((Key)saleItem.getProperty("itemKey"));
-	    	sellingCharacterKeys.add((Key)saleItem.getProperty("characterKey"));
-	    }
-	    
-	    for(CachedEntity buyOrder:buyOrdersPT)
-	    	sellingCharacterKeys.add((Key)buyOrder.getProperty("characterKey"));
-	    
-	    for(CachedEntity buyOrder:buyOrdersCT)
-	    	sellingCharacterKeys.add((Key)buyOrder.getProperty("characterKey"));
-	    
-	    
-	    
-	    // Now batch get all the characters that sell these things
+	    // Batch get the listings, the items being sold and all the characters involved
 	    EntityPool pool = new EntityPool(ds);
-	    pool.addToQueue(sellingCharacterKeys);
-	    pool.addToQueue(itemKeys);
+	    for(ExchangeOrderBook.Entry entry:asks)
+	    	pool.addToQueue(entry.getKey(), entry.getItemKey(), entry.getCharacterKey());
+	    for(ExchangeOrderBook.Entry entry:buyOrdersPT)
+	    	pool.addToQueue(entry.getKey(), entry.getCharacterKey());
+	    for(ExchangeOrderBook.Entry entry:buyOrdersCT)
+	    	pool.addToQueue(entry.getKey(), entry.getCharacterKey());
 	    
 	    pool.loadEntities();
 	    
-	    List<CachedEntity> items = pool.get(itemKeys);
-
-	    // Now fetch the full item list (they will come back in the same order which we definitely want to take advantage of)
-	    Map<CachedEntity, CachedEntity> itemToSaleItemMap = new HashMap<CachedEntity, CachedEntity>();
+	    // Listings that turn out to be invalid are deleted all together once the page is built
+	    List<Key> staleKeys = new ArrayList<Key>();
 	    
+	    List<String> formattedPremiumTokens = new ArrayList<String>();
+	    List<String> formattedChippedTokens = new ArrayList<String>();
 	    
-	    // Now go through the sale items and remove any saleItems (and item) that are invalid or hidden
-	    for(int i = saleItems.size()-1; i>=0; i--)
+	    for(ExchangeOrderBook.Entry entry:asks)
 	    {
-	    	CachedEntity saleItem = saleItems.get(i);
-			CachedEntity item = pool.get((Key)saleItem.getProperty("itemKey"));
-	    	CachedEntity sellingCharacter = pool.get((Key)saleItem.getProperty("characterKey"));	
+	    	CachedEntity saleItem = pool.get(entry.getKey());
+			CachedEntity item = pool.get(entry.getItemKey());
+	    	CachedEntity sellingCharacter = pool.get(entry.getCharacterKey());
+	    	
+	    	// The sale item was deleted without the order book hearing about it
+	    	if (saleItem==null)
+	    	{
+	    		ExchangeOrderBook.removed(mc, entry.getKey());
+	    		continue;
+	    	}
+	    	
+	    	// The sale item was sold (or taken off sale) since the book was built, it's a record now so it must not be deleted
+	    	if ("Selling".equals(saleItem.getProperty("status"))==false)
+	    	{
+	    		ExchangeOrderBook.removed(mc, entry.getKey());
+	    		continue;
+	    	}
 	        
 	        // If the item being sold was not found in the database, then we'll delete the sale item while we're at it
 	        // OR
 	        // If the item isn't in the seller's inventory AND the item is not sold, then lets delete the sellItem
-	        if (item==null || GameUtils.equals(item.getProperty("containerKey"), sellingCharacter.getKey())==false)
+	        if (item==null || sellingCharacter==null || GameUtils.equals(item.getProperty("containerKey"), sellingCharacter.getKey())==false)
 	        {
-	            ds.delete(saleItem);
-	            saleItems.remove(i);
-	            items.remove(i);
+	        	staleKeys.add(saleItem.getKey());
 	            continue;
 	        }
 	        
 			// If the character isn't currently vending, then don't sell
 			if (ODPDBAccess.CHARACTER_MODE_MERCHANT.equals(sellingCharacter.getProperty("mode"))==false)
-			{
-				saleItems.remove(i);
-				items.remove(i);
 				continue;
-			}
-	        
-	        
-	        // These are only used for the sorting method db.sortSaleItemList()
-	        item.setProperty("store-dogecoins", saleItem.getProperty("dogecoins"));
-	        item.setProperty("store-status", saleItem.getProperty("status"));
-	        item.setProperty("store-saleItemKey", saleItem.getKey());
 	        
-	        // Also add the item to the map we're going to use
-	        itemToSaleItemMap.put(item, saleItem);
-	    }
-	    items = db.sortSaleItemList(items);
-	    
-	    List<String> formattedPremiumTokens = new ArrayList<String>();
-	    List<String> formattedChippedTokens = new ArrayList<String>();
-	    
-	    for(CachedEntity item:items)
-        {
-        	CachedEntity saleItem = itemToSaleItemMap.get(item);
         	if (CommonChecks.checkItemIsPremiumToken(item))
-        		formattedPremiumTokens.add(HtmlComponents.generateStoreItemHtml(db,character, pool.get((Key)saleItem.getProperty("characterKey")),item,saleItem,request));
+        		formattedPremiumTokens.add(HtmlComponents.generateStoreItemHtml(db,character,sellingCharacter,item,saleItem,request));
         	else if (CommonChecks.checkItemIsChippedToken(item))
-        		formattedChippedTokens.add(HtmlComponents.generateStoreItemHtml(db,character, pool.get((Key)saleItem.getProperty("characterKey")),item,saleItem,request));
-        		
+        		formattedChippedTokens.add(HtmlComponents.generateStoreItemHtml(db,character,sellingCharacter,item,saleItem,request));
         }
 	    
 	    request.setAttribute("premiumTokens", formattedPremiumTokens);
@@ -142,70 +110,52 @@ public class ExchangeController extends PageController {
 	    
 	    
 	    // Do buy orders now...
-
-	    sortBuyOrders(buyOrdersPT);
-	    sortBuyOrders(buyOrdersCT);
 	    
-	    List<String> formattedPremiumTokenBuyOrders = new ArrayList<>();
-	    List<String> formattedChippedTokenBuyOrders = new ArrayList<>();
+	    request.setAttribute("premiumTokenBuyOrders", formatBuyOrders(db, request, pool, buyOrdersPT, staleKeys));
+	    request.setAttribute("chippedTokenBuyOrders", formatBuyOrders(db, request, pool, buyOrdersCT, staleKeys));
 	    
-	    for(int i = 0; i<buyOrdersPT.size(); i++)
-	    {
-	    	CachedEntity sellingCharacter = pool.get((Key)buyOrdersPT.get(i).getProperty("characterKey"));	
-	        
-	    	// If the character died and his buy order is still around, delete the buy order
-	    	if (sellingCharacter==null)
-	    	{
-	    		ds.delete(buyOrdersPT.get(i));
-	    		continue;
-	    	}
-	    	
-			// If the character isn't currently vending, then don't sell
-			if (ODPDBAccess.CHARACTER_MODE_MERCHANT.equals(sellingCharacter.getProperty("mode"))==false)
-				continue;
-	    	
-	    	formattedPremiumTokenBuyOrders.add(HtmlComponents.generateBuyOrderHtml(db, buyOrdersPT.get(i), request));
-	    }
 	    
-	    for(int i = 0; i<buyOrdersCT.size(); i++)
+	    if (staleKeys.isEmpty()==false)
 	    {
-	    	CachedEntity sellingCharacter = pool.get((Key)buyOrdersCT.get(i).getProperty("characterKey"));	
-	        
-	    	// If the character died and his buy order is still around, delete the buy order
-	    	if (sellingCharacter==null)
-	    	{
-	    		ds.delete(buyOrdersPT.get(i));
-	    		continue;
-	    	}
-	    	
-			// If the character isn't currently vending, then don't sell
-			if (ODPDBAccess.CHARACTER_MODE_MERCHANT.equals(sellingCharacter.getProperty("mode"))==false)
-				continue;
-			
-	    	formattedChippedTokenBuyOrders.add(HtmlComponents.generateBuyOrderHtml(db, buyOrdersCT.get(i), request));
+	    	ds.delete(staleKeys);
+	    	for(Key key:staleKeys)
+	    		ExchangeOrderBook.removed(mc, key);
 	    }
 	    
 	    
-	    request.setAttribute("premiumTokenBuyOrders", formattedPremiumTokenBuyOrders);
-	    request.setAttribute("chippedTokenBuyOrders", formattedChippedTokenBuyOrders);
-	    
-	    
 	    return "/WEB-INF/odppages/ajax_exchange.jsp";
 	}
 	
 	
-	private void sortBuyOrders(List<CachedEntity> list)
+	private List<String> formatBuyOrders(ODPDBAccess db, HttpServletRequest request, EntityPool pool, List<ExchangeOrderBook.Entry> buyOrders, List<Key> staleKeys)
 	{
-		Collections.sort(list, new Comparator<CachedEntity>(){
-
-			@Override
-			public int compare(CachedEntity o1, CachedEntity o2)
+		List<String> formatted = new ArrayList<>();
+		
+		for(ExchangeOrderBook.Entry entry:buyOrders)
+		{
+			CachedEntity buyOrder = pool.get(entry.getKey());
+			if (buyOrder==null)
+			{
+				ExchangeOrderBook.removed(db.getMC(), entry.getKey());
+				continue;
+			}
+			
+			CachedEntity sellingCharacter = pool.get(entry.getCharacterKey());
+			
+			// If the character died and his buy order is still around, delete the buy order
+			if (sellingCharacter==null)
 			{
-				return ((Long)o1.getProperty("value")).compareTo(((Long)o2.getProperty("value")));
+				staleKeys.add(buyOrder.getKey());
+				continue;
 			}
 			
-		});
+			// If the character isn't currently vending, then don't sell
+			if (ODPDBAccess.CHARACTER_MODE_MERCHANT.equals(sellingCharacter.getProperty("mode"))==false)
+				continue;
+			
+			formatted.add(HtmlComponents.generateBuyOrderHtml(db, buyOrder, request));
+		}
 		
-		Collections.reverse(list);
+		return formatted;
 	}
 }
@@ -0,0 +1,85 @@
+package com.universeprojects.miniup.server.dao;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.universeprojects.cacheddatastore.CachedEntity;
+import com.universeprojects.miniup.server.domain.OdpDomain;
+import com.universeprojects.miniup.server.exceptions.DaoException;
+
+/**
+ * Registry of the factory for each OdpDomain class. A domain class can register its own factory, otherwise
+ * its static wrap(CachedEntity) method is looked up the first time the class is needed and the resulting
+ * factory is kept for the lifetime of the instance. Converting an entity never looks anything up again.
+ */
+public final class DomainFactories {
+
+	/** Method that should be on every OdpDomain class that will be called to create OdpDomain objects from CachedEntities */
+	private static final String WRAP_METHOD = "wrap";
+
+	private static final ConcurrentMap<Class<?>, DomainFactory<?>> factories = new ConcurrentHashMap<>();
+
+	private DomainFactories() {
+	}
+
+	/**
+	 * Registers the factory to use for a domain class, instead of the one calling its wrap method.
+	 * 
+	 * @param odpDomainClass
+	 * @param factory
+	 */
+	public static <T extends OdpDomain> void register(Class<T> odpDomainClass, DomainFactory<T> factory) {
+		assert odpDomainClass != null && factory != null : "Cannot register a null domain class or factory";
+		factories.put(odpDomainClass, factory);
+	}
+
+	/**
+	 * Gets the factory of a domain class, resolving it the first time.
+	 * 
+	 * @param odpDomainClass
+	 * @return
+	 * @throws DaoException - If the domain class doesn't have a usable wrap method
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T extends OdpDomain> DomainFactory<T> get(Class<T> odpDomainClass) throws DaoException {
+		DomainFactory<T> factory = (DomainFactory<T>) factories.get(odpDomainClass);
+		if (factory == null) {
+			factory = resolve(odpDomainClass);
+			DomainFactory<T> existing = (DomainFactory<T>) factories.putIfAbsent(odpDomainClass, factory);
+			if (existing != null) {
+				factory = existing;
+			}
+		}
+		return factory;
+	}
+
+	private static <T extends OdpDomain> DomainFactory<T> resolve(final Class<T> odpDomainClass) throws DaoException {
+		final Method wrapMethod;
+		try {
+			wrapMethod = odpDomainClass.getDeclaredMethod(WRAP_METHOD, CachedEntity.class);
+			if (!Modifier.isStatic(wrapMethod.getModifiers()) || !odpDomainClass.isAssignableFrom(wrapMethod.getReturnType())) {
+				throw new DaoException(String.format("%s is set up incorrectly", odpDomainClass.getName()));
+			}
+			// Skips the access check on every call
+			wrapMethod.setAccessible(true);
+		} catch (NoSuchMethodException e) {
+			throw new DaoException(String.format("%s is set up incorrectly", odpDomainClass.getName()), e);
+		} catch (SecurityException e) {
+			throw new DaoException(String.format("Unable to access declared method %s", WRAP_METHOD), e);
+		}
+
+		return new DomainFactory<T>() {
+			@Override
+			public T wrap(CachedEntity cachedEntity) {
+				try {
+					return odpDomainClass.cast(wrapMethod.invoke(null, cachedEntity));
+				} catch (InvocationTargetException | IllegalAccessException | IllegalArgumentException e) {
+					throw new DaoException(String.format("%s is set up incorrectly", odpDomainClass.getName()), e);
+				}
+			}
+		};
+	}
+}
@@ -0,0 +1,19 @@
+package com.universeprojects.miniup.server.dao;
+
+import com.universeprojects.cacheddatastore.CachedEntity;
+import com.universeprojects.miniup.server.domain.OdpDomain;
+
+/**
+ * Creates OdpDomain objects of one type from CachedEntities, see {@link DomainFactories}.
+ * 
+ * @param <T> - An OdpDomain type
+ */
+public interface DomainFactory<T extends OdpDomain> {
+
+	/**
+	 * @param cachedEntity - Never null
+	 * @return
+	 */
+	T wrap(CachedEntity cachedEntity);
+
+}
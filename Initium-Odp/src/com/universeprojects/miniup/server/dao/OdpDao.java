@@ -1,6 +1,5 @@
 package com.universeprojects.miniup.server.dao;
 
-import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -25,15 +24,14 @@ public abstract class OdpDao<T extends OdpDomain> {
 	/** Maximum number of objects that should be returned from a findAll query. At the moment this cannot be overridden */
 	public static final int MAX_QUERY_RESULTS = 1000;
 
-	/** Method that should be on every OdpDomain instance that will be called to create OdpDomain objects from CachedEntities */
-	private static final String WRAP_METHOD = "wrap";
-
 	private final CachedDatastoreService datastore;
 
 	private final String kind;
 
 	private final Class<T> odpDomainClass;
 
+	private DomainFactory<T> domainFactory = null;
+
 	/**
 	 * Constructor that should be called for every implementing class.
 	 * 
@@ -85,6 +83,19 @@ public abstract class OdpDao<T extends OdpDomain> {
 		return this.odpDomainClass;
 	}
 
+	/**
+	 * Get the factory that creates the current DAO instance's OdpDomain objects, see {@link DomainFactories}.
+	 * 
+	 * @return
+	 * @throws DaoException - If the domain is set up incorrectly
+	 */
+	protected DomainFactory<T> getDomainFactory() throws DaoException {
+		if (this.domainFactory == null) {
+			this.domainFactory = DomainFactories.get(getOdpDomainClass());
+		}
+		return this.domainFactory;
+	}
+
 	/**
 	 * Builds a single OdpDomain class from a CachedEntity
 	 * 
@@ -92,22 +103,13 @@ public abstract class OdpDao<T extends OdpDomain> {
 	 * @return
 	 * @throws DaoException - If an exception occurs from a query or an incorrectly set up domain/DAO
 	 */
-	@SuppressWarnings("unchecked")
 	protected T buildDomain(CachedEntity cachedEntity) throws DaoException {
 		if (cachedEntity == null) {
 			getLogger().warning("Null entity found");
 			return null;
 		}
 
-		try {
-			Method declaredMethod = getOdpDomainClass().getDeclaredMethod(WRAP_METHOD, CachedEntity.class);
-			T odpDomainEntity = (T) declaredMethod.invoke(getOdpDomainClass(), cachedEntity);
-			return odpDomainEntity;
-		} catch (ReflectiveOperationException | IllegalArgumentException e) {
-			throw new DaoException(String.format("%s is set up incorrectly", getOdpDomainClass().getName()), e);
-		} catch (SecurityException e) {
-			throw new DaoException(String.format("Unable to access declared method %s", WRAP_METHOD), e);
-		}
+		return getDomainFactory().wrap(cachedEntity);
 	}
 
 	/**
@@ -122,12 +124,14 @@ public abstract class OdpDao<T extends OdpDomain> {
 			return Collections.emptyList();
 		}
 
-		List<T> odpDomainEntities = new ArrayList<>();
+		DomainFactory<T> factory = getDomainFactory();
+		List<T> odpDomainEntities = new ArrayList<>(cachedEntities.size());
 		for (CachedEntity entity : cachedEntities) {
-				T domainEntity = buildDomain(entity);
-				if (domainEntity != null) {
-					odpDomainEntities.add(domainEntity);
-				}
+			if (entity == null) {
+				getLogger().warning("Null entity found");
+				continue;
+			}
+			odpDomainEntities.add(factory.wrap(entity));
 		}
 		return odpDomainEntities;
 	}
@@ -18,9 +18,10 @@ import javax.servlet.http.HttpServletResponse;
 import com.google.appengine.api.datastore.Key;
 import com.universeprojects.cacheddatastore.CachedDatastoreService;
 import com.universeprojects.cacheddatastore.CachedEntity;
-import com.universeprojects.cacheddatastore.DBUtils;
 import com.universeprojects.json.shared.JSONObject;
+import com.universeprojects.json.shared.JSONStreamWriter;
 import com.universeprojects.miniup.server.Convert;
+import com.universeprojects.miniup.server.GameRandom;
 import com.universeprojects.miniup.server.GameUtils;
 import com.universeprojects.miniup.server.ODPDBAccess;
 import com.universeprojects.miniup.server.OperationBase;
@@ -50,6 +51,8 @@ public abstract class LongOperation extends OperationBase
 		if (db.getCurrentCharacter()==null)
 			throw new SecurityException("Not logged in.");
 		
+		GameRandom.beginOperation(getClass().getSimpleName(), db);
+		
 		Map<String, String> params = new HashMap<String, String>();
 		if (requestParameters!=null)
 			for(String key:requestParameters.keySet())
@@ -81,17 +84,16 @@ public abstract class LongOperation extends OperationBase
 		}
 	}
 	
-	@SuppressWarnings("unchecked")
 	public static Map<String,Object> getLongOperationData(ODPDBAccess db, CachedEntity longOperationDataEntity)
 	{
 		if (longOperationDataEntity==null) return null;
 		
-		String packedLongOperation = (String)longOperationDataEntity.getProperty("data");
-		if (packedLongOperation==null || packedLongOperation.equals("")) return null;
+		Object packedLongOperation = longOperationDataEntity.getProperty("data");
+		if (packedLongOperation==null) return null;
 		
 		try
 		{
-			return (Map<String,Object>)DBUtils.deserializeObjectFromString(packedLongOperation);
+			return LongOperationDataCodec.unpack(packedLongOperation);
 		}
 		catch (Exception e)
 		{
@@ -99,7 +101,6 @@ public abstract class LongOperation extends OperationBase
 		}
 	}
 	
-	@SuppressWarnings("unchecked")
 	public static Map<String,Object> getLongOperationData(ODPDBAccess db, Key characterKey)
 	{
 		return getLongOperationData(db, getLongOperationDataEntity(db, characterKey));
@@ -150,7 +151,7 @@ public abstract class LongOperation extends OperationBase
 		if (data==null)
 			longOperationDataEntity.setProperty("data", null);
 		else
-			longOperationDataEntity.setProperty("data", DBUtils.serializeObjectToString(data));
+			longOperationDataEntity.setProperty("data", LongOperationDataCodec.pack(data));
 		
 		Logger.getLogger(this.getClass().getSimpleName()).log(Level.WARNING, "Putting long operation: "+longOperationDataEntity.getKey());
 		db.getDB().put(longOperationDataEntity);
@@ -340,7 +341,7 @@ public abstract class LongOperation extends OperationBase
 			result.put("hasNewGameMessages", db.hasNewGameMessages());
 			result.put("error", e.getMessage());
 			result.put("cancelled", true);
-			out.print(result.toJSONString());
+			JSONStreamWriter.write(result, out);
 			out.flush();
 			out.close();
 			cancelLongOperations(db, db.getCurrentCharacterKey());
@@ -384,7 +385,7 @@ public abstract class LongOperation extends OperationBase
 			
 			response.setContentType("application/json");
 			PrintWriter out = response.getWriter();
-			out.print(result.toJSONString());
+			JSONStreamWriter.write(result, out);
 			out.flush();
 			out.close();
 			return;
@@ -394,7 +395,7 @@ public abstract class LongOperation extends OperationBase
 		
 		response.setContentType("application/json");
 		PrintWriter out = response.getWriter();
-		out.print(result.toJSONString());
+		JSONStreamWriter.write(result, out);
 		out.flush();
 		out.close();
 	}
@@ -404,7 +405,7 @@ public abstract class LongOperation extends OperationBase
 		PrintWriter out = response.getWriter();
 		JSONObject result = new JSONObject();
 		result.put("captcha", true);
-		out.print(result.toJSONString());
+		JSONStreamWriter.write(result, out);
 		out.flush();
 		out.close();
 	}
@@ -416,7 +417,7 @@ public abstract class LongOperation extends OperationBase
 		JSONObject result = new JSONObject();
 		result.put("message", message);
 		result.put("cancelled", true);
-		out.print(result.toJSONString());
+		JSONStreamWriter.write(result, out);
 		out.flush();
 		out.close();
 	}
@@ -428,7 +429,7 @@ public abstract class LongOperation extends OperationBase
 		if (message!=null)
 			result.put("error", message);
 		result.put("refresh", true);
-		out.print(result.toJSONString());
+		JSONStreamWriter.write(result, out);
 		out.flush();
 		out.close();
 	}
@@ -442,7 +443,7 @@ public abstract class LongOperation extends OperationBase
 		result.put("pagePopupTitle", e.pagePopupTitle);
 		result.put("urlParameters", e.urlParameters);
 		result.put("userRequestId", e.userRequestId);
-		out.print(result.toJSONString());
+		JSONStreamWriter.write(result, out);
 		out.flush();
 		out.close();
 	}
@@ -57,7 +57,7 @@ public class LongOperationCollectCollectable extends LongOperation {
 		
 		if ((Long)collectable.getProperty("collectionCount")<=0)
 		{
-			ds.delete(collectable);
+			db.deleteCollectable(ds, collectable);
 			throw new UserErrorMessage("Looks like there's nothing left to collect here.");
 		}
 		
@@ -122,7 +122,7 @@ public class LongOperationCollectCollectable extends LongOperation {
 		if (collectionCount<=0)
 		{
 			// Delete the collectable 
-			ds.delete(collectable);
+			db.deleteCollectable(ds, collectable);
 		}
 		else
 		{
@@ -0,0 +1,373 @@
+package com.universeprojects.miniup.server.longoperations;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.universeprojects.cacheddatastore.DBUtils;
+
+/**
+ * Packs and unpacks the state map of a LongOperation.
+ *
+ * The state is written in a small tagged binary format instead of Java object serialization.
+ * It supports the types long operations actually store: null, Boolean, Integer, Long, Double,
+ * Float, String, Date, Key and nested Lists, Sets and Maps of those. Anything else that is
+ * Serializable is still written, but with Java serialization for just that one value.
+ *
+ * The packed form is stored as a Blob. Long operations that were saved as a serialized String by
+ * the previous version are still read by {@link #unpack(Object)}.
+ */
+public class LongOperationDataCodec
+{
+	private static final int MAGIC = 0x4C;
+	private static final int VERSION = 1;
+
+	private static final int TAG_NULL = 0;
+	private static final int TAG_TRUE = 1;
+	private static final int TAG_FALSE = 2;
+	private static final int TAG_INTEGER = 3;
+	private static final int TAG_LONG = 4;
+	private static final int TAG_DOUBLE = 5;
+	private static final int TAG_FLOAT = 6;
+	private static final int TAG_STRING = 7;
+	private static final int TAG_DATE = 8;
+	private static final int TAG_KEY = 9;
+	private static final int TAG_LIST = 10;
+	private static final int TAG_MAP = 11;
+	private static final int TAG_SET = 12;
+	private static final int TAG_SERIALIZED = 13;
+
+	/**
+	 * Returns the value that should be stored in the LongOperation entity's "data" field.
+	 *
+	 * @param data
+	 * @return
+	 */
+	public static Blob pack(Map<String, Object> data)
+	{
+		if (data == null) return null;
+		return new Blob(encode(data));
+	}
+
+	/**
+	 * Reads the value of the LongOperation entity's "data" field, no matter which format it was
+	 * written with.
+	 *
+	 * @param packedData Either a Blob (current format) or a String (legacy serialized format)
+	 * @return
+	 * @throws IOException If the data is corrupt
+	 */
+	@SuppressWarnings("unchecked")
+	public static Map<String, Object> unpack(Object packedData) throws IOException
+	{
+		if (packedData == null) return null;
+
+		if (packedData instanceof Blob)
+			return decode(((Blob) packedData).getBytes());
+
+		String legacy = packedData.toString();
+		if (legacy.equals("")) return null;
+		try
+		{
+			return (Map<String, Object>) DBUtils.deserializeObjectFromString(legacy);
+		}
+		catch (Exception e)
+		{
+			throw new IOException("Unable to read legacy long operation data.", e);
+		}
+	}
+
+	public static byte[] encode(Map<String, Object> data)
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try
+		{
+			out.writeByte(MAGIC);
+			out.writeByte(VERSION);
+			writeValue(out, data);
+			out.flush();
+		}
+		catch (IOException e)
+		{
+			// We're writing to memory so this really shouldn't happen
+			throw new RuntimeException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	@SuppressWarnings("unchecked")
+	public static Map<String, Object> decode(byte[] data) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		if (in.readUnsignedByte() != MAGIC) throw new IOException("Not a packed long operation.");
+		int version = in.readUnsignedByte();
+		if (version != VERSION) throw new IOException("Unsupported long operation data version: " + version);
+
+		return (Map<String, Object>) readValue(in);
+	}
+
+	private static void writeValue(DataOutputStream out, Object value) throws IOException
+	{
+		if (value == null)
+		{
+			out.writeByte(TAG_NULL);
+		}
+		else if (value instanceof Boolean)
+		{
+			out.writeByte(((Boolean) value) ? TAG_TRUE : TAG_FALSE);
+		}
+		else if (value instanceof Integer)
+		{
+			out.writeByte(TAG_INTEGER);
+			writeVarLong(out, (Integer) value);
+		}
+		else if (value instanceof Long)
+		{
+			out.writeByte(TAG_LONG);
+			writeVarLong(out, (Long) value);
+		}
+		else if (value instanceof Double)
+		{
+			out.writeByte(TAG_DOUBLE);
+			out.writeDouble((Double) value);
+		}
+		else if (value instanceof Float)
+		{
+			out.writeByte(TAG_FLOAT);
+			out.writeFloat((Float) value);
+		}
+		else if (value instanceof String)
+		{
+			out.writeByte(TAG_STRING);
+			writeString(out, (String) value);
+		}
+		else if (value instanceof Date)
+		{
+			out.writeByte(TAG_DATE);
+			out.writeLong(((Date) value).getTime());
+		}
+		else if (value instanceof Key)
+		{
+			out.writeByte(TAG_KEY);
+			writeKey(out, (Key) value);
+		}
+		else if (value instanceof List)
+		{
+			out.writeByte(TAG_LIST);
+			writeCollection(out, (List<?>) value);
+		}
+		else if (value instanceof Set)
+		{
+			out.writeByte(TAG_SET);
+			writeCollection(out, (Set<?>) value);
+		}
+		else if (value instanceof Map)
+		{
+			out.writeByte(TAG_MAP);
+			Map<?, ?> map = (Map<?, ?>) value;
+			writeVarLong(out, map.size());
+			for (Map.Entry<?, ?> entry : map.entrySet())
+			{
+				writeValue(out, entry.getKey());
+				writeValue(out, entry.getValue());
+			}
+		}
+		else if (value instanceof Serializable)
+		{
+			out.writeByte(TAG_SERIALIZED);
+			ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+			ObjectOutputStream objOut = new ObjectOutputStream(serialized);
+			objOut.writeObject(value);
+			objOut.close();
+			writeVarLong(out, serialized.size());
+			serialized.writeTo(out);
+		}
+		else
+			throw new IllegalArgumentException("Long operation data cannot contain a " + value.getClass().getName());
+	}
+
+	private static Object readValue(DataInputStream in) throws IOException
+	{
+		int tag = in.readUnsignedByte();
+		switch (tag)
+		{
+			case TAG_NULL:
+				return null;
+			case TAG_TRUE:
+				return Boolean.TRUE;
+			case TAG_FALSE:
+				return Boolean.FALSE;
+			case TAG_INTEGER:
+				return (int) readVarLong(in);
+			case TAG_LONG:
+				return readVarLong(in);
+			case TAG_DOUBLE:
+				return in.readDouble();
+			case TAG_FLOAT:
+				return in.readFloat();
+			case TAG_STRING:
+				return readString(in);
+			case TAG_DATE:
+				return new Date(in.readLong());
+			case TAG_KEY:
+				return readKey(in);
+			case TAG_LIST:
+			{
+				int size = readSize(in);
+				List<Object> list = new ArrayList<Object>(size);
+				for (int i = 0; i < size; i++)
+					list.add(readValue(in));
+				return list;
+			}
+			case TAG_SET:
+			{
+				int size = readSize(in);
+				Set<Object> set = new LinkedHashSet<Object>();
+				for (int i = 0; i < size; i++)
+					set.add(readValue(in));
+				return set;
+			}
+			case TAG_MAP:
+			{
+				int size = readSize(in);
+				Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+				for (int i = 0; i < size; i++)
+				{
+					Object key = readValue(in);
+					map.put(key, readValue(in));
+				}
+				return map;
+			}
+			case TAG_SERIALIZED:
+			{
+				byte[] serialized = new byte[readSize(in)];
+				in.readFully(serialized);
+				ObjectInputStream objIn = new ObjectInputStream(new ByteArrayInputStream(serialized));
+				try
+				{
+					return objIn.readObject();
+				}
+				catch (ClassNotFoundException e)
+				{
+					throw new IOException(e);
+				}
+				finally
+				{
+					objIn.close();
+				}
+			}
+			default:
+				throw new IOException("Unknown long operation data tag: " + tag);
+		}
+	}
+
+	private static void writeCollection(DataOutputStream out, Collection<?> collection) throws IOException
+	{
+		writeVarLong(out, collection.size());
+		for (Object value : collection)
+			writeValue(out, value);
+	}
+
+	/**
+	 * Keys are written as kind and id (or name), preceded by their parent key if they have one.
+	 */
+	private static void writeKey(DataOutputStream out, Key key) throws IOException
+	{
+		Key parent = key.getParent();
+		out.writeBoolean(parent != null);
+		if (parent != null)
+			writeKey(out, parent);
+
+		writeString(out, key.getKind());
+		if (key.getName() != null)
+		{
+			out.writeBoolean(true);
+			writeString(out, key.getName());
+		}
+		else
+		{
+			out.writeBoolean(false);
+			writeVarLong(out, key.getId());
+		}
+	}
+
+	private static Key readKey(DataInputStream in) throws IOException
+	{
+		Key parent = null;
+		if (in.readBoolean())
+			parent = readKey(in);
+
+		String kind = readString(in);
+		if (in.readBoolean())
+			return KeyFactory.createKey(parent, kind, readString(in));
+		else
+			return KeyFactory.createKey(parent, kind, readVarLong(in));
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException
+	{
+		byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+		writeVarLong(out, utf8.length);
+		out.write(utf8);
+	}
+
+	private static String readString(DataInputStream in) throws IOException
+	{
+		byte[] utf8 = new byte[readSize(in)];
+		in.readFully(utf8);
+		return new String(utf8, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes a zig-zag encoded variable length long, so small numbers (positive or
+	 * negative) only take a byte or two.
+	 */
+	private static void writeVarLong(DataOutputStream out, long value) throws IOException
+	{
+		long zigZag = (value << 1) ^ (value >> 63);
+		while ((zigZag & ~0x7FL) != 0)
+		{
+			out.writeByte((int) ((zigZag & 0x7F) | 0x80));
+			zigZag >>>= 7;
+		}
+		out.writeByte((int) zigZag);
+	}
+
+	private static long readVarLong(DataInputStream in) throws IOException
+	{
+		long zigZag = 0;
+		for (int shift = 0; shift < 64; shift += 7)
+		{
+			int b = in.readUnsignedByte();
+			zigZag |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return (zigZag >>> 1) ^ -(zigZag & 1);
+		}
+		throw new IOException("Malformed variable length number.");
+	}
+
+	private static int readSize(DataInputStream in) throws IOException
+	{
+		long size = readVarLong(in);
+		if (size < 0 || size > Integer.MAX_VALUE) throw new IOException("Invalid size: " + size);
+		return (int) size;
+	}
+}
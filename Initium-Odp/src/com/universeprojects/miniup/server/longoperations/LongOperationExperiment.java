@@ -4,12 +4,12 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.universeprojects.cacheddatastore.CachedEntity;
 import com.universeprojects.cacheddatastore.EntityPool;
+import com.universeprojects.miniup.server.GameRandom;
 import com.universeprojects.miniup.server.ODPDBAccess;
 import com.universeprojects.miniup.server.commands.framework.UserErrorMessage;
 import com.universeprojects.miniup.server.services.ODPInventionService;
@@ -80,13 +80,13 @@ public class LongOperationExperiment extends LongOperation
 		List<Key> selectedItems = (List<Key>)getDataProperty("selectedItems");
 		if (selectedItems==null)
 			selectedItems = inventionService.getAvailableItemKeys();
-		Collections.shuffle(selectedItems);
+		Collections.shuffle(selectedItems, GameRandom.get());
 		pool.loadEntities(selectedItems);
 		
 		// Gain some experience with one of the items available
 		for(Key itemKey:selectedItems)
 		{
-			if (knowledgeService.increaseKnowledgeFor(pool.get(itemKey), new Random().nextInt(2)+1, 10))
+			if (knowledgeService.increaseKnowledgeFor(pool.get(itemKey), GameRandom.get().nextInt(2)+1, 10))
 			{
 				message = "You've gained some experience with the "+pool.get(itemKey).getProperty("name")+".";
 				break;
@@ -1,10 +1,7 @@
 package com.universeprojects.miniup.server.longoperations;
 
-import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 import com.google.appengine.api.datastore.Key;
 import com.universeprojects.cacheddatastore.CachedDatastoreService;
@@ -13,6 +10,7 @@ import com.universeprojects.miniup.server.GameUtils;
 import com.universeprojects.miniup.server.ODPDBAccess;
 import com.universeprojects.miniup.server.commands.framework.UserErrorMessage;
 import com.universeprojects.miniup.server.services.CombatService;
+import com.universeprojects.miniup.server.services.ExploreSnapshot;
 import com.universeprojects.miniup.server.services.MainPageUpdateService;
 
 public class LongOperationExplore extends LongOperation {
@@ -49,6 +47,9 @@ public class LongOperationExplore extends LongOperation {
 		setDataProperty("ignoreCombatSites", ignoreCombatSites);
 		setDataProperty("locationName", location.getProperty("name"));
 		
+		// Snapshot what can be discovered here now, the explore and its continuations reuse it
+		ExploreSnapshot.get(db, this, db.getCurrentCharacter(), ignoreCombatSites);
+		
 		return 6;
 	}
 
@@ -121,30 +122,6 @@ public class LongOperationExplore extends LongOperation {
 			Key locationKey = (Key)db.getCurrentCharacter().getProperty("locationKey");
 			CachedEntity location = db.getEntity(locationKey);
 			
-			// First get all the things that can be discovered at the character's current location
-			List<CachedEntity> discoverablePaths_PermanentOnly = db.getPathsByLocation_PermanentOnly(locationKey);
-			Collections.shuffle(discoverablePaths_PermanentOnly);
-			
-			List<CachedEntity> discoverablePaths_CampsAndBlockades = db.getPathsByLocationAndType(locationKey, "CampSite");
-			List<CachedEntity> discoverablePaths_BlockadesOnly = db.getPathsByLocationAndType(locationKey, "BlockadeSite");
-			discoverablePaths_CampsAndBlockades.addAll(discoverablePaths_BlockadesOnly);
-			Collections.shuffle(discoverablePaths_CampsAndBlockades);
-			
-			// Only when we're not ignoring old sites, otherwise don't get the paths.
-			List<CachedEntity> discoverablePaths = null;
-			if(ignoreCombatSites==false)
-			{
-				discoverablePaths = db.getPathsByLocation(locationKey);
-				Collections.shuffle(discoverablePaths);
-			}
-			
-			// And get all the things the character has discovered...
-			List<CachedEntity> discoveries = db.getDiscoveriesForCharacterAndLocation(db.getCurrentCharacter().getKey(), locationKey, true);
-			Set<String> discoveredEntities = new HashSet<String>();
-			for(CachedEntity disco:discoveries)
-				if(disco != null)
-					discoveredEntities.add(((Key)disco.getProperty("entityKey")).toString());
-			
 	//		Logger.getLogger("ServletCharacterControl").log(Level.WARNING, 
 	//				"Discoverable path count (no combat sites): "+discoverablePaths_PermanentOnly.size()+
 	//				" Discoverable path count (combat sites included): "+discoverablePaths.size()+
@@ -162,14 +139,20 @@ public class LongOperationExplore extends LongOperation {
 					return "You're being attacked!"; 
 				}
 				
+				// Now get all the things that can be discovered at the character's current location. Only what the
+				// character hasn't discovered yet is in the snapshot, it is reused by the continuations of this explore
+				ExploreSnapshot snapshot = ExploreSnapshot.get(db, this, db.getCurrentCharacter(), ignoreCombatSites);
+				snapshot.fetchPaths(db);
+				List<CachedEntity> discoverablePaths_CampsAndBlockades = snapshot.getCampPaths();
+				List<CachedEntity> discoverablePaths_PermanentOnly = snapshot.getPermanentPaths();
+				List<CachedEntity> discoverablePaths_CombatSites = snapshot.getCombatSitePaths();
+				
 				// Now try to discover campsites...
 				for(CachedEntity path:discoverablePaths_CampsAndBlockades)
 				{
 					Double discoveryChance = (Double)path.getProperty("discoveryChance");
 					if (discoveryChance!=null && discoveryChance==100d)
 						continue;
-					if (discoveredEntities.contains(path.getKey().toString()))
-						continue;
 					if (discoveryChance!=null && discoveryChance>0 && GameUtils.roll(discoveryChance))
 					{
 						Key destinationKey = GameUtils.equals(path.getProperty("location1Key"), locationKey) ? 
@@ -177,7 +160,7 @@ public class LongOperationExplore extends LongOperation {
 						// Now check if the path is valid. If the "other" location doesn't exist, just delete the path right away
 						if (ds.getIfExists(destinationKey)==null)
 						{
-							ds.delete(path);
+							db.deletePath(ds, path);
 							continue;
 						}
 							
@@ -209,9 +192,6 @@ public class LongOperationExplore extends LongOperation {
 						ds.put(path);
 					}
 					
-					if (discoveredEntities.contains(path.getKey().toString()))
-						continue;
-					
 					Double discoveryChance = (Double)path.getProperty("discoveryChance");
 					if (discoveryChance!=null && discoveryChance==100d)
 						continue;
@@ -234,7 +214,7 @@ public class LongOperationExplore extends LongOperation {
 						// Now check if the path is valid. If the "other" location doesn't exist, just delete the path right away
 						if (ds.getIfExists(destinationKey)==null)
 						{
-							ds.delete(path);
+							db.deletePath(ds, path);
 							continue;
 						}
 							
@@ -244,21 +224,14 @@ public class LongOperationExplore extends LongOperation {
 				}
 				
 				// Now discover combat sites
-				if (ignoreCombatSites==false)
-				for(CachedEntity path:discoverablePaths)
+				for(CachedEntity path:discoverablePaths_CombatSites)
 				{
-					if ("CombatSite".equals(path.getProperty("type"))==false)
-						continue;
-					
 					if (path.getProperty("discoveryChance") instanceof Long)
 					{
 						path.setProperty("discoveryChance", ((Long)path.getProperty("discoveryChance")).doubleValue());
 						ds.put(path);
 					}
 					
-					if (discoveredEntities.contains(path.getKey().toString()))
-						continue;
-					
 					Double discoveryChance = (Double)path.getProperty("discoveryChance");
 					if (discoveryChance!=null && discoveryChance==100d)
 						continue;
@@ -271,7 +244,7 @@ public class LongOperationExplore extends LongOperation {
 						// Now check if the path is valid. If the "other" location doesn't exist, just delete the path right away
 						if (ds.getIfExists(destinationKey)==null)
 						{
-							ds.delete(path);
+							db.deletePath(ds, path);
 							continue;
 						}
 							
@@ -47,15 +47,30 @@ public class LongOperationTakePath extends LongOperation {
 	@Override
 	int doBegin(Map<String, String> parameters) throws UserErrorMessage
 	{
-		CombatService combatService = new CombatService(db);
-		
 		boolean allowAttack = false;
 		if ("true".equals(parameters.get("attack")))
 			allowAttack=true;
+		
+		return beginPath(Long.parseLong(parameters.get("pathId")), allowAttack);
+	}
+	
+	/**
+	 * Runs all the checks for taking the given path from where the character is now and stores the path
+	 * in the operation's data.
+	 * 
+	 * @param pathId
+	 * @param allowAttack
+	 * @return The number of seconds the path takes
+	 * @throws UserErrorMessage
+	 */
+	int beginPath(long pathId, boolean allowAttack) throws UserErrorMessage
+	{
+		CombatService combatService = new CombatService(db);
+		
 		setDataProperty("attack", allowAttack);
-		setDataProperty("pathId", Long.parseLong(parameters.get("pathId")));
+		setDataProperty("pathId", pathId);
 		
-		CachedEntity path = db.getEntity(KeyFactory.createKey("Path", Long.parseLong(parameters.get("pathId"))));
+		CachedEntity path = db.getEntity(KeyFactory.createKey("Path", pathId));
 		if (path==null)
 			throw new UserErrorMessage("Unable to take path. The path does not exist.");
 		
@@ -260,7 +275,24 @@ public class LongOperationTakePath extends LongOperation {
 	}
 
 	@Override
-	String doComplete() throws UserErrorMessage {
+	String doComplete() throws UserErrorMessage, ContinuationException {
+		CachedEntity newLocation = completePath();
+
+		MainPageUpdateService update = new MainPageUpdateService(db, db.getCurrentUser(), db.getCurrentCharacter(), newLocation, this);
+		update.updateFullPage_shortcut(true);
+
+		
+		return "You have arrived at "+newLocation.getProperty("name")+".";
+	}
+	
+	/**
+	 * Moves the character along the path that was stored by beginPath().
+	 * 
+	 * @return The location the character arrived at
+	 * @throws UserErrorMessage
+	 */
+	CachedEntity completePath() throws UserErrorMessage
+	{
 		Key locationKey = (Key)db.getCurrentCharacter().getProperty("locationKey");
 		CachedEntity location = db.getEntity(locationKey);
 		
@@ -286,12 +318,8 @@ public class LongOperationTakePath extends LongOperation {
 			
 //			db.getDB().commitBulkWrite();
 		}
-
-		MainPageUpdateService update = new MainPageUpdateService(db, db.getCurrentUser(), db.getCurrentCharacter(), newLocation, this);
-		update.updateFullPage_shortcut(true);
-
 		
-		return "You have arrived at "+newLocation.getProperty("name")+".";
+		return newLocation;
 	}
 
 	@Override
@@ -0,0 +1,122 @@
+package com.universeprojects.miniup.server.longoperations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.universeprojects.cacheddatastore.CachedEntity;
+import com.universeprojects.miniup.server.ODPDBAccess;
+import com.universeprojects.miniup.server.commands.framework.UserErrorMessage;
+import com.universeprojects.miniup.server.services.MainPageUpdateService;
+import com.universeprojects.miniup.server.services.RoutePlanner;
+
+/**
+ * Travels to a location that can be several paths away. The route is planned once when the operation
+ * begins (see RoutePlanner) and each path is then taken the same way LongOperationTakePath takes it,
+ * with the same checks before every path. Between paths the operation continues instead of completing,
+ * so the client just keeps polling and the full page is only updated once we stop.
+ */
+public class LongOperationTravelRoute extends LongOperationTakePath
+{
+
+	public LongOperationTravelRoute(ODPDBAccess db, Map<String, String[]> requestParameters) throws UserErrorMessage
+	{
+		super(db, requestParameters);
+	}
+
+	@Override
+	public String getPageRefreshJavascriptCall()
+	{
+		Long locationId = (Long)getDataProperty("locationId");
+		return "doTravelRoute(null, "+locationId+");";
+	}
+
+	@Override
+	int doBegin(Map<String, String> parameters) throws UserErrorMessage
+	{
+		Long locationId;
+		try
+		{
+			locationId = Long.parseLong(parameters.get("locationId"));
+		}
+		catch(NumberFormatException e)
+		{
+			throw new UserErrorMessage("Invalid destination.");
+		}
+		setDataProperty("locationId", locationId);
+
+		CachedEntity destination = db.getEntity(KeyFactory.createKey("Location", locationId));
+		if (destination==null)
+			throw new UserErrorMessage("That location does not exist.");
+
+		List<Key> route = new RoutePlanner(db).planRoute(db.getCurrentCharacter(), destination.getKey());
+		if (route==null)
+			throw new UserErrorMessage("You don't know a way to get to "+destination.getProperty("name")+" from here.");
+		if (route.isEmpty())
+			throw new UserErrorMessage("You are already at "+destination.getProperty("name")+".");
+
+		List<Long> pathIds = new ArrayList<Long>(route.size());
+		for(Key pathKey:route)
+			pathIds.add(pathKey.getId());
+		setDataProperty("route", pathIds);
+		setDataProperty("routeIndex", 0L);
+		setDataProperty("destinationName", destination.getProperty("name"));
+
+		return beginPath(pathIds.get(0), false);
+	}
+
+	@Override
+	String doComplete() throws UserErrorMessage, ContinuationException
+	{
+		@SuppressWarnings("unchecked")
+		List<Long> route = (List<Long>)getDataProperty("route");
+		Long routeIndex = (Long)getDataProperty("routeIndex");
+		if (route==null || routeIndex==null)
+			throw new UserErrorMessage("The route you were travelling is no longer valid.");
+
+		CachedEntity newLocation = completePath();
+
+		routeIndex++;
+		String stoppedReason = null;
+		if (routeIndex<route.size())
+		{
+			setDataProperty("routeIndex", routeIndex);
+			int seconds = -1;
+			try
+			{
+				seconds = beginPath(route.get(routeIndex.intValue()), false);
+			}
+			catch(UserErrorMessage e)
+			{
+				// We've already moved, so rather than cancelling we stop here and show where we are
+				stoppedReason = e.getMessage();
+			}
+
+			if (seconds>=0)
+			{
+				MainPageUpdateService update = new MainPageUpdateService(db, db.getCurrentUser(), db.getCurrentCharacter(), newLocation, this);
+				update.updateLocationName();
+				throw new ContinuationException(seconds);
+			}
+		}
+
+		MainPageUpdateService update = new MainPageUpdateService(db, db.getCurrentUser(), db.getCurrentCharacter(), newLocation, this);
+		update.updateFullPage_shortcut(true);
+
+		if (stoppedReason!=null)
+			return "You stopped at "+newLocation.getProperty("name")+" on your way to "+getDataProperty("destinationName")+". "+stoppedReason;
+		return "You have arrived at "+newLocation.getProperty("name")+".";
+	}
+
+	@Override
+	public Map<String, Object> getStateData()
+	{
+		Map<String, Object> result = super.getStateData();
+
+		result.put("destinationName", getDataProperty("destinationName"));
+
+		return result;
+	}
+}
@@ -0,0 +1,229 @@
+package com.universeprojects.miniup.server.scripting;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+import com.universeprojects.cacheddatastore.CachedEntity;
+
+/**
+ * The instance-wide javascript runtime that the ScriptService runs Script entities on.
+ *
+ * Setting up Rhino is expensive, so everything that can be shared between requests is:
+ * <ul>
+ * <li>The standard objects (Object, Array, Math, etc) are created once in a sealed scope. Every request
+ * gets its own scope on top of it, so scripts can't change the shared one.</li>
+ * <li>Script entities are compiled once and the compiled Script is cached by entity key and source hash,
+ * so editing a script simply compiles the new version.</li>
+ * <li>Contexts are pooled. A Context is only entered (bound to the current thread) for as long as a script
+ * runs, see enter() and exit().</li>
+ * </ul>
+ *
+ * The optimization level of the compiled scripts can be configured with the "initium.script.optimizationLevel"
+ * system property (in appengine-web.xml). It defaults to -1 (interpreted), which compiles fastest and doesn't
+ * need to generate classes.
+ */
+public class RhinoScriptRuntime
+{
+	private final static Logger log = Logger.getLogger(RhinoScriptRuntime.class.getName());
+
+	public static final String OPTIMIZATION_LEVEL_PROPERTY = "initium.script.optimizationLevel";
+	private static final int DEFAULT_OPTIMIZATION_LEVEL = -1;
+	private static final int CACHE_SIZE = 500;
+	private static final int MAX_IDLE_CONTEXTS = 32;
+
+	private static RhinoScriptRuntime instance = null;
+
+	private final int optimizationLevel;
+	private final ContextFactory contextFactory;
+	private final ScriptableObject sharedScope;
+	private final ConcurrentLinkedQueue<Context> idleContexts = new ConcurrentLinkedQueue<Context>();
+	private final AtomicInteger idleContextCount = new AtomicInteger();
+
+	private static class CompiledScript
+	{
+		final String source;
+		final Script script;
+
+		CompiledScript(String source, Script script)
+		{
+			this.source = source;
+			this.script = script;
+		}
+	}
+
+	private final Map<String, CompiledScript> compiledScripts = new LinkedHashMap<String, CompiledScript>(CACHE_SIZE, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CompiledScript> eldest)
+		{
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	public static synchronized RhinoScriptRuntime getInstance()
+	{
+		if (instance==null)
+			instance = new RhinoScriptRuntime(readOptimizationLevel());
+
+		return instance;
+	}
+
+	private static int readOptimizationLevel()
+	{
+		String level = System.getProperty(OPTIMIZATION_LEVEL_PROPERTY);
+		if (level==null || level.trim().equals(""))
+			return DEFAULT_OPTIMIZATION_LEVEL;
+
+		try
+		{
+			int result = Integer.parseInt(level.trim());
+			if (Context.isValidOptimizationLevel(result))
+				return result;
+		}
+		catch (NumberFormatException e)
+		{
+			// Fall through to the warning
+		}
+		log.log(Level.WARNING, "Invalid "+OPTIMIZATION_LEVEL_PROPERTY+" '"+level+"', using "+DEFAULT_OPTIMIZATION_LEVEL+" instead.");
+		return DEFAULT_OPTIMIZATION_LEVEL;
+	}
+
+	RhinoScriptRuntime(final int optimizationLevel)
+	{
+		this.optimizationLevel = optimizationLevel;
+		this.contextFactory = new ContextFactory()
+		{
+			@Override
+			protected Context makeContext()
+			{
+				Context cx = super.makeContext();
+				cx.setOptimizationLevel(optimizationLevel);
+				return cx;
+			}
+		};
+
+		Context cx = enter();
+		try
+		{
+			sharedScope = cx.initStandardObjects(null, true);
+			sharedScope.sealObject();
+		}
+		finally
+		{
+			exit(cx);
+		}
+	}
+
+	public int getOptimizationLevel()
+	{
+		return optimizationLevel;
+	}
+
+	/**
+	 * Binds a Context to the current thread. If the thread is already running a script (a script that
+	 * executes another script), the Context that is already bound is used again.
+	 *
+	 * Every call MUST be paired with a call to exit() in a finally block.
+	 *
+	 * @return
+	 */
+	public Context enter()
+	{
+		if (Context.getCurrentContext()==null)
+		{
+			Context cx = idleContexts.poll();
+			if (cx!=null)
+			{
+				idleContextCount.decrementAndGet();
+				return contextFactory.enterContext(cx);
+			}
+		}
+
+		// Either reuses the thread's current Context or creates a new one with our factory
+		return contextFactory.enterContext(null);
+	}
+
+	/**
+	 * Releases the Context from the current thread and, once it isn't used by the thread anymore,
+	 * returns it to the pool.
+	 *
+	 * @param cx The Context returned by enter()
+	 */
+	public void exit(Context cx)
+	{
+		Context.exit();
+
+		// Still in use by an outer script on this thread
+		if (Context.getCurrentContext()!=null)
+			return;
+		if (cx.getFactory()!=contextFactory)
+			return;
+
+		if (idleContextCount.incrementAndGet()>MAX_IDLE_CONTEXTS)
+		{
+			idleContextCount.decrementAndGet();
+			return;
+		}
+		idleContexts.offer(cx);
+	}
+
+	/**
+	 * Creates a new top level scope that inherits the shared standard objects. Anything put into it stays
+	 * private to whoever created it.
+	 *
+	 * @param cx The entered Context
+	 * @return
+	 */
+	public Scriptable newScope(Context cx)
+	{
+		Scriptable scope = cx.newObject(sharedScope);
+		scope.setPrototype(sharedScope);
+		scope.setParentScope(null);
+		return scope;
+	}
+
+	/**
+	 * Returns the compiled script of the given Script entity, compiling it if it hasn't been compiled
+	 * yet or if its source changed since.
+	 *
+	 * @param cx The entered Context
+	 * @param scriptEntity
+	 * @return
+	 */
+	public Script getCompiledScript(Context cx, CachedEntity scriptEntity)
+	{
+		String source = (String)scriptEntity.getProperty("script");
+		String cacheKey = scriptEntity.getKey()+"-"+source.hashCode();
+
+		CompiledScript compiled;
+		synchronized(compiledScripts)
+		{
+			compiled = compiledScripts.get(cacheKey);
+		}
+		if (compiled!=null && compiled.source.equals(source))
+			return compiled.script;
+
+		String scriptName = (String)scriptEntity.getProperty("internalName");
+		if (scriptName==null)
+			scriptName = scriptEntity.getKey().toString();
+
+		compiled = new CompiledScript(source, cx.compileString(source, scriptName, 0, null));
+		synchronized(compiledScripts)
+		{
+			compiledScripts.put(cacheKey, compiled);
+		}
+		return compiled.script;
+	}
+}
@@ -1,16 +1,13 @@
 package com.universeprojects.miniup.server.scripting.events;
 
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 
-import com.google.appengine.api.datastore.Key;
 import com.universeprojects.cacheddatastore.CachedEntity;
 import com.universeprojects.miniup.server.ODPDBAccess;
 import com.universeprojects.miniup.server.ODPDBAccess.ScriptType;
+import com.universeprojects.miniup.server.services.ScriptService;
 import com.universeprojects.miniup.server.scripting.wrappers.EntityWrapper;
 import com.universeprojects.miniup.server.scripting.wrappers.Character;
 import com.universeprojects.miniup.server.scripting.wrappers.Item;
@@ -131,70 +128,17 @@ public class CombatEvent extends ScriptEvent {
 		return totDamage;
 	}
 	
-	@SuppressWarnings("unchecked")
-	public static Map<ScriptType, HashMap<CachedEntity, List<CachedEntity>>> 
+	/**
+	 * Gets the combat scripts of the attacker, its weapon and the defender, see CombatScriptPlan.
+	 * @param db ODPDBAccess instance, to get the script entities themselves
+	 * @param attacker CachedEntity of the attacking character
+	 * @param weapon CachedEntity of the weapon used to attack, can be null
+	 * @param defender CachedEntity of the defending character
+	 * @return ScriptType -> Entity -> List<Script> map.
+	 */
+	public static Map<ScriptType, Map<CachedEntity, List<CachedEntity>>> 
 		getCombatScripts(ODPDBAccess db, CachedEntity attacker, CachedEntity weapon, CachedEntity defender)
 	{
-		// This will be the return.
-		Map<ScriptType, HashMap<CachedEntity, List<CachedEntity>>> scriptMap = 
-				new HashMap<ScriptType, HashMap<CachedEntity, List<CachedEntity>>>();
-
-		// This map tracks the actual entities which generated which scripts
-		Map<CachedEntity, List<Key>> entityScripts = new HashMap<CachedEntity, List<Key>>();
-		// This will be used to retrieve all the scripts from the DB
-		HashSet<Key> getKeys = new HashSet<Key>();
-		for(CachedEntity curEntity:Arrays.asList(attacker, weapon, defender))
-		{
-			// A null entity could be possible, such as fighting bare handed (weapon == null)
-			if(curEntity == null) continue;
-			List<Key> entityKeys = (List<Key>)curEntity.getProperty("scripts");
-			if(entityKeys == null) entityKeys = new ArrayList<Key>();
-			entityScripts.put(curEntity, entityKeys);
-			getKeys.addAll(entityKeys);
-		}
-		
-		// Only allow these specific types of scripts to be processed.
-		List<CachedEntity> scripts = db.getScriptsOfType(new ArrayList<Key>(getKeys), 
-				ScriptType.onAttack, ScriptType.onAttackHit, ScriptType.onDefend, ScriptType.onDefendHit);
-		for(CachedEntity script:scripts)
-		{
-			ScriptType sType = ScriptType.valueOf((String)script.getProperty("type"));
-			
-			// If allowed event type already exists in the script map, get it.
-			// Otherwise, create a new one, but don't add it yet. We only want
-			// a record in this map if we actually have a (correct) script to execute.
-			HashMap<CachedEntity, List<CachedEntity>> currentScriptMap = 
-				scriptMap.containsKey(sType) ? 
-					scriptMap.get(sType) : 
-					new HashMap<CachedEntity, List<CachedEntity>>();
-			
-			// On the other hand, here we WANT to add the list of entities to this particular script
-			// Since a script can be associated to multiple entities, allow it to go through here.
-			List<CachedEntity> scriptSources = 
-				currentScriptMap.containsKey(script) ? 
-					currentScriptMap.get(script) :
-					currentScriptMap.put(script, new ArrayList<CachedEntity>());
-					
-			switch(sType)
-			{
-				case onAttack:
-				case onAttackHit:
-					if(attacker != null && entityScripts.get(attacker).contains(script.getKey()))
-						scriptSources.add(attacker);
-					if(weapon != null && entityScripts.get(weapon).contains(script.getKey()))
-						scriptSources.add(weapon);
-				case onDefend:
-				case onDefendHit:
-					if(defender != null && entityScripts.get(defender).contains(script.getKey()))
-						scriptSources.add(defender);
-				default:
-					break;
-			}
-			// Only adding to the script map if we actually have a script from the correct entity.
-			// Put will replace in the map, which is fine since it's the same instance we originally
-			// got from the map and is a constant time operation
-			if(!scriptSources.isEmpty()) scriptMap.put(sType, currentScriptMap);
-		}
-		return scriptMap;
+		return ScriptService.getCombatScripts(db, attacker, weapon, null, defender);
 	}
 }
@@ -364,6 +364,7 @@ public class DBAccessor {
 	public boolean clearBuffFromCache(Buff buff)
 	{
 		if(buff.parentEntityKey() == null) return false;
+		db.invalidateBuffModifierIndex(buff.parentEntityKey());
 		List<CachedEntity> buffList = db.buffsCache.get(buff.parentEntityKey());
 		if(buffList == null) return false;
 		
@@ -9,6 +9,7 @@ import com.google.appengine.api.datastore.Key;
 import com.universeprojects.cacheddatastore.AbortTransactionException;
 import com.universeprojects.cacheddatastore.CachedDatastoreService;
 import com.universeprojects.cacheddatastore.CachedEntity;
+import com.universeprojects.miniup.server.GameRandom;
 import com.universeprojects.miniup.server.InitiumTransaction;
 import com.universeprojects.miniup.server.NotificationType;
 import com.universeprojects.miniup.server.ODPDBAccess;
@@ -102,7 +103,7 @@ public class BlockadeService extends Service
         final ODPDBAccess.EngageBlockadeOpponentResult finalResult = db.new EngageBlockadeOpponentResult();
         
         final List<CachedEntity> charactersInBlockade = query.getFilteredList("Character", "locationKey", blockadeLocationKey);
-        Collections.shuffle(charactersInBlockade);
+        Collections.shuffle(charactersInBlockade, GameRandom.get());
         try 
         {
             new InitiumTransaction<CachedEntity>(ds) 
@@ -0,0 +1,271 @@
+package com.universeprojects.miniup.server.services;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.universeprojects.cacheddatastore.CachedEntity;
+import com.universeprojects.miniup.server.ODPDBAccess;
+import com.universeprojects.miniup.server.ODPDBAccess.ScriptType;
+
+/**
+ * The combat scripts (onAttack, onAttackHit, onDefend and onDefendHit) that apply to a fight between an
+ * attacker (with up to 2 weapons) and a defender, indexed by script type and by the role of the entity
+ * the script is attached to.
+ *
+ * Resolving the scripts means fetching every script attached to 4 entities and filtering them by type, which
+ * is the same for every attack of a fight. So plans are cached on the instance per attacker/defender pair and
+ * reused until the equipment (or the script list) of one of the entities changes, or until any Script entity
+ * is written.
+ *
+ * The script entities handed out by a plan are shared between requests and must be treated as read-only.
+ */
+public class CombatScriptPlan
+{
+	private static final int CACHE_SIZE = 1000;
+	private static final String GENERATION_KEY = "CombatScriptPlanGen";
+
+	public enum Role
+	{
+		Attacker, PrimaryWeapon, SecondaryWeapon, Defender
+	}
+
+	private static final ScriptType[] COMBAT_TYPES = {ScriptType.onAttack, ScriptType.onAttackHit, ScriptType.onDefend, ScriptType.onDefendHit};
+	private static final Role[] ROLES = Role.values();
+	private static final CachedEntity[] NO_SCRIPTS = new CachedEntity[0];
+
+	private static final Map<String, CombatScriptPlan> cache = new LinkedHashMap<String, CombatScriptPlan>(CACHE_SIZE, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CombatScriptPlan> eldest)
+		{
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	private final String signature;
+	private final long generation;
+	// [combat type index * ROLES.length + role ordinal]
+	private final CachedEntity[][] scripts;
+	private final boolean empty;
+
+	private CombatScriptPlan(String signature, long generation, CachedEntity[][] scripts)
+	{
+		this.signature = signature;
+		this.generation = generation;
+		this.scripts = scripts;
+
+		boolean empty = true;
+		for(CachedEntity[] roleScripts:scripts)
+			if (roleScripts.length>0)
+				empty = false;
+		this.empty = empty;
+	}
+
+	/**
+	 * Returns the combat script plan for the given fight, resolving it only if it isn't cached yet or
+	 * if anything it was resolved from changed.
+	 *
+	 * @param db
+	 * @param attacker
+	 * @param primaryWeapon Can be null (fighting bare handed)
+	 * @param secondaryWeapon Can be null
+	 * @param defender
+	 * @return
+	 */
+	public static CombatScriptPlan getPlan(ODPDBAccess db, CachedEntity attacker, CachedEntity primaryWeapon, CachedEntity secondaryWeapon, CachedEntity defender)
+	{
+		CachedEntity[] entities = {attacker, primaryWeapon, secondaryWeapon, defender};
+		String signature = buildSignature(entities);
+		MemcacheService mc = db.getMC();
+		long generation = toGeneration(mc.get(GENERATION_KEY));
+		String cacheKey = keyOf(attacker)+"-"+keyOf(defender);
+
+		CombatScriptPlan plan;
+		synchronized(cache)
+		{
+			plan = cache.get(cacheKey);
+		}
+		if (plan!=null && plan.generation==generation && plan.signature.equals(signature))
+			return plan;
+
+		plan = resolve(db, signature, generation, entities);
+		synchronized(cache)
+		{
+			cache.put(cacheKey, plan);
+		}
+		return plan;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static CombatScriptPlan resolve(ODPDBAccess db, String signature, long generation, CachedEntity[] entities)
+	{
+		// Which roles each script is attached to, a script can be attached to more than one entity
+		Map<Key, List<Role>> scriptRoles = new HashMap<Key, List<Role>>();
+		for(int i = 0; i<entities.length; i++)
+		{
+			// A null entity could be possible, such as fighting bare handed (weapon == null)
+			if (entities[i]==null) continue;
+			List<Key> scriptKeys = (List<Key>)entities[i].getProperty("scripts");
+			if (scriptKeys==null) continue;
+			for(Key scriptKey:scriptKeys)
+			{
+				if (scriptKey==null) continue;
+				List<Role> roles = scriptRoles.get(scriptKey);
+				if (roles==null)
+				{
+					roles = new ArrayList<Role>(1);
+					scriptRoles.put(scriptKey, roles);
+				}
+				if (roles.contains(ROLES[i])==false)
+					roles.add(ROLES[i]);
+			}
+		}
+
+		List<List<CachedEntity>> collected = new ArrayList<List<CachedEntity>>(COMBAT_TYPES.length*ROLES.length);
+		for(int i = 0; i<COMBAT_TYPES.length*ROLES.length; i++)
+			collected.add(null);
+
+		if (scriptRoles.isEmpty()==false)
+		{
+			List<CachedEntity> scripts = db.getScriptsOfType(new ArrayList<Key>(scriptRoles.keySet()), COMBAT_TYPES);
+			for(CachedEntity script:scripts)
+			{
+				int typeIndex = indexOf(ScriptType.valueOf((String)script.getProperty("type")));
+				boolean attackScript = typeIndex<2;
+				for(Role role:scriptRoles.get(script.getKey()))
+				{
+					// Attack scripts only fire for the attacker and its weapons, defend scripts only for the defender
+					if (attackScript==(role==Role.Defender))
+						continue;
+
+					int index = typeIndex*ROLES.length+role.ordinal();
+					if (collected.get(index)==null)
+						collected.set(index, new ArrayList<CachedEntity>(1));
+					collected.get(index).add(script);
+				}
+			}
+		}
+
+		CachedEntity[][] result = new CachedEntity[collected.size()][];
+		for(int i = 0; i<result.length; i++)
+			result[i] = collected.get(i)==null ? NO_SCRIPTS : collected.get(i).toArray(new CachedEntity[collected.get(i).size()]);
+
+		return new CombatScriptPlan(signature, generation, result);
+	}
+
+	/**
+	 * Everything a plan is resolved from: which entities take part and which scripts they have. Changing
+	 * a weapon changes its key, and adding or removing a script changes the script list.
+	 */
+	private static String buildSignature(CachedEntity[] entities)
+	{
+		StringBuilder sb = new StringBuilder();
+		for(CachedEntity entity:entities)
+		{
+			if (entity==null)
+				sb.append("-|");
+			else
+				sb.append(entity.getKey()).append(entity.getProperty("scripts")).append('|');
+		}
+		return sb.toString();
+	}
+
+	private static int indexOf(ScriptType type)
+	{
+		for(int i = 0; i<COMBAT_TYPES.length; i++)
+			if (COMBAT_TYPES[i]==type)
+				return i;
+		throw new IllegalArgumentException("Not a combat script type: "+type);
+	}
+
+	private static String keyOf(CachedEntity entity)
+	{
+		if (entity==null) return "null";
+		return entity.getKey().toString();
+	}
+
+	private static long toGeneration(Object generation)
+	{
+		if (generation==null) return 0L;
+		return (Long)generation;
+	}
+
+	/**
+	 * Drops all cached plans, on all instances. Called whenever a Script entity is written.
+	 *
+	 * @param mc
+	 */
+	public static void invalidateScripts(MemcacheService mc)
+	{
+		mc.increment(GENERATION_KEY, 1L, 0L);
+	}
+
+	/**
+	 * @return True if none of the entities in this fight have combat scripts, in which case there is nothing to run
+	 */
+	public boolean isEmpty()
+	{
+		return empty;
+	}
+
+	/**
+	 * @param type One of onAttack, onAttackHit, onDefend or onDefendHit
+	 * @param role
+	 * @return The scripts of the given type attached to the entity with the given role, never null
+	 */
+	public CachedEntity[] getScripts(ScriptType type, Role role)
+	{
+		return scripts[indexOf(type)*ROLES.length+role.ordinal()];
+	}
+
+	/**
+	 * Converts this plan to the ScriptType -> Entity -> List<Script> map returned by ScriptService.getCombatScripts().
+	 * Only types and entities that actually have scripts are in the map.
+	 *
+	 * @param attacker
+	 * @param primaryWeapon
+	 * @param secondaryWeapon
+	 * @param defender
+	 * @return
+	 */
+	public Map<ScriptType, Map<CachedEntity, List<CachedEntity>>> toScriptMap(CachedEntity attacker, CachedEntity primaryWeapon, CachedEntity secondaryWeapon, CachedEntity defender)
+	{
+		Map<ScriptType, Map<CachedEntity, List<CachedEntity>>> scriptMap = new HashMap<ScriptType, Map<CachedEntity, List<CachedEntity>>>();
+		if (empty) return scriptMap;
+
+		CachedEntity[] entities = {attacker, primaryWeapon, secondaryWeapon, defender};
+		for(int t = 0; t<COMBAT_TYPES.length; t++)
+		{
+			for(int r = 0; r<ROLES.length; r++)
+			{
+				CachedEntity[] roleScripts = scripts[t*ROLES.length+r];
+				if (roleScripts.length==0) continue;
+
+				Map<CachedEntity, List<CachedEntity>> typeMap = scriptMap.get(COMBAT_TYPES[t]);
+				if (typeMap==null)
+				{
+					typeMap = new HashMap<CachedEntity, List<CachedEntity>>();
+					scriptMap.put(COMBAT_TYPES[t], typeMap);
+				}
+				List<CachedEntity> entityScripts = typeMap.get(entities[r]);
+				if (entityScripts==null)
+				{
+					entityScripts = new ArrayList<CachedEntity>(roleScripts.length);
+					typeMap.put(entities[r], entityScripts);
+				}
+				// The same item can be equipped in both hands
+				for(CachedEntity script:roleScripts)
+					if (entityScripts.contains(script)==false)
+						entityScripts.add(script);
+			}
+		}
+		return scriptMap;
+	}
+}
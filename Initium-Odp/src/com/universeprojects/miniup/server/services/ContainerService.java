@@ -40,7 +40,7 @@ public class ContainerService extends Service {
 			
 			Long coins = (Long)container.getProperty("dogecoins");
 			if (coins<=0)
-				ds.delete(container);
+				db.deleteItem(ds, container);
 						
 			
 			throw new UserErrorMessage("The container has been destroyed due to durability loss, and any items inside have fallen out of it.");
@@ -0,0 +1,326 @@
+package com.universeprojects.miniup.server.services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.universeprojects.cacheddatastore.CachedEntity;
+import com.universeprojects.miniup.server.ODPDBAccess;
+import com.universeprojects.miniup.server.QueryBatch;
+
+/**
+ * The listings of the global premium token exchange, kept on the instance as price-time ordered ladders so
+ * showing the exchange doesn't have to query every SaleItem and BuyItem of the exchange each time.
+ *
+ * There is one ask ladder (SaleItems with the SALE_SPECIAL_ID that are Selling, cheapest first) and a bid ladder
+ * per buy order specialId (highest first). Within a price, older listings come first.
+ *
+ * The ladders are updated as listings are written: every put of an exchange SaleItem or BuyItem goes through
+ * written() (from the ODPDBAccess put hook, once the put is committed) which bumps the exchange generation in
+ * memcache. If the bumped
+ * generation directly follows the one this instance's book is at, nothing else changed in between and the
+ * listing is just moved in the ladder. Otherwise the book is dropped and queried again on the next read.
+ * Listings that are deleted should go through removed(), although ones that are missed are purged by the
+ * exchange page when it finds them gone.
+ *
+ * A new book is queried without holding the lock, so reads and updates of the current book don't wait for it.
+ * The query may not see listings written in the last few seconds, so a book that is built within
+ * CONSISTENCY_WINDOW_MS of a change is only used by the request that built it and never kept.
+ */
+public class ExchangeOrderBook
+{
+	private static final long MAX_AGE_MS = 5*60*1000;
+	// How long after a change the queries may still not see it
+	private static final long CONSISTENCY_WINDOW_MS = 10*1000;
+	private static final String GENERATION_KEY = "ExchangeOrderBookGen";
+	private static final String BUMPED_AT_KEY = "ExchangeOrderBookBumpedAt";
+
+	public static final String SALE_SPECIAL_ID = "Initium Premium Membership";
+	public static final String BUY_PREMIUM_TOKEN = "premiumToken";
+	public static final String BUY_CHIPPED_TOKEN = "chippedToken";
+
+	private static final Object lock = new Object();
+	private static Book book = null;
+
+	/**
+	 * One listing. The price is the SaleItem's dogecoins or the BuyItem's value.
+	 */
+	public static class Entry
+	{
+		private final Key key;
+		private final long price;
+		private final long listedAt;
+		private final Key characterKey;
+		private final Key itemKey;
+
+		private Entry(CachedEntity listing, long price)
+		{
+			this.key = listing.getKey();
+			this.price = price;
+			Object createdDate = listing.getProperty("createdDate");
+			// Listings from before createdDate was set are older than any that have it
+			this.listedAt = createdDate instanceof Date ? ((Date)createdDate).getTime() : 0L;
+			this.characterKey = (Key)listing.getProperty("characterKey");
+			this.itemKey = (Key)listing.getProperty("itemKey");
+		}
+
+		public Key getKey()
+		{
+			return key;
+		}
+
+		public long getPrice()
+		{
+			return price;
+		}
+
+		public Key getCharacterKey()
+		{
+			return characterKey;
+		}
+
+		/**
+		 * @return The item being sold, null for buy orders
+		 */
+		public Key getItemKey()
+		{
+			return itemKey;
+		}
+	}
+
+	private static class PriceTimeComparator implements Comparator<Entry>
+	{
+		private final boolean highestFirst;
+
+		PriceTimeComparator(boolean highestFirst)
+		{
+			this.highestFirst = highestFirst;
+		}
+
+		@Override
+		public int compare(Entry e1, Entry e2)
+		{
+			if (e1.price!=e2.price)
+				return (e1.price<e2.price) != highestFirst ? -1 : 1;
+			if (e1.listedAt!=e2.listedAt)
+				return e1.listedAt<e2.listedAt ? -1 : 1;
+			return e1.key.compareTo(e2.key);
+		}
+	}
+
+	private static class Book
+	{
+		private final long createdAt = System.currentTimeMillis();
+		private long generation;
+		private final TreeSet<Entry> asks = new TreeSet<Entry>(new PriceTimeComparator(false));
+		private final Map<String, TreeSet<Entry>> bids = new HashMap<String, TreeSet<Entry>>();
+		// Where each listing currently is, so it can be found in its ladder without a scan
+		private final Map<Key, Entry> entries = new HashMap<Key, Entry>();
+		private final Map<Key, TreeSet<Entry>> ladders = new HashMap<Key, TreeSet<Entry>>();
+
+		Book(long generation)
+		{
+			this.generation = generation;
+			bids.put(BUY_PREMIUM_TOKEN, new TreeSet<Entry>(new PriceTimeComparator(true)));
+			bids.put(BUY_CHIPPED_TOKEN, new TreeSet<Entry>(new PriceTimeComparator(true)));
+		}
+
+		void apply(CachedEntity listing)
+		{
+			remove(listing.getKey());
+
+			if (isAsk(listing))
+			{
+				if ("Selling".equals(listing.getProperty("status")))
+					add(asks, new Entry(listing, toLong(listing.getProperty("dogecoins"))));
+			}
+			else if (isBid(listing))
+				add(bids.get(listing.getProperty("specialId")), new Entry(listing, toLong(listing.getProperty("value"))));
+		}
+
+		void add(TreeSet<Entry> ladder, Entry entry)
+		{
+			ladder.add(entry);
+			entries.put(entry.key, entry);
+			ladders.put(entry.key, ladder);
+		}
+
+		void remove(Key key)
+		{
+			Entry entry = entries.remove(key);
+			if (entry!=null)
+				ladders.remove(key).remove(entry);
+		}
+	}
+
+	/**
+	 * @param db
+	 * @return The listings that are for sale, cheapest first
+	 */
+	public static List<Entry> getAsks(ODPDBAccess db)
+	{
+		Book current = getBook(db);
+		synchronized(lock)
+		{
+			return new ArrayList<Entry>(current.asks);
+		}
+	}
+
+	/**
+	 * @param db
+	 * @param specialId BUY_PREMIUM_TOKEN or BUY_CHIPPED_TOKEN
+	 * @return The buy orders, highest first
+	 */
+	public static List<Entry> getBids(ODPDBAccess db, String specialId)
+	{
+		Book current = getBook(db);
+		synchronized(lock)
+		{
+			return new ArrayList<Entry>(current.bids.get(specialId));
+		}
+	}
+
+	/**
+	 * Called whenever an entity is put. Anything that isn't an exchange listing is ignored.
+	 *
+	 * @param mc
+	 * @param listing
+	 */
+	public static void written(MemcacheService mc, CachedEntity listing)
+	{
+		if (isAsk(listing)==false && isBid(listing)==false)
+			return;
+		// New listings are picked up once they have their key, see ODPDBAccess.newSaleItem()
+		if (listing.getKey().isComplete()==false)
+			return;
+
+		Long generation = bump(mc);
+		synchronized(lock)
+		{
+			if (book!=null && generation!=null && book.generation==generation-1)
+			{
+				book.apply(listing);
+				book.generation = generation;
+			}
+			else
+				book = null;
+		}
+	}
+
+	/**
+	 * Takes a listing off the exchange. Call this when a SaleItem or BuyItem is deleted, anything that isn't an
+	 * exchange listing is ignored.
+	 *
+	 * @param mc
+	 * @param listing
+	 */
+	public static void removed(MemcacheService mc, CachedEntity listing)
+	{
+		if (isAsk(listing)==false && isBid(listing)==false)
+			return;
+		removed(mc, listing.getKey());
+	}
+
+	/**
+	 * Takes the listing with the given key off the exchange, used for listings that are found to be gone.
+	 *
+	 * @param mc
+	 * @param key
+	 */
+	public static void removed(MemcacheService mc, Key key)
+	{
+		if (key==null) return;
+		Long generation = bump(mc);
+		synchronized(lock)
+		{
+			if (book!=null && generation!=null && book.generation==generation-1)
+			{
+				book.remove(key);
+				book.generation = generation;
+			}
+			else
+				book = null;
+		}
+	}
+
+	private static Long bump(MemcacheService mc)
+	{
+		Long generation = mc.increment(GENERATION_KEY, 1L, 0L);
+		mc.put(BUMPED_AT_KEY, System.currentTimeMillis(), Expiration.byDeltaMillis((int)CONSISTENCY_WINDOW_MS));
+		return generation;
+	}
+
+	/**
+	 * Returns the current book, or builds a new one if it is missing, out of date or too old. The ladders of
+	 * the returned book may only be read while holding the lock.
+	 */
+	private static Book getBook(ODPDBAccess db)
+	{
+		MemcacheService mc = db.getMC();
+		// The generation has to be read before we query, that way a write that happens while we're
+		// building invalidates what we build instead of getting lost
+		Map<String, Object> values = mc.getAll(Arrays.asList(GENERATION_KEY, BUMPED_AT_KEY));
+		long generation = toGeneration(values.get(GENERATION_KEY));
+		Object bumpedAt = values.get(BUMPED_AT_KEY);
+		synchronized(lock)
+		{
+			if (book!=null && book.generation==generation && System.currentTimeMillis()-book.createdAt<=MAX_AGE_MS)
+				return book;
+		}
+
+		QueryBatch batch = db.newQueryBatch();
+		int asks = batch.add("SaleItem", "specialId", SALE_SPECIAL_ID, "status", "Selling");
+		int premiumBids = batch.add("BuyItem", "specialId", BUY_PREMIUM_TOKEN);
+		int chippedBids = batch.add("BuyItem", "specialId", BUY_CHIPPED_TOKEN);
+		List<List<CachedEntity>> results = batch.run();
+
+		Book built = new Book(generation);
+		for(int i:new int[]{asks, premiumBids, chippedBids})
+			for(CachedEntity listing:results.get(i))
+				if (listing!=null)
+					built.apply(listing);
+
+		// Only swapped in if nothing was written while we were building or shortly before (the query may have
+		// missed it) and no newer book was built meanwhile, otherwise this request uses it but the next one
+		// builds again
+		boolean current = toGeneration(mc.get(GENERATION_KEY))==generation;
+		boolean settled = bumpedAt==null || System.currentTimeMillis()-(Long)bumpedAt>=CONSISTENCY_WINDOW_MS;
+		synchronized(lock)
+		{
+			if (current && settled && (book==null || book.generation<=generation))
+				book = built;
+		}
+		return built;
+	}
+
+	private static boolean isAsk(CachedEntity entity)
+	{
+		return "SaleItem".equals(entity.getKind()) && SALE_SPECIAL_ID.equals(entity.getProperty("specialId"));
+	}
+
+	private static boolean isBid(CachedEntity entity)
+	{
+		if ("BuyItem".equals(entity.getKind())==false) return false;
+		Object specialId = entity.getProperty("specialId");
+		return BUY_PREMIUM_TOKEN.equals(specialId) || BUY_CHIPPED_TOKEN.equals(specialId);
+	}
+
+	private static long toLong(Object value)
+	{
+		return value instanceof Number ? ((Number)value).longValue() : 0L;
+	}
+
+	private static long toGeneration(Object generation)
+	{
+		if (generation==null) return 0L;
+		return (Long)generation;
+	}
+}
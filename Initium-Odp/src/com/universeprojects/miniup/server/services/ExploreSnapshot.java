@@ -0,0 +1,249 @@
+package com.universeprojects.miniup.server.services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.universeprojects.cacheddatastore.CachedEntity;
+import com.universeprojects.miniup.server.GameRandom;
+import com.universeprojects.miniup.server.GameUtils;
+import com.universeprojects.miniup.server.ODPDBAccess;
+import com.universeprojects.miniup.server.longoperations.LongOperation;
+
+/**
+ * The paths a character could still discover by exploring a location: the keys of the camp/blockade site,
+ * permanent and combat site paths that the character hasn't discovered yet and that aren't always visible.
+ *
+ * An explore operation can continue up to 20 times, and working this out each time took all of the path
+ * and discovery queries of the location. The snapshot is stored in the long operation's data instead and
+ * only rebuilt when the location's LocationPathCache generation (bumped by any Path or Location write) or
+ * the character's discovery generation (bumped by any Discovery write) changed.
+ */
+public class ExploreSnapshot
+{
+	private static final String LOCATION_KEY = "exploreLocationKey";
+	private static final String PATH_GENERATION = "explorePathGeneration";
+	private static final String DISCOVERY_GENERATION = "exploreDiscoveryGeneration";
+	private static final String CAMP_PATH_KEYS = "exploreCampPathKeys";
+	private static final String PERMANENT_PATH_KEYS = "explorePermanentPathKeys";
+	private static final String COMBAT_SITE_PATH_KEYS = "exploreCombatSitePathKeys";
+
+	private final Key locationKey;
+	private final long pathGeneration;
+	private final long discoveryGeneration;
+	private final List<Key> campPathKeys;
+	private final List<Key> permanentPathKeys;
+	private final List<Key> combatSitePathKeys;
+
+	private List<CachedEntity> campPaths = null;
+	private List<CachedEntity> permanentPaths = null;
+	private List<CachedEntity> combatSitePaths = null;
+
+	private ExploreSnapshot(Key locationKey, long pathGeneration, long discoveryGeneration, List<Key> campPathKeys,
+			List<Key> permanentPathKeys, List<Key> combatSitePathKeys)
+	{
+		this.locationKey = locationKey;
+		this.pathGeneration = pathGeneration;
+		this.discoveryGeneration = discoveryGeneration;
+		this.campPathKeys = campPathKeys;
+		this.permanentPathKeys = permanentPathKeys;
+		this.combatSitePathKeys = combatSitePathKeys;
+	}
+
+	/**
+	 * Returns the snapshot stored in the given operation if it's still valid for the character's location,
+	 * otherwise builds a new one and stores it in the operation.
+	 *
+	 * @param db
+	 * @param operation
+	 * @param character
+	 * @param ignoreCombatSites If true, combat site paths are left out
+	 * @return
+	 */
+	public static ExploreSnapshot get(ODPDBAccess db, LongOperation operation, CachedEntity character, boolean ignoreCombatSites)
+	{
+		Key locationKey = (Key)character.getProperty("locationKey");
+		MemcacheService mc = db.getMC();
+
+		// The generations have to be read before we query, that way a write that happens while we're
+		// building invalidates what we build instead of getting lost
+		String pathGenerationKey = LocationPathCache.generationKey(locationKey);
+		String discoveryGenerationKey = discoveryGenerationKey(character.getKey());
+		Map<String, Object> generations = mc.getAll(Arrays.asList(pathGenerationKey, discoveryGenerationKey));
+		long pathGeneration = toGeneration(generations.get(pathGenerationKey));
+		long discoveryGeneration = toGeneration(generations.get(discoveryGenerationKey));
+
+		ExploreSnapshot snapshot = load(operation);
+		if (snapshot!=null && GameUtils.equals(snapshot.locationKey, locationKey) &&
+				snapshot.pathGeneration==pathGeneration && snapshot.discoveryGeneration==discoveryGeneration)
+			return snapshot;
+
+		snapshot = build(db, character.getKey(), locationKey, pathGeneration, discoveryGeneration, ignoreCombatSites);
+		snapshot.store(operation);
+		return snapshot;
+	}
+
+	/**
+	 * Bumps the discovery generation of the given character so its snapshots are rebuilt. Called whenever
+	 * a Discovery is put.
+	 *
+	 * @param mc
+	 * @param characterKey
+	 */
+	public static void invalidateDiscoveries(MemcacheService mc, Key characterKey)
+	{
+		if (characterKey==null) return;
+		mc.increment(discoveryGenerationKey(characterKey), 1L, 0L);
+	}
+
+	/**
+	 * The character's discovery generation, which is bumped whenever one of its Discoveries is put. Other
+	 * caches built from the character's discoveries (see RoutePlanner) can check it too.
+	 *
+	 * @param mc
+	 * @param characterKey
+	 * @return
+	 */
+	static long getDiscoveryGeneration(MemcacheService mc, Key characterKey)
+	{
+		return toGeneration(mc.get(discoveryGenerationKey(characterKey)));
+	}
+
+	/**
+	 * Fetches the paths of this snapshot, all in one go. Paths that were deleted since are left out.
+	 *
+	 * @param db
+	 */
+	public void fetchPaths(ODPDBAccess db)
+	{
+		List<Key> keys = new ArrayList<Key>(campPathKeys.size()+permanentPathKeys.size()+combatSitePathKeys.size());
+		keys.addAll(campPathKeys);
+		keys.addAll(permanentPathKeys);
+		keys.addAll(combatSitePathKeys);
+
+		List<CachedEntity> paths = keys.isEmpty() ? new ArrayList<CachedEntity>() : db.getEntities(keys);
+		int permanentStart = campPathKeys.size();
+		int combatSiteStart = permanentStart+permanentPathKeys.size();
+		campPaths = withoutNulls(paths.subList(0, permanentStart));
+		permanentPaths = withoutNulls(paths.subList(permanentStart, combatSiteStart));
+		combatSitePaths = withoutNulls(paths.subList(combatSiteStart, paths.size()));
+	}
+
+	/**
+	 * @return The undiscovered CampSite and BlockadeSite paths, shuffled. fetchPaths() has to be called first.
+	 */
+	public List<CachedEntity> getCampPaths()
+	{
+		return shuffled(campPaths);
+	}
+
+	/**
+	 * @return The undiscovered Permanent paths, shuffled. fetchPaths() has to be called first.
+	 */
+	public List<CachedEntity> getPermanentPaths()
+	{
+		return shuffled(permanentPaths);
+	}
+
+	/**
+	 * @return The undiscovered CombatSite paths, shuffled. fetchPaths() has to be called first.
+	 */
+	public List<CachedEntity> getCombatSitePaths()
+	{
+		return shuffled(combatSitePaths);
+	}
+
+	private static ExploreSnapshot build(ODPDBAccess db, Key characterKey, Key locationKey, long pathGeneration, long discoveryGeneration, boolean ignoreCombatSites)
+	{
+		// And get all the things the character has discovered...
+		Set<Key> discovered = new HashSet<Key>();
+		for(CachedEntity discovery:db.getDiscoveriesForCharacterAndLocation(characterKey, locationKey, true))
+			if (discovery!=null && discovery.getProperty("entityKey")!=null)
+				discovered.add((Key)discovery.getProperty("entityKey"));
+
+		List<CachedEntity> campPaths = db.getPathsByLocationAndType(locationKey, "CampSite");
+		campPaths.addAll(db.getPathsByLocationAndType(locationKey, "BlockadeSite"));
+
+		List<CachedEntity> combatSitePaths = ignoreCombatSites ? new ArrayList<CachedEntity>() : db.getPathsByLocationAndType(locationKey, "CombatSite");
+
+		return new ExploreSnapshot(locationKey, pathGeneration, discoveryGeneration,
+				undiscovered(campPaths, discovered),
+				undiscovered(db.getPathsByLocation_PermanentOnly(locationKey), discovered),
+				undiscovered(combatSitePaths, discovered));
+	}
+
+	private static List<Key> undiscovered(List<CachedEntity> paths, Set<Key> discovered)
+	{
+		List<Key> result = new ArrayList<Key>();
+		for(CachedEntity path:paths)
+		{
+			if (discovered.contains(path.getKey()))
+				continue;
+			Object discoveryChance = path.getProperty("discoveryChance");
+			if (discoveryChance instanceof Number && ((Number)discoveryChance).doubleValue()==100d)
+				continue;
+			result.add(path.getKey());
+		}
+		return result;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static ExploreSnapshot load(LongOperation operation)
+	{
+		Key locationKey = (Key)operation.getDataProperty(LOCATION_KEY);
+		Long pathGeneration = (Long)operation.getDataProperty(PATH_GENERATION);
+		Long discoveryGeneration = (Long)operation.getDataProperty(DISCOVERY_GENERATION);
+		List<Key> campPathKeys = (List<Key>)operation.getDataProperty(CAMP_PATH_KEYS);
+		List<Key> permanentPathKeys = (List<Key>)operation.getDataProperty(PERMANENT_PATH_KEYS);
+		List<Key> combatSitePathKeys = (List<Key>)operation.getDataProperty(COMBAT_SITE_PATH_KEYS);
+		if (locationKey==null || pathGeneration==null || discoveryGeneration==null ||
+				campPathKeys==null || permanentPathKeys==null || combatSitePathKeys==null)
+			return null;
+
+		return new ExploreSnapshot(locationKey, pathGeneration, discoveryGeneration, campPathKeys, permanentPathKeys, combatSitePathKeys);
+	}
+
+	private void store(LongOperation operation)
+	{
+		operation.setDataProperty(LOCATION_KEY, locationKey);
+		operation.setDataProperty(PATH_GENERATION, pathGeneration);
+		operation.setDataProperty(DISCOVERY_GENERATION, discoveryGeneration);
+		operation.setDataProperty(CAMP_PATH_KEYS, campPathKeys);
+		operation.setDataProperty(PERMANENT_PATH_KEYS, permanentPathKeys);
+		operation.setDataProperty(COMBAT_SITE_PATH_KEYS, combatSitePathKeys);
+	}
+
+	private static List<CachedEntity> withoutNulls(List<CachedEntity> entities)
+	{
+		List<CachedEntity> result = new ArrayList<CachedEntity>(entities.size());
+		for(CachedEntity entity:entities)
+			if (entity!=null) result.add(entity);
+		return result;
+	}
+
+	private static List<CachedEntity> shuffled(List<CachedEntity> paths)
+	{
+		if (paths==null)
+			throw new IllegalStateException("fetchPaths() has to be called first.");
+		List<CachedEntity> result = new ArrayList<CachedEntity>(paths);
+		Collections.shuffle(result, GameRandom.get());
+		return result;
+	}
+
+	private static String discoveryGenerationKey(Key characterKey)
+	{
+		return "DiscoveryGen-"+characterKey;
+	}
+
+	private static long toGeneration(Object generation)
+	{
+		if (generation==null) return 0L;
+		return (Long)generation;
+	}
+}
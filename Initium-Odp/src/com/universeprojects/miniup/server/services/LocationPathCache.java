@@ -0,0 +1,339 @@
+package com.universeprojects.miniup.server.services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.universeprojects.cacheddatastore.CachedDatastoreService;
+import com.universeprojects.cacheddatastore.CachedEntity;
+import com.universeprojects.miniup.server.ODPDBAccess;
+
+/**
+ * Caches the permanent paths (paths with a discoveryChance of 100, which everyone can see) of a location
+ * along with their destination locations and the bits of html that only depend on them. This is the same
+ * for every character standing in the location so it's shared by all requests on this instance.
+ *
+ * The cache is kept in memory, but every location has a generation number in memcache. Writing or deleting
+ * a Path (see ODPDBAccess.deletePath()) bumps the generation of both of its locations and writing a Location
+ * bumps its own generation. An entry is only used if the generations of its location and of all of its
+ * destination locations are unchanged, so any change in the neighbourhood (from any instance) invalidates it.
+ * Paths are found with queries, which may not see a path that was written a moment ago, so nothing is cached
+ * for a location whose generation was bumped in the last few seconds.
+ *
+ * The cache keeps its own copies of the paths and locations and every request gets copies of those, so
+ * nothing a request does to them (or to the instances in its EntityIdentityMap) can leak into the cache.
+ */
+public class LocationPathCache
+{
+	private static final int CACHE_SIZE = 1000;
+	private static final long MAX_AGE_MS = 10*60*1000;
+	// How long after a path was written a query may still miss the change
+	private static final long CONSISTENCY_WINDOW_MS = 10*1000;
+
+	private static final Map<Key, PermanentPaths> cache = new LinkedHashMap<Key, PermanentPaths>(CACHE_SIZE, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, PermanentPaths> eldest)
+		{
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	/**
+	 * The permanent paths of one location. All the lists are parallel: the path at index i leads to
+	 * the destination location at index i.
+	 */
+	public static class PermanentPaths
+	{
+		private final long createdAt;
+		private final Map<String, Long> generations;
+		private final List<CachedEntity> paths;
+		private final List<Integer> pathEnds;
+		private final List<CachedEntity> destLocations;
+		private final List<String> inBannerLinks;
+		private final List<String> globalNavigationMapEntries;
+		private boolean cacheable = true;
+
+		private PermanentPaths(Map<String, Long> generations, List<CachedEntity> paths, List<Integer> pathEnds, List<CachedEntity> destLocations,
+				List<String> inBannerLinks, List<String> globalNavigationMapEntries)
+		{
+			this.createdAt = System.currentTimeMillis();
+			this.generations = generations;
+			this.paths = copyOf(paths);
+			this.pathEnds = Collections.unmodifiableList(pathEnds);
+			this.destLocations = copyOf(destLocations);
+			this.inBannerLinks = Collections.unmodifiableList(inBannerLinks);
+			this.globalNavigationMapEntries = Collections.unmodifiableList(globalNavigationMapEntries);
+		}
+
+		/**
+		 * @return Copies of the paths, the caller is free to change them
+		 */
+		public List<CachedEntity> getPaths()
+		{
+			return copyOf(paths);
+		}
+
+		/**
+		 * 1 or 2. Since each path is 2 sided, this number indicates which side we are NOT on.
+		 */
+		public List<Integer> getPathEnds()
+		{
+			return pathEnds;
+		}
+
+		/**
+		 * @return Copies of the destination locations, the caller is free to change them
+		 */
+		public List<CachedEntity> getDestLocations()
+		{
+			return copyOf(destLocations);
+		}
+
+		/**
+		 * The link html for the banner overlay of each path, or null if the path has no overlay coordinates.
+		 */
+		public List<String> getInBannerLinks()
+		{
+			return inBannerLinks;
+		}
+
+		/**
+		 * The global navigation map html of each destination, or null if the destination isn't on the global map.
+		 */
+		public List<String> getGlobalNavigationMapEntries()
+		{
+			return globalNavigationMapEntries;
+		}
+
+		public int size()
+		{
+			return paths.size();
+		}
+	}
+
+	/**
+	 * Returns the permanent paths of the given location, loading them if they aren't cached or if anything
+	 * in the location's neighbourhood was written since they were cached.
+	 *
+	 * @param db
+	 * @param location
+	 * @return
+	 */
+	public static PermanentPaths getPermanentPaths(ODPDBAccess db, CachedEntity location)
+	{
+		MemcacheService mc = db.getMC();
+		Key locationKey = location.getKey();
+
+		PermanentPaths result;
+		synchronized(cache)
+		{
+			result = cache.get(locationKey);
+		}
+		if (result!=null && isValid(mc, result))
+			return result;
+
+		result = load(db, mc, location);
+		if (result.cacheable)
+		{
+			synchronized(cache)
+			{
+				cache.put(locationKey, result);
+			}
+		}
+		return result;
+	}
+
+	private static boolean isValid(MemcacheService mc, PermanentPaths entry)
+	{
+		if (System.currentTimeMillis()-entry.createdAt > MAX_AGE_MS)
+			return false;
+
+		Map<String, Object> current = mc.getAll(entry.generations.keySet());
+		for(Map.Entry<String, Long> generation:entry.generations.entrySet())
+			if (toGeneration(current.get(generation.getKey()))!=generation.getValue())
+				return false;
+
+		return true;
+	}
+
+	private static PermanentPaths load(ODPDBAccess db, MemcacheService mc, CachedEntity location)
+	{
+		Key locationKey = location.getKey();
+		Map<String, Long> generations = new HashMap<String, Long>();
+
+		// The generation has to be read before we query, that way a write that happens while we're loading
+		// invalidates what we load instead of getting lost
+		String locationGenerationKey = generationKey(locationKey);
+		String locationBumpedAtKey = bumpedAtKey(locationKey);
+		Map<String, Object> locationValues = mc.getAll(Arrays.asList(locationGenerationKey, locationBumpedAtKey));
+		generations.put(locationGenerationKey, toGeneration(locationValues.get(locationGenerationKey)));
+
+		List<CachedEntity> alwaysVisiblePaths = db.getFilteredList("Path", "location1Key", locationKey, "discoveryChance", 100d);
+		alwaysVisiblePaths.addAll(db.getFilteredList("Path", "location2Key", locationKey, "discoveryChance", 100d));
+
+		List<CachedEntity> paths = new ArrayList<CachedEntity>();
+		List<Integer> pathEnds = new ArrayList<Integer>();
+		List<Key> destLocationsToLoad = new ArrayList<Key>();
+		for(CachedEntity path:alwaysVisiblePaths)
+		{
+			if (paths.contains(path))
+				continue;
+
+			// Determine which location the character will end up on
+			Key destination = null;
+			Integer pathEnd = null;
+			Key pathLocation1Key = (Key)path.getProperty("location1Key");
+			Key pathLocation2Key = (Key)path.getProperty("location2Key");
+			if (pathLocation1Key==null)
+				continue;
+			if (pathLocation2Key==null)
+				continue;
+			if (locationKey.getId()==pathLocation1Key.getId())
+			{
+				destination = pathLocation2Key;
+				pathEnd = 2;
+			}
+			else if (locationKey.getId()==pathLocation2Key.getId())
+			{
+				destination = pathLocation1Key;
+				pathEnd = 1;
+			}
+
+			if (destination==null)
+				continue;
+
+			if (pathEnd == 1 && "FromLocation1Only".equals(path.getProperty("forceOneWay")))
+				continue;
+			else if (pathEnd == 2 && "FromLocation2Only".equals(path.getProperty("forceOneWay")))
+				continue;
+
+			paths.add(path);
+			pathEnds.add(pathEnd);
+			destLocationsToLoad.add(destination);
+		}
+
+		List<String> destGenerationKeys = new ArrayList<String>();
+		for(Key destination:destLocationsToLoad)
+			destGenerationKeys.add(generationKey(destination));
+		Map<String, Object> destGenerations = mc.getAll(destGenerationKeys);
+		for(String destGenerationKey:destGenerationKeys)
+			generations.put(destGenerationKey, toGeneration(destGenerations.get(destGenerationKey)));
+
+		List<CachedEntity> destLocations = new ArrayList<CachedEntity>(db.getEntities(destLocationsToLoad));
+		for(int i = destLocations.size()-1; i>=0; i--)
+		{
+			if (destLocations.get(i)==null)
+			{
+				paths.remove(i);
+				pathEnds.remove(i);
+				destLocations.remove(i);
+			}
+		}
+
+		List<String> inBannerLinks = new ArrayList<String>(paths.size());
+		List<String> globalNavigationMapEntries = new ArrayList<String>(paths.size());
+		for(int i = 0; i<paths.size(); i++)
+		{
+			inBannerLinks.add(MainPageUpdateService.renderInBannerPathLink(paths.get(i), destLocations.get(i), pathEnds.get(i)));
+			globalNavigationMapEntries.add(MainPageUpdateService.renderGlobalNavigationMapEntry(location, paths.get(i), destLocations.get(i)));
+		}
+
+		PermanentPaths result = new PermanentPaths(generations, paths, pathEnds, destLocations, inBannerLinks, globalNavigationMapEntries);
+		result.cacheable = isSettling(locationValues.get(locationBumpedAtKey))==false;
+		return result;
+	}
+
+	/**
+	 * Empties the cache of this instance. Used by the tests, where entity ids and memcache start over for
+	 * every test.
+	 */
+	static void clear()
+	{
+		synchronized(cache)
+		{
+			cache.clear();
+		}
+	}
+
+	/**
+	 * Invalidates the cached permanent paths of the given location, and of every location that has a
+	 * permanent path to it.
+	 *
+	 * @param mc
+	 * @param locationKey
+	 */
+	public static void invalidateLocation(MemcacheService mc, Key locationKey)
+	{
+		if (locationKey==null) return;
+		mc.increment(generationKey(locationKey), 1L, 0L);
+		mc.put(bumpedAtKey(locationKey), System.currentTimeMillis(), Expiration.byDeltaMillis((int)CONSISTENCY_WINDOW_MS));
+	}
+
+	/**
+	 * Invalidates the cached permanent paths on both ends of the given path.
+	 *
+	 * @param mc
+	 * @param path
+	 */
+	public static void invalidatePath(MemcacheService mc, CachedEntity path)
+	{
+		invalidateLocation(mc, (Key)path.getProperty("location1Key"));
+		invalidateLocation(mc, (Key)path.getProperty("location2Key"));
+	}
+
+	private static List<CachedEntity> copyOf(List<CachedEntity> entities)
+	{
+		List<CachedEntity> result = new ArrayList<CachedEntity>(entities.size());
+		for(CachedEntity entity:entities)
+		{
+			// Paths and locations always have numeric ids
+			CachedEntity copy = new CachedEntity(entity.getKind(), entity.getKey().getId());
+			CachedDatastoreService.copyFieldValues(entity, copy);
+			result.add(copy);
+		}
+		return result;
+	}
+
+	private static long toGeneration(Object generation)
+	{
+		if (generation==null) return 0L;
+		return (Long)generation;
+	}
+
+	/**
+	 * The memcache key of the given location's generation. Other caches that depend on a location's paths
+	 * (see TerritoryGraph) can check it too.
+	 */
+	static String generationKey(Key locationKey)
+	{
+		return "LocationPathGen-"+locationKey;
+	}
+
+	/**
+	 * The memcache key of when the given location's generation was last bumped, see isSettling().
+	 */
+	static String bumpedAtKey(Key locationKey)
+	{
+		return "LocationPathBumpedAt-"+locationKey;
+	}
+
+	/**
+	 * @param bumpedAt The value at bumpedAtKey()
+	 * @return True if the location's paths changed so recently that a query may not see the change yet, in
+	 * which case what was built from the query shouldn't be cached
+	 */
+	static boolean isSettling(Object bumpedAt)
+	{
+		return bumpedAt!=null && System.currentTimeMillis()-(Long)bumpedAt<CONSISTENCY_WINDOW_MS;
+	}
+}
@@ -0,0 +1,98 @@
+package com.universeprojects.miniup.server.services;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+
+/**
+ * Caches the rendered html of the main page panels that only depend on the location (the collectables
+ * and the location's direct scripts) in memcache, per location and viewer class.
+ *
+ * Instead of deleting cached fragments when something changes, every location has a generation number
+ * that is part of the fragment's cache key. Bumping the generation (see invalidateLocation()) makes all
+ * the fragments of that location unreachable at once and they simply expire. Scripts can be shared by
+ * many locations so they have their own global generation.
+ */
+public class MainPageFragmentCache
+{
+	private static final int EXPIRY_SECONDS = 600;
+
+	private final MemcacheService mc;
+
+	public MainPageFragmentCache(MemcacheService mc)
+	{
+		this.mc = mc;
+	}
+
+	/**
+	 * Builds the cache key for the given panel. The key includes the current generation of the location
+	 * so it should be built once and used for both the get() and the put() of a fragment.
+	 *
+	 * @param panel
+	 * @param locationKey
+	 * @param viewerClass
+	 * @return
+	 */
+	public String getFragmentKey(MainPagePanel panel, Key locationKey, String viewerClass)
+	{
+		String locationGenerationKey = locationGenerationKey(locationKey);
+		Map<String, Object> generations = mc.getAll(Arrays.asList(locationGenerationKey, scriptGenerationKey()));
+
+		return "MPUSFragment-"+panel+"-"+locationKey+"-"+viewerClass+"-"+toGeneration(generations.get(locationGenerationKey))+"-"+toGeneration(generations.get(scriptGenerationKey()));
+	}
+
+	/**
+	 * @return The cached html, or null if it isn't cached
+	 */
+	public String get(String fragmentKey)
+	{
+		return (String)mc.get(fragmentKey);
+	}
+
+	public void put(String fragmentKey, String html)
+	{
+		if (html==null) return;
+		mc.put(fragmentKey, html, Expiration.byDeltaSeconds(EXPIRY_SECONDS));
+	}
+
+	private long toGeneration(Object generation)
+	{
+		if (generation==null) return 0L;
+		return (Long)generation;
+	}
+
+	/**
+	 * Drops all the cached fragments for the given location.
+	 *
+	 * @param mc
+	 * @param locationKey
+	 */
+	public static void invalidateLocation(MemcacheService mc, Key locationKey)
+	{
+		if (locationKey==null) return;
+		mc.increment(locationGenerationKey(locationKey), 1L, 0L);
+	}
+
+	/**
+	 * Drops all the cached fragments that were rendered with scripts, in all locations.
+	 *
+	 * @param mc
+	 */
+	public static void invalidateScripts(MemcacheService mc)
+	{
+		mc.increment(scriptGenerationKey(), 1L, 0L);
+	}
+
+	private static String locationGenerationKey(Key locationKey)
+	{
+		return "MPUSFragmentGen-"+locationKey;
+	}
+
+	private static String scriptGenerationKey()
+	{
+		return "MPUSFragmentGen-Script";
+	}
+}
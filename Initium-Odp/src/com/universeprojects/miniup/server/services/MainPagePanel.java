@@ -0,0 +1,92 @@
+package com.universeprojects.miniup.server.services;
+
+import java.util.Set;
+
+/**
+ * The panels on the main page that the MainPageUpdateService knows how to refresh, in the order
+ * a full page update refreshes them. MainPageUpdateService.updatePanel() maps each panel to its
+ * update method.
+ *
+ * Each panel declares what data it reads, either as a whole entity kind ("Location") or as a single
+ * property of a kind ("Character.dogecoins"). This lets a command tell the MainPageUpdateService what
+ * it changed and only the panels that actually depend on that data get re-rendered and sent back
+ * to the client.
+ */
+public enum MainPagePanel
+{
+	Money("Character.dogecoins", "User.totalDonations"),
+	ButtonList("Character.mode", "Character.combatant", "Character.hitpoints", "Character.locationKey", "Character.groupKey",
+			"Character.equipmentLeftHand", "Character.equipmentRightHand", "User.premium", "Location", "Path", "Discovery", "Group"),
+	InBannerOverlayLinks("Character.mode", "Character.combatant", "Character.hitpoints", "Character.locationKey",
+			"Character.equipmentLeftHand", "Character.equipmentRightHand", "Location", "Path", "Discovery"),
+	LocationJs("Character.mode", "Character.combatant", "Character.hitpoints", "Character.locationKey", "Location"),
+	ActivePlayerCount("Character.locationKey"),
+	ButtonBar("Character.mode", "Character.combatant", "Character.hitpoints", "Character.partyJoinsAllowed", "Character.duelRequestsAllowed",
+			"Character.cloaked"),
+	LocationName("Character.mode", "Character.hitpoints", "Character.locationKey", "Location"),
+	LocationDescription("Character.mode", "Character.hitpoints", "Character.locationKey", "User.premium", "Location"),
+	CampsPanel("Character.mode", "Character.combatant", "Character.hitpoints", "Character.locationKey", "Location"),
+	MonsterCountPanel("Character.mode", "Character.combatant", "Character.locationKey", "Location"),
+	TerritoryView("Character.locationKey", "Location", "Territory"),
+	PartyView("Character.partyCode", "Character.partyLeader", "Character.mode", "Character.locationKey", "Party"),
+	CollectablesView("Character.locationKey", "Location", "Collectable"),
+	LocationDirectScripts("Character.locationKey", "Location", "Script"),
+	InBannerCharacterWidget("Character.name", "Character.hitpoints", "Character.maxHitpoints", "Character.mode", "Character.status", "Character.cloaked",
+			"Character.groupKey", "Character.groupStatus", "Character.equipmentHelmet", "Character.equipmentChest", "Character.equipmentShirt",
+			"Character.equipmentGloves", "Character.equipmentLegs", "Character.equipmentBoots", "Character.equipmentLeftHand",
+			"Character.equipmentRightHand", "Character.equipmentRightRing", "Character.equipmentLeftRing", "Character.equipmentNeck",
+			"User.premium", "Buff", "Group", "Achievement"),
+	InBannerCombatantWidget("Character.mode", "Character.combatant"),
+	TestPanel,
+	ImmovablesPanel("Character.mode", "Character.hitpoints", "Character.locationKey", "Item.immovable", "Item.containerKey", "Item.fireplace"),
+	MidMessagePanel("ClientDescription"),
+	LocationQuicklist("Character.mode", "Character.combatant", "Character.hitpoints", "Character.locationKey", "Location"),
+	GlobalNavigationMap("Character.mode", "Character.hitpoints", "Character.locationKey", "Location", "Path", "Discovery");
+
+	private final String[] dependencies;
+
+	private MainPagePanel(String...dependencies)
+	{
+		this.dependencies = dependencies;
+	}
+
+	public String[] getDependencies()
+	{
+		return dependencies;
+	}
+
+	/**
+	 * Checks if this panel reads any of the given changed data.
+	 *
+	 * A change to a whole kind ("Character") affects all panels that read anything from that kind,
+	 * and a change to a single property ("Character.dogecoins") only affects panels that read
+	 * that property or the whole kind.
+	 *
+	 * @param changed A set of changed kinds and/or Kind.property entries
+	 * @return
+	 */
+	public boolean dependsOn(Set<String> changed)
+	{
+		for(String dependency:dependencies)
+		{
+			if (changed.contains(dependency))
+				return true;
+
+			int dot = dependency.indexOf('.');
+			if (dot>0)
+			{
+				// We read a single property, but the whole kind might have changed
+				if (changed.contains(dependency.substring(0, dot)))
+					return true;
+			}
+			else
+			{
+				// We read the whole kind, so any change to one of its properties affects us
+				for(String change:changed)
+					if (change.startsWith(dependency) && change.length()>dependency.length() && change.charAt(dependency.length())=='.')
+						return true;
+			}
+		}
+		return false;
+	}
+}
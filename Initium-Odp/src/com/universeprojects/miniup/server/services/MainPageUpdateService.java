@@ -5,8 +5,10 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import com.google.appengine.api.datastore.Key;
 import com.universeprojects.cacheddatastore.CachedEntity;
@@ -38,9 +40,13 @@ public class MainPageUpdateService extends Service
 	protected List<CachedEntity> destLocations = null;  // The location entities at the other end of the paths; on the side we're not on currently.
 	protected Map<Key, CachedEntity> destLocationsMap = null;
 	protected List<Integer> pathEnds = null;  // 1 or 2. Since each path is 2 sided, this number indicates which side we are NOT on currently.
+	protected LocationPathCache.PermanentPaths permanentPaths = null;  // The shared permanent paths. These are always the first entries of the lists above.
 	
 	
 	protected List<CachedEntity> immovables = null;	// All items that are immovable will be fetched and stored here for the location
+	
+	private Set<String> changed = new HashSet<String>();	// The kinds and Kind.property entries that were marked as changed, see markChanged()
+	private MainPageFragmentCache fragmentCache = null;
 	/**
 	 * 
 	 * @param db
@@ -122,6 +128,7 @@ public class MainPageUpdateService extends Service
 		this.destLocations = destLocations;
 		this.pathEnds = pathEnds;
 		this.hasHiddenPaths = hasHiddenPaths;
+		this.permanentPaths = null;
 	}
 
 	protected void loadImmovables()
@@ -186,59 +193,15 @@ public class MainPageUpdateService extends Service
 				}
 			});
 			
-			paths = new ArrayList<CachedEntity>();
-			destLocations = new ArrayList<CachedEntity>();
-			pathEnds = new ArrayList<Integer>();
+			// The permanent paths are the same for everyone in this location so they come from a shared cache. 
+			// Only the paths this character discovered are loaded here.
+			permanentPaths = LocationPathCache.getPermanentPaths(db, location);
+			paths = permanentPaths.getPaths();
+			destLocations = permanentPaths.getDestLocations();
+			pathEnds = new ArrayList<Integer>(permanentPaths.getPathEnds());
 			
 			List<Key> destLocationsToLoad = new ArrayList<Key>();
 			
-			
-			//Automatically include any paths that have a discovery of 100
-			List<CachedEntity> alwaysVisiblePaths = db.getFilteredList("Path", "location1Key", location.getKey(), "discoveryChance", 100d);
-			alwaysVisiblePaths.addAll(db.getFilteredList("Path", "location2Key", location.getKey(), "discoveryChance", 100d));
-			for(CachedEntity path:alwaysVisiblePaths)
-			{
-				if (paths.contains(path))
-					continue;
-				
-				Key destination = null;
-				// First get the character's current location
-				Key currentLocationKey = location.getKey();
-				
-				// Then determine which location the character will end up on.
-				// If we find that the character isn't on either end of the path, we'll throw.
-				Integer pathEnd = null;
-				Key pathLocation1Key = (Key)path.getProperty("location1Key");
-				Key pathLocation2Key = (Key)path.getProperty("location2Key");
-				if (pathLocation1Key==null)
-					continue;
-				if (pathLocation2Key==null)
-					continue;
-				if (currentLocationKey.getId()==pathLocation1Key.getId())
-				{
-					destination = pathLocation2Key;
-					pathEnd = 2;
-				}
-				else if (currentLocationKey.getId()==pathLocation2Key.getId())
-				{
-					destination = pathLocation1Key;
-					pathEnd = 1;
-				}
-				
-				if (pathEnd == 1 && "FromLocation1Only".equals(path.getProperty("forceOneWay")))
-					continue;	
-				else if (pathEnd == 2 && "FromLocation2Only".equals(path.getProperty("forceOneWay")))
-					continue;	
-				
-				if (destination!=null)
-				{
-					paths.add(path);
-					destLocationsToLoad.add(destination);
-					pathEnds.add(pathEnd);
-				}
-				
-			}
-			
 			// Fetch the paths all at once, then combine.
 			List<Key> pathsToFetch = new ArrayList<Key>();
 			for(CachedEntity discovery:discoveries)
@@ -318,9 +281,9 @@ public class MainPageUpdateService extends Service
 			}
 			
 			// Now that we have a list of destLocations to load, we will load them in now and delete any that ended up being null..
-			destLocations = db.getEntities(destLocationsToLoad);
+			destLocations.addAll(db.getEntities(destLocationsToLoad));
 //			List<Key> entitiesToDelete = new ArrayList<Key>();
-			for(int i = destLocations.size()-1; i>=0; i--)
+			for(int i = destLocations.size()-1; i>=permanentPaths.size(); i--)
 			{
 				if (destLocations.get(i)==null)
 				{
@@ -450,27 +413,10 @@ public class MainPageUpdateService extends Service
 	
 	public void updateFullPage_shortcut()
 	{
-		updateMoney();
-		updateButtonList();
-		updateInBannerOverlayLinks();
-		updateLocationJs();	
-		updateActivePlayerCount();
-		updateButtonBar();
-		updateLocationName();
-		updateLocationDescription();
-		updateCampsPanel();
-		updateMonsterCountPanel();
-		updateTerritoryView();
-		updatePartyView();
-		updateCollectablesView();
-		updateLocationDirectScripts();
-		updateInBannerCharacterWidget();
-		updateInBannerCombatantWidget();
-		updateTestPanel();
-		updateImmovablesPanel(); 
-		updateMidMessagePanel();
-		updateLocationQuicklist();
-		updateGlobalNavigationMap();
+		for(MainPagePanel panel:MainPagePanel.values())
+			updatePanel(panel);
+		
+		changed.clear();
 	}
 
 	public void updateFullPage_shortcut(boolean refreshChat)
@@ -481,6 +427,106 @@ public class MainPageUpdateService extends Service
 			updateLocationJs(refreshChat);	
 	}
 
+	/**
+	 * Tells this service that the given data has changed. Use updateChangedPanels() afterwards to
+	 * refresh only the panels that depend on the changed data.
+	 * 
+	 * @param kind The entity kind that changed (ie. "Character")
+	 * @param properties The properties of that kind that changed. If none are given, the whole kind is considered changed.
+	 */
+	public void markChanged(String kind, String...properties)
+	{
+		if (properties==null || properties.length==0)
+			changed.add(kind);
+		else
+			for(String property:properties)
+				changed.add(kind+"."+property);
+	}
+	
+	/**
+	 * Tells this service that all of the given entity's data has changed.
+	 * 
+	 * @param entity
+	 */
+	public void markChanged(CachedEntity entity)
+	{
+		if (entity!=null)
+			markChanged(entity.getKind());
+	}
+	
+	/**
+	 * Refreshes only the panels that depend on the data that was marked as changed (see markChanged()) and
+	 * then clears the changes. If nothing was marked, nothing is sent to the client.
+	 * 
+	 * For example, a command that only changes gold will only re-send the money panel:
+	 * <pre>
+	 * mpus.markChanged("Character", "dogecoins");
+	 * mpus.updateChangedPanels();
+	 * </pre>
+	 */
+	public void updateChangedPanels()
+	{
+		if (changed.isEmpty()) return;
+		
+		for(MainPagePanel panel:MainPagePanel.values())
+			if (panel.dependsOn(changed))
+				updatePanel(panel);
+		
+		changed.clear();
+	}
+	
+	public String updatePanel(MainPagePanel panel)
+	{
+		switch(panel)
+		{
+			case Money: return updateMoney();
+			case ButtonList: return updateButtonList();
+			case InBannerOverlayLinks: return updateInBannerOverlayLinks();
+			case LocationJs: return updateLocationJs();
+			case ActivePlayerCount: return updateActivePlayerCount();
+			case ButtonBar: return updateButtonBar();
+			case LocationName: return updateLocationName();
+			case LocationDescription: return updateLocationDescription();
+			case CampsPanel: return updateCampsPanel();
+			case MonsterCountPanel: return updateMonsterCountPanel();
+			case TerritoryView: return updateTerritoryView();
+			case PartyView: return updatePartyView();
+			case CollectablesView: return updateCollectablesView();
+			case LocationDirectScripts: return updateLocationDirectScripts();
+			case InBannerCharacterWidget: return updateInBannerCharacterWidget();
+			case InBannerCombatantWidget: return updateInBannerCombatantWidget();
+			case TestPanel: return updateTestPanel();
+			case ImmovablesPanel: return updateImmovablesPanel();
+			case MidMessagePanel: return updateMidMessagePanel();
+			case LocationQuicklist: return updateLocationQuicklist();
+			case GlobalNavigationMap: return updateGlobalNavigationMap();
+		}
+		throw new IllegalArgumentException("Unhandled main page panel: "+panel);
+	}
+	
+	/**
+	 * The viewer class groups characters that see the same location shared panels, so their html
+	 * can be cached per location and viewer class.
+	 * 
+	 * @return
+	 */
+	protected String getViewerClass()
+	{
+		if (CommonChecks.checkCharacterIsIncapacitated(character))
+			return "Incapacitated";
+		if (CommonChecks.checkCharacterIsInCombat(character))
+			return "Combat";
+		return "Normal";
+	}
+	
+	private MainPageFragmentCache getFragmentCache()
+	{
+		if (fragmentCache==null)
+			fragmentCache = new MainPageFragmentCache(db.getMC());
+		
+		return fragmentCache;
+	}
+	
 	/**
 	 * This updates the gold amount in the header bar.
 	 *
@@ -638,14 +684,14 @@ public class MainPageUpdateService extends Service
 				if (paths!=null)
 					for(int i = 0; i<paths.size(); i++)
 					{
-						CachedEntity path = paths.get(i);
-						CachedEntity location = destLocations.get(i);
-						String type = (String)location.getProperty("mapComponentType");
-						if ("Global".equals(type))
-						{
-							addGlobalNavigationMapEntry(html, location, path, shiftX, shiftY);
-						}
+						String entry;
+						if (permanentPaths!=null && i<permanentPaths.size())
+							entry = permanentPaths.getGlobalNavigationMapEntries().get(i);
+						else
+							entry = renderGlobalNavigationMapEntry(location, paths.get(i), destLocations.get(i));
 						
+						if (entry!=null)
+							html.append(entry);
 					}
 			}
 			else
@@ -656,7 +702,26 @@ public class MainPageUpdateService extends Service
 		return updateHtmlContents("#global-navigation-map", html.toString());
 	}
 	
-	private void addGlobalNavigationMapEntry(StringBuilder html, CachedEntity location, CachedEntity path, Long shiftX, Long shiftY)
+	/**
+	 * Renders the global navigation map entry for the destination of the given path, as seen from the given location.
+	 * 
+	 * @return The html, or null if either location isn't on the global map
+	 */
+	static String renderGlobalNavigationMapEntry(CachedEntity location, CachedEntity path, CachedEntity destLocation)
+	{
+		Long shiftX = (Long)location.getProperty("mapComponentX");
+		Long shiftY = (Long)location.getProperty("mapComponentY");
+		if (shiftX==null || shiftY==null || "Global".equals(location.getProperty("mapComponentType"))==false)
+			return null;
+		if ("Global".equals(destLocation.getProperty("mapComponentType"))==false)
+			return null;
+		
+		StringBuilder html = new StringBuilder();
+		addGlobalNavigationMapEntry(html, destLocation, path, shiftX, shiftY);
+		return html.toString();
+	}
+	
+	private static void addGlobalNavigationMapEntry(StringBuilder html, CachedEntity location, CachedEntity path, Long shiftX, Long shiftY)
 	{
 		String imageUrl = GameUtils.getResourceUrl((String)location.getProperty("mapComponentImage"));
 		Long positionX = (Long)location.getProperty("mapComponentX");
@@ -699,40 +764,14 @@ public class MainPageUpdateService extends Service
 			
 			for(int i = 0; i<paths.size(); i++)
 			{
-				CachedEntity path = paths.get(i);
-				CachedEntity destLocation = destLocations.get(i);
-				Integer pathEnd = pathEnds.get(i);
-					
-				String destLocationName = (String)destLocation.getProperty("name");
-	
-				String overlayCoordinates = (String)path.getProperty("location"+pathEnd+"OverlayCoordinates");
-				if (overlayCoordinates==null || overlayCoordinates.matches("\\d+x\\d+")==false)
-					continue;
-				String top = "";
-				String left = "";
-				String[] split = overlayCoordinates.split("x");
-				left = split[0];
-				top = split[1];
-				
-				// Convert to percentage coordinates
-				double topDbl = Double.parseDouble(top);
-				double leftDbl = Double.parseDouble(left);
-				int topInt = new Double(topDbl/211d*100).intValue();
-				int leftInt = new Double(leftDbl/728d*100).intValue();
-		
-
-				String buttonCaption = "Head towards "+destLocationName;
-				String buttonCaptionOverride = (String)path.getProperty("location"+pathEnd+"ButtonNameOverride");
-				String overlayCaptionOverride = (String)path.getProperty("location"+pathEnd+"OverlayText");
-				if (buttonCaptionOverride!=null && buttonCaptionOverride.trim().equals("")==false)
-					buttonCaption = buttonCaptionOverride;
-				if (overlayCaptionOverride!=null && overlayCaptionOverride.trim().equals("")==false)
-					buttonCaption = overlayCaptionOverride;
-				
-				
-				String onclick = "doGoto(event, "+path.getKey().getId()+", true);";				
+				String link;
+				if (permanentPaths!=null && i<permanentPaths.size())
+					link = permanentPaths.getInBannerLinks().get(i);
+				else
+					link = renderInBannerPathLink(paths.get(i), destLocations.get(i), pathEnds.get(i));
 				
-				newHtml.append(getHtmlForInBannerLink(topInt, leftInt, buttonCaption, onclick));
+				if (link!=null)
+					newHtml.append(link);
 			}
 
 			if (CommonChecks.checkLocationIsCombatSite(location)==false)
@@ -782,7 +821,46 @@ public class MainPageUpdateService extends Service
 		return updateHtmlContents("#banner-text-overlay", newHtml.toString());
 	}
 	
-	private String getHtmlForInBannerLink(double top, double left, String buttonCaption, String onclickJs)
+	/**
+	 * Renders the banner overlay link for the given path.
+	 * 
+	 * @return The html, or null if the path doesn't have overlay coordinates for this side
+	 */
+	static String renderInBannerPathLink(CachedEntity path, CachedEntity destLocation, int pathEnd)
+	{
+		String destLocationName = (String)destLocation.getProperty("name");
+
+		String overlayCoordinates = (String)path.getProperty("location"+pathEnd+"OverlayCoordinates");
+		if (overlayCoordinates==null || overlayCoordinates.matches("\\d+x\\d+")==false)
+			return null;
+		String top = "";
+		String left = "";
+		String[] split = overlayCoordinates.split("x");
+		left = split[0];
+		top = split[1];
+		
+		// Convert to percentage coordinates
+		double topDbl = Double.parseDouble(top);
+		double leftDbl = Double.parseDouble(left);
+		int topInt = new Double(topDbl/211d*100).intValue();
+		int leftInt = new Double(leftDbl/728d*100).intValue();
+	
+
+		String buttonCaption = "Head towards "+destLocationName;
+		String buttonCaptionOverride = (String)path.getProperty("location"+pathEnd+"ButtonNameOverride");
+		String overlayCaptionOverride = (String)path.getProperty("location"+pathEnd+"OverlayText");
+		if (buttonCaptionOverride!=null && buttonCaptionOverride.trim().equals("")==false)
+			buttonCaption = buttonCaptionOverride;
+		if (overlayCaptionOverride!=null && overlayCaptionOverride.trim().equals("")==false)
+			buttonCaption = overlayCaptionOverride;
+		
+		
+		String onclick = "doGoto(event, "+path.getKey().getId()+", true);";				
+		
+		return getHtmlForInBannerLink(topInt, leftInt, buttonCaption, onclick);
+	}
+	
+	private static String getHtmlForInBannerLink(double top, double left, String buttonCaption, String onclickJs)
 	{
 		return "<a onclick='"+onclickJs.replace("'", "\\'")+"' class='path-overlay-link' style='top:"+top+"%;left: "+left+"%;'>"+buttonCaption+"</a>";
 		
@@ -1201,6 +1279,11 @@ public class MainPageUpdateService extends Service
 	
 	public String updateLocationDirectScripts()
 	{
+		String fragmentKey = getFragmentCache().getFragmentKey(MainPagePanel.LocationDirectScripts, location.getKey(), getViewerClass());
+		String cachedHtml = getFragmentCache().get(fragmentKey);
+		if (cachedHtml!=null)
+			return updateHtmlContents("#locationScripts", cachedHtml);
+		
 		StringBuilder newHtml = new StringBuilder();
 		@SuppressWarnings("unchecked")
 		List<Key> scriptKeys = (List<Key>)location.getProperty("scripts");
@@ -1227,8 +1310,9 @@ public class MainPageUpdateService extends Service
 			}
 		}
 		
-		return updateHtmlContents("#locationScripts", newHtml.toString());
+		getFragmentCache().put(fragmentKey, newHtml.toString());
 		
+		return updateHtmlContents("#locationScripts", newHtml.toString());
 	}
 
 	
@@ -1315,6 +1399,11 @@ public class MainPageUpdateService extends Service
 
 	public String updateCollectablesView()
 	{
+		String fragmentKey = getFragmentCache().getFragmentKey(MainPagePanel.CollectablesView, location.getKey(), getViewerClass());
+		String cachedHtml = getFragmentCache().get(fragmentKey);
+		if (cachedHtml!=null)
+			return updateHtmlContents("#collectablesPanel", cachedHtml);
+		
 		StringBuilder html = new StringBuilder();
 		
 		List<CachedEntity> collectablesHere = db.getCollectablesForLocation(location.getKey());
@@ -1343,6 +1432,8 @@ public class MainPageUpdateService extends Service
 		}
 		
 		
+		getFragmentCache().put(fragmentKey, html.toString());
+		
 		return updateHtmlContents("#collectablesPanel", html.toString());
 	}
 
@@ -54,7 +54,7 @@ public class MovementService extends Service {
 						ds.put(key);
 					}
 					else
-						ds.delete(key);
+						db.deleteItem(ds, key);
 				}
 			}
 		}
@@ -9,6 +9,7 @@ import java.util.logging.Logger;
 
 import com.google.appengine.api.datastore.Key;
 import com.universeprojects.cacheddatastore.CachedEntity;
+import com.universeprojects.miniup.server.GameRandom;
 import com.universeprojects.miniup.server.GameUtils;
 import com.universeprojects.miniup.server.ODPDBAccess;
 
@@ -20,6 +21,7 @@ public class NPCArmyService extends Service
 	
 	
 	List<CachedEntity> npcs = null;
+	CachedEntity npcDef = null;
 	
 	
 	
@@ -144,8 +146,28 @@ public class NPCArmyService extends Service
 		return npcs;
 	}
 	
+	public CachedEntity getNpcDef()
+	{
+		if (npcDef!=null)
+			return npcDef;
+		
+		npcDef = db.getEntity(getNpcDefKey());
+		return npcDef;
+	}
+	
 	/**
-	 * This should be called on the server tick, which is called once every 10 minutes.
+	 * Ticks every NPCArmy in the game with batched queries, see NPCArmyTickProcessor. This is what the server
+	 * tick (once every 10 minutes) calls, instead of calling doTick() on each army.
+	 * 
+	 * @param db
+	 */
+	public static void doTickAll(ODPDBAccess db)
+	{
+		new NPCArmyTickProcessor(db).doTick();
+	}
+	
+	/**
+	 * Ticks only this army, querying everything it needs on its own. Use doTickAll() to tick every army.
 	 */
 	public void doTick()
 	{
@@ -174,8 +196,10 @@ public class NPCArmyService extends Service
 	/**
 	 * This method will attempt to spawn a new NPC at the army's location depending on the "spawns per tick" setting and only up 
 	 * to a maximum of "max spawn count" for the location. 	
+	 * 
+	 * This does not save the army, even though it may turn off the seed field.
 	 */
-	private void attemptToSpawn()
+	void attemptToSpawn()
 	{
 		if (getMaxSpawnCount()<=0L) return;
 		
@@ -187,7 +211,7 @@ public class NPCArmyService extends Service
 		
 		if (isSeed())
 		{
-			CachedEntity npcDef = db.getEntity(getNpcDefKey());
+			CachedEntity npcDef = getNpcDef();
 			long spawnCount = Math.round(getSpawnsPerTick());
 			if (spawnCount<1) spawnCount = 1;
 			for(int i = 0; i<spawnCount; i++)
@@ -199,12 +223,12 @@ public class NPCArmyService extends Service
 		}
 		else if (getSpawnsPerTick()<1 && GameUtils.roll(getSpawnsPerTick())==true)
 		{
-			CachedEntity npcDef = db.getEntity(getNpcDefKey());
+			CachedEntity npcDef = getNpcDef();
 			db.doCreateMonster(npcDef, getLocationKey());
 		}
 		else if (getSpawnsPerTick()>=1)
 		{
-			CachedEntity npcDef = db.getEntity(getNpcDefKey());
+			CachedEntity npcDef = getNpcDef();
 			long spawnCount = Math.round(getSpawnsPerTick());
 			for(int i = 0; i<spawnCount; i++)
 				db.doCreateMonster(npcDef, getLocationKey());
@@ -231,7 +255,7 @@ public class NPCArmyService extends Service
 			// Get all the "permanent" paths that lead away from here
 			List<CachedEntity> paths = db.getPathsByLocation_PermanentOnly(getLocationKey());
 			
-			Collections.shuffle(paths);
+			Collections.shuffle(paths, GameRandom.get());
 			
 			// Now get all the location keys that are on the other side of the paths that lead away from here...
 			Map<CachedEntity, Key> pathsToLocations = new HashMap<CachedEntity, Key>();
@@ -0,0 +1,378 @@
+package com.universeprojects.miniup.server.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.universeprojects.cacheddatastore.CachedEntity;
+import com.universeprojects.miniup.server.GameRandom;
+import com.universeprojects.miniup.server.GameUtils;
+import com.universeprojects.miniup.server.ODPDBAccess;
+
+/**
+ * Ticks every NPCArmy in the game at once. This does the same as calling NPCArmyService.doTick() on each army,
+ * but instead of querying the NPCs, paths and neighbouring armies of each army one at a time, everything is
+ * loaded up front with a handful of batched queries and gets:
+ * <ul>
+ * <li>All armies are loaded with one query, which also serves as the lookup for the armies at neighbouring locations.</li>
+ * <li>The live NPCs are queried per NPC definition for up to 30 locations at a time.</li>
+ * <li>The permanent paths are only queried for armies that are able to propagate, again 30 locations at a time.</li>
+ * <li>NPC definitions and destination locations are fetched with multi-key gets.</li>
+ * </ul>
+ * Propagation and spawning are then worked out in memory and all army changes are written with a single put
+ * (and a single delete). Spawning the NPCs themselves still goes through ODPDBAccess.doCreateMonster().
+ *
+ * A summary with the timings of each phase is logged at the end of every tick.
+ */
+public class NPCArmyTickProcessor extends Service
+{
+	final static Logger log = Logger.getLogger(NPCArmyTickProcessor.class.getName());
+
+	private static final int MAX_ARMIES = 5000;
+	// The datastore doesn't allow more values than this in an IN filter
+	private static final int MAX_IN_VALUES = 30;
+
+	private List<NPCArmyService> armies;
+	// "locationKey|npcDefKey" -> army, includes armies created during this tick
+	private Map<String, CachedEntity> armiesByLocation;
+	private Map<Key, List<CachedEntity>> pathsByLocation;
+	private Map<Key, CachedEntity> destinations;
+	private Set<CachedEntity> toSave;
+	private List<Key> toDelete;
+
+	// Metrics of the last tick
+	private int queryCount = 0;
+	private int propagatedCount = 0;
+	private int createdCount = 0;
+
+	public NPCArmyTickProcessor(ODPDBAccess db)
+	{
+		super(db);
+	}
+
+	/**
+	 * This should be called on the server tick, which is called once every 10 minutes.
+	 */
+	public void doTick()
+	{
+		queryCount = 0;
+		propagatedCount = 0;
+		createdCount = 0;
+		toSave = Collections.newSetFromMap(new IdentityHashMap<CachedEntity, Boolean>());
+		toDelete = new ArrayList<Key>();
+
+		long startTime = System.currentTimeMillis();
+		loadArmies();
+		long armiesTime = System.currentTimeMillis();
+		loadNPCs();
+		long npcsTime = System.currentTimeMillis();
+		loadPaths();
+		long pathsTime = System.currentTimeMillis();
+
+		for(NPCArmyService army:armies)
+			tickArmy(army);
+		long processTime = System.currentTimeMillis();
+
+		if (toSave.isEmpty()==false)
+			ds.put(new ArrayList<CachedEntity>(toSave));
+		if (toDelete.isEmpty()==false)
+			ds.delete(toDelete);
+		long saveTime = System.currentTimeMillis();
+
+		log.info("NPCArmy tick: "+armies.size()+" armies, "+queryCount+" queries, "+propagatedCount+" propagations ("+createdCount+" new armies), "
+				+toSave.size()+" saved, "+toDelete.size()+" deleted. "
+				+"Timings (ms): load armies "+(armiesTime-startTime)+", load NPCs "+(npcsTime-armiesTime)+", load paths "+(pathsTime-npcsTime)
+				+", process "+(processTime-pathsTime)+", save "+(saveTime-processTime)+", total "+(saveTime-startTime));
+	}
+
+	private void loadArmies()
+	{
+		List<CachedEntity> armyEntities = ds.fetchAsList("NPCArmy", null, MAX_ARMIES);
+		queryCount++;
+		if (armyEntities.size()>=MAX_ARMIES)
+			log.log(Level.WARNING, "NPCArmy tick loaded "+armyEntities.size()+" armies, which is the limit. Armies past the limit are not ticked, raise MAX_ARMIES.");
+
+		armies = new ArrayList<NPCArmyService>(armyEntities.size());
+		armiesByLocation = new HashMap<String, CachedEntity>();
+		Set<Key> npcDefKeys = new HashSet<Key>();
+		for(CachedEntity armyEntity:armyEntities)
+		{
+			if (armyEntity==null) continue;
+			NPCArmyService army = new NPCArmyService(db, armyEntity);
+			armies.add(army);
+			armiesByLocation.put(locationIndexKey(army.getLocationKey(), army.getNpcDefKey()), armyEntity);
+			if (army.getNpcDefKey()!=null)
+				npcDefKeys.add(army.getNpcDefKey());
+		}
+
+		Map<Key, CachedEntity> npcDefs = getEntitiesMap(npcDefKeys);
+		for(NPCArmyService army:armies)
+			army.npcDef = npcDefs.get(army.getNpcDefKey());
+	}
+
+	/**
+	 * Loads the live NPCs of every army.
+	 */
+	private void loadNPCs()
+	{
+		Map<Key, Set<Key>> locationsByNpcDef = new LinkedHashMap<Key, Set<Key>>();
+		for(NPCArmyService army:armies)
+		{
+			if (army.getNpcDefKey()==null || army.getLocationKey()==null) continue;
+			Set<Key> locations = locationsByNpcDef.get(army.getNpcDefKey());
+			if (locations==null)
+			{
+				locations = new HashSet<Key>();
+				locationsByNpcDef.put(army.getNpcDefKey(), locations);
+			}
+			locations.add(army.getLocationKey());
+		}
+
+		Map<String, List<CachedEntity>> npcsByLocation = new HashMap<String, List<CachedEntity>>();
+		for(Map.Entry<Key, Set<Key>> entry:locationsByNpcDef.entrySet())
+		{
+			for(List<Key> locationKeys:chunk(entry.getValue()))
+			{
+				Query q = new Query("Character").setFilter(CompositeFilterOperator.and(
+						new FilterPredicate("_definitionKey", FilterOperator.EQUAL, entry.getKey()),
+						new FilterPredicate("locationKey", FilterOperator.IN, locationKeys)));
+				List<CachedEntity> npcs = ds.fetchAsList(q, 1000*locationKeys.size());
+				queryCount++;
+
+				for(CachedEntity npc:npcs)
+				{
+					if (npc==null || npc.getProperty("hitpoints")==null || (Double)npc.getProperty("hitpoints")<1d)
+						continue;
+					String indexKey = locationIndexKey((Key)npc.getProperty("locationKey"), entry.getKey());
+					List<CachedEntity> locationNpcs = npcsByLocation.get(indexKey);
+					if (locationNpcs==null)
+					{
+						locationNpcs = new ArrayList<CachedEntity>();
+						npcsByLocation.put(indexKey, locationNpcs);
+					}
+					locationNpcs.add(npc);
+				}
+			}
+		}
+
+		for(NPCArmyService army:armies)
+		{
+			List<CachedEntity> npcs = npcsByLocation.get(locationIndexKey(army.getLocationKey(), army.getNpcDefKey()));
+			if (npcs==null)
+				npcs = new ArrayList<CachedEntity>();
+			army.npcs = npcs;
+		}
+	}
+
+	/**
+	 * Loads the permanent paths (and the locations on the other end of them) of every army that
+	 * is able to propagate this tick.
+	 */
+	private void loadPaths()
+	{
+		Set<Key> locationKeys = new HashSet<Key>();
+		for(NPCArmyService army:armies)
+			if (canPropagate(army))
+				locationKeys.add(army.getLocationKey());
+
+		pathsByLocation = new HashMap<Key, List<CachedEntity>>();
+		Map<Key, CachedEntity> paths = new LinkedHashMap<Key, CachedEntity>();
+		for(List<Key> chunk:chunk(locationKeys))
+		{
+			for(String locationField:new String[]{"location1Key", "location2Key"})
+			{
+				Query q = new Query("Path").setFilter(CompositeFilterOperator.and(
+						new FilterPredicate("type", FilterOperator.EQUAL, "Permanent"),
+						new FilterPredicate(locationField, FilterOperator.IN, chunk)));
+				for(CachedEntity path:ds.fetchAsList(q, 1000*chunk.size()))
+					if (path!=null)
+						paths.put(path.getKey(), path);
+				queryCount++;
+			}
+		}
+
+		Set<Key> destinationKeys = new HashSet<Key>();
+		for(CachedEntity path:paths.values())
+		{
+			Key location1Key = (Key)path.getProperty("location1Key");
+			Key location2Key = (Key)path.getProperty("location2Key");
+			if (locationKeys.contains(location1Key))
+			{
+				addPath(location1Key, path);
+				destinationKeys.add(location2Key);
+			}
+			if (locationKeys.contains(location2Key) && GameUtils.equals(location1Key, location2Key)==false)
+			{
+				addPath(location2Key, path);
+				destinationKeys.add(location1Key);
+			}
+		}
+		destinationKeys.remove(null);
+
+		destinations = getEntitiesMap(destinationKeys);
+	}
+
+	private void addPath(Key locationKey, CachedEntity path)
+	{
+		List<CachedEntity> locationPaths = pathsByLocation.get(locationKey);
+		if (locationPaths==null)
+		{
+			locationPaths = new ArrayList<CachedEntity>();
+			pathsByLocation.put(locationKey, locationPaths);
+		}
+		locationPaths.add(path);
+	}
+
+	/**
+	 * The same steps as NPCArmyService.doTick(), using what was loaded up front.
+	 */
+	private void tickArmy(NPCArmyService army)
+	{
+		CachedEntity armyEntity = army.npcArmy;
+		long propagationCount = army.getPropagationCount();
+		boolean seed = army.isSeed();
+
+		// Check if we need to propagate
+		attemptToPropagate(army);
+
+		// Check if there are NO npcs left and seed is NOT set. If so, we'll delete the army as it has been defeated
+		if (army.isSeed()==false && army.getNPCs().size()==0)
+		{
+			toDelete.add(army.npcArmyKey);
+			toSave.remove(armyEntity);
+			armiesByLocation.remove(locationIndexKey(army.getLocationKey(), army.getNpcDefKey()));
+			return;
+		}
+
+		// Spawn more monsters
+		army.attemptToSpawn();
+
+		if (armyEntity.isUnsaved() || propagationCount!=army.getPropagationCount() || seed!=army.isSeed())
+			toSave.add(armyEntity);
+	}
+
+	private boolean canPropagate(NPCArmyService army)
+	{
+		if (army.getLocationKey()==null) return false;
+		if (army.getPropagationCount()<=0) return false;
+
+		// If we are at or over the maxSpawnCount, then we will attempt to propagate
+		return army.getNPCs().size()>=army.getMinSpawnsToPropagate();
+	}
+
+	/**
+	 * Propagates the army to adjacent locations, see NPCArmyService.attemptToPropagate().
+	 */
+	private void attemptToPropagate(NPCArmyService army)
+	{
+		if (canPropagate(army)==false) return;
+
+		List<CachedEntity> paths = pathsByLocation.get(army.getLocationKey());
+		if (paths==null) return;
+
+		// The list is shared by all the armies in this location
+		paths = new ArrayList<CachedEntity>(paths);
+		Collections.shuffle(paths, GameRandom.get());
+
+		for(CachedEntity path:paths)
+		{
+			if (army.getPropagationCount()<=0) return;
+
+			if (path.getProperty("discoveryChance")==null || (Double)path.getProperty("discoveryChance")<=0d)
+				continue;
+
+			Key locationToPropagateTo;
+			if (GameUtils.equals(path.getProperty("location1Key"), army.getLocationKey()))
+				locationToPropagateTo = (Key)path.getProperty("location2Key");
+			else
+				locationToPropagateTo = (Key)path.getProperty("location1Key");
+
+			// If there is already an NPCArmy at this location, we will add to it
+			CachedEntity npcArmyAtNextLocation = armiesByLocation.get(locationIndexKey(locationToPropagateTo, army.getNpcDefKey()));
+
+			// If there is no army at the next location, we will create one. If there is, we'll add a propagation value to it
+			if (npcArmyAtNextLocation==null)
+			{
+				CachedEntity locationEntity = destinations.get(locationToPropagateTo);
+				if (locationEntity==null) continue; // Cancel propagation to here, the location is deleted
+				CachedEntity newNpcArmy = new CachedEntity("NPCArmy");
+				newNpcArmy.setProperty("maxSpawnCount", db.solveCurve_Long(army.getPropagatedMaxSpawnCount()));
+				newNpcArmy.setProperty("propagatedMaxSpawnCount", army.getPropagatedMaxSpawnCount());
+				newNpcArmy.setProperty("propagationCount", 0L);
+				newNpcArmy.setProperty("seed", true);
+				newNpcArmy.setProperty("spawnsPerTick", army.getSpawnsPerTick());
+				newNpcArmy.setProperty("npcDefKey", army.getNpcDefKey());
+				newNpcArmy.setProperty("locationKey", locationToPropagateTo);
+				newNpcArmy.setProperty("uniqueId", army.getUniqueId());
+				newNpcArmy.setProperty("name", army.getUniqueId()+": "+locationEntity.getProperty("name")+"(max: "+newNpcArmy.getProperty("maxSpawnCount")+")");
+
+				army.setPropagationCount(army.getPropagationCount()-1);
+
+				armiesByLocation.put(locationIndexKey(locationToPropagateTo, army.getNpcDefKey()), newNpcArmy);
+				toSave.add(newNpcArmy);
+				createdCount++;
+				propagatedCount++;
+			}
+			else
+			{
+				Long nextLocationPropagationCount = (Long)npcArmyAtNextLocation.getProperty("propagationCount");
+				if (nextLocationPropagationCount==null) nextLocationPropagationCount = 0L;
+				// If the location we're propagating to has the same or more propagationCount, then don't bother performing the propagation
+				// and try the next path instead
+				if (nextLocationPropagationCount>=army.getPropagationCount())
+					continue;
+
+				npcArmyAtNextLocation.setProperty("propagationCount", nextLocationPropagationCount+1);
+				army.setPropagationCount(army.getPropagationCount()-1);
+
+				toSave.add(npcArmyAtNextLocation);
+				propagatedCount++;
+			}
+		}
+	}
+
+	private Map<Key, CachedEntity> getEntitiesMap(Set<Key> keys)
+	{
+		Map<Key, CachedEntity> result = new HashMap<Key, CachedEntity>();
+		if (keys.isEmpty()) return result;
+
+		for(CachedEntity entity:db.getEntities(new ArrayList<Key>(keys)))
+			if (entity!=null)
+				result.put(entity.getKey(), entity);
+		return result;
+	}
+
+	private static List<List<Key>> chunk(Set<Key> keys)
+	{
+		List<List<Key>> result = new ArrayList<List<Key>>();
+		List<Key> current = null;
+		for(Key key:keys)
+		{
+			if (current==null || current.size()>=MAX_IN_VALUES)
+			{
+				current = new ArrayList<Key>(MAX_IN_VALUES);
+				result.add(current);
+			}
+			current.add(key);
+		}
+		return result;
+	}
+
+	private static String locationIndexKey(Key locationKey, Key npcDefKey)
+	{
+		return locationKey+"|"+npcDefKey;
+	}
+}
@@ -0,0 +1,224 @@
+package com.universeprojects.miniup.server.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.universeprojects.cacheddatastore.CachedEntity;
+import com.universeprojects.miniup.server.GameUtils;
+import com.universeprojects.miniup.server.ODPDBAccess;
+
+/**
+ * Finds the quickest route (by path travelTime) between two locations using only the paths a character
+ * can see: permanent paths (discoveryChance of 100) and the paths the character has discovered. One way
+ * paths are only followed in the direction they allow and combat site paths are never used.
+ *
+ * The search walks the WorldGraph nodes outwards from the start, fetching the nodes of all the neighbours
+ * of a location at once, so it only touches the part of the world between the two locations. It gives up
+ * after MAX_LOCATIONS locations.
+ *
+ * The keys of the paths a character discovered are kept in memcache until one of the character's
+ * Discoveries is written, see ExploreSnapshot.getDiscoveryGeneration().
+ */
+public class RoutePlanner extends Service
+{
+	public static final int MAX_LOCATIONS = 2000;
+	public static final int MAX_HOPS = 50;
+	private static final int DISCOVERED_PATHS_EXPIRY_SECONDS = 10*60;
+
+	private Set<Key> discoveredPathKeys = null;
+
+	public RoutePlanner(ODPDBAccess db)
+	{
+		super(db);
+	}
+
+	private static class Step implements Comparable<Step>
+	{
+		final Key locationKey;
+		final long seconds;
+		final int hops;
+
+		Step(Key locationKey, long seconds, int hops)
+		{
+			this.locationKey = locationKey;
+			this.seconds = seconds;
+			this.hops = hops;
+		}
+
+		@Override
+		public int compareTo(Step other)
+		{
+			// Quickest first, then the one with the least hops
+			if (seconds!=other.seconds)
+				return seconds<other.seconds ? -1 : 1;
+			return hops-other.hops;
+		}
+	}
+
+	/**
+	 * Where the search gets the WorldGraph nodes from.
+	 */
+	interface NodeSource
+	{
+		WorldGraph.Node getNode(Key locationKey);
+
+		/**
+		 * Called with locations that are likely to be expanded soon, so their nodes can be fetched together.
+		 */
+		void prefetch(List<Key> locationKeys);
+	}
+
+	/**
+	 * @param character
+	 * @param destinationKey
+	 * @return The keys of the paths to take, in order. Empty if the character is already at the destination
+	 * and null if the character doesn't know a way there.
+	 */
+	public List<Key> planRoute(CachedEntity character, Key destinationKey)
+	{
+		Key startKey = (Key)character.getProperty("locationKey");
+		if (startKey==null || destinationKey==null)
+			return null;
+		if (GameUtils.equals(startKey, destinationKey))
+			return new ArrayList<Key>();
+
+		NodeSource nodes = new NodeSource()
+		{
+			@Override
+			public WorldGraph.Node getNode(Key locationKey)
+			{
+				return db.getWorldGraphNode(locationKey);
+			}
+
+			@Override
+			public void prefetch(List<Key> locationKeys)
+			{
+				// Their generations are checked with one memcache call
+				db.getWorldGraphNodes(locationKeys);
+			}
+		};
+		return findRoute(nodes, startKey, destinationKey, getDiscoveredPathKeys(character.getKey()));
+	}
+
+	/**
+	 * The search itself, see planRoute().
+	 *
+	 * @param nodes
+	 * @param startKey
+	 * @param destinationKey Has to be different from startKey
+	 * @param discovered The keys of the paths the character discovered
+	 * @return
+	 */
+	static List<Key> findRoute(NodeSource nodes, Key startKey, Key destinationKey, Set<Key> discovered)
+	{
+		Map<Key, Step> best = new HashMap<Key, Step>();
+		// The path taken to get to a location, and the location we came from
+		Map<Key, Key> cameBy = new HashMap<Key, Key>();
+		Map<Key, Key> cameFrom = new HashMap<Key, Key>();
+		Set<Key> done = new HashSet<Key>();
+		PriorityQueue<Step> queue = new PriorityQueue<Step>();
+
+		Step start = new Step(startKey, 0, 0);
+		best.put(startKey, start);
+		queue.add(start);
+		nodes.prefetch(Collections.singletonList(startKey));
+
+		while(queue.isEmpty()==false)
+		{
+			Step step = queue.poll();
+			if (done.add(step.locationKey)==false)
+				continue;
+			if (GameUtils.equals(step.locationKey, destinationKey))
+				return buildRoute(cameBy, cameFrom, startKey, destinationKey);
+			if (done.size()>MAX_LOCATIONS || step.hops>=MAX_HOPS)
+				continue;
+
+			WorldGraph.Node node = nodes.getNode(step.locationKey);
+			List<Key> toFetch = new ArrayList<Key>();
+			for(int i = 0; i<node.size(); i++)
+			{
+				if (isUsable(node, i, discovered)==false)
+					continue;
+
+				Key next = node.getDestinationKey(i);
+				if (next==null || done.contains(next))
+					continue;
+
+				Step candidate = new Step(next, step.seconds+node.getTravelTime(i), step.hops+1);
+				Step known = best.get(next);
+				if (known!=null && known.compareTo(candidate)<=0)
+					continue;
+
+				best.put(next, candidate);
+				cameBy.put(next, node.getPathKey(i));
+				cameFrom.put(next, step.locationKey);
+				queue.add(candidate);
+				toFetch.add(next);
+			}
+
+			// Most of these will be expanded soon
+			if (toFetch.isEmpty()==false)
+				nodes.prefetch(toFetch);
+		}
+
+		return null;
+	}
+
+	private static boolean isUsable(WorldGraph.Node node, int index, Set<Key> discovered)
+	{
+		if (node.canTravel(index)==false)
+			return false;
+		if ("CombatSite".equals(node.getType(index)))
+			return false;
+		if (node.getDiscoveryChance(index)>=100d)
+			return true;
+		return discovered.contains(node.getPathKey(index));
+	}
+
+	private static List<Key> buildRoute(Map<Key, Key> cameBy, Map<Key, Key> cameFrom, Key startKey, Key destinationKey)
+	{
+		List<Key> route = new ArrayList<Key>();
+		Key locationKey = destinationKey;
+		while(GameUtils.equals(locationKey, startKey)==false)
+		{
+			route.add(cameBy.get(locationKey));
+			locationKey = cameFrom.get(locationKey);
+		}
+		Collections.reverse(route);
+		return route;
+	}
+
+	private Set<Key> getDiscoveredPathKeys(Key characterKey)
+	{
+		if (discoveredPathKeys!=null)
+			return discoveredPathKeys;
+
+		MemcacheService mc = db.getMC();
+		// The generation has to be read before we query, that way a discovery made while we're querying
+		// moves the character past what we store instead of getting lost
+		String cacheKey = "RouteDiscoveredPaths-"+characterKey+"-"+ExploreSnapshot.getDiscoveryGeneration(mc, characterKey);
+
+		@SuppressWarnings("unchecked")
+		ArrayList<Key> pathKeys = (ArrayList<Key>)mc.get(cacheKey);
+		if (pathKeys==null)
+		{
+			pathKeys = new ArrayList<Key>();
+			for(CachedEntity discovery:db.getDiscoveriesForCharacterByKind(characterKey, "Path"))
+				if (discovery!=null && discovery.getProperty("entityKey")!=null)
+					pathKeys.add((Key)discovery.getProperty("entityKey"));
+			mc.put(cacheKey, pathKeys, Expiration.byDeltaSeconds(DISCOVERED_PATHS_EXPIRY_SECONDS));
+		}
+
+		discoveredPathKeys = new HashSet<Key>(pathKeys);
+		return discoveredPathKeys;
+	}
+}
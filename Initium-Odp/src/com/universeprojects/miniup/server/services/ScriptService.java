@@ -1,7 +1,6 @@
 package com.universeprojects.miniup.server.services;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -12,12 +11,14 @@ import java.util.logging.Logger;
 import javax.servlet.http.HttpServletRequest;
 
 import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
 import org.mozilla.javascript.Scriptable;
 
 import com.google.appengine.api.datastore.Key;
 import com.universeprojects.cacheddatastore.CachedEntity;
 import com.universeprojects.miniup.server.ODPDBAccess;
 import com.universeprojects.miniup.server.ODPDBAccess.ScriptType;
+import com.universeprojects.miniup.server.scripting.RhinoScriptRuntime;
 import com.universeprojects.miniup.server.scripting.events.ScriptEvent;
 import com.universeprojects.miniup.server.scripting.jsaccessors.DBAccessor;
 import com.universeprojects.miniup.server.scripting.wrappers.Buff;
@@ -31,7 +32,7 @@ import com.universeprojects.miniup.server.scripting.wrappers.Path;
 public class ScriptService extends Service 
 {
 	public final static Logger log = Logger.getLogger(ScriptService.class.getName());
-	private Context jsContext = null;
+	private RhinoScriptRuntime runtime = null;
 	private Scriptable jsScope = null;
 	private boolean canExecute = false;
 	
@@ -52,13 +53,21 @@ public class ScriptService extends Service
 		
 		try
 		{
-			jsContext = Context.enter();
-			// This sandboxes the engine by preventing access to non-standard objects and some reflexion objects
-	    	// This is the simplest way to prevent access to top-level packages
-			jsScope = jsContext.initStandardObjects();
-			DBAccessor coreFunctions = new DBAccessor(db, request);
-			jsScope.put("core", jsScope, coreFunctions);
-			canExecute = true;
+			runtime = RhinoScriptRuntime.getInstance();
+			Context jsContext = runtime.enter();
+			try
+			{
+				// The standard objects are shared (and sealed), this request gets its own scope on top of them 
+				// so the core functions are only visible to this request.
+				jsScope = runtime.newScope(jsContext);
+				DBAccessor coreFunctions = new DBAccessor(db, request);
+				jsScope.put("core", jsScope, coreFunctions);
+				canExecute = true;
+			}
+			finally
+			{
+				runtime.exit(jsContext);
+			}
 		}
 		catch(Exception ex)
 		{
@@ -140,9 +149,12 @@ public class ScriptService extends Service
 		}
 		
 		String scriptName = (String)scriptEntity.getProperty("internalName");
+		Context jsContext = runtime.enter();
 	    try
 	    {
 	    	log.log(Level.WARNING, "Executing script: " + scriptEntity.getKey().getId());
+	    	// Scripts are only compiled once, after that the compiled version is reused
+	    	Script compiledScript = runtime.getCompiledScript(jsContext, scriptEntity);
 	    	// Create a new scope for every script execution call.
 	    	Scriptable currentScope = jsContext.newObject(jsScope);
 	    	currentScope.setPrototype(jsScope);
@@ -152,41 +164,31 @@ public class ScriptService extends Service
 	    	// Recreate the sourceEntity variable on each hit.
 	    	if(sourceEntity != null)
 	    		currentScope.put("sourceEntity", currentScope, Context.toObject(sourceEntity, currentScope));
-	    	// Evaluate the script. We don't need to return anything, everything we need
+	    	// Run the script. We don't need to return anything, everything we need
 	    	// is on the Event object itself.
-	    	jsContext.evaluateString(currentScope, script, scriptName, 0, null);
+	    	compiledScript.exec(jsContext, currentScope);
 	    	currentScope = null;
 	    	return true;
 	    }
 	    catch (Exception e)
 	    {
 	    	log.log(Level.SEVERE, "Exception during Script exection of " + scriptName, e);
+	    }
+	    finally
+	    {
+	    	runtime.exit(jsContext);
 	    }
 		return false;
 	}
 	
 	/**
-	 * Exits the script context and nulls out the references. Should be called when the 
-	 * ScriptService is no longer needed, but just in case it isn't will be handled by
-	 * the finalizer (when eventually garbage collected).
+	 * Drops the reference to this request's script scope. A Context is only bound to the thread
+	 * while a script is executing, so there is nothing else to release.
 	 */
 	public void close()
 	{
-		if(jsContext != null)
-		{
-			jsScope = null;
-			jsContext = null;
-			Context.exit();
-		}
-	}
-	/**
-	 * We need to ensure script context is cleared. Finalizer is called when garbage collected,
-	 * and since we reference Native resources, we need to make sure we exit the context cleanly
-	 * in case the reference is not disposed of properly.
-	 */
-	protected void finalize( ) throws Throwable
-	{
-		close();
+		jsScope = null;
+		canExecute = false;
 	}
 	
 	/**
@@ -246,7 +248,8 @@ public class ScriptService extends Service
 	}
 	
 	/**
-	 * Gets all combat scripts associated with the common combat entities 
+	 * Gets all combat scripts associated with the common combat entities. The scripts are resolved once
+	 * per fight and reused until the equipment of one of the entities changes, see CombatScriptPlan.
 	 * @param db ODPDBAccess instance, to get the script entities themselves 
 	 * @param attacker CachedEntity of the attacking character
 	 * @param primaryWeapon CachedEntity of the primary (attack command) weapon of the attacking entity
@@ -254,83 +257,10 @@ public class ScriptService extends Service
 	 * @param defender CachedEntity of the defending character
 	 * @return ScriptType -> Entity -> List<Script> map.
 	 */
-	@SuppressWarnings("unchecked")
 	public static Map<ScriptType, Map<CachedEntity, List<CachedEntity>>> 
 		getCombatScripts(ODPDBAccess db, CachedEntity attacker, CachedEntity primaryWeapon, CachedEntity secondaryWeapon, CachedEntity defender)
 	{
-		// This will be the return. ScriptType -> Entity -> List<Script>
-		Map<ScriptType, Map<CachedEntity, List<CachedEntity>>> scriptMap = 
-				new HashMap<ScriptType, Map<CachedEntity, List<CachedEntity>>>();
-
-		// This map tracks the script -> List<entities>. Only contains 
-		// valid (non-null) entities, and the mapped list could be empty on return.
-		Map<Key, List<CachedEntity>> entityScripts = new HashMap<Key, List<CachedEntity>>();
-		// This will be used to retrieve all the scripts from the DB
-		HashSet<Key> getKeys = new HashSet<Key>();
-		for(CachedEntity curEntity:Arrays.asList(attacker, primaryWeapon, secondaryWeapon, defender))
-		{
-			// A null entity could be possible, such as fighting bare handed (weapon == null)
-			if(curEntity == null) continue;
-			List<Key> entityKeys = (List<Key>)curEntity.getProperty("scripts");
-			if(entityKeys == null) continue; 
-			for(Key key:entityKeys)
-			{
-				if(key == null) continue;
-				if(!entityScripts.containsKey(key)) entityScripts.put(key, new ArrayList<CachedEntity>());
-				entityScripts.get(key).add(curEntity);
-				getKeys.add(key);
-			}
-		}
-		
-		// Only allow these specific types of scripts to be processed.
-		List<CachedEntity> scripts = db.getScriptsOfType(new ArrayList<Key>(getKeys), 
-				ScriptType.onAttack, ScriptType.onAttackHit, ScriptType.onDefend, ScriptType.onDefendHit);
-		
-		List<CachedEntity> attackerEntities = Arrays.asList(attacker, primaryWeapon, secondaryWeapon);
-		for(CachedEntity script:scripts)
-		{
-			if(script == null) continue;
-			ScriptType sType = ScriptType.valueOf((String)script.getProperty("type"));
-			
-			// If allowed event type already exists in the script map, get it.
-			// Otherwise, create a new one, but don't add it yet. We only want
-			// a record in this map if we actually have a (correct) script to execute.
-			Map<CachedEntity, List<CachedEntity>> currentScriptMap = 
-				scriptMap.containsKey(sType) ? 
-					scriptMap.get(sType) : 
-					new HashMap<CachedEntity, List<CachedEntity>>();
-			
-			// Get all the entities associated with this particular script.
-			List<CachedEntity> scriptSources = entityScripts.get(script.getKey());
-			
-			switch(sType)
-			{
-				case onAttack:
-				case onAttackHit:
-					for(CachedEntity attack:attackerEntities)
-					{
-						if(attack != null && scriptSources.contains(attack))
-						{
-							// This entity belongs to this script. Go ahead and add to the underlying list.
-							if(!currentScriptMap.containsKey(attack)) currentScriptMap.put(attack, new ArrayList<CachedEntity>());
-							currentScriptMap.get(attack).add(script);
-						}
-					}
-				case onDefend:
-				case onDefendHit:
-					if(defender != null && scriptSources.contains(defender))
-					{
-						if(!currentScriptMap.containsKey(defender)) currentScriptMap.put(defender, new ArrayList<CachedEntity>());
-						currentScriptMap.get(defender).add(script);
-					}
-				default:
-					break;
-			}
-			// Only adding to the script map if we actually have a script from the correct entity.
-			// Put will replace in the map, which is fine since it's the same instance we originally
-			// got from the map and is a constant time operation
-			if(!currentScriptMap.isEmpty()) scriptMap.put(sType, currentScriptMap);
-		}
-		return scriptMap;
+		return CombatScriptPlan.getPlan(db, attacker, primaryWeapon, secondaryWeapon, defender)
+				.toScriptMap(attacker, primaryWeapon, secondaryWeapon, defender);
 	}
 }
@@ -0,0 +1,232 @@
+package com.universeprojects.miniup.server.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.universeprojects.cacheddatastore.CachedDatastoreService;
+import com.universeprojects.cacheddatastore.CachedEntity;
+import com.universeprojects.miniup.server.GameUtils;
+import com.universeprojects.miniup.server.ODPDBAccess;
+
+/**
+ * The locations of a territory and which of them are connected by paths, cached on the instance so the
+ * TerritoryService can walk the territory without querying the paths of every location it passes through.
+ *
+ * A graph is only used while the generation of its territory and the LocationPathCache generations of all of
+ * its locations are unchanged. Writing a Path bumps the generations of both of its locations, writing a Location
+ * bumps its own generation and that of its territory, and writing a Territory bumps the territory generation.
+ */
+public class TerritoryGraph
+{
+	private static final int CACHE_SIZE = 500;
+	private static final long MAX_AGE_MS = 10*60*1000;
+	// The datastore doesn't allow more values than this in an IN filter
+	private static final int MAX_IN_VALUES = 30;
+
+	private static final Map<Key, TerritoryGraph> cache = new LinkedHashMap<Key, TerritoryGraph>(CACHE_SIZE, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, TerritoryGraph> eldest)
+		{
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	private final long createdAt;
+	private final Map<String, Long> generations;
+	private final List<Key> locationKeys;
+	private final Map<Key, List<Key>> neighbours;
+
+	private TerritoryGraph(Map<String, Long> generations, List<Key> locationKeys, Map<Key, List<Key>> neighbours)
+	{
+		this.createdAt = System.currentTimeMillis();
+		this.generations = generations;
+		this.locationKeys = Collections.unmodifiableList(locationKeys);
+		this.neighbours = neighbours;
+	}
+
+	/**
+	 * Returns the graph of the given territory, building it if it isn't cached or if anything in the
+	 * territory changed since it was cached.
+	 *
+	 * @param db
+	 * @param territoryKey
+	 * @return
+	 */
+	public static TerritoryGraph getGraph(ODPDBAccess db, Key territoryKey)
+	{
+		MemcacheService mc = db.getMC();
+
+		TerritoryGraph result;
+		synchronized(cache)
+		{
+			result = cache.get(territoryKey);
+		}
+		if (result!=null && result.isValid(mc))
+			return result;
+
+		result = build(db, mc, territoryKey);
+		synchronized(cache)
+		{
+			cache.put(territoryKey, result);
+		}
+		return result;
+	}
+
+	private boolean isValid(MemcacheService mc)
+	{
+		if (System.currentTimeMillis()-createdAt > MAX_AGE_MS)
+			return false;
+
+		Map<String, Object> current = mc.getAll(generations.keySet());
+		for(Map.Entry<String, Long> generation:generations.entrySet())
+			if (toGeneration(current.get(generation.getKey()))!=generation.getValue())
+				return false;
+
+		return true;
+	}
+
+	private static TerritoryGraph build(ODPDBAccess db, MemcacheService mc, Key territoryKey)
+	{
+		// The generations have to be read before we query, that way a write that happens while we're
+		// building invalidates what we build instead of getting lost
+		Map<String, Long> generations = new HashMap<String, Long>();
+		String territoryGenerationKey = generationKey(territoryKey);
+		generations.put(territoryGenerationKey, toGeneration(mc.get(territoryGenerationKey)));
+
+		List<Key> locationKeys = new ArrayList<Key>();
+		for(CachedEntity location:db.getFilteredList("Location", "territoryKey", territoryKey))
+			if (location!=null)
+				locationKeys.add(location.getKey());
+
+		List<String> locationGenerationKeys = new ArrayList<String>();
+		for(Key locationKey:locationKeys)
+			locationGenerationKeys.add(LocationPathCache.generationKey(locationKey));
+		Map<String, Object> locationGenerations = mc.getAll(locationGenerationKeys);
+		for(String locationGenerationKey:locationGenerationKeys)
+			generations.put(locationGenerationKey, toGeneration(locationGenerations.get(locationGenerationKey)));
+
+		Set<Key> territoryLocations = new LinkedHashSet<Key>(locationKeys);
+		Map<Key, List<Key>> neighbours = new HashMap<Key, List<Key>>();
+		for(Key locationKey:locationKeys)
+			neighbours.put(locationKey, new ArrayList<Key>());
+
+		// Only paths that stay inside the territory matter, so it's enough to look at one side of them
+		CachedDatastoreService ds = db.getDB();
+		for(List<Key> chunk:chunk(locationKeys, MAX_IN_VALUES))
+		{
+			Query q = new Query("Path").setFilter(new FilterPredicate("location1Key", FilterOperator.IN, chunk));
+			for(CachedEntity path:ds.fetchAsList(q, 1000*chunk.size()))
+			{
+				if (path==null) continue;
+				Key location1Key = (Key)path.getProperty("location1Key");
+				Key location2Key = (Key)path.getProperty("location2Key");
+				if (territoryLocations.contains(location2Key)==false || GameUtils.equals(location1Key, location2Key))
+					continue;
+
+				addNeighbour(neighbours, location1Key, location2Key);
+				addNeighbour(neighbours, location2Key, location1Key);
+			}
+		}
+
+		return new TerritoryGraph(generations, locationKeys, neighbours);
+	}
+
+	private static void addNeighbour(Map<Key, List<Key>> neighbours, Key locationKey, Key neighbourKey)
+	{
+		List<Key> list = neighbours.get(locationKey);
+		if (list.contains(neighbourKey)==false)
+			list.add(neighbourKey);
+	}
+
+	/**
+	 * @return The keys of all the locations in the territory
+	 */
+	public List<Key> getLocationKeys()
+	{
+		return locationKeys;
+	}
+
+	public boolean contains(Key locationKey)
+	{
+		return neighbours.containsKey(locationKey);
+	}
+
+	/**
+	 * Does a breadth first walk of the territory from the given location.
+	 *
+	 * @param startLocationKey
+	 * @return The number of paths between the start location and every location that can be reached from it
+	 * without leaving the territory, ordered by that distance
+	 */
+	public Map<Key, Integer> getDistances(Key startLocationKey)
+	{
+		Map<Key, Integer> distances = new LinkedHashMap<Key, Integer>();
+		if (contains(startLocationKey)==false)
+			return distances;
+
+		List<Key> queue = new ArrayList<Key>();
+		queue.add(startLocationKey);
+		distances.put(startLocationKey, 0);
+		for(int i = 0; i<queue.size(); i++)
+		{
+			Key locationKey = queue.get(i);
+			int distance = distances.get(locationKey);
+			for(Key neighbourKey:neighbours.get(locationKey))
+			{
+				if (distances.containsKey(neighbourKey))
+					continue;
+				distances.put(neighbourKey, distance+1);
+				queue.add(neighbourKey);
+			}
+		}
+		return distances;
+	}
+
+	/**
+	 * Invalidates the cached graph of the given territory.
+	 *
+	 * @param mc
+	 * @param territoryKey
+	 */
+	public static void invalidateTerritory(MemcacheService mc, Key territoryKey)
+	{
+		if (territoryKey==null) return;
+		mc.increment(generationKey(territoryKey), 1L, 0L);
+	}
+
+	/**
+	 * Splits the keys into lists that are small enough for an IN filter.
+	 */
+	static List<List<Key>> chunk(List<Key> keys, int size)
+	{
+		List<List<Key>> result = new ArrayList<List<Key>>();
+		for(int i = 0; i<keys.size(); i+=size)
+			result.add(new ArrayList<Key>(keys.subList(i, Math.min(i+size, keys.size()))));
+		return result;
+	}
+
+	private static long toGeneration(Object generation)
+	{
+		if (generation==null) return 0L;
+		return (Long)generation;
+	}
+
+	private static String generationKey(Key territoryKey)
+	{
+		return "TerritoryGraphGen-"+territoryKey;
+	}
+}
@@ -1,13 +1,13 @@
 package com.universeprojects.miniup.server.services;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
@@ -16,6 +16,7 @@ import com.google.appengine.api.datastore.Query.FilterOperator;
 import com.google.appengine.api.datastore.Query.FilterPredicate;
 import com.universeprojects.cacheddatastore.CachedDatastoreService;
 import com.universeprojects.cacheddatastore.CachedEntity;
+import com.universeprojects.miniup.server.GameRandom;
 import com.universeprojects.miniup.server.GameUtils;
 import com.universeprojects.miniup.server.NotificationType;
 import com.universeprojects.miniup.server.ODPDBAccess;
@@ -43,6 +44,10 @@ public class TerritoryService extends Service
 		None, Whitelisted, OwningGroupOnly
 	}
 	
+	// The datastore doesn't allow more values than this in an IN filter
+	private static final int MAX_IN_VALUES = 30;
+	private static final List<String> DEFENDING_STATUSES = Arrays.asList("Defending1", "Defending2", "Defending3");
+	
 	final private CachedEntity territory;
 	
 	private List<CachedEntity> locations = null;
@@ -292,6 +297,10 @@ public class TerritoryService extends Service
 	 * This method will return a list of characters in the territory based on the given filter. 
 	 * It can also return a single character (returning early to not waste time).
 	 * 
+	 * The characters of the whole territory are fetched with as few queries as possible and then bucketed
+	 * by how far their location is from the startLocation (see TerritoryGraph.getDistances()). When sorted,
+	 * locations that can't be reached from the startLocation without leaving the territory are skipped.
+	 * 
 	 * @param filter
 	 * @param startLocation
 	 * @param single
@@ -299,34 +308,67 @@ public class TerritoryService extends Service
 	 */
 	private List<CachedEntity> getTerritoryCharacters(TerritoryCharacterFilter filter, CachedEntity startLocation, boolean single, boolean sorted)
 	{
-		List<CachedEntity> locs = getLocations();
-		if (locs.isEmpty()) return null;
+		TerritoryGraph graph = TerritoryGraph.getGraph(db, territory.getKey());
+		List<Key> locationKeys = graph.getLocationKeys();
+		if (locationKeys.isEmpty()) return null;
+		Key startLocationKey = null;
 		if (startLocation==null)
-			startLocation = locs.get(0);
-		if (isLocationInTerritory(startLocation)==false)
+			startLocationKey = locationKeys.get(0);
+		else if (isLocationInTerritory(startLocation)==false)
 			throw new IllegalArgumentException("startLocation is not in the territory this service is servicing.");
+		else
+			startLocationKey = startLocation.getKey();
 		
-		CachedDatastoreService ds = db.getDB();
-		// Create a duplicate so we can modify it, implemented as set for performance
-		Set<CachedEntity> remainingLocations = new HashSet<CachedEntity>(locs);
-		// Remove the startLocation from the remaining territory locations
-		for (Iterator<CachedEntity> iter = remainingLocations.iterator();iter.hasNext();)
+		// The distance of each location we look in, closest first. If order doesn't matter everything counts as distance 0.
+		Map<Key, Integer> distances;
+		if (sorted)
+			distances = graph.getDistances(startLocationKey);
+		else
 		{
-			if (GameUtils.equals(iter.next().getKey(), startLocation.getKey()))
-			{
-				iter.remove();
+			distances = new LinkedHashMap<Key, Integer>();
+			distances.put(startLocationKey, 0);
+			for (Key locationKey : locationKeys)
+				if (distances.containsKey(locationKey)==false)
+					distances.put(locationKey, 0);
+		}
+		
+		// Each IN value is a separate query for the datastore, and the Defending statuses multiply them
+		int chunkSize = MAX_IN_VALUES;
+		if (filter==TerritoryCharacterFilter.Defending)
+			chunkSize = MAX_IN_VALUES/DEFENDING_STATUSES.size();
+		
+		List<List<CachedEntity>> tlcList = new ArrayList<List<CachedEntity>>();
+		int closestDistance = -1;
+		for (List<Key> chunk : TerritoryGraph.chunk(new ArrayList<Key>(distances.keySet()), chunkSize))
+		{
+			// If only 1 character is required and nothing that's left can be closer than what we have, exit early.
+			// When unsorted every location counts as distance 0, so any character will do.
+			if (single && closestDistance>=0 && (sorted==false || closestDistance<=distances.get(chunk.get(0))))
 				break;
+			
+			for (CachedEntity character : getLocationCharacters(filter, chunk))
+			{
+				Integer distance = distances.get(character.getProperty("locationKey"));
+				if (distance==null) continue;
+				
+				while (tlcList.size() <= distance)
+					tlcList.add(null);
+				if (tlcList.get(distance)==null)
+					tlcList.set(distance, new ArrayList<CachedEntity>());
+				tlcList.get(distance).add(character);
+				
+				if (closestDistance<0 || distance<closestDistance)
+					closestDistance = distance;
 			}
 		}
-		List<List<CachedEntity>> tlcList = new ArrayList<List<CachedEntity>>();
-		getTerritoryLocationCharacters(tlcList, ds, filter, startLocation, 0, remainingLocations, single, sorted);
+		
 		List<CachedEntity> characters = new ArrayList<CachedEntity>();
 		for (List<CachedEntity> tlc : tlcList)
 		{
 			if (tlc!=null && tlc.isEmpty()==false)
 			{
 				// if order matters randomly shuffle those with same order
-				if (sorted) Collections.shuffle(tlc);
+				if (sorted) Collections.shuffle(tlc, GameRandom.get());
 				characters.addAll(tlc);
 			}
 		}
@@ -347,49 +389,36 @@ public class TerritoryService extends Service
 	}
 	
 	/**
-	 * This recursive method iterates through all the locations in a given territory (from the given start point)
+	 * Fetches the characters in the given locations (at most MAX_IN_VALUES of them) that match the filter.
 	 * 
-	 * @param tlcList
-	 * @param db
 	 * @param filter
-	 * @param location
-	 * @param distance
-	 * @param territory
-	 * @param territoryLocations
-	 * @param single
-	 * @param sorted
+	 * @param locationKeys
 	 * @return
 	 */
-	private boolean getTerritoryLocationCharacters(List<List<CachedEntity>> tlcList, CachedDatastoreService ds, TerritoryCharacterFilter filter, CachedEntity location, int distance, Set<CachedEntity> remainingLocations, boolean single, boolean sorted)
+	private List<CachedEntity> getLocationCharacters(TerritoryCharacterFilter filter, List<Key> locationKeys)
 	{
 		// set up the DB search filter
+		Filter f1 = new FilterPredicate("locationKey", FilterOperator.IN, locationKeys);
+		Filter f2 = new FilterPredicate("type", FilterOperator.EQUAL, "PC");
 		Filter f0 = null;
 		switch (filter) {
 		case Defending:
 		{
-			Filter f1 = new FilterPredicate("locationKey", FilterOperator.EQUAL, location.getKey());
-			Filter f2 = new FilterPredicate("type", FilterOperator.EQUAL, "PC");
-			Filter f3a = new FilterPredicate("status", FilterOperator.EQUAL, "Defending1");
-			Filter f3b = new FilterPredicate("status", FilterOperator.EQUAL, "Defending2");
-			Filter f3c = new FilterPredicate("status", FilterOperator.EQUAL, "Defending3");
-			Filter f3 = CompositeFilterOperator.or(f3a, f3b, f3c);
+			Filter f3 = new FilterPredicate("status", FilterOperator.IN, DEFENDING_STATUSES);
 			f0 = CompositeFilterOperator.and(f1, f2, f3);
 		} break;
 		case Trespassing:
 		case All:
-			Filter f1 = new FilterPredicate("locationKey", FilterOperator.EQUAL, location.getKey());
-			Filter f2 = new FilterPredicate("type", FilterOperator.EQUAL, "PC");
 			f0 = CompositeFilterOperator.and(f1, f2);
 		}
-		List<CachedEntity> characters = ds.fetchAsList("Character", f0, 10000);
+		List<CachedEntity> characters = db.getDB().fetchAsList("Character", f0, 10000);
 		
 		// Further filter what wasn't possible to do directly due to AppEngine limitations
 		// Use manual for to obtain the index for removal purposes, traverse backwards for optimisation
-		// If this becomes a bottleneck, we can convert to LinkedList before removal
 		for (int i = characters.size()-1; i>=0 ; i--)
 		{
 			CachedEntity character = characters.get(i);
-			if (GameUtils.isPlayerIncapacitated(character) ||
+			if (character==null || GameUtils.isPlayerIncapacitated(character) ||
 					(filter==TerritoryCharacterFilter.Defending && "COMBAT".equals(character.getProperty("mode"))) ||
 					(filter==TerritoryCharacterFilter.Trespassing && isAllowedIn(character)))
 			{
@@ -397,64 +426,7 @@ public class TerritoryService extends Service
 			}
 		}
 		
-		// store the result
-		if (tlcList.size() <= distance)
-			tlcList.add(characters);
-		else
-			tlcList.get(distance).addAll(characters);
-		
-		// If only 1 character is required and we have one, exit early
-		if (single && characters.isEmpty()==false)
-			return true;
-		
-		if (sorted)
-		{
-			// Get the neighbouring locations that are part of the territory
-			List<CachedEntity> paths = db.getPathsByLocation(location.getKey());
-			List<CachedEntity> locations = new ArrayList<CachedEntity>();
-			for (CachedEntity path : paths)
-			{
-				Key locationKey = (Key)path.getProperty("location1Key");
-				if (GameUtils.equals(location.getKey(),locationKey))
-					locationKey = (Key)path.getProperty("location2Key");
-				if (locationKey!=null)
-				{
-					for (Iterator<CachedEntity> iter = remainingLocations.iterator();iter.hasNext();)
-					{
-						CachedEntity l = iter.next();
-						if (GameUtils.equals(l.getKey(),locationKey))
-						{
-							locations.add(l);
-							iter.remove();
-							break;
-						}
-					}
-				}
-			}
-			// Randomly shuffle the order
-			Collections.shuffle(locations);
-			
-			// Now recursively get the characters in these locations
-			for (CachedEntity l : locations)
-				// If only 1 character is required and we have one, exit early
-				if (getTerritoryLocationCharacters(tlcList, ds, filter, l, distance+1, remainingLocations, single, sorted) && single)
-					return true;
-		}
-		else
-		{
-			Iterator<CachedEntity> iter = remainingLocations.iterator();
-			if (iter.hasNext())
-			{
-				CachedEntity l = iter.next();
-				iter.remove();
-				// If only 1 character is required and we have one, exit early
-				if (getTerritoryLocationCharacters(tlcList, ds, filter, l, distance, remainingLocations, single, sorted) && single)
-					return true;
-			}
-			
-		}
-		
-		return false;
+		return characters;
 	}
 	
 	/**
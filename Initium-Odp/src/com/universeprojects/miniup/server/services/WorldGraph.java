@@ -0,0 +1,304 @@
+package com.universeprojects.miniup.server.services;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.universeprojects.cacheddatastore.CachedEntity;
+import com.universeprojects.miniup.server.GameUtils;
+import com.universeprojects.miniup.server.ODPDBAccess;
+import com.universeprojects.miniup.server.QueryBatch;
+
+/**
+ * The paths of every location, kept on the instance as adjacency lists so finding the neighbours of a
+ * location doesn't take the two Path queries (one per path end) it used to. Each location's node is built
+ * the first time it is needed.
+ *
+ * Nodes only hold what is needed to walk the world (path and location keys, type, discovery chance, travel
+ * time and forceOneWay) in plain arrays. ODPDBAccess fetches the Path entities by key when it has to return
+ * them, so the entities handed out are never shared between requests.
+ *
+ * A node is only used while the LocationPathCache generation of its location is unchanged. Writing or
+ * deleting a Path (see ODPDBAccess.deletePath()) bumps the generations of both of its locations and writing a
+ * Location bumps its own generation. A node built right after a bump may have missed the change (the Path
+ * queries are eventually consistent), so it is used but not cached. Within a request ODPDBAccess keeps the
+ * nodes it already validated, see ODPDBAccess.getWorldGraphNode().
+ */
+public class WorldGraph
+{
+	private static final int CACHE_SIZE = 20000;
+	private static final long MAX_AGE_MS = 30*60*1000;
+
+	public static final byte ONE_WAY_NONE = 0;
+	public static final byte ONE_WAY_FROM_LOCATION1 = 1;
+	public static final byte ONE_WAY_FROM_LOCATION2 = 2;
+
+	private static final Map<Key, Node> cache = new LinkedHashMap<Key, Node>(CACHE_SIZE, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Node> eldest)
+		{
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	/**
+	 * The paths touching one location. The arrays are parallel, entry i describes one path. Paths where the
+	 * location is location1 come first, then the ones where it is location2 (a path that loops back to the
+	 * same location shows up once for each end).
+	 */
+	public static class Node
+	{
+		private final long createdAt;
+		private final long generation;
+		private final Key locationKey;
+
+		private final Key[] pathKeys;
+		private final Key[] destinationKeys;
+		private final byte[] pathEnds;
+		private final String[] types;
+		private final double[] discoveryChances;
+		private final long[] travelTimes;
+		private final byte[] forceOneWay;
+
+		Node(long generation, Key locationKey, List<CachedEntity> location1Paths, List<CachedEntity> location2Paths)
+		{
+			this.createdAt = System.currentTimeMillis();
+			this.generation = generation;
+			this.locationKey = locationKey;
+
+			int size = location1Paths.size()+location2Paths.size();
+			pathKeys = new Key[size];
+			destinationKeys = new Key[size];
+			pathEnds = new byte[size];
+			types = new String[size];
+			discoveryChances = new double[size];
+			travelTimes = new long[size];
+			forceOneWay = new byte[size];
+
+			// Since each path is 2 sided, the path end is the side we are NOT on
+			int index = 0;
+			for(CachedEntity path:location1Paths)
+				set(index++, path, (Key)path.getProperty("location2Key"), (byte)2);
+			for(CachedEntity path:location2Paths)
+				set(index++, path, (Key)path.getProperty("location1Key"), (byte)1);
+		}
+
+		private void set(int index, CachedEntity path, Key destinationKey, byte pathEnd)
+		{
+			pathKeys[index] = path.getKey();
+			destinationKeys[index] = destinationKey;
+			pathEnds[index] = pathEnd;
+
+			String type = (String)path.getProperty("type");
+			types[index] = type==null ? null : type.intern();
+
+			Object discoveryChance = path.getProperty("discoveryChance");
+			discoveryChances[index] = discoveryChance instanceof Number ? ((Number)discoveryChance).doubleValue() : 0d;
+
+			Object travelTime = path.getProperty("travelTime");
+			travelTimes[index] = travelTime instanceof Number ? ((Number)travelTime).longValue() : 0L;
+
+			Object oneWay = path.getProperty("forceOneWay");
+			if ("FromLocation1Only".equals(oneWay))
+				forceOneWay[index] = ONE_WAY_FROM_LOCATION1;
+			else if ("FromLocation2Only".equals(oneWay))
+				forceOneWay[index] = ONE_WAY_FROM_LOCATION2;
+			else
+				forceOneWay[index] = ONE_WAY_NONE;
+		}
+
+		public Key getLocationKey()
+		{
+			return locationKey;
+		}
+
+		public int size()
+		{
+			return pathKeys.length;
+		}
+
+		public Key getPathKey(int index)
+		{
+			return pathKeys[index];
+		}
+
+		/**
+		 * @return The location at the other end of the path
+		 */
+		public Key getDestinationKey(int index)
+		{
+			return destinationKeys[index];
+		}
+
+		/**
+		 * 1 or 2. Since each path is 2 sided, this number indicates which side we are NOT on.
+		 */
+		public int getPathEnd(int index)
+		{
+			return pathEnds[index];
+		}
+
+		public String getType(int index)
+		{
+			return types[index];
+		}
+
+		public double getDiscoveryChance(int index)
+		{
+			return discoveryChances[index];
+		}
+
+		public long getTravelTime(int index)
+		{
+			return travelTimes[index];
+		}
+
+		/**
+		 * @return ONE_WAY_NONE, ONE_WAY_FROM_LOCATION1 or ONE_WAY_FROM_LOCATION2
+		 */
+		public byte getForceOneWay(int index)
+		{
+			return forceOneWay[index];
+		}
+
+		/**
+		 * @return False if the path is one way and can't be taken from this location
+		 */
+		public boolean canTravel(int index)
+		{
+			if (pathEnds[index]==1 && forceOneWay[index]==ONE_WAY_FROM_LOCATION1)
+				return false;
+			if (pathEnds[index]==2 && forceOneWay[index]==ONE_WAY_FROM_LOCATION2)
+				return false;
+			return true;
+		}
+
+		public List<Key> getPathKeys()
+		{
+			List<Key> result = new ArrayList<Key>(pathKeys.length);
+			for(Key pathKey:pathKeys)
+				result.add(pathKey);
+			return result;
+		}
+
+		/**
+		 * @param type
+		 * @return The keys of the paths of the given type, in node order
+		 */
+		public List<Key> getPathKeysOfType(String type)
+		{
+			List<Key> result = new ArrayList<Key>();
+			for(int i = 0; i<pathKeys.length; i++)
+				if (GameUtils.equals(types[i], type))
+					result.add(pathKeys[i]);
+			return result;
+		}
+
+		/**
+		 * @param destinationKey
+		 * @return The keys of the paths that lead to the given location, in node order
+		 */
+		public List<Key> getPathKeysTo(Key destinationKey)
+		{
+			List<Key> result = new ArrayList<Key>();
+			for(int i = 0; i<pathKeys.length; i++)
+				if (GameUtils.equals(destinationKeys[i], destinationKey))
+					result.add(pathKeys[i]);
+			return result;
+		}
+	}
+
+	/**
+	 * Returns the node of the given location, building it if it isn't cached or if the location or one of
+	 * its paths was written since it was cached.
+	 *
+	 * @param db
+	 * @param locationKey
+	 * @return
+	 */
+	public static Node getNode(ODPDBAccess db, Key locationKey)
+	{
+		List<Key> locationKeys = new ArrayList<Key>(1);
+		locationKeys.add(locationKey);
+		return getNodes(db, locationKeys).get(locationKey);
+	}
+
+	/**
+	 * Same as getNode() for several locations, the generations are all checked with one memcache call.
+	 *
+	 * @param db
+	 * @param locationKeys
+	 * @return The node of each location
+	 */
+	public static Map<Key, Node> getNodes(ODPDBAccess db, Collection<Key> locationKeys)
+	{
+		MemcacheService mc = db.getMC();
+
+		List<String> generationKeys = new ArrayList<String>(locationKeys.size()*2);
+		for(Key locationKey:locationKeys)
+		{
+			generationKeys.add(LocationPathCache.generationKey(locationKey));
+			generationKeys.add(LocationPathCache.bumpedAtKey(locationKey));
+		}
+		// The generations have to be read before we query, that way a write that happens while we're
+		// building invalidates what we build instead of getting lost
+		Map<String, Object> generations = mc.getAll(generationKeys);
+
+		long now = System.currentTimeMillis();
+		Map<Key, Node> result = new HashMap<Key, Node>();
+		for(Key locationKey:locationKeys)
+		{
+			long generation = toGeneration(generations.get(LocationPathCache.generationKey(locationKey)));
+
+			Node node;
+			synchronized(cache)
+			{
+				node = cache.get(locationKey);
+			}
+			if (node==null || node.generation!=generation || now-node.createdAt>MAX_AGE_MS)
+			{
+				node = build(db, generation, locationKey);
+				if (LocationPathCache.isSettling(generations.get(LocationPathCache.bumpedAtKey(locationKey)))==false)
+				{
+					synchronized(cache)
+					{
+						cache.put(locationKey, node);
+					}
+				}
+			}
+			result.put(locationKey, node);
+		}
+		return result;
+	}
+
+	private static Node build(ODPDBAccess db, long generation, Key locationKey)
+	{
+		QueryBatch batch = db.newQueryBatch();
+		batch.add("Path", "location1Key", locationKey);
+		batch.add("Path", "location2Key", locationKey);
+		List<List<CachedEntity>> results = batch.run();
+		return new Node(generation, locationKey, withoutNulls(results.get(0)), withoutNulls(results.get(1)));
+	}
+
+	private static List<CachedEntity> withoutNulls(List<CachedEntity> entities)
+	{
+		List<CachedEntity> result = new ArrayList<CachedEntity>(entities.size());
+		for(CachedEntity entity:entities)
+			if (entity!=null) result.add(entity);
+		return result;
+	}
+
+	private static long toGeneration(Object generation)
+	{
+		if (generation==null) return 0L;
+		return (Long)generation;
+	}
+}
@@ -50,6 +50,20 @@ public class ASTFunNode extends SimpleNode {
     pfmc = pfmc_in;
   }
 
+  public PostfixMathCommand getFunction()
+  {
+    return pfmc;
+  }
+
+  /**
+   * Returns true if this node always evaluates to the same value given the
+   * same children values.
+   */
+  public boolean isDeterministic()
+  {
+    return pfmc==null || pfmc.isDeterministic();
+  }
+
   public String toString()
   {
     if (name!=null)
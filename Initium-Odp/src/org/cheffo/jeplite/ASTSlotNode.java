@@ -0,0 +1,37 @@
+package org.cheffo.jeplite;
+
+import org.cheffo.jeplite.util.*;
+
+/**
+ * A variable node that doesn't hold its own value. Instead it reads the value
+ * from the variable slots of the stack it is evaluated on, which makes trees
+ * built with these nodes safe to share between threads.
+ */
+public final class ASTSlotNode extends SimpleNode {
+  private final int slot;
+
+  public ASTSlotNode(String name, int slot) {
+    super(ParserTreeConstants.JJTVARNODE);
+    this.name = name;
+    this.slot = slot;
+  }
+
+  public int getSlot() {
+    return slot;
+  }
+
+  public final double getValue() throws ParseException {
+    throw new ParseException("Variable \"" + name + "\" can only be evaluated through a CompiledExpression");
+  }
+
+  public final void getValue(DoubleStack stack) throws ParseException {
+    double[] variables = stack.getVariables();
+    if (variables==null || slot>=variables.length)
+      throw new ParseException("No value was given for variable \"" + name + "\"");
+    stack.push(variables[slot]);
+  }
+
+  public String toString() {
+    return "Slot " + slot + ": \"" + name + "\"";
+  }
+}
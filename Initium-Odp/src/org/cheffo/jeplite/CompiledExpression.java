@@ -0,0 +1,179 @@
+package org.cheffo.jeplite;
+
+import java.util.*;
+import org.cheffo.jeplite.optimizer.*;
+import org.cheffo.jeplite.util.*;
+
+/**
+ * An immutable, pre-parsed expression that can be shared between threads.
+ *
+ * Unlike JEP, which keeps its variables in a symbol table of mutable nodes,
+ * a CompiledExpression binds every variable to a slot index when it is
+ * compiled. The values are handed in as a double[] (in the same order as the
+ * variable names given to compile()) on every evaluation, and the evaluation
+ * itself runs on a thread-local DoubleStack so it doesn't allocate anything.
+ *
+ * Usage:
+ * <pre>
+ *   CompiledExpression expr = CompiledExpression.compile("x*2+y", new String[]{"x", "y"}, null);
+ *   double[] slots = new double[expr.getSlotCount()];
+ *   slots[expr.getSlot("x")] = 3;
+ *   slots[expr.getSlot("y")] = 1;
+ *   double value = expr.evaluate(slots);
+ * </pre>
+ */
+public final class CompiledExpression
+{
+  private static final String[] NO_VARIABLES = new String[0];
+  private static final double[] NO_VALUES = new double[0];
+
+  private static final ThreadLocal<DoubleStack> evalStacks = new ThreadLocal<DoubleStack>()
+  {
+    protected DoubleStack initialValue()
+    {
+      return new DoubleStack();
+    }
+  };
+
+  private final String expression;
+  private final String[] variableNames;
+  private final SimpleNode topNode;
+
+  private CompiledExpression(String expression, String[] variableNames, SimpleNode topNode)
+  {
+    this.expression = expression;
+    this.variableNames = variableNames;
+    this.topNode = topNode;
+  }
+
+  /**
+   * Parses and optimizes the given expression.
+   * @param expression The expression to parse
+   * @param variableNames The variables the expression may use, or null. The
+   * index of each name is the slot its value has to be given in on evaluation.
+   * @param functions Additional functions (name to PostfixMathCommand) the
+   * expression may use on top of the standard functions, or null. The functions
+   * must be stateless since the compiled expression is shared between threads.
+   * @throws ParseException If the expression has an error
+   */
+  public static CompiledExpression compile(String expression, String[] variableNames, Map functions)
+    throws ParseException
+  {
+    if (variableNames==null) variableNames = NO_VARIABLES;
+
+    JEP jep = new JEP();
+    jep.addStandardFunctions();
+    if (functions!=null)
+      for (Iterator i=functions.entrySet().iterator(); i.hasNext();)
+      {
+        Map.Entry entry = (Map.Entry)i.next();
+        jep.addFunction((String)entry.getKey(), entry.getValue());
+      }
+    for (int i=0; i<variableNames.length; i++)
+      jep.addVariable(variableNames[i], 0);
+
+    jep.parseExpression(expression);
+    if (jep.hasError())
+      throw new ParseException(jep.getErrorInfo());
+
+    SimpleNode node = bindSlots(jep.getTopNode(), variableNames);
+    node = new ExpressionOptimizer(node).optimize();
+    node.jjtSetParent(null);
+
+    return new CompiledExpression(expression, (String[])variableNames.clone(), node);
+  }
+
+  /**
+   * Replaces all the (shared, mutable) variable nodes in the tree with slot nodes.
+   */
+  private static SimpleNode bindSlots(SimpleNode node, String[] variableNames)
+    throws ParseException
+  {
+    if (node instanceof ASTVarNode)
+    {
+      for (int i=0; i<variableNames.length; i++)
+        if (variableNames[i].equals(node.getName()))
+          return new ASTSlotNode(variableNames[i], i);
+      throw new ParseException("Unrecognized symbol \"" + node.getName() + "\"");
+    }
+
+    for (int i=0; i<node.jjtGetNumChildren(); i++)
+    {
+      SimpleNode child = bindSlots(node.jjtGetChild(i), variableNames);
+      child.jjtSetParent(node);
+      node.jjtAddChild(child, i);
+    }
+    return node;
+  }
+
+  public String getExpression()
+  {
+    return expression;
+  }
+
+  public int getSlotCount()
+  {
+    return variableNames.length;
+  }
+
+  /**
+   * Returns the slot index of the given variable, or -1 if the expression
+   * wasn't compiled with that variable.
+   */
+  public int getSlot(String variableName)
+  {
+    for (int i=0; i<variableNames.length; i++)
+      if (variableNames[i].equals(variableName))
+        return i;
+    return -1;
+  }
+
+  public double evaluate()
+    throws ParseException
+  {
+    return evaluate(NO_VALUES, null);
+  }
+
+  public double evaluate(double[] variables)
+    throws ParseException
+  {
+    return evaluate(variables, null);
+  }
+
+  /**
+   * Evaluates the expression.
+   * @param variables The variable values, indexed by slot
+   * @param random The random number generator that random functions should
+   * use, or null to use Math.random()
+   */
+  public double evaluate(double[] variables, java.util.Random random)
+    throws ParseException
+  {
+    DoubleStack stack = evalStacks.get();
+
+    // Remember what was on the stack in case we're being evaluated from within another evaluation
+    int base = stack.size();
+    double[] outerVariables = stack.getVariables();
+    java.util.Random outerRandom = stack.getRandom();
+
+    stack.setVariables(variables);
+    stack.setRandom(random);
+    try
+    {
+      topNode.getValue(stack);
+      return stack.pop();
+    }
+    finally
+    {
+      while (stack.size()>base)
+        stack.pop();
+      stack.setVariables(outerVariables);
+      stack.setRandom(outerRandom);
+    }
+  }
+
+  public String toString()
+  {
+    return expression;
+  }
+}
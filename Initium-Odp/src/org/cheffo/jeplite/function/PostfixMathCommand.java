@@ -47,6 +47,16 @@ public abstract class PostfixMathCommand
 		return numberOfParameters;
 	}
 
+	/**
+	 * Returns false if this function can return different values for the same
+	 * parameters (like rand()). Such functions are never folded into constants
+	 * by the ExpressionOptimizer.
+	 */
+	public boolean isDeterministic()
+	{
+		return true;
+	}
+
   public double operation(double[] params) throws ParseException{throw new ParseException("Not implemented");}
 
 	public void run(DoubleStack inStack)
@@ -150,6 +160,12 @@ public abstract class PostfixMathCommand
     {
       return Math.asin(params[0]);
     }
+
+    public final void run(DoubleStack stack)
+      throws ParseException
+    {
+      stack.push(Math.asin(stack.pop()));
+    }
   }
 
   static class ArcTangent extends PostfixMathCommand {
@@ -163,6 +179,12 @@ public abstract class PostfixMathCommand
     {
       return Math.atan(params[0]);
     }
+
+    public final void run(DoubleStack stack)
+      throws ParseException
+    {
+      stack.push(Math.atan(stack.pop()));
+    }
   }
 
   static class Cosine extends PostfixMathCommand
@@ -177,6 +199,12 @@ public abstract class PostfixMathCommand
     {
       return Math.cos(params[0]);
     }
+
+    public final void run(DoubleStack stack)
+      throws ParseException
+    {
+      stack.push(Math.cos(stack.pop()));
+    }
   }
 
   static class Logarithm extends PostfixMathCommand
@@ -192,6 +220,12 @@ public abstract class PostfixMathCommand
     {
       return Math.log(params[0])/LOG_10;
     }
+
+    public final void run(DoubleStack stack)
+      throws ParseException
+    {
+      stack.push(Math.log(stack.pop())/LOG_10);
+    }
   }
 
   static class NaturalLogarithm extends PostfixMathCommand
@@ -206,6 +240,12 @@ public abstract class PostfixMathCommand
     {
       return Math.log(params[0]);
     }
+
+    public final void run(DoubleStack stack)
+      throws ParseException
+    {
+      stack.push(Math.log(stack.pop()));
+    }
   }
 
   static class Sine extends PostfixMathCommand
@@ -220,6 +260,12 @@ public abstract class PostfixMathCommand
     {
         return Math.sin(params[0]);
     }
+
+    public final void run(DoubleStack stack)
+      throws ParseException
+    {
+      stack.push(Math.sin(stack.pop()));
+    }
   }
 
   static class Tangent extends PostfixMathCommand
@@ -234,6 +280,12 @@ public abstract class PostfixMathCommand
     {
       return Math.tan(params[0]);
     }
+
+    public final void run(DoubleStack stack)
+      throws ParseException
+    {
+      stack.push(Math.tan(stack.pop()));
+    }
   }
 
   static class UMinus extends PostfixMathCommand
@@ -291,6 +343,11 @@ public abstract class PostfixMathCommand
 	  }
 
     public final double operation(double[] params){return params[0]-params[1];}
+
+	  public final void run(DoubleStack stack) {
+	    double p2 = stack.pop();
+	    stack.push(stack.pop()-p2);
+	  }
   }
 
   public static class Comparative extends PostfixMathCommand
@@ -309,8 +366,8 @@ public abstract class PostfixMathCommand
 	  public final void run(DoubleStack inStack)
 		  throws ParseException
 	  {
-		  double x = inStack.pop();
 		  double y = inStack.pop();
+		  double x = inStack.pop();
 		  int r;
 		  switch (id)
 		  {
@@ -335,6 +392,7 @@ public abstract class PostfixMathCommand
 			  default:
 				  throw new ParseException("Unknown relational operator");
 		  }
+		  inStack.push(r);
 	  }
   }
 
@@ -366,10 +424,16 @@ public abstract class PostfixMathCommand
 
     public double operation(double[] params){return 0;}
 
+	  public boolean isDeterministic()
+	  {
+		  return false;
+	  }
+
 	  public final void run(DoubleStack inStack)
 		  throws ParseException
 	  {
-		  inStack.push(Math.random());
+		  java.util.Random random = inStack.getRandom();
+		  inStack.push(random!=null ? random.nextDouble() : Math.random());
 	  }
   }
 
@@ -499,6 +563,12 @@ public abstract class PostfixMathCommand
     {
         return Math.floor(params[0]);
     }
+
+    public final void run(DoubleStack stack)
+      throws ParseException
+    {
+      stack.push(Math.floor(stack.pop()));
+    }
   }
 
   static class Ceiling extends PostfixMathCommand
@@ -513,6 +583,12 @@ public abstract class PostfixMathCommand
     {
         return Math.ceil(params[0]);
     }
+
+    public final void run(DoubleStack stack)
+      throws ParseException
+    {
+      stack.push(Math.ceil(stack.pop()));
+    }
   }
 
   static class Round extends PostfixMathCommand
@@ -527,6 +603,12 @@ public abstract class PostfixMathCommand
     {
         return Math.round(params[0]);
     }
+
+    public final void run(DoubleStack stack)
+      throws ParseException
+    {
+      stack.push(Math.round(stack.pop()));
+    }
   }
 
 
@@ -46,24 +46,24 @@ public class ExpressionOptimizer implements ParserVisitor {
   public Object visit(ASTFunNode node, Object data) {
     SimpleNode res = node;
     try{
-      boolean allConstNode = true;
+      boolean allConstNode = node.isDeterministic();
       int numChildren = node.jjtGetNumChildren();
-      SimpleNode[] nodes = new SimpleNode[numChildren];
       for(int i=0; i<numChildren; i++) {
-        nodes[i] = (SimpleNode)node.jjtGetChild(i).jjtAccept(this, data);
-        allConstNode &= (nodes[i] instanceof ASTConstant);
+        SimpleNode child = (SimpleNode)node.jjtGetChild(i).jjtAccept(this, data);
+        child.jjtSetParent(node);
+        node.jjtAddChild(child, i);
+        allConstNode &= (child instanceof ASTConstant);
         // well, let wind the whole loop
       }
 
-      if(res.getName().equals("+")||res.getName().equals("*"))
-	      res = (ASTFunNode)visitAdditive(node, data);
-
       if(allConstNode) {
-        ASTConstant constRes = new ASTConstant(-1);
+        ASTConstant constRes = new ASTConstant(ParserTreeConstants.JJTCONSTANT);
         constRes.jjtSetParent(node.jjtGetParent());
         constRes.setValue(node.getValue());
         res = constRes;
       }
+      else if("+".equals(res.getName())||"*".equals(res.getName()))
+	      res = (ASTFunNode)visitAdditive(node, data);
 
     } catch(Exception ex) {ex.printStackTrace();}
     return res;
@@ -95,8 +95,11 @@ public class ExpressionOptimizer implements ParserVisitor {
       res.setName(node.getName());
       res.jjtSetParent(node.jjtGetParent());
       int pos = nodes.size()-1;
-      for(Iterator i=nodes.iterator(); i.hasNext();)
-	node.jjtAddChild((SimpleNode)i.next(), pos--);
+      for(Iterator i=nodes.iterator(); i.hasNext();) {
+	SimpleNode child = (SimpleNode)i.next();
+	child.jjtSetParent(res);
+	res.jjtAddChild(child, pos--);
+      }
       if(nodeName.equals("+"))
         res.setFunction("+", new Madd(nodes.size()));
       else
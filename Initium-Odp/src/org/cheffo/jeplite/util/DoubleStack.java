@@ -7,6 +7,8 @@ public class DoubleStack {
   private int stackPtr;
   private int stackDepth;
   private int stackIncrement;
+  private java.util.Random random;
+  private double[] variables;
   public static int instances;
 
   public DoubleStack() {
@@ -15,6 +17,7 @@ public class DoubleStack {
 
   public DoubleStack(int stackDepth) {
     theStack = new double[this.stackDepth=stackDepth];
+    stackIncrement = Math.max(stackDepth, DEFAULT_STACK_INCREMENT);
     instances++;
   }
 
@@ -41,9 +44,9 @@ public class DoubleStack {
   }
 
   private final void enlarge() {
-    stackDepth += stackIncrement;
-    double[] newStack = new double[stackDepth];
+    double[] newStack = new double[stackDepth + stackIncrement];
     System.arraycopy(theStack, 0, newStack, 0, stackDepth);
+    stackDepth += stackIncrement;
     theStack = newStack;
   }
 
@@ -54,4 +57,28 @@ public class DoubleStack {
   public final void removeAllElements() {
     stackPtr = 0;
   }
+
+  /**
+   * The random number generator that functions like rand() should use while
+   * evaluating on this stack. If null, Math.random() is used.
+   */
+  public final java.util.Random getRandom() {
+    return random;
+  }
+
+  public final void setRandom(java.util.Random random) {
+    this.random = random;
+  }
+
+  /**
+   * The variable slots that slot nodes (see CompiledExpression) read from while
+   * evaluating on this stack.
+   */
+  public final double[] getVariables() {
+    return variables;
+  }
+
+  public final void setVariables(double[] variables) {
+    this.variables = variables;
+  }
 }
\ No newline at end of file
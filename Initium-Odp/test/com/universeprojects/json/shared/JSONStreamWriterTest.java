@@ -0,0 +1,62 @@
+package com.universeprojects.json.shared;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class JSONStreamWriterTest
+{
+	private String write(Object value) throws IOException
+	{
+		StringWriter out = new StringWriter();
+		JSONStreamWriter.write(value, out);
+		return out.toString();
+	}
+
+	@Test
+	public void testSameOutputAsToJSONString() throws IOException
+	{
+		List<Map<String, String>> htmlUpdates = new ArrayList<Map<String, String>>();
+		Map<String, String> update = new HashMap<String, String>();
+		update.put("type", "0");
+		update.put("selector", "#mainMoney");
+		update.put("html", "<div class=\"gold\">\t1,000</div>\r\n— \u0001");
+		htmlUpdates.add(update);
+
+		JSONObject result = new JSONObject();
+		result.put("responseHtml", htmlUpdates);
+		result.put("timeLeft", 10L);
+		result.put("isComplete", false);
+		result.put("nan", Double.NaN);
+		result.put("message", null);
+		JSONArray array = new JSONArray();
+		array.add("plain");
+		array.add(1.5d);
+		result.put("array", array);
+
+		Assert.assertEquals(result.toJSONString(), write(result));
+	}
+
+	@Test
+	public void testLongEscapedString() throws IOException
+	{
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i<5000; i++)
+			sb.append("</a>\" ");
+
+		Assert.assertEquals(JSONValue.toJSONString(sb.toString()), write(sb.toString()));
+	}
+
+	@Test
+	public void testEscapeWithoutSpecialCharacters()
+	{
+		String plain = "nothing to escape here";
+		Assert.assertSame(plain, JSONValue.escape(plain));
+	}
+}
@@ -0,0 +1,57 @@
+package com.universeprojects.json.shared.parser;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.universeprojects.json.shared.JSONArray;
+import com.universeprojects.json.shared.JSONObject;
+
+public class JSONFieldHandlerTest
+{
+	@Test
+	public void testReadsTopLevelFields() throws IOException, ParseException
+	{
+		String json = "{\"accountId\":\"Character(5)\",\"nested\":{\"contents\":\"wrong\"},\"contents\":\"hello \\\"world\\\"\",\"list\":[\"channel\",1],\"channel\":\"public\"}";
+		JSONFieldHandler fields = new JSONFieldHandler("accountId", "contents", "channel", "target");
+		new JSONServerParser().parse(new StringReader(json), fields);
+
+		Assert.assertEquals("Character(5)", fields.getString("accountId"));
+		Assert.assertEquals("hello \"world\"", fields.getString("contents"));
+		Assert.assertEquals("public", fields.getString("channel"));
+		Assert.assertNull(fields.getString("target"));
+	}
+
+	@Test
+	public void testStopsOnceAllFieldsAreFound() throws IOException, ParseException
+	{
+		// Everything after the wanted field is invalid, the parser must not get that far
+		String json = "{\"Auth-Token\":\"abc\", ]]]";
+		JSONFieldHandler fields = new JSONFieldHandler("Auth-Token");
+		new JSONServerParser().parse(new StringReader(json), fields);
+
+		Assert.assertEquals("abc", fields.getString("Auth-Token"));
+	}
+
+	@Test
+	public void testReusedParserHandlesDeepNesting() throws ParseException
+	{
+		JSONServerParser parser = new JSONServerParser();
+		StringBuilder json = new StringBuilder();
+		for(int i = 0; i<40; i++)
+			json.append("{\"a\":[");
+		json.append("1");
+		for(int i = 0; i<40; i++)
+			json.append("]}");
+
+		for(int attempt = 0; attempt<2; attempt++)
+		{
+			Object value = parser.parse(json.toString());
+			for(int i = 0; i<40; i++)
+				value = ((JSONArray)((JSONObject)value).get("a")).get(0);
+			Assert.assertEquals(1L, value);
+		}
+	}
+}
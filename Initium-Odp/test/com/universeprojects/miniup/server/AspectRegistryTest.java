@@ -0,0 +1,19 @@
+package com.universeprojects.miniup.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.universeprojects.miniup.server.aspects.AspectCardDeck;
+import com.universeprojects.miniup.server.aspects.AspectFireplace;
+
+public class AspectRegistryTest
+{
+	@Test
+	public void testAspectCommandsAreRegisteredWithoutCreatingAnAspect()
+	{
+		Assert.assertEquals(AspectFireplace.CommandFireplaceLight.class, InitiumAspect.getAspectCommand("FireplaceLight"));
+		Assert.assertEquals(AspectFireplace.CommandFireplaceAddFuel.class, InitiumAspect.getAspectCommand("FireplaceAddFuel"));
+		Assert.assertEquals(AspectCardDeck.CommandCardsAddFromInventory.class, InitiumAspect.getAspectCommand("CardsAddFromInventory"));
+		Assert.assertEquals(AspectCardDeck.CommandCardsTakeACard.class, InitiumAspect.getAspectCommand("CardsTakeACard"));
+	}
+}
@@ -0,0 +1,111 @@
+package com.universeprojects.miniup.server;
+
+/**
+ * Measures the per-message cost of ChatMessagePipeline against the sequential replaceAll/startsWith chain
+ * ServletEventServer used before, on a mix of typical chat messages. Only messages that don't need the
+ * datastore are used (no Item(id) embeds, /group or /ignore).
+ *
+ * Run the main() method directly, it is not part of the unit tests.
+ */
+public class ChatMessagePipelineBenchmark
+{
+	private static final int WARMUP_ITERATIONS = 20000;
+	private static final int MEASURED_ITERATIONS = 200000;
+
+	private static final String[] MESSAGES =
+	{
+		"hey guys, anyone want to party up for the troll cave?",
+		"selling a nice longsword, check out <https://example.com/sword|my store> or [this](http://example.com/x)",
+		"/guide read this before asking please",
+		"/premium",
+		"lol I'm going to kill that goblin > you",
+		"does anyone know where to find iron ore? see http://initium.wikia.com/wiki/Iron_Ore and /r/initium",
+		"/map the north is over here",
+		"ok",
+	};
+
+	public static void main(String[] args)
+	{
+		for(String message:MESSAGES)
+		{
+			String expected = legacy(message);
+			String actual = ChatMessagePipeline.process(null, null, message);
+			if (expected.equals(actual)==false)
+				System.out.println("MISMATCH for '" + message + "':\n  legacy:   " + expected + "\n  pipeline: " + actual);
+		}
+
+		for(int i = 0; i<WARMUP_ITERATIONS; i++)
+		{
+			String message = MESSAGES[i % MESSAGES.length];
+			legacy(message);
+			ChatMessagePipeline.process(null, null, message);
+		}
+
+		long start = System.nanoTime();
+		for(int i = 0; i<MEASURED_ITERATIONS; i++)
+			legacy(MESSAGES[i % MESSAGES.length]);
+		report("legacy  ", start);
+
+		start = System.nanoTime();
+		for(int i = 0; i<MEASURED_ITERATIONS; i++)
+			ChatMessagePipeline.process(null, null, MESSAGES[i % MESSAGES.length]);
+		report("pipeline", start);
+	}
+
+	/**
+	 * The old ServletEventServer code path, minus the parts that need the datastore.
+	 */
+	private static String legacy(String message)
+	{
+		message = message.replace("kill", "krill");
+		message = message.replace(">", "&gt;");
+		message = message.replace("<", "&lt;");
+		message = message.replaceAll("\\&lt;(http.*?)\\|(.*?)\\&gt;", "<a href='$1' target='_blank'>$2</a>");
+		message = message.replaceAll("\\&lt;(http.*?)\\&gt;", "$1");
+		message = message.replaceAll("\\[(.*?)\\]\\((http.*?)\\)", "<a href='$2' target='_blank'>$1</a>");
+
+		if (message.startsWith("/competition"))
+			message = "<a href='https://initiumcompetition.appspot.com' target='_blank'>[View the official competition page]</a> " + message.substring(12);
+		if (message.startsWith("/guide"))
+			message = "<a href='http://initium.wikia.com/wiki/Starter_Guide' target='_blank'>[View the player-made starter guide]</a> " + message.substring(6);
+		if (message.startsWith("/faq"))
+			message = "<a href='http://initium.wikia.com/wiki/Staub%27s_FAQ_Guide' target='_blank'>[View the player-made FAQ]</a> " + message.substring(4);
+		if (message.startsWith("/changelog"))
+			message = "<a onclick='viewChangelog()'>[View the change log]</a> " + message.substring(10);
+		if (message.startsWith("/exchange"))
+			message = "<a onclick='viewExchange()'>[Visit the Global Premium Membership Token Exchange page]</a> " + message.substring(9);
+		if (message.startsWith("/profile"))
+			message = "<a onclick='viewProfile()'>[Visit your Profile Page]</a> " + message.substring(8);
+		if (message.startsWith("/groups"))
+			message = "<a href='http://initium.wikia.com/wiki/Category:Player_Groups' target='_blank'>[Visit the player-made groups list]</a> " + message.substring(7);
+		if (message.startsWith("/customize"))
+			message = "<a onclick='customizeItemOrderPage()'>[Visit the customize item order page]</a> " + message.substring(10);
+		if (message.startsWith("/wiki"))
+			message = "<a href='http://initium.wikia.com/wiki/Initium_Wiki' target='_blank'>[Visit the player-made wiki]</a> " + message.substring(5);
+		if (message.startsWith("/app"))
+			message = "<a href='https://play.google.com/store/apps/details?id=com.playinitium' target='_blank'>[Android App Download]</a> &#8226; <a href='http://initium-resources.appspot.com/windows.xap'>[Windows Phone App Download]</a> &#8226; [iOS App Coming Soon...] " + message.substring(4);
+		if (message.startsWith("/about"))
+			message = "<a href='about.jsp'>[Visit Initium About Page]</a> " + message.substring(6);
+		if (message.startsWith("/quickstart"))
+			message = "<a href='quickstart.jsp'>[Visit Quick Start Page]</a> " + message.substring(11);
+		if (message.startsWith("/mechanics"))
+			message = "<a href='odp/mechanics.jsp'>[Visit Game Mechanics Page]</a> " + message.substring(10);
+		if (message.startsWith("/premium"))
+			message = "For information on becoming a premium member <a onclick='viewProfile()'>[Visit Your Profile Page]</a> " + message.substring(8);
+		if (message.startsWith("/map"))
+			message = "<a href='http://i.imgur.com/OU61I5e.jpg' target='_blank'>[Visit the player-made world map]</a> " + message.substring(4);
+
+		message = message.replaceAll("(((?<!')https?):((//)|(\\\\))+[\\w\\d:#@%/;$()~_?\\+-=\\\\\\.&]*)", "<a href='$1' target='_blank'>$1</a>");
+		message = message.replaceAll("[Jj(&#106;)][Aa(&#97;)][Vv(&#118;)][Aa(&#97;)][Ss(&#115;)][Cc(&#99;)][Rr(&#114;)][Ii(&#105;)][Pp(&#112;)][Tt]\\s*[:]", "");
+		message = message.replaceAll("(^| )/(r/[A-Za-z0-9_-]+)", "$1<a href='http://reddit.com/$2' target='_blank'>/$2</a>");
+		message = message.replaceAll("(^| )/(u/[A-Za-z0-9_-]+)", "$1<a href='http://reddit.com/$2' target='_blank'>/$2</a>");
+		message = GameUtils.resolveFormulas(message, false, false);
+		return message;
+	}
+
+	private static void report(String label, long startNanos)
+	{
+		double nanosPerOp = (System.nanoTime() - startNanos) / (double) MEASURED_ITERATIONS;
+		System.out.println(label + ": " + String.format("%.0f", nanosPerOp) + " ns/message");
+	}
+}
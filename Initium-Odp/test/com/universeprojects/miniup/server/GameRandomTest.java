@@ -0,0 +1,92 @@
+package com.universeprojects.miniup.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GameRandomTest
+{
+	@Test
+	public void testReplayGivesTheSameRolls()
+	{
+		GameRandom.replay(12345L);
+		List<Object> first = rolls();
+
+		GameRandom.replay(12345L);
+		List<Object> second = rolls();
+
+		Assert.assertEquals(first, second);
+	}
+
+	@Test
+	public void testDifferentSeedsGiveDifferentRolls()
+	{
+		GameRandom.replay(1L);
+		List<Object> first = rolls();
+
+		GameRandom.replay(2L);
+		List<Object> second = rolls();
+
+		Assert.assertFalse(first.equals(second));
+	}
+
+	@Test
+	public void testEachThreadHasItsOwnStream() throws InterruptedException
+	{
+		final Random[] other = new Random[1];
+		Thread thread = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				other[0] = GameRandom.get();
+			}
+		};
+		thread.start();
+		thread.join();
+
+		Assert.assertNotNull(other[0]);
+		Assert.assertNotSame(GameRandom.get(), other[0]);
+		Assert.assertSame(GameRandom.get(), GameRandom.get());
+	}
+
+	@Test
+	public void testRollBounds()
+	{
+		Random rnd = GameRandom.get();
+		for(int i = 0; i<100000; i++)
+		{
+			double d = rnd.nextDouble();
+			Assert.assertTrue(d>=0d && d<1d);
+			int n = rnd.nextInt(7);
+			Assert.assertTrue(n>=0 && n<7);
+		}
+
+		Assert.assertTrue(GameUtils.roll(100d));
+		Assert.assertFalse(GameUtils.roll(0d));
+	}
+
+	private List<Object> rolls()
+	{
+		Random rnd = GameRandom.get();
+		List<Object> result = new ArrayList<Object>();
+		for(int i = 0; i<20; i++)
+		{
+			result.add(rnd.nextInt(100));
+			result.add(rnd.nextDouble());
+			result.add(rnd.nextGaussian());
+			result.add(GameUtils.roll(50d));
+		}
+
+		List<Integer> deck = new ArrayList<Integer>();
+		for(int i = 0; i<10; i++)
+			deck.add(i);
+		Collections.shuffle(deck, rnd);
+		result.add(deck);
+		return result;
+	}
+}
@@ -8,6 +8,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 import org.junit.After;
 import org.junit.Assert;
@@ -225,4 +226,26 @@ public class GameUtilsTest
 		assertEquals("icon2", GameUtils.getItemIconToUseFor("equipmentLegs", item));
 			
 	}	
+
+	@Test
+	public void testCurveSolver() {
+		Random rnd = new Random(0);
+		Assert.assertEquals(14d, CurveSolver.solve("2+3*4", rnd), 0d);
+		Assert.assertEquals(3d, CurveSolver.solve("floor(7/2)", rnd), 0d);
+		Assert.assertEquals(5d, CurveSolver.solve("5to5", rnd), 0d);
+		Assert.assertEquals(8d, CurveSolver.solve("10d1dl2", rnd), 0d);
+
+		for (int i = 0; i < 100; i++)
+		{
+			double dd = CurveSolver.solve("DD2D6", rnd);
+			Assert.assertTrue(dd >= 2 && dd <= 12);
+			double dice = CurveSolver.solve("1d6+1to4", rnd);
+			Assert.assertTrue(dice >= 2 && dice <= 10);
+		}
+	}
+
+	@Test(expected = ContentDeveloperException.class)
+	public void testCurveSolver_invalidCurve() {
+		CurveSolver.solve("2d6+unknown(1)", new Random());
+	}
 }
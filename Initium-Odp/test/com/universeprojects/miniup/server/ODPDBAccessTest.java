@@ -501,4 +501,28 @@ public class ODPDBAccessTest {
 		
 		testObj.doCharacterTakePath(testObj.getDB(), character2, path , false);
 	}
+
+	@Test
+	public void getDoubleBuffableValue_flatThenPercent() throws Exception {
+		CachedEntity character = new CachedEntity("Character");
+		character.setProperty("strength", 10d);
+		testObj.getDB().put(character);
+		testObj.awardBuff(testObj.getDB(), character.getKey(), "", "Pumped!", "", 60, "strength", "+10%", "strength", "+5", "dexterity", "-2", 1);
+
+		assertEquals(16.5d, testObj.getDoubleBuffableProperty(character, "strength"), 0.0001d);
+		assertEquals(null, testObj.getDoubleBuffableProperty(character, "dexterity"));
+		assertEquals(8d, testObj.getDoubleBuffableValue(character, "dexterity", 10d), 0.0001d);
+	}
+
+	@Test
+	public void getDoubleBuffableValue_newBuffInvalidatesIndex() throws Exception {
+		CachedEntity character = new CachedEntity("Character");
+		character.setProperty("strength", 10d);
+		testObj.getDB().put(character);
+		assertEquals(10d, testObj.getDoubleBuffableProperty(character, "strength"), 0.0001d);
+
+		testObj.awardBuff(testObj.getDB(), character.getKey(), "", "Pumped!", "", 60, "strength", "+5", null, null, null, null, 1);
+
+		assertEquals(15d, testObj.getDoubleBuffableProperty(character, "strength"), 0.0001d);
+	}
 }
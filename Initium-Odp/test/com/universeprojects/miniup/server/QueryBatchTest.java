@@ -0,0 +1,78 @@
+package com.universeprojects.miniup.server;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.universeprojects.cacheddatastore.CachedEntity;
+
+public class QueryBatchTest extends ODPServerTestBase
+{
+	private CachedEntity newItem(String name, Object containerKey)
+	{
+		CachedEntity item = new CachedEntity("Item");
+		item.setProperty("name", name);
+		item.setProperty("containerKey", containerKey);
+		ds.put(item);
+		return item;
+	}
+
+	@Test
+	public void testResultsInTheOrderTheQueriesWereAdded()
+	{
+		CachedEntity character = new CachedEntity("Character");
+		character.setProperty("name", "Bob");
+		ds.put(character);
+		CachedEntity location = new CachedEntity("Location");
+		ds.put(location);
+		newItem("Sword", character.getKey());
+		newItem("Shield", character.getKey());
+		newItem("Rock", location.getKey());
+
+		QueryBatch batch = db.newQueryBatch();
+		int characters = batch.add("Character", "name", "Bob");
+		int onCharacter = batch.add("Item", "containerKey", character.getKey());
+		int onLocation = batch.add("Item", "containerKey", location.getKey());
+		List<List<CachedEntity>> results = batch.run();
+
+		Assert.assertEquals(3, results.size());
+		Assert.assertEquals(1, results.get(characters).size());
+		Assert.assertEquals(character.getKey(), results.get(characters).get(0).getKey());
+		Assert.assertEquals(2, results.get(onCharacter).size());
+		Assert.assertEquals(1, results.get(onLocation).size());
+		Assert.assertEquals("Rock", results.get(onLocation).get(0).getProperty("name"));
+	}
+
+	@Test
+	public void testTwoFieldsAndLimit()
+	{
+		CachedEntity location = new CachedEntity("Location");
+		ds.put(location);
+		for(int i = 0; i<5; i++)
+			newItem("Rock", location.getKey());
+		newItem("Stick", location.getKey());
+
+		QueryBatch batch = db.newQueryBatch();
+		int rocks = batch.add("Item", "containerKey", location.getKey(), "name", "Rock");
+		int limited = batch.add("Item", new FilterPredicate("containerKey", FilterOperator.EQUAL, location.getKey()), 2);
+		int everything = batch.add("Item", null, 100);
+		List<List<CachedEntity>> results = batch.run();
+
+		Assert.assertEquals(5, results.get(rocks).size());
+		Assert.assertEquals(2, results.get(limited).size());
+		Assert.assertEquals(6, results.get(everything).size());
+	}
+
+	@Test
+	public void testNoResults()
+	{
+		QueryBatch batch = db.newQueryBatch();
+		int nothing = batch.add("Item", "name", "Nothing");
+		Assert.assertTrue(batch.run().get(nothing).isEmpty());
+
+		Assert.assertTrue(db.newQueryBatch().run().isEmpty());
+	}
+}
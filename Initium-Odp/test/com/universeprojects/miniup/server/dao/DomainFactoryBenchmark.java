@@ -0,0 +1,84 @@
+package com.universeprojects.miniup.server.dao;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.universeprojects.cacheddatastore.CachedEntity;
+import com.universeprojects.miniup.server.domain.OdpDomain;
+
+import helper.utilities.ClassFinder;
+
+/**
+ * Compares the old OdpDao.buildDomain (looking up the wrap method and invoking it for every entity) against
+ * the cached DomainFactories, for the domain of every DAO.
+ *
+ * Run the main() method directly, it is not part of the unit tests.
+ */
+public class DomainFactoryBenchmark {
+
+	private static final int WARMUP_ITERATIONS = 20000;
+	private static final int MEASURED_ITERATIONS = 100000;
+
+	public static void main(String[] args) throws Exception {
+		LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+		helper.setUp();
+		try {
+			long legacyTotal = 0;
+			long factoryTotal = 0;
+			for (Class<? extends OdpDomain> domainClass : getDomainClasses()) {
+				CachedEntity entity = domainClass.newInstance().getCachedEntity();
+
+				for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+					legacy(domainClass, entity);
+					DomainFactories.get(domainClass).wrap(entity);
+				}
+
+				long start = System.nanoTime();
+				for (int i = 0; i < MEASURED_ITERATIONS; i++)
+					legacy(domainClass, entity);
+				long legacy = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				DomainFactory<? extends OdpDomain> factory = DomainFactories.get(domainClass);
+				for (int i = 0; i < MEASURED_ITERATIONS; i++)
+					factory.wrap(entity);
+				long factoryNanos = System.nanoTime() - start;
+
+				System.out.println(String.format("%-28s legacy %5.0f ns/op, factory %5.0f ns/op", domainClass.getSimpleName(),
+						legacy / (double) MEASURED_ITERATIONS, factoryNanos / (double) MEASURED_ITERATIONS));
+				legacyTotal += legacy;
+				factoryTotal += factoryNanos;
+			}
+			System.out.println(String.format("Overall: legacy %d ms, factory %d ms", legacyTotal / 1000000, factoryTotal / 1000000));
+		}
+		finally {
+			helper.tearDown();
+		}
+	}
+
+	/**
+	 * The old OdpDao.buildDomain() code path.
+	 */
+	private static Object legacy(Class<?> domainClass, CachedEntity entity) throws Exception {
+		Method declaredMethod = domainClass.getDeclaredMethod("wrap", CachedEntity.class);
+		return declaredMethod.invoke(domainClass, entity);
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static List<Class<? extends OdpDomain>> getDomainClasses() throws Exception {
+		List<Class<? extends OdpDomain>> domainClasses = new ArrayList<>();
+		for (Class daoClass : new ClassFinder().getDaoClasses()) {
+			if (!OdpDao.class.isAssignableFrom(daoClass) || "OdpDao".equals(daoClass.getSimpleName())) { continue; }
+			String domainClassName = daoClass.getSimpleName().substring(0, daoClass.getSimpleName().length() - 3);
+			try {
+				domainClasses.add((Class<? extends OdpDomain>) Class.forName(OdpDomain.class.getPackage().getName() + "." + domainClassName));
+			} catch (ClassNotFoundException e) {
+				System.out.println("No domain class for " + daoClass.getSimpleName());
+			}
+		}
+		return domainClasses;
+	}
+}
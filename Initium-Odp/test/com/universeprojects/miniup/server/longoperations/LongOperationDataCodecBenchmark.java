@@ -0,0 +1,68 @@
+package com.universeprojects.miniup.server.longoperations;
+
+import java.util.Map;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.universeprojects.cacheddatastore.DBUtils;
+
+/**
+ * Compares the binary LongOperationDataCodec against the legacy Java serialization (as a string)
+ * on realistic LongOperationTakePath and LongOperationDoSkillConstructItem payloads.
+ * 
+ * Run the main() method directly, it is not part of the unit tests.
+ */
+public class LongOperationDataCodecBenchmark {
+
+	private static final int WARMUP_ITERATIONS = 20000;
+	private static final int MEASURED_ITERATIONS = 100000;
+
+	public static void main(String[] args) throws Exception {
+		LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+		helper.setUp();
+		try {
+			benchmark("LongOperationTakePath", LongOperationDataCodecTest.takePathData());
+			benchmark("LongOperationDoSkillConstructItem", LongOperationDataCodecTest.constructItemData());
+		}
+		finally {
+			helper.tearDown();
+		}
+	}
+
+	private static void benchmark(String name, Map<String, Object> data) throws Exception {
+		String legacy = DBUtils.serializeObjectToString(data);
+		byte[] binary = LongOperationDataCodec.encode(data);
+
+		System.out.println(name + ": legacy " + legacy.length() + " chars, binary " + binary.length + " bytes");
+
+		for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+			DBUtils.deserializeObjectFromString(DBUtils.serializeObjectToString(data));
+			LongOperationDataCodec.decode(LongOperationDataCodec.encode(data));
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < MEASURED_ITERATIONS; i++)
+			DBUtils.serializeObjectToString(data);
+		report("  legacy write", start);
+
+		start = System.nanoTime();
+		for (int i = 0; i < MEASURED_ITERATIONS; i++)
+			DBUtils.deserializeObjectFromString(legacy);
+		report("  legacy read ", start);
+
+		start = System.nanoTime();
+		for (int i = 0; i < MEASURED_ITERATIONS; i++)
+			LongOperationDataCodec.encode(data);
+		report("  binary write", start);
+
+		start = System.nanoTime();
+		for (int i = 0; i < MEASURED_ITERATIONS; i++)
+			LongOperationDataCodec.decode(binary);
+		report("  binary read ", start);
+	}
+
+	private static void report(String label, long startNanos) {
+		double nanosPerOp = (System.nanoTime() - startNanos) / (double) MEASURED_ITERATIONS;
+		System.out.println(label + ": " + String.format("%.0f", nanosPerOp) + " ns/op");
+	}
+}
@@ -0,0 +1,106 @@
+package com.universeprojects.miniup.server.longoperations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.universeprojects.cacheddatastore.DBUtils;
+
+public class LongOperationDataCodecTest {
+
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+	@Before
+	public void before() {
+		helper.setUp();
+	}
+
+	@After
+	public void after() {
+		helper.tearDown();
+	}
+
+	@Test
+	public void packAndUnpack_takePath() throws Exception {
+		Map<String, Object> data = takePathData();
+
+		Map<String, Object> unpacked = LongOperationDataCodec.unpack(LongOperationDataCodec.pack(data));
+
+		assertEquals(data, unpacked);
+		assertEquals(Long.class, unpacked.get("pathId").getClass());
+	}
+
+	@Test
+	public void packAndUnpack_constructItem() throws Exception {
+		Map<String, Object> data = constructItemData();
+
+		Map<String, Object> unpacked = LongOperationDataCodec.unpack(LongOperationDataCodec.pack(data));
+
+		assertEquals(data, unpacked);
+		assertEquals(Integer.class, unpacked.get("repetitionCount").getClass());
+	}
+
+	@Test
+	public void unpack_legacyFormat() throws Exception {
+		Map<String, Object> data = constructItemData();
+
+		Map<String, Object> unpacked = LongOperationDataCodec.unpack(DBUtils.serializeObjectToString(data));
+
+		assertEquals(data, unpacked);
+	}
+
+	@Test
+	public void unpack_nothing() throws Exception {
+		assertNull(LongOperationDataCodec.unpack(null));
+		assertNull(LongOperationDataCodec.unpack(""));
+	}
+
+	static Map<String, Object> takePathData() {
+		Map<String, Object> data = new LinkedHashMap<String, Object>();
+		data.put("attack", false);
+		data.put("pathId", 5629499534213120L);
+		data.put("locationName", "Aera Countryside");
+		data.put("secondsToWait", 6L);
+		data.put("pageRefreshJavascriptCall", "doGoto(null, 5629499534213120, false);");
+		data.put("endTime", new Date());
+		return data;
+	}
+
+	static Map<String, Object> constructItemData() {
+		Map<Key, List<Key>> selectedItems = new HashMap<Key, List<Key>>();
+		for (int i = 1; i <= 4; i++) {
+			List<Key> items = new ArrayList<Key>();
+			for (int j = 1; j <= 3; j++)
+				items.add(KeyFactory.createKey("Item", 4503599627370496L + i * 10 + j));
+			selectedItems.put(KeyFactory.createKey("GenericEntityRequirement", 6192449487634432L + i), items);
+		}
+
+		Map<String, Object> data = new LinkedHashMap<String, Object>();
+		data.put("repsUniqueId", "a8f2b4c1");
+		data.put("skillId", 5066549580791808L);
+		data.put("skillName", "Craft Iron Shortsword");
+		data.put("selectedItems", selectedItems);
+		data.put("repetitionCount", 3);
+		data.put("description", "It will take 45 seconds to finish this construction.");
+		data.put("pageRefreshJavascriptCall", "doConstructItemSkill(null, 5066549580791808, 'Craft Iron Shortsword', 'a8f2b4c1', null);");
+		data.put("endTime", new Date());
+		data.put("finished", true);
+		data.put("tools", Arrays.asList(KeyFactory.createKey("Item", 42L)));
+		return data;
+	}
+}
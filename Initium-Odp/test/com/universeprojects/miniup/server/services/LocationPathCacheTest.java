@@ -0,0 +1,121 @@
+package com.universeprojects.miniup.server.services;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.universeprojects.cacheddatastore.CachedEntity;
+import com.universeprojects.miniup.server.ODPServerTestBase;
+
+public class LocationPathCacheTest extends ODPServerTestBase
+{
+	@Before
+	public void clearCache()
+	{
+		LocationPathCache.clear();
+	}
+
+	private CachedEntity newLocation(String name)
+	{
+		CachedEntity location = new CachedEntity("Location");
+		location.setProperty("name", name);
+		ds.put(location);
+		return location;
+	}
+
+	private CachedEntity newPermanentPath(CachedEntity location1, CachedEntity location2)
+	{
+		CachedEntity path = new CachedEntity("Path");
+		path.setProperty("location1Key", location1.getKey());
+		path.setProperty("location2Key", location2.getKey());
+		path.setProperty("discoveryChance", 100d);
+		ds.put(path);
+		return path;
+	}
+
+	/**
+	 * The puts above just bumped the locations, which keeps them from being cached for a few seconds. This
+	 * lets that window lapse right away.
+	 */
+	private void settle(CachedEntity... locations)
+	{
+		for(CachedEntity location:locations)
+			db.getMC().delete(LocationPathCache.bumpedAtKey(location.getKey()));
+	}
+
+	@Test
+	public void testPermanentPathsInBothDirections()
+	{
+		CachedEntity town = newLocation("Town");
+		CachedEntity forest = newLocation("Forest");
+		CachedEntity path = newPermanentPath(town, forest);
+
+		LocationPathCache.PermanentPaths fromTown = LocationPathCache.getPermanentPaths(db, town);
+		Assert.assertEquals(1, fromTown.size());
+		Assert.assertEquals(path.getKey(), fromTown.getPaths().get(0).getKey());
+		Assert.assertEquals(forest.getKey(), fromTown.getDestLocations().get(0).getKey());
+		Assert.assertEquals(Integer.valueOf(2), fromTown.getPathEnds().get(0));
+
+		LocationPathCache.PermanentPaths fromForest = LocationPathCache.getPermanentPaths(db, forest);
+		Assert.assertEquals(1, fromForest.size());
+		Assert.assertEquals(town.getKey(), fromForest.getDestLocations().get(0).getKey());
+	}
+
+	@Test
+	public void testHandsOutCopies()
+	{
+		CachedEntity town = newLocation("Town");
+		CachedEntity forest = newLocation("Forest");
+		newPermanentPath(town, forest);
+		settle(town, forest);
+
+		LocationPathCache.PermanentPaths paths = LocationPathCache.getPermanentPaths(db, town);
+		paths.getDestLocations().get(0).setProperty("name", "Changed");
+		paths.getPaths().get(0).setProperty("discoveryChance", 0d);
+
+		LocationPathCache.PermanentPaths cached = LocationPathCache.getPermanentPaths(db, town);
+		Assert.assertSame(paths, cached);
+		Assert.assertEquals("Forest", cached.getDestLocations().get(0).getProperty("name"));
+		Assert.assertEquals(100d, cached.getPaths().get(0).getProperty("discoveryChance"));
+	}
+
+	@Test
+	public void testDeletingAPathInvalidatesBothEnds()
+	{
+		CachedEntity town = newLocation("Town");
+		CachedEntity forest = newLocation("Forest");
+		CachedEntity path = newPermanentPath(town, forest);
+		settle(town, forest);
+
+		LocationPathCache.PermanentPaths fromTown = LocationPathCache.getPermanentPaths(db, town);
+		Assert.assertEquals(1, fromTown.size());
+		Assert.assertSame(fromTown, LocationPathCache.getPermanentPaths(db, town));
+		LocationPathCache.PermanentPaths fromForest = LocationPathCache.getPermanentPaths(db, forest);
+		Assert.assertEquals(1, fromForest.size());
+		Assert.assertSame(fromForest, LocationPathCache.getPermanentPaths(db, forest));
+
+		db.deletePath(ds, path);
+
+		Assert.assertEquals(0, LocationPathCache.getPermanentPaths(db, town).size());
+		Assert.assertEquals(0, LocationPathCache.getPermanentPaths(db, forest).size());
+	}
+
+	@Test
+	public void testWritingAPathInvalidatesBothEnds()
+	{
+		CachedEntity town = newLocation("Town");
+		CachedEntity forest = newLocation("Forest");
+		CachedEntity path = newPermanentPath(town, forest);
+		settle(town, forest);
+
+		LocationPathCache.PermanentPaths fromForest = LocationPathCache.getPermanentPaths(db, forest);
+		Assert.assertEquals(1, fromForest.size());
+		Assert.assertSame(fromForest, LocationPathCache.getPermanentPaths(db, forest));
+
+		path.setProperty("forceOneWay", "FromLocation1Only");
+		ds.put(path);
+
+		Assert.assertEquals(1, LocationPathCache.getPermanentPaths(db, town).size());
+		Assert.assertEquals(0, LocationPathCache.getPermanentPaths(db, forest).size());
+	}
+}
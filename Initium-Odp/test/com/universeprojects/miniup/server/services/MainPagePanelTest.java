@@ -0,0 +1,50 @@
+package com.universeprojects.miniup.server.services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MainPagePanelTest
+{
+	private List<MainPagePanel> getAffectedPanels(String...changes)
+	{
+		Set<String> changed = new HashSet<String>(Arrays.asList(changes));
+		List<MainPagePanel> result = new ArrayList<MainPagePanel>();
+		for(MainPagePanel panel:MainPagePanel.values())
+			if (panel.dependsOn(changed))
+				result.add(panel);
+		return result;
+	}
+
+	@Test
+	public void testGoldOnlyAffectsMoney()
+	{
+		Assert.assertEquals(Arrays.asList(MainPagePanel.Money), getAffectedPanels("Character.dogecoins"));
+	}
+
+	@Test
+	public void testWholeKindAffectsPropertyDependencies()
+	{
+		List<MainPagePanel> panels = getAffectedPanels("Character");
+		Assert.assertTrue(panels.contains(MainPagePanel.Money));
+		Assert.assertTrue(panels.contains(MainPagePanel.InBannerCharacterWidget));
+		Assert.assertFalse(panels.contains(MainPagePanel.TestPanel));
+	}
+
+	@Test
+	public void testPropertyAffectsWholeKindDependencies()
+	{
+		List<MainPagePanel> panels = getAffectedPanels("Location.name");
+		Assert.assertTrue(panels.contains(MainPagePanel.LocationName));
+		Assert.assertTrue(panels.contains(MainPagePanel.CollectablesView));
+		Assert.assertFalse(panels.contains(MainPagePanel.Money));
+
+		// A kind that only shares a prefix with a dependency shouldn't match
+		Assert.assertTrue(getAffectedPanels("LocationFoo.name").isEmpty());
+	}
+}
@@ -0,0 +1,147 @@
+package com.universeprojects.miniup.server.services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.universeprojects.cacheddatastore.CachedEntity;
+import com.universeprojects.miniup.server.GameUtils;
+import com.universeprojects.miniup.server.ODPServerTestBase;
+
+public class RoutePlannerTest extends ODPServerTestBase
+{
+	private final List<CachedEntity> paths = new ArrayList<CachedEntity>();
+	private final Set<Key> discovered = new HashSet<Key>();
+
+	private Key location(long id)
+	{
+		return KeyFactory.createKey("Location", id);
+	}
+
+	private Key path(long id, long location1, long location2, long travelTime, double discoveryChance, String type, String forceOneWay)
+	{
+		CachedEntity path = new CachedEntity("Path", id);
+		path.setProperty("location1Key", location(location1));
+		path.setProperty("location2Key", location(location2));
+		path.setProperty("travelTime", travelTime);
+		path.setProperty("discoveryChance", discoveryChance);
+		path.setProperty("type", type);
+		path.setProperty("forceOneWay", forceOneWay);
+		paths.add(path);
+		return path.getKey();
+	}
+
+	private Key permanentPath(long id, long location1, long location2, long travelTime)
+	{
+		return path(id, location1, location2, travelTime, 100d, "Permanent", null);
+	}
+
+	private List<Key> route(long from, long to)
+	{
+		RoutePlanner.NodeSource nodes = new RoutePlanner.NodeSource()
+		{
+			private final Map<Key, WorldGraph.Node> built = new HashMap<Key, WorldGraph.Node>();
+
+			@Override
+			public WorldGraph.Node getNode(Key locationKey)
+			{
+				WorldGraph.Node node = built.get(locationKey);
+				if (node==null)
+				{
+					List<CachedEntity> location1Paths = new ArrayList<CachedEntity>();
+					List<CachedEntity> location2Paths = new ArrayList<CachedEntity>();
+					for(CachedEntity path:paths)
+					{
+						if (GameUtils.equals(path.getProperty("location1Key"), locationKey))
+							location1Paths.add(path);
+						if (GameUtils.equals(path.getProperty("location2Key"), locationKey))
+							location2Paths.add(path);
+					}
+					node = new WorldGraph.Node(0L, locationKey, location1Paths, location2Paths);
+					built.put(locationKey, node);
+				}
+				return node;
+			}
+
+			@Override
+			public void prefetch(List<Key> locationKeys)
+			{
+			}
+		};
+		return RoutePlanner.findRoute(nodes, location(from), location(to), discovered);
+	}
+
+	@Test
+	public void testQuickestRouteWins()
+	{
+		Key slow = permanentPath(1, 1, 2, 100);
+		Key fast1 = permanentPath(2, 1, 3, 10);
+		Key fast2 = permanentPath(3, 3, 2, 10);
+
+		Assert.assertEquals(Arrays.asList(fast1, fast2), route(1, 2));
+		Assert.assertFalse(route(1, 2).contains(slow));
+	}
+
+	@Test
+	public void testPathsWorkInBothDirections()
+	{
+		Key path1 = permanentPath(1, 1, 2, 10);
+		Key path2 = permanentPath(2, 3, 2, 10);
+
+		Assert.assertEquals(Arrays.asList(path1, path2), route(1, 3));
+		Assert.assertEquals(Arrays.asList(path2, path1), route(3, 1));
+	}
+
+	@Test
+	public void testOneWayPaths()
+	{
+		Key oneWay = path(1, 1, 2, 10, 100d, "Permanent", "FromLocation1Only");
+
+		Assert.assertEquals(Arrays.asList(oneWay), route(1, 2));
+		Assert.assertNull(route(2, 1));
+
+		// The long way around is taken when the one way path points the other way
+		Key back1 = permanentPath(2, 2, 3, 50);
+		Key back2 = permanentPath(3, 3, 1, 50);
+		Assert.assertEquals(Arrays.asList(back1, back2), route(2, 1));
+
+		Key otherWay = path(4, 4, 1, 10, 100d, "Permanent", "FromLocation2Only");
+		Assert.assertEquals(Arrays.asList(otherWay), route(1, 4));
+		Assert.assertNull(route(4, 1));
+	}
+
+	@Test
+	public void testOnlyDiscoveredPathsAreUsed()
+	{
+		Key hidden = path(1, 1, 2, 10, 50d, "Permanent", null);
+		Assert.assertNull(route(1, 2));
+
+		discovered.add(hidden);
+		Assert.assertEquals(Arrays.asList(hidden), route(1, 2));
+	}
+
+	@Test
+	public void testCombatSitesAreNeverUsed()
+	{
+		Key combatSite = path(1, 1, 2, 10, 100d, "CombatSite", null);
+		discovered.add(combatSite);
+		Assert.assertNull(route(1, 2));
+	}
+
+	@Test
+	public void testNoRoute()
+	{
+		permanentPath(1, 1, 2, 10);
+		permanentPath(2, 3, 4, 10);
+		Assert.assertNull(route(1, 4));
+	}
+}
@@ -0,0 +1,150 @@
+package org.cheffo.jeplite;
+
+import java.util.Random;
+
+import org.cheffo.jeplite.util.DoubleStack;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CompiledExpressionTest
+{
+	private static final String[] VARIABLES = new String[]{"x", "y"};
+
+	private static final String[] CURVES = new String[]{
+		"5",
+		"x*2+y",
+		"x-y-1",
+		"x/y/2",
+		"x^2/(y+1)",
+		"-x+y%3",
+		"floor(x*1.5)+ceiling(y/3)",
+		"round(sqrt(x))*abs(-y)",
+		"ln(x+1)+log(y+1)",
+		"sin(x)*cos(y)+tan(0.5)",
+		"(x<y)+(x>y)*2+(x<=y)*4+(x>=y)*8+(x!=y)*16+(x==y)*32",
+		"(x>3)&&(y!=0)",
+		"(x>3)||!(y==0)",
+		"1+(2+(3+(4+(5+(6+(7+(8+(9+(10+(11+(12+(13+x))))))))))))"
+	};
+
+	private static final double[][] VALUES = new double[][]{
+		{0, 1}, {3, 3}, {7.5, 2}, {12, 0.25}, {-4, 9}
+	};
+
+	@Test
+	public void testMatchesJEP() throws ParseException
+	{
+		for(String curve:CURVES)
+		{
+			CompiledExpression compiled = CompiledExpression.compile(curve, VARIABLES, null);
+			for(double[] values:VALUES)
+				Assert.assertEquals(curve+" with x="+values[0]+", y="+values[1],
+						jepValue(curve, values, null), compiled.evaluate(values), 1e-9);
+		}
+	}
+
+	@Test
+	public void testComparativeOperators() throws ParseException
+	{
+		CompiledExpression compiled = CompiledExpression.compile(CURVES[10], VARIABLES, null);
+		// x<y, x<=y and x!=y
+		Assert.assertEquals(1+4+16, compiled.evaluate(new double[]{1, 2}), 0d);
+		// x>y, x>=y and x!=y
+		Assert.assertEquals(2+8+16, compiled.evaluate(new double[]{2, 1}), 0d);
+		// x<=y, x>=y and x==y
+		Assert.assertEquals(4+8+32, compiled.evaluate(new double[]{2, 2}), 0d);
+	}
+
+	@Test
+	public void testDeepExpression() throws ParseException
+	{
+		CompiledExpression compiled = CompiledExpression.compile(CURVES[CURVES.length-1], VARIABLES, null);
+		Assert.assertEquals(91+5, compiled.evaluate(new double[]{5, 0}), 0d);
+	}
+
+	@Test
+	public void testRandMatchesJEPWithSeededRandom() throws ParseException
+	{
+		String curve = "rand()*x+rand()*y";
+		CompiledExpression compiled = CompiledExpression.compile(curve, VARIABLES, null);
+		for(double[] values:VALUES)
+			Assert.assertEquals(jepValue(curve, values, new Random(42L)), compiled.evaluate(values, new Random(42L)), 1e-9);
+	}
+
+	@Test
+	public void testRandIsNotFolded() throws ParseException
+	{
+		CompiledExpression compiled = CompiledExpression.compile("rand()*100", null, null);
+		Random random = new Random(7L);
+		double first = compiled.evaluate(null, random);
+		double second = compiled.evaluate(null, random);
+		Assert.assertFalse(first==second);
+
+		Random expected = new Random(7L);
+		Assert.assertEquals(expected.nextDouble()*100, first, 1e-9);
+		Assert.assertEquals(expected.nextDouble()*100, second, 1e-9);
+	}
+
+	@Test
+	public void testUnknownVariable()
+	{
+		try
+		{
+			CompiledExpression.compile("x+z", VARIABLES, null);
+			Assert.fail("z is not a variable of the expression");
+		}
+		catch (ParseException e)
+		{
+			// Expected
+		}
+	}
+
+	@Test
+	public void testSharedBetweenThreads() throws Exception
+	{
+		final CompiledExpression compiled = CompiledExpression.compile(CURVES[6], VARIABLES, null);
+		final double expected = jepValue(CURVES[6], VALUES[2], null);
+		final boolean[] failed = new boolean[1];
+
+		Thread[] threads = new Thread[4];
+		for(int t = 0; t<threads.length; t++)
+		{
+			threads[t] = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						for(int i = 0; i<10000; i++)
+							if (compiled.evaluate(VALUES[2])!=expected)
+								failed[0] = true;
+					}
+					catch (ParseException e)
+					{
+						failed[0] = true;
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for(Thread thread:threads)
+			thread.join();
+
+		Assert.assertFalse(failed[0]);
+	}
+
+	private double jepValue(String curve, double[] values, Random random) throws ParseException
+	{
+		JEP jep = new JEP();
+		jep.addStandardFunctions();
+		for(int i = 0; i<VARIABLES.length; i++)
+			jep.addVariable(VARIABLES[i], values[i]);
+		jep.parseExpression(curve);
+		Assert.assertFalse(curve+": "+jep.getErrorInfo(), jep.hasError());
+
+		DoubleStack stack = new DoubleStack();
+		stack.setRandom(random);
+		return jep.getValue(stack);
+	}
+}
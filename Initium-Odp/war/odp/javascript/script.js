@@ -3784,6 +3784,39 @@ function doGoto(event, pathId, attack)
 			});
 }
 
+function doTravelRoute(event, locationId)
+{
+	clearMakeIntoPopup();
+
+	showBannerLoadingIcon();
+	longOperation(event, "TravelRoute", {locationId:locationId},
+			function(action) // responseFunction
+			{
+				if(action.error !== undefined)
+				{
+					clearPopupPermanentOverlay();
+					closeAllPagePopups();
+				}
+				else if (action.isComplete)
+				{
+					clearPopupPermanentOverlay();
+					updateBannerWeatherSystem();
+					setAudioDescriptor(locationAudioDescriptor, locationAudioDescriptorPreset, isOutside);
+					clearLoopedSounds();
+					playLoopedSounds();
+				}
+				else
+				{
+					var locationName = action.locationName;
+					popupPermanentOverlay_Walking(locationName, window.biome);
+				}
+			},
+			function()	// recallFunction
+			{
+				doTravelRoute(null, locationId);
+			});
+}
+
 
 
 function doExperiment(event)